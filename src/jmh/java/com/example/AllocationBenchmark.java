@@ -0,0 +1,89 @@
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The garbage each push, pull and delete round trip leaves behind. Run it with
+ * the GC profiler, e.g. {@code mvn -Pjmh test -Djmh.include=Allocation -Djmh.profilers=gc},
+ * and compare {@code gc.alloc.rate.norm}, the bytes allocated per operation:
+ * <ul>
+ *   <li>{@code stringReceipt} deletes by receipt id, as callers of the String API do;</li>
+ *   <li>{@code messageReceipt} deletes by message, so a backend that keeps receipts
+ *       as longs neither formats nor parses the receipt id;</li>
+ *   <li>{@code binaryBody} also pushes and reads the body as bytes.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Benchmark)
+public class AllocationBenchmark {
+    private static final int BACKLOG = 1_000;
+    private static final byte[] BINARY_BODY = PushBenchmark.BODY.getBytes(StandardCharsets.UTF_8);
+
+    @Param({"InMemory", "File"})
+    public QueueBackend backend;
+
+    private QueueService queueService;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        queueService = backend.create();
+        backend.purge(queueService, PushBenchmark.QUEUE_URL);
+        queueService.pushBatch(PushBenchmark.QUEUE_URL, Collections.nCopies(BACKLOG, PushBenchmark.BODY), 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        backend.purge(queueService, PushBenchmark.QUEUE_URL);
+    }
+
+    @Benchmark
+    public Message stringReceipt() {
+        queueService.push(PushBenchmark.QUEUE_URL, PushBenchmark.BODY, 1);
+        Message msg = queueService.pull(PushBenchmark.QUEUE_URL);
+        if (msg != null) {
+            queueService.delete(PushBenchmark.QUEUE_URL, msg.getReceiptId());
+        }
+        return msg;
+    }
+
+    @Benchmark
+    public Message messageReceipt() {
+        queueService.push(PushBenchmark.QUEUE_URL, PushBenchmark.BODY, 1);
+        Message msg = queueService.pull(PushBenchmark.QUEUE_URL);
+        if (msg != null) {
+            queueService.delete(PushBenchmark.QUEUE_URL, msg);
+        }
+        return msg;
+    }
+
+    @Benchmark
+    public byte[] binaryBody() {
+        queueService.push(PushBenchmark.QUEUE_URL, BINARY_BODY, 1);
+        Message msg = queueService.pull(PushBenchmark.QUEUE_URL);
+        if (msg == null) {
+            return null;
+        }
+        queueService.delete(PushBenchmark.QUEUE_URL, msg);
+        return msg.getBodyBytes();
+    }
+}
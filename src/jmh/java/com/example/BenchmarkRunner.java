@@ -0,0 +1,53 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the queue benchmarks once per thread count and writes one JSON result
+ * file per run, e.g. {@code target/jmh/results-4-threads.json}, to be kept and
+ * diffed between releases. Configured with system properties:
+ * <pre>
+ *   jmh.include    benchmark regex          (default: every *Benchmark class)
+ *   jmh.threads    comma-separated counts   (default: 1,4,16)
+ *   jmh.backend    comma-separated backends (default: all of each benchmark)
+ *   jmh.backlog    comma-separated sizes    (default: 1000 to 1000000)
+ *   jmh.profilers  comma-separated profilers, e.g. gc (default: none)
+ *   jmh.resultDir  output directory         (default: target/jmh)
+ * </pre>
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws IOException, RunnerException {
+        Path resultDir = Paths.get(System.getProperty("jmh.resultDir", "target/jmh"));
+        Files.createDirectories(resultDir);
+
+        for (String threads : System.getProperty("jmh.threads", "1,4,16").split(",")) {
+            int threadCount = Integer.parseInt(threads.trim());
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(System.getProperty("jmh.include", "com\\.example\\..*Benchmark"))
+                    .threads(threadCount)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(resultDir.resolve("results-" + threadCount + "-threads.json").toString());
+            for (String param : new String[] {"backend", "backlog"}) {
+                String values = System.getProperty("jmh." + param);
+                if (values != null && !values.isEmpty()) {
+                    options.param(param, values.split(","));
+                }
+            }
+            for (String profiler : System.getProperty("jmh.profilers", "").split(",")) {
+                if (!profiler.trim().isEmpty()) {
+                    options.addProfiler(profiler.trim());
+                }
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Push throughput into a queue that nobody consumes. Every iteration starts from
+ * an empty queue. The mapped ring is left out: its fixed capacity fills up within
+ * an iteration.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class PushBenchmark {
+    static final String QUEUE_URL = "https://sqs.ap-1.amazonaws.com/007/BenchmarkQueue";
+    static final String BODY = "benchmark message";
+
+    @Param({"InMemory", "File", "Sqs"})
+    public QueueBackend backend;
+
+    private QueueService queueService;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        queueService = backend.create();
+        backend.purge(queueService, QUEUE_URL);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        backend.purge(queueService, QUEUE_URL);
+    }
+
+    @Benchmark
+    public void push() {
+        queueService.push(QUEUE_URL, BODY, 1);
+    }
+}
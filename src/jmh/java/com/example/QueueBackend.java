@@ -0,0 +1,62 @@
+package com.example;
+
+import java.util.Properties;
+
+/**
+ * The QueueService implementations the benchmarks run against, selected by the
+ * {@code backend} parameter.
+ */
+enum QueueBackend {
+    InMemory {
+        @Override
+        QueueService create() {
+            return new InMemoryQueueService();
+        }
+    },
+    OffHeap {
+        @Override
+        QueueService create() {
+            Properties confInfo = new Properties();
+            confInfo.setProperty("inMemoryStorage", "offheap");
+            confInfo.setProperty("offHeapMaxBytes", String.valueOf(1L << 30));
+            return new InMemoryQueueService(confInfo);
+        }
+    },
+    File {
+        @Override
+        QueueService create() {
+            return new FileQueueService();
+        }
+
+        @Override
+        void purge(QueueService queueService, String queueUrl) {
+            ((FileQueueService) queueService).purgeQueue(queueUrl);
+        }
+    },
+    Mapped {
+        @Override
+        QueueService create() {
+            return new MappedQueueService();
+        }
+
+        @Override
+        void purge(QueueService queueService, String queueUrl) {
+            ((MappedQueueService) queueService).purgeQueue(queueUrl);
+        }
+    },
+    Sqs {
+        @Override
+        QueueService create() {
+            return new SqsQueueService(new StubAmazonSQS());
+        }
+    };
+
+    abstract QueueService create();
+
+    /**
+     * Empties the queue. Services created fresh for each trial start empty, except
+     * the persistent ones, which override this.
+     */
+    void purge(QueueService queueService, String queueUrl) {
+    }
+}
@@ -0,0 +1,80 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One push, pull and delete per operation against a queue that already holds
+ * {@code backlog} messages, so the backlog stays constant. Sweeping the backlog
+ * shows how each backend's cost grows with queue size; {@code priorities} set to
+ * more than one mixes priorities in the backlog and the pushes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class RoundTripBenchmark {
+    private static final int PREFILL_BATCH = 1_000;
+
+    @Param({"InMemory", "OffHeap", "File", "Mapped", "Sqs"})
+    public QueueBackend backend;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int backlog;
+
+    @Param({"1", "10"})
+    public int priorities;
+
+    private QueueService queueService;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        int pushes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        queueService = backend.create();
+        backend.purge(queueService, PushBenchmark.QUEUE_URL);
+        List<String> batch = Collections.nCopies(PREFILL_BATCH, PushBenchmark.BODY);
+        for (int pushed = 0; pushed < backlog; pushed += PREFILL_BATCH) {
+            int priority = 1 + (pushed / PREFILL_BATCH) % priorities;
+            queueService.pushBatch(PushBenchmark.QUEUE_URL,
+                    backlog - pushed < PREFILL_BATCH ? new ArrayList<>(batch.subList(0, backlog - pushed)) : batch,
+                    priority);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        backend.purge(queueService, PushBenchmark.QUEUE_URL);
+    }
+
+    @Benchmark
+    public Message roundTrip(ThreadState thread) {
+        queueService.push(PushBenchmark.QUEUE_URL, PushBenchmark.BODY, 1 + thread.pushes++ % priorities);
+        Message msg = queueService.pull(PushBenchmark.QUEUE_URL);
+        if (msg != null) {
+            queueService.delete(PushBenchmark.QUEUE_URL, msg.getReceiptId());
+        }
+        return msg;
+    }
+}
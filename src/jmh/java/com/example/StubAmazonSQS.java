@@ -0,0 +1,93 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.PurgeQueueRequest;
+import com.amazonaws.services.sqs.model.PurgeQueueResult;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+
+/**
+ * An in-process stand-in for SQS, so that benchmarks of {@link SqsQueueService}
+ * measure the service and the client's request objects rather than the network.
+ * Received messages are not hidden or redelivered; a receipt handle is just the
+ * message id.
+ */
+class StubAmazonSQS extends AbstractAmazonSQS {
+    private final Map<String, Queue<Message>> queues = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+
+    @Override
+    public SendMessageResult sendMessage(SendMessageRequest request) {
+        String id = Long.toString(ids.incrementAndGet());
+        queue(request.getQueueUrl()).add(new Message().withMessageId(id).withReceiptHandle(id)
+                .withBody(request.getMessageBody()));
+        return new SendMessageResult().withMessageId(id);
+    }
+
+    @Override
+    public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+        SendMessageBatchResult result = new SendMessageBatchResult();
+        for (SendMessageBatchRequestEntry entry : request.getEntries()) {
+            String id = sendMessage(new SendMessageRequest(request.getQueueUrl(), entry.getMessageBody())).getMessageId();
+            result.getSuccessful().add(new SendMessageBatchResultEntry().withId(entry.getId()).withMessageId(id));
+        }
+        return result;
+    }
+
+    @Override
+    public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+        int max = request.getMaxNumberOfMessages() == null ? 1 : request.getMaxNumberOfMessages();
+        Queue<Message> queue = queue(request.getQueueUrl());
+        List<Message> messages = new ArrayList<>(max);
+        Message msg;
+        while (messages.size() < max && (msg = queue.poll()) != null) {
+            messages.add(msg);
+        }
+        return new ReceiveMessageResult().withMessages(messages);
+    }
+
+    @Override
+    public DeleteMessageResult deleteMessage(DeleteMessageRequest request) {
+        return new DeleteMessageResult();
+    }
+
+    @Override
+    public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+        DeleteMessageBatchResult result = new DeleteMessageBatchResult();
+        for (DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+            result.getSuccessful().add(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+        }
+        return result;
+    }
+
+    @Override
+    public PurgeQueueResult purgeQueue(PurgeQueueRequest request) {
+        queue(request.getQueueUrl()).clear();
+        return new PurgeQueueResult();
+    }
+
+    private Queue<Message> queue(String queueUrl) {
+        return queues.computeIfAbsent(queueUrl, url -> new ConcurrentLinkedQueue<>());
+    }
+}
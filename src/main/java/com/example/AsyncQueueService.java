@@ -0,0 +1,57 @@
+package com.example;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * The non-blocking companion of {@link QueueService}. Every call returns at once
+ * with a future that completes when the operation does, so a single caller can
+ * keep many operations in flight.
+ *
+ * <p>Backends whose client library is asynchronous implement this natively (see
+ * {@link SqsAsyncQueueService}); any other {@link QueueService} can be adapted
+ * with {@link #wrap(QueueService)}.
+ */
+public interface AsyncQueueService {
+    /**
+     * Push a message onto a queue with a specified priority.
+     *
+     * @param queueUrl    the URL of the queue
+     * @param messageBody the body of the message
+     * @param priority    the priority of the message
+     * @return a future completed once the message is pushed
+     */
+    public CompletableFuture<Void> pushAsync(String queueUrl, String messageBody, int priority);
+
+    /**
+     * Retrieves a single message from a queue.
+     *
+     * @param queueUrl the URL of the queue
+     * @return a future completed with the retrieved message, or with null if none is available
+     */
+    public CompletableFuture<Message> pullAsync(String queueUrl);
+
+    /**
+     * Deletes a message from the queue that was received by pullAsync().
+     *
+     * @param queueUrl  the URL of the queue
+     * @param receiptId the receipt ID of the message
+     * @return a future completed once the message is deleted
+     */
+    public CompletableFuture<Void> deleteAsync(String queueUrl, String receiptId);
+
+    /**
+     * Adapts a blocking QueueService, running each call on a virtual thread where
+     * the JVM supports them and on a shared cached thread pool otherwise.
+     */
+    public static ExecutorAsyncQueueService wrap(QueueService queueService) {
+        return new ExecutorAsyncQueueService(queueService);
+    }
+
+    /**
+     * Adapts a blocking QueueService, running each call on the given executor.
+     */
+    public static ExecutorAsyncQueueService wrap(QueueService queueService, Executor executor) {
+        return new ExecutorAsyncQueueService(queueService, executor);
+    }
+}
@@ -0,0 +1,40 @@
+package com.example;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The polling loop of backends that cannot block until a message arrives:
+ * retries with a backoff that doubles from 1 ms up to 100 ms.
+ */
+final class Backoff {
+  private static final long MAX_BACKOFF_MILLIS = 100;
+
+  private Backoff() {
+  }
+
+  /**
+   * Calls {@code attempt} until it returns a message or {@code wait} has passed.
+   *
+   * @return the message, or null if none came in time or the calling thread was interrupted
+   */
+  static Message poll(Duration wait, Supplier<Message> attempt) {
+    long deadline = System.nanoTime() + wait.toNanos();
+    long backoffMillis = 1;
+    while (true) {
+      Message msg = attempt.get();
+      long remaining = deadline - System.nanoTime();
+      if (msg != null || remaining <= 0) {
+        return msg;
+      }
+      try {
+        TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(backoffMillis)));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+      backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package com.example;
+
+import java.time.Duration;
+
+/**
+ * The capacity policy of a queue: at most {@code maxMessages} messages, and at
+ * most {@code maxBytes} bytes of message bodies, counting ready, in-flight and
+ * delayed messages alike. A limit of 0 means no limit of that kind. A push that
+ * would exceed a limit is handled as the {@link OverflowPolicy} says.
+ *
+ * <p>Dead letters moved into a queue by a redrive policy are always accepted, so
+ * that pulls from the source queue never fail or wait; they may take a queue past
+ * its limits until deletes, or the drops of a later push, bring it back.
+ */
+public final class CapacityPolicy {
+    private final long maxMessages;
+    private final long maxBytes;
+    private final OverflowPolicy overflowPolicy;
+    private final Duration blockTimeout;
+
+    /**
+     * A policy that drops or rejects messages; {@link OverflowPolicy#BLOCK} needs a
+     * block timeout.
+     */
+    public CapacityPolicy(long maxMessages, long maxBytes, OverflowPolicy overflowPolicy) {
+        this(maxMessages, maxBytes, overflowPolicy, Duration.ZERO);
+    }
+
+    /**
+     * @param blockTimeout how long a push may wait for room under
+     *                     {@link OverflowPolicy#BLOCK}; ignored by the other policies
+     */
+    public CapacityPolicy(long maxMessages, long maxBytes, OverflowPolicy overflowPolicy, Duration blockTimeout) {
+        if (maxMessages < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Capacity limits cannot be negative");
+        }
+        if (maxMessages == 0 && maxBytes == 0) {
+            throw new IllegalArgumentException("A capacity policy needs a message or a byte limit");
+        }
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("Overflow policy cannot be null");
+        }
+        if (blockTimeout == null || blockTimeout.isNegative()) {
+            throw new IllegalArgumentException("Block timeout cannot be null or negative");
+        }
+        if (overflowPolicy == OverflowPolicy.BLOCK && blockTimeout.isZero()) {
+            throw new IllegalArgumentException("Blocking needs a positive block timeout; use REJECT not to wait");
+        }
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeout = blockTimeout;
+    }
+
+    public long getMaxMessages() {
+        return maxMessages;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public Duration getBlockTimeout() {
+        return blockTimeout;
+    }
+
+    /**
+     * Whether {@code messages} more messages with {@code bytes} of bodies fit in a
+     * queue holding {@code queuedMessages} messages with {@code queuedBytes}.
+     */
+    boolean fits(long queuedMessages, long queuedBytes, long messages, long bytes) {
+        return (maxMessages == 0 || queuedMessages + messages <= maxMessages)
+                && (maxBytes == 0 || queuedBytes + bytes <= maxBytes);
+    }
+
+    boolean dropsMessages() {
+        return overflowPolicy == OverflowPolicy.DROP_LOWEST_PRIORITY || overflowPolicy == OverflowPolicy.DROP_OLDEST;
+    }
+
+    /**
+     * How full a queue holding {@code messages} messages with {@code bytes} of
+     * bodies is: the larger of the two as a fraction of its limit, capped at 1.
+     */
+    double pressure(long messages, long bytes) {
+        double pressure = 0;
+        if (maxMessages > 0) {
+            pressure = (double) messages / maxMessages;
+        }
+        if (maxBytes > 0) {
+            pressure = Math.max(pressure, (double) bytes / maxBytes);
+        }
+        return Math.min(pressure, 1);
+    }
+
+    /**
+     * The error of a push that does not fit.
+     */
+    QueueFullException full(String queue, long queuedMessages, long queuedBytes) {
+        return new QueueFullException("Queue " + queue + " is full: " + queuedMessages + " messages, "
+                + queuedBytes + " bytes, " + this);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CapacityPolicy)) {
+            return false;
+        }
+        CapacityPolicy other = (CapacityPolicy) o;
+        return maxMessages == other.maxMessages && maxBytes == other.maxBytes
+                && overflowPolicy == other.overflowPolicy && blockTimeout.equals(other.blockTimeout);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * Long.hashCode(maxMessages) + Long.hashCode(maxBytes)) + overflowPolicy.hashCode())
+                + blockTimeout.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "CapacityPolicy[maxMessages=" + maxMessages + ", maxBytes=" + maxBytes + ", overflowPolicy="
+                + overflowPolicy + ", blockTimeout=" + blockTimeout + "]";
+    }
+}
@@ -0,0 +1,182 @@
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The persistent deduplication index of one file-based queue: {@code dedup.log}
+ * in the queue directory, with one record per accepted deduplication id and its
+ * expiry time. Every process keeps the ids in a {@link DeduplicationWindow} and,
+ * like {@link FileMessageLog}, catches up with the records other processes
+ * appended before each check, reading only the new bytes.
+ *
+ * <p>Once the file holds more than twice as many records as there are live ids,
+ * it is rewritten with only the live ones. Once the new file has replaced it, the
+ * old one gets a RESET record, which tells processes that still have it open to
+ * reopen the file. A RESET record in the file at the path itself can only be
+ * damage, and is dropped with whatever follows it.
+ *
+ * <p>Records are not forced to disk: a record lost in a crash only lets a retry
+ * of that message through as a duplicate, as if there were no deduplication.
+ *
+ * <p>Not thread-safe: all calls must be made while holding the queue lock.
+ */
+final class DeduplicationLog {
+  static final String FILE = "dedup.log";
+
+  // Record layout: id length in bytes (RESET instead for a reset record), expiry time, id.
+  private static final int RESET = -1;
+  private static final int HEADER = 4 + 8;
+  private static final int MIN_REWRITE_RECORDS = 1024;
+
+  private final Path path;
+  private final long windowMillis;
+  private final int maxIds;
+  private DeduplicationWindow window;
+  private FileChannel channel;
+  private long position;
+  private int records;
+  private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+  DeduplicationLog(Path dir, long windowMillis, int maxIds) {
+    this.path = dir.resolve(FILE);
+    this.windowMillis = windowMillis;
+    this.maxIds = maxIds;
+  }
+
+  /**
+   * Whether {@code id} was accepted by any process within the window before {@code now}.
+   */
+  boolean contains(String id, long now) throws IOException {
+    catchUp(now);
+    return window.contains(id, now);
+  }
+
+  /**
+   * Records {@code id} as accepted at {@code now}. Must follow {@link #contains}
+   * under the same hold of the queue lock.
+   */
+  void add(String id, long now) throws IOException {
+    window.add(id, now);
+    append(id, now + windowMillis);
+    if (records > Math.max(MIN_REWRITE_RECORDS, 2 * window.size())) {
+      rewrite();
+    }
+  }
+
+  void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  private void catchUp(long now) throws IOException {
+    // Whether the channel was opened from path by this call, rather than left open by an earlier one.
+    boolean opened = false;
+    if (channel == null) {
+      open();
+      opened = true;
+    }
+    long size = channel.size();
+    while (position < size) {
+      if (size - position > buffer.capacity()) {
+        buffer = ByteBuffer.allocate((int) Math.min(size - position, Integer.MAX_VALUE - 8));
+      }
+      buffer.clear();
+      int read = channel.read(buffer, position);
+      if (read <= 0) {
+        break;
+      }
+      buffer.flip();
+      int at = 0;
+      boolean reset = false;
+      while (buffer.limit() - at >= HEADER) {
+        int length = buffer.getInt(at);
+        if (length == RESET) {
+          reset = true;
+          break;
+        }
+        if (length < 0 || buffer.limit() - at < HEADER + length) {
+          break;
+        }
+        long expiry = buffer.getLong(at + 4);
+        byte[] id = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(at + HEADER);
+        view.get(id);
+        window.restore(new String(id, StandardCharsets.UTF_8), expiry, now);
+        records++;
+        at += HEADER + length;
+      }
+      position += at;
+      if (reset && !opened) {
+        // Another process rewrote the file, and this is the old one; read the new one from the start.
+        close();
+        open();
+        opened = true;
+        size = channel.size();
+        continue;
+      }
+      if (reset || at == 0) {
+        // A torn record left by a process that died while appending, or a reset record, which only
+        // ever belongs at the end of a replaced file: nothing valid follows.
+        if (reset) {
+          System.err.println("Dropping a stray reset record from " + path);
+        }
+        channel.truncate(position);
+        return;
+      }
+    }
+  }
+
+  private void open() throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    window = new DeduplicationWindow(windowMillis, maxIds);
+    position = 0;
+    records = 0;
+  }
+
+  private void append(String id, long expiry) throws IOException {
+    position += write(channel, position, ByteBuffer.wrap(record(id, expiry)));
+    records++;
+  }
+
+  // Replaces the file with one holding only the live ids.
+  private void rewrite() throws IOException {
+    ByteArrayOutputStream live = new ByteArrayOutputStream(window.size() * 64);
+    window.forEach((id, expiry) -> live.writeBytes(record(id, expiry)));
+    Path temp = path.resolveSibling(FILE + ".tmp");
+    try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      write(out, 0, ByteBuffer.wrap(live.toByteArray()));
+    }
+    Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    // Only now, into the replaced file, which processes that still have it open keep reading.
+    ByteBuffer reset = ByteBuffer.allocate(HEADER);
+    reset.putInt(RESET).putLong(0).flip();
+    write(channel, position, reset);
+    // Read back from the new file by the next check.
+    close();
+  }
+
+  private static byte[] record(String id, long expiry) {
+    byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+    return ByteBuffer.allocate(HEADER + bytes.length).putInt(bytes.length).putLong(expiry).put(bytes).array();
+  }
+
+  private static int write(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+    int written = 0;
+    while (buffer.hasRemaining()) {
+      written += channel.write(buffer, position + written);
+    }
+    return written;
+  }
+}
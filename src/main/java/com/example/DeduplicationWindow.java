@@ -0,0 +1,138 @@
+package com.example;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * The deduplication ids a queue accepted within the last {@code window}
+ * milliseconds, for dropping retried pushes at admission.
+ *
+ * <p>Every id is kept for the same window, so ids expire in the order they were
+ * added: a ring of ids in arrival order, with their expiry times, serves as the
+ * expiry wheel, and each call first drops the expired ids at its head. A hash map
+ * from id to expiry time answers lookups. Both are O(1) per id.
+ *
+ * <p>Memory is bounded: the ring holds at most {@code maxIds} ids, and when it is
+ * full the oldest id is forgotten before its time. A retry is then only let
+ * through if more than {@code maxIds} other ids were pushed since the first
+ * attempt. The ring grows to {@code maxIds} as needed rather than up front.
+ *
+ * <p>Not thread-safe.
+ */
+final class DeduplicationWindow {
+  private final long windowMillis;
+  private final int maxIds;
+  private String[] ids = new String[16];
+  private long[] expiries = new long[16];
+  private int head;
+  private int size;
+  private final Map<String, Long> live = new HashMap<>();
+
+  /**
+   * @param windowMillis how long an id is remembered
+   * @param maxIds       the most ids remembered at once
+   */
+  DeduplicationWindow(long windowMillis, int maxIds) {
+    if (windowMillis <= 0) {
+      throw new IllegalArgumentException("Deduplication window must be positive: " + windowMillis);
+    }
+    if (maxIds <= 0) {
+      throw new IllegalArgumentException("Deduplication id limit must be positive: " + maxIds);
+    }
+    this.windowMillis = windowMillis;
+    this.maxIds = maxIds;
+  }
+
+  long windowMillis() {
+    return windowMillis;
+  }
+
+  /**
+   * Whether {@code id} was added within the window before {@code now}.
+   */
+  boolean contains(String id, long now) {
+    expire(now);
+    return live.containsKey(id);
+  }
+
+  /**
+   * Adds {@code id} for a window from {@code now}.
+   *
+   * @return false if the id is already in the window
+   */
+  boolean add(String id, long now) {
+    if (contains(id, now)) {
+      return false;
+    }
+    restore(id, now + windowMillis, now);
+    return true;
+  }
+
+  /**
+   * Adds {@code id} until {@code expiry}, e.g. read back from a file; ids must
+   * be restored in the order they were added. An id already expired at
+   * {@code now} is ignored, and an id already in the window gets the new expiry.
+   */
+  void restore(String id, long expiry, long now) {
+    if (expiry <= now) {
+      return;
+    }
+    if (size == maxIds) {
+      pollHead();
+    } else if (size == ids.length) {
+      grow();
+    }
+    int tail = (head + size) % ids.length;
+    ids[tail] = id;
+    expiries[tail] = expiry;
+    size++;
+    live.put(id, expiry);
+  }
+
+  /** The number of ids in the window. */
+  int size() {
+    return live.size();
+  }
+
+  /**
+   * Calls {@code action} with each id in the window and its expiry time, oldest
+   * first.
+   */
+  void forEach(ObjLongConsumer<String> action) {
+    for (int i = 0; i < size; i++) {
+      int at = (head + i) % ids.length;
+      Long expiry = live.get(ids[at]);
+      if (expiry != null && expiry == expiries[at]) {
+        action.accept(ids[at], expiries[at]);
+      }
+    }
+  }
+
+  private void expire(long now) {
+    while (size > 0 && expiries[head] <= now) {
+      pollHead();
+    }
+  }
+
+  private void pollHead() {
+    // Only if the map still holds this entry, not a later add or restore of the same id.
+    live.remove(ids[head], expiries[head]);
+    ids[head] = null;
+    head = (head + 1) % ids.length;
+    size--;
+  }
+
+  private void grow() {
+    int capacity = (int) Math.min((long) ids.length * 2, maxIds);
+    String[] grownIds = new String[capacity];
+    long[] grownExpiries = new long[capacity];
+    for (int i = 0; i < size; i++) {
+      grownIds[i] = ids[(head + i) % ids.length];
+      grownExpiries[i] = expiries[(head + i) % ids.length];
+    }
+    ids = grownIds;
+    expiries = grownExpiries;
+    head = 0;
+  }
+}
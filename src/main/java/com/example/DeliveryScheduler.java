@@ -0,0 +1,125 @@
+package com.example;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Chooses which priority band of a queue the next message is delivered from.
+ *
+ * <p>The local backends keep the ready messages of each priority in their own
+ * FIFO lane, so a scheduler only looks at the head of each non-empty band and
+ * its cost depends on the number of priorities in use, not on the backlog.
+ * Within a band, messages are always delivered in arrival order.
+ *
+ * <p>Implementations are shared by every queue of a service and must keep any
+ * per-queue state in {@link PriorityBand#setCredit(long)}.
+ */
+@FunctionalInterface
+public interface DeliveryScheduler {
+    /**
+     * Chooses the band to deliver from.
+     *
+     * @param bands the non-empty bands of the queue, highest priority first
+     * @param now   the current time in milliseconds
+     * @return the index of the chosen band in {@code bands}
+     */
+    public int select(List<? extends PriorityBand> bands, long now);
+
+    /**
+     * Ignores priorities and delivers the oldest message first.
+     */
+    public static DeliveryScheduler fifo() {
+        return (bands, now) -> {
+            int oldest = 0;
+            for (int i = 1; i < bands.size(); i++) {
+                if (bands.get(i).getOldestSequence() < bands.get(oldest).getOldestSequence()) {
+                    oldest = i;
+                }
+            }
+            return oldest;
+        };
+    }
+
+    /**
+     * Always delivers from the highest priority band. Lower priorities wait for
+     * as long as higher priority messages keep arriving.
+     */
+    public static DeliveryScheduler strictPriority() {
+        return (bands, now) -> 0;
+    }
+
+    /**
+     * Shares deliveries between the non-empty bands in proportion to their
+     * weights, interleaved smoothly (as in nginx's smooth weighted round-robin),
+     * so no band waits more than one round.
+     *
+     * @param weight the positive weight of each priority
+     */
+    public static DeliveryScheduler weightedRoundRobin(IntUnaryOperator weight) {
+        return (bands, now) -> {
+            long total = 0;
+            int chosen = 0;
+            for (int i = 0; i < bands.size(); i++) {
+                PriorityBand band = bands.get(i);
+                int bandWeight = weight.applyAsInt(band.getPriority());
+                total += bandWeight;
+                band.setCredit(band.getCredit() + bandWeight);
+                if (band.getCredit() > bands.get(chosen).getCredit()) {
+                    chosen = i;
+                }
+            }
+            PriorityBand band = bands.get(chosen);
+            band.setCredit(band.getCredit() - total);
+            return chosen;
+        };
+    }
+
+    /**
+     * Strict priority where a waiting message gains one priority level for every
+     * {@code millisPerLevel} it has waited since it was pushed, so a low priority
+     * message is eventually delivered however busy the higher bands are.
+     */
+    public static DeliveryScheduler aging(long millisPerLevel) {
+        if (millisPerLevel <= 0) {
+            throw new IllegalArgumentException("Aging interval must be positive");
+        }
+        return (bands, now) -> {
+            int chosen = 0;
+            long best = Long.MIN_VALUE;
+            for (int i = 0; i < bands.size(); i++) {
+                PriorityBand band = bands.get(i);
+                long effective = band.getPriority() + Math.max(0, now - band.getOldestTimestamp()) / millisPerLevel;
+                // Bands come highest priority first, so ties keep the higher band.
+                if (effective > best) {
+                    best = effective;
+                    chosen = i;
+                }
+            }
+            return chosen;
+        };
+    }
+
+    /**
+     * The scheduler named by the {@code deliveryScheduler} property: {@code fifo},
+     * {@code strict}, {@code weighted} (weight = priority, at least 1) or
+     * {@code aging} (one level per {@code deliveryAgingMillis}, default 1000).
+     *
+     * @param defaultMode the mode to use when the property is not set
+     */
+    public static DeliveryScheduler fromConfig(Properties config, String defaultMode) {
+        String mode = config.getProperty("deliveryScheduler", defaultMode).trim();
+        switch (mode) {
+            case "fifo":
+                return fifo();
+            case "strict":
+                return strictPriority();
+            case "weighted":
+                return weightedRoundRobin(priority -> Math.max(1, priority));
+            case "aging":
+                return aging(Long.parseLong(config.getProperty("deliveryAgingMillis", "1000")));
+            default:
+                throw new IllegalArgumentException("Unknown delivery scheduler: " + mode);
+        }
+    }
+}
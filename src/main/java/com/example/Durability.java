@@ -0,0 +1,24 @@
+package com.example;
+
+/**
+ * When the file-based queue forces its writes to disk.
+ */
+public enum Durability {
+    /**
+     * Never; writes reach the disk when the OS flushes its page cache. The fastest,
+     * but a machine crash (not just a process crash) can lose recent pushes.
+     */
+    NONE,
+    /**
+     * Group commit: a push returns once a force() covering it has completed, and
+     * the writes of concurrent callers share a single force(), taken at most
+     * {@code groupCommitMillis} after the first of them or as soon as
+     * {@code groupCommitWrites} writes are waiting.
+     */
+    GROUP,
+    /**
+     * Every write is forced before the operation returns, including deliveries
+     * and deletes.
+     */
+    SYNC
+}
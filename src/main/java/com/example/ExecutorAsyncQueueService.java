@@ -0,0 +1,69 @@
+package com.example;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An {@link AsyncQueueService} that runs the calls of a blocking {@link QueueService}
+ * on an executor.
+ *
+ * <p>By default each call gets its own virtual thread, so thousands of calls can
+ * wait on the network or a queue lock at once without holding as many platform
+ * threads. The JVM this project targets may not have virtual threads; there the
+ * calls share a cached pool of daemon threads instead.
+ */
+public class ExecutorAsyncQueueService implements AsyncQueueService {
+    private static final Executor DEFAULT_EXECUTOR = defaultExecutor();
+
+    private final QueueService queueService;
+    private final Executor executor;
+
+    public ExecutorAsyncQueueService(QueueService queueService) {
+        this(queueService, DEFAULT_EXECUTOR);
+    }
+
+    public ExecutorAsyncQueueService(QueueService queueService, Executor executor) {
+        if (queueService == null || executor == null) {
+            throw new IllegalArgumentException("Queue service and executor cannot be null");
+        }
+        this.queueService = queueService;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<Void> pushAsync(String queueUrl, String messageBody, int priority) {
+        return CompletableFuture.runAsync(() -> queueService.push(queueUrl, messageBody, priority), executor);
+    }
+
+    @Override
+    public CompletableFuture<Message> pullAsync(String queueUrl) {
+        return CompletableFuture.supplyAsync(() -> queueService.pull(queueUrl), executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String queueUrl, String receiptId) {
+        return CompletableFuture.runAsync(() -> queueService.delete(queueUrl, receiptId), executor);
+    }
+
+    /**
+     * The wrapped blocking service.
+     */
+    public QueueService getQueueService() {
+        return queueService;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() exists from Java 21 on; look it up so the code still builds for 11.
+    static Executor defaultExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "async-queue-service");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
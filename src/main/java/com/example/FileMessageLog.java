@@ -0,0 +1,1457 @@
+package com.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The storage engine of one file-based queue.
+ *
+ * <p>A queue directory holds two kinds of append-only files, both made of
+ * binary {@link RecordCodec} records:
+ * <ul>
+ *   <li>{@code segment-N.log}: one PUSH record per message, or a DELAYED record
+ *       for a message that becomes visible later. A new segment is started once
+ *       the current one reaches the segment size (64 MB by default).</li>
+ *   <li>{@code state-G.log}: one small record per delivery (DELIVERED) and per
+ *       delete (DELETED), plus a few control records.</li>
+ * </ul>
+ * Push, pull and delete therefore each append a single record instead of
+ * rewriting the queue.
+ *
+ * <p>Every process keeps an in-memory index of the queue ({@link ReadyLanes} per priority, in-flight
+ * {@link TimingWheel}, receipt map and a second wheel of delayed messages) and, while holding the queue lock, first
+ * catches up by reading only the bytes other processes appended since its last
+ * operation. The index only keeps the position of each body: scanning reads the
+ * fixed-width record headers and skips the bodies, and a body is read from its
+ * segment when the message is delivered. Segments whose messages have all been
+ * deleted are dropped by {@link #compact()}, which also rewrites the state log
+ * into a snapshot of the live messages when it grows much larger than the backlog.
+ *
+ * <p>Control records in the state log:
+ * <pre>
+ *   DROPPED segment    fully deleted segment dropped
+ *   SNAPSHOT maxId     snapshot header: ids up to maxId are deleted unless listed by LIVE
+ *   LIVE ...           live message in a snapshot, same fields as DELIVERED
+ *   MOVED generation   state moved to a newer generation; reload
+ * </pre>
+ * An all-zero receipt in a DELIVERED or LIVE record means the message is not in
+ * flight; it becomes ready at its visibleFrom.
+ *
+ * <p>With a max receive count set, a message whose visibility timeout expires
+ * after its last allowed delivery is set aside instead of going back to the
+ * ready set, until the caller has copied it to a dead-letter queue and removed
+ * it with {@link #dropExhausted()}.
+ *
+ * <p>{@link #compact()} also writes a checkpoint of the index, {@code checkpoint.bin},
+ * once more than a segment's worth of records (and at least the size of the
+ * checkpoint itself) was appended since the last one. It holds every live
+ * message with its delivery state, and the segment and state log positions it
+ * was taken at, so loading only replays the records appended after them. A
+ * checkpoint that fails its checksum or does not match the files on disk is
+ * ignored, and the queue is loaded by scanning every segment as before. Loading
+ * also deletes the {@code .tmp} files of a snapshot or checkpoint interrupted by
+ * a crash, and {@link #verify()} cross-checks the index against the files.
+ *
+ * <p>Writes are forced to disk according to the log's {@link Durability}; with
+ * group commit, callers wait for the commit of their writes after releasing the
+ * queue lock (see {@link #groupCommit()}). Files are forced before they are
+ * closed, so a commit never misses a write to a file closed in the meantime.
+ *
+ * <p>Ready messages are delivered in the order of the log's {@link DeliveryScheduler};
+ * the default, {@link DeliveryScheduler#fifo()}, ignores priorities.
+ *
+ * <p>Not thread-safe: all calls must be made while holding the queue lock.
+ */
+class FileMessageLog {
+  static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+  static final int STATE_COMPACTION_THRESHOLD = 10_000;
+
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String STATE_PREFIX = "state-";
+  private static final String LOG_SUFFIX = ".log";
+  private static final int READ_CHUNK = 64 * 1024;
+  private static final int MAX_SEGMENT_READERS = 8;
+  private static final String CHECKPOINT_FILE = "checkpoint.bin";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final int CHECKPOINT_MAGIC = 0x51434b31;
+  // id, segment, bodyPosition, bodyLength, priority, timestamp, attempts, visibleFrom, receipt, state
+  private static final int CHECKPOINT_ENTRY = 8 + 8 + 8 + 4 + 4 + 8 + 4 + 8 + 16 + 1;
+  private static final byte CHECKPOINT_READY = 0;
+  private static final byte CHECKPOINT_IN_FLIGHT = 1;
+  private static final byte CHECKPOINT_DELAYED = 2;
+  private static final byte CHECKPOINT_EXHAUSTED = 3;
+
+  private final Path dir;
+  private final long segmentSize;
+
+  private final Map<Long, Entry> entries = new HashMap<>();
+  private final ReadyLanes<Entry> ready;
+  // Messages past the max receive count, waiting to be moved to the dead-letter queue.
+  private final Set<Entry> exhausted = new LinkedHashSet<>();
+  private TimingWheel<Entry> inFlight = new TimingWheel<>();
+  private TimingWheel<Entry> delayed = new TimingWheel<>();
+  private final Map<String, TimingWheel.Timer<Entry>> receipts = new HashMap<>();
+  private final TreeMap<Long, Integer> liveBySegment = new TreeMap<>();
+  private final Set<Long> drainedSegments = new HashSet<>();
+  // Channels for reading bodies out of older segments, least recently used first.
+  private final Map<Long, FileChannel> segmentReaders = new LinkedHashMap<>(16, 0.75f, true);
+  private final Consumer<Entry> requeue = this::requeue;
+  private final Consumer<Entry> release = this::release;
+  private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_CHUNK);
+  private ByteBuffer stateBuffer = ByteBuffer.allocate(READ_CHUNK);
+  private ByteBuffer writeBuffer = ByteBuffer.allocate(READ_CHUNK);
+
+  private boolean loaded;
+  private long nextId = 1;
+  // The body bytes of the indexed messages, for capacity policies.
+  private long bodyBytes;
+  private int maxReceiveCount;
+  private Durability durability = Durability.NONE;
+  private GroupCommit groupCommit;
+  private long lastWrite;
+  // The time of the last catch-up, for schedulers that look at how long messages waited.
+  private long currentTime;
+
+  private long segmentNo;
+  private FileChannel segment;
+  private long segmentPosition;
+  private boolean segmentsDropped;
+
+  private long generation;
+  private FileChannel stateLog;
+  private long statePosition;
+  private int stateRecords;
+
+  // Bytes appended or read since the last checkpoint, i.e. what a restart would replay.
+  private long bytesSinceCheckpoint;
+
+  FileMessageLog(Path dir) {
+    this(dir, SEGMENT_SIZE);
+  }
+
+  FileMessageLog(Path dir, long segmentSize) {
+    this(dir, segmentSize, DeliveryScheduler.fifo());
+  }
+
+  FileMessageLog(Path dir, long segmentSize, DeliveryScheduler scheduler) {
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    this.ready = new ReadyLanes<>(scheduler, e -> e.priority, e -> e.id, e -> e.timestamp);
+  }
+
+  /**
+   * Sets when writes are forced to disk. Must be called before the first write.
+   *
+   * @param groupCommitNanos  with {@link Durability#GROUP}, the longest a commit waits for more writes
+   * @param groupCommitWrites with {@link Durability#GROUP}, the number of waiting writes that commits at once
+   */
+  void setDurability(Durability durability, long groupCommitNanos, int groupCommitWrites) {
+    this.durability = durability;
+    this.groupCommit = durability == Durability.GROUP ? new GroupCommit(groupCommitNanos, groupCommitWrites) : null;
+  }
+
+  /**
+   * The group commit of this log, or null unless its durability is {@link Durability#GROUP}.
+   * Unlike the log itself, it is thread-safe and is waited on outside the queue lock.
+   */
+  GroupCommit groupCommit() {
+    return groupCommit;
+  }
+
+  /**
+   * The group commit ticket of the last write, for {@link GroupCommit#await(long)}.
+   */
+  long lastWrite() {
+    return lastWrite;
+  }
+
+  /**
+   * Forces the writes still waiting for a group commit now, e.g. before another
+   * queue's state depends on them.
+   */
+  void sync() throws IOException {
+    if (groupCommit != null) {
+      if (segment != null) {
+        segment.force(false);
+      }
+      stateLog.force(false);
+    }
+  }
+
+  /**
+   * Brings the index up to date with everything other processes appended, and
+   * returns in-flight messages whose visibility timeout expired to the ready set.
+   */
+  void catchUp(long now) throws IOException {
+    if (!loaded) {
+      load(now);
+      return;
+    }
+    int stateBytes = readState();
+    if (stateBytes < 0) {
+      // Another process moved the state to a new generation; start over.
+      reload(now);
+      return;
+    }
+    bytesSinceCheckpoint += stateBytes;
+    readSegments();
+    for (int at = 0; at < stateBytes; at += RecordCodec.recordSize(stateBuffer, at)) {
+      applyState(stateBuffer, at);
+    }
+    advance(now);
+  }
+
+  /**
+   * Appends a new message to the active segment.
+   *
+   * @return the id of the new message
+   */
+  long append(long timestamp, int priority, String body) throws IOException {
+    return append(timestamp, priority, body, 0);
+  }
+
+  /**
+   * Appends a new message that becomes visible at {@code visibleFrom}, with a
+   * single record. The index must have been caught up to {@code timestamp}.
+   *
+   * @return the id of the new message
+   */
+  long append(long timestamp, int priority, String body, long visibleFrom) throws IOException {
+    return append(timestamp, priority, RecordCodec.encodeBody(body), visibleFrom);
+  }
+
+  /**
+   * Appends a new message with a binary body, written as is.
+   *
+   * @return the id of the new message
+   */
+  long append(long timestamp, int priority, byte[] bytes, long visibleFrom) throws IOException {
+    if (segment == null || segmentPosition >= segmentSize) {
+      roll();
+    }
+    long id = nextId;
+    boolean delay = visibleFrom > timestamp;
+    int header = delay ? RecordCodec.DELAYED_HEADER : RecordCodec.PUSH_HEADER;
+    ByteBuffer out = writeBuffer(header + bytes.length);
+    if (delay) {
+      RecordCodec.writeDelayed(out, id, timestamp, priority, visibleFrom, bytes);
+    } else {
+      RecordCodec.writePush(out, id, timestamp, priority, bytes);
+    }
+    long position = segmentPosition;
+    segmentPosition += writeLog(segment, position, out);
+    addEntry(id, segmentNo, position + header, bytes.length, priority, timestamp, delay ? visibleFrom : 0);
+    return id;
+  }
+
+  /**
+   * Appends several messages with one write per segment they span.
+   */
+  void appendAll(long timestamp, int priority, List<String> bodies) throws IOException {
+    List<byte[]> encoded = new ArrayList<>(bodies.size());
+    for (String body : bodies) {
+      encoded.add(RecordCodec.encodeBody(body));
+    }
+    appendEncoded(timestamp, encoded, i -> priority);
+  }
+
+  /**
+   * Appends messages with their own bodies, written as is, and priorities, e.g.
+   * ones moved from another queue, with one write per segment they span.
+   */
+  void appendMessages(long timestamp, List<Message> messages) throws IOException {
+    List<byte[]> encoded = new ArrayList<>(messages.size());
+    for (Message message : messages) {
+      encoded.add(message.getBodyBytes());
+    }
+    appendEncoded(timestamp, encoded, i -> messages.get(i).getPriority());
+  }
+
+  private void appendEncoded(long timestamp, List<byte[]> encoded, IntUnaryOperator priorities) throws IOException {
+    int next = 0;
+    while (next < encoded.size()) {
+      if (segment == null || segmentPosition >= segmentSize) {
+        roll();
+      }
+      // Take the records that start before the segment is full, as single appends would.
+      int end = next;
+      long position = segmentPosition;
+      while (end < encoded.size() && (end == next || position < segmentSize)) {
+        position += RecordCodec.PUSH_HEADER + encoded.get(end).length;
+        end++;
+      }
+      ByteBuffer out = writeBuffer((int) (position - segmentPosition));
+      for (int i = next; i < end; i++) {
+        RecordCodec.writePush(out, nextId + i - next, timestamp, priorities.applyAsInt(i), encoded.get(i));
+      }
+      long start = segmentPosition;
+      segmentPosition += writeLog(segment, start, out);
+      for (int i = next; i < end; i++) {
+        addEntry(nextId, segmentNo, start + RecordCodec.PUSH_HEADER, encoded.get(i).length, priorities.applyAsInt(i),
+            timestamp, 0);
+        start += RecordCodec.PUSH_HEADER + encoded.get(i).length;
+      }
+      next = end;
+    }
+  }
+
+  /**
+   * Sets the delivery state of an appended message, e.g. one carried over from
+   * another store. A null receipt leaves the message ready for delivery.
+   */
+  void restore(long id, String receiptId, long visibleFrom, int attempts) throws IOException {
+    Entry entry = entries.get(id);
+    if (entry == null) {
+      return;
+    }
+    UUID receipt = receiptId == null ? new UUID(0, 0) : UUID.fromString(receiptId);
+    long receiptHigh = receipt.getMostSignificantBits();
+    long receiptLow = receipt.getLeastSignificantBits();
+    appendDelivery(RecordCodec.DELIVERED, id, receiptHigh, receiptLow, visibleFrom, attempts);
+    markDelivered(entry, receiptHigh, receiptLow, visibleFrom, attempts);
+  }
+
+  /**
+   * Delivers the next visible message, making it invisible until {@code visibleUntil}.
+   *
+   * @return the delivered message, or null if none is visible
+   */
+  Message deliver(long visibleUntil) throws IOException {
+    Entry entry = ready.poll(currentTime);
+    if (entry == null) {
+      return null;
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long receiptHigh = random.nextLong();
+    long receiptLow = random.nextLong();
+    appendDelivery(RecordCodec.DELIVERED, entry.id, receiptHigh, receiptLow, visibleUntil, entry.attempts + 1);
+    markDelivered(entry, receiptHigh, receiptLow, visibleUntil, entry.attempts + 1);
+    return delivered(entry);
+  }
+
+  /**
+   * Delivers up to {@code maxMessages} visible messages, recording
+   * all of the deliveries with a single write.
+   *
+   * @return the delivered messages, empty if none is visible
+   */
+  List<Message> deliver(long visibleUntil, int maxMessages) throws IOException {
+    List<Entry> batch = new ArrayList<>(Math.min(maxMessages, ready.size()));
+    while (batch.size() < maxMessages && !ready.isEmpty()) {
+      batch.add(ready.poll(currentTime));
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    ByteBuffer out = writeBuffer(batch.size() * RecordCodec.DELIVERY_RECORD);
+    long[] receiptsHigh = new long[batch.size()];
+    long[] receiptsLow = new long[batch.size()];
+    for (int i = 0; i < batch.size(); i++) {
+      Entry entry = batch.get(i);
+      receiptsHigh[i] = random.nextLong();
+      receiptsLow[i] = random.nextLong();
+      RecordCodec.writeDelivery(out, RecordCodec.DELIVERED, entry.id, receiptsHigh[i], receiptsLow[i],
+          visibleUntil, entry.attempts + 1);
+    }
+    statePosition += writeLog(stateLog, statePosition, out);
+    stateRecords += batch.size();
+
+    List<Message> delivered = new ArrayList<>(batch.size());
+    for (int i = 0; i < batch.size(); i++) {
+      Entry entry = batch.get(i);
+      markDelivered(entry, receiptsHigh[i], receiptsLow[i], visibleUntil, entry.attempts + 1);
+      delivered.add(delivered(entry));
+    }
+    return delivered;
+  }
+
+  /**
+   * Deletes several in-flight messages by receipt with a single write. Expired
+   * and unknown receipts are ignored.
+   *
+   * @return the number of messages deleted
+   */
+  int deleteAll(List<String> receiptIds, long now) throws IOException {
+    Set<Entry> batch = new LinkedHashSet<>();
+    for (String receiptId : receiptIds) {
+      TimingWheel.Timer<Entry> timer = receipts.get(receiptId);
+      if (timer != null && timer.value().visibleFrom > now) {
+        batch.add(timer.value());
+      }
+    }
+    ByteBuffer out = writeBuffer(batch.size() * RecordCodec.LONG_RECORD);
+    for (Entry entry : batch) {
+      RecordCodec.writeLong(out, RecordCodec.DELETED, entry.id);
+    }
+    statePosition += writeLog(stateLog, statePosition, out);
+    stateRecords += batch.size();
+    for (Entry entry : batch) {
+      removeEntry(entry);
+    }
+    return batch.size();
+  }
+
+  /**
+   * Moves the visibility deadline of an in-flight message to {@code visibleUntil}
+   * with a single DELIVERED record that keeps its receipt and attempts. A deadline
+   * not after {@code now} returns the message to the queue at once, as if its
+   * timeout had expired. Expired receipts are ignored.
+   *
+   * @return true if the message was still in flight
+   */
+  boolean changeVisibility(String receiptId, long now, long visibleUntil) throws IOException {
+    TimingWheel.Timer<Entry> timer = receipts.get(receiptId);
+    if (timer == null || timer.value().visibleFrom <= now) {
+      return false;
+    }
+    Entry entry = timer.value();
+    appendDelivery(RecordCodec.DELIVERED, entry.id, entry.receiptHigh, entry.receiptLow, visibleUntil, entry.attempts);
+    markDelivered(entry, entry.receiptHigh, entry.receiptLow, visibleUntil, entry.attempts);
+    advance(now);
+    return true;
+  }
+
+  /**
+   * Deletes an in-flight message by receipt. Expired receipts are ignored.
+   *
+   * @return true if a message was deleted
+   */
+  boolean delete(String receiptId, long now) throws IOException {
+    TimingWheel.Timer<Entry> timer = receipts.get(receiptId);
+    if (timer == null || timer.value().visibleFrom <= now) {
+      return false;
+    }
+    appendLong(RecordCodec.DELETED, timer.value().id);
+    removeEntry(timer.value());
+    return true;
+  }
+
+  /**
+   * Sets aside messages that expire after {@code maxReceiveCount} deliveries; 0
+   * turns this off and returns the messages set aside to the ready set.
+   */
+  void setMaxReceiveCount(int maxReceiveCount) {
+    this.maxReceiveCount = maxReceiveCount;
+    if (maxReceiveCount == 0) {
+      ready.addAll(exhausted);
+      exhausted.clear();
+    }
+  }
+
+  boolean hasExhausted() {
+    return !exhausted.isEmpty();
+  }
+
+  /**
+   * The messages past the max receive count, oldest first, with their bodies as
+   * they were written.
+   */
+  List<Message> exhaustedMessages() throws IOException {
+    List<Message> messages = new ArrayList<>(exhausted.size());
+    for (Entry entry : exhausted) {
+      messages.add(new Message(readBody(entry), entry.priority, entry.timestamp));
+    }
+    return messages;
+  }
+
+  /**
+   * Deletes the messages past the max receive count with a single write.
+   *
+   * @return the number of messages deleted
+   */
+  int dropExhausted() throws IOException {
+    List<Entry> batch = new ArrayList<>(exhausted);
+    ByteBuffer out = writeBuffer(batch.size() * RecordCodec.LONG_RECORD);
+    for (Entry entry : batch) {
+      RecordCodec.writeLong(out, RecordCodec.DELETED, entry.id);
+    }
+    statePosition += writeLog(stateLog, statePosition, out);
+    stateRecords += batch.size();
+    for (Entry entry : batch) {
+      removeEntry(entry);
+    }
+    return batch.size();
+  }
+
+  /**
+   * Deletes ready messages, as a drop policy says, until the queue is within the
+   * limits of {@code policy} or no message is ready, with a single write.
+   *
+   * @return the number of messages deleted
+   */
+  int evict(CapacityPolicy policy) throws IOException {
+    List<Entry> batch = new ArrayList<>();
+    long messages = entries.size();
+    long bytes = bodyBytes;
+    while (!policy.fits(messages, bytes, 0, 0)) {
+      Entry entry = policy.getOverflowPolicy() == OverflowPolicy.DROP_OLDEST ? ready.pollOldest() : ready.pollLowest();
+      if (entry == null) {
+        break;
+      }
+      batch.add(entry);
+      messages--;
+      bytes -= entry.bodyLength;
+    }
+    if (batch.isEmpty()) {
+      return 0;
+    }
+    ByteBuffer out = writeBuffer(batch.size() * RecordCodec.LONG_RECORD);
+    for (Entry entry : batch) {
+      RecordCodec.writeLong(out, RecordCodec.DELETED, entry.id);
+    }
+    statePosition += writeLog(stateLog, statePosition, out);
+    stateRecords += batch.size();
+    for (Entry entry : batch) {
+      forget(entry);
+    }
+    return batch.size();
+  }
+
+  /**
+   * Whether dropped segments, an oversized state log or a checkpoint are waiting for {@link #compact()}.
+   */
+  boolean needsCompaction() {
+    return !drainedSegments.isEmpty() || needsStateRewrite() || needsCheckpoint();
+  }
+
+  /**
+   * Claims the right to schedule a background compaction; released by {@link #compact()}.
+   */
+  boolean tryScheduleCompaction() {
+    return compactionScheduled.compareAndSet(false, true);
+  }
+
+  /**
+   * Drops fully deleted segments, rewrites an oversized state log as a snapshot and
+   * writes a checkpoint when one is due. The index must be caught up.
+   */
+  void compact() throws IOException {
+    compactionScheduled.set(false);
+    for (Long drained : drainedSegments) {
+      appendLong(RecordCodec.DROPPED, drained);
+      closeReader(drained);
+      Files.deleteIfExists(segmentPath(drained));
+    }
+    drainedSegments.clear();
+
+    // A snapshot starts a new generation, which makes the last checkpoint useless.
+    if (needsStateRewrite()) {
+      rewriteState();
+      writeCheckpoint();
+    } else if (needsCheckpoint()) {
+      writeCheckpoint();
+    }
+  }
+
+  /**
+   * Deletes every message of the queue. Other processes notice on their next catch-up.
+   */
+  void purge(long now) throws IOException {
+    if (!loaded) {
+      load(now);
+    }
+    long newGeneration = generation + 1;
+    appendLong(RecordCodec.MOVED, newGeneration);
+    closeChannels();
+    Files.deleteIfExists(dir.resolve(CHECKPOINT_FILE));
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + LOG_SUFFIX)) {
+      for (Path file : files) {
+        Files.deleteIfExists(file);
+      }
+    }
+    Files.createFile(statePath(newGeneration));
+    Files.deleteIfExists(statePath(generation));
+    reload(now);
+  }
+
+  /**
+   * Forces everything written to disk and closes the log's files. The log must
+   * not be used afterwards.
+   */
+  void close() throws IOException {
+    if (segment != null) {
+      segment.force(false);
+    }
+    if (stateLog != null) {
+      stateLog.force(false);
+    }
+    closeChannels();
+  }
+
+  /**
+   * Deletes the files of the log in the directory, e.g. ones a conversion that
+   * died part way left behind. No log may have the directory open.
+   */
+  static void deleteFiles(Path dir) throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir,
+        "{" + SEGMENT_PREFIX + "*," + STATE_PREFIX + "*," + CHECKPOINT_FILE + "*}")) {
+      for (Path file : files) {
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+
+  /**
+   * A time at or before which no in-flight or delayed message becomes visible,
+   * or {@link Long#MAX_VALUE} if there is none.
+   */
+  long nextExpiry() {
+    return Math.min(inFlight.nextExpiry(), delayed.nextExpiry());
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /** The body bytes of the queue's messages. */
+  long bodyBytes() {
+    return bodyBytes;
+  }
+
+  int inFlightSize() {
+    return inFlight.size();
+  }
+
+  /**
+   * Cross-checks the index against the files of the queue: that every message's
+   * record is in its segment with the expected id and length, that the per-segment
+   * counts and the ready, in-flight, delayed and set-aside messages add up, and that
+   * the checkpoint, if any, passes its checksum. The index must be caught up.
+   *
+   * @return a description of each problem found, empty if there is none
+   */
+  List<String> verify() throws IOException {
+    List<String> problems = new ArrayList<>();
+    Map<Long, Long> segmentSizes = new HashMap<>();
+    Map<Long, Integer> counted = new TreeMap<>();
+    for (Entry entry : entries.values()) {
+      counted.merge(entry.segment, 1, Integer::sum);
+      long size = segmentSizes.computeIfAbsent(entry.segment, this::segmentSize);
+      if (size < 0) {
+        problems.add("Message " + entry.id + " refers to missing " + segmentPath(entry.segment));
+      } else if (entry.bodyPosition + entry.bodyLength > size) {
+        problems.add("Message " + entry.id + " is truncated in " + segmentPath(entry.segment));
+      } else if (!hasRecordHeader(entry)) {
+        problems.add("Message " + entry.id + " does not match its record in " + segmentPath(entry.segment));
+      }
+    }
+    if (!counted.equals(liveBySegment)) {
+      problems.add("Live messages per segment " + liveBySegment + " do not match the index " + counted);
+    }
+    int indexed = ready.size() + inFlight.size() + delayed.size() + exhausted.size();
+    if (indexed != entries.size()) {
+      problems.add(indexed + " messages are ready, in flight, delayed or set aside, but "
+          + entries.size() + " are live");
+    }
+    if (receipts.size() != inFlight.size()) {
+      problems.add(receipts.size() + " receipts for " + inFlight.size() + " messages in flight");
+    }
+    Path checkpoint = dir.resolve(CHECKPOINT_FILE);
+    if (Files.exists(checkpoint) && parseCheckpoint(checkpoint) == null) {
+      problems.add("Checkpoint " + checkpoint + " is corrupt");
+    }
+    return problems;
+  }
+
+  // Loading
+
+  private void reload(long now) throws IOException {
+    closeChannels();
+    entries.clear();
+    bodyBytes = 0;
+    ready.clear();
+    exhausted.clear();
+    receipts.clear();
+    inFlight = new TimingWheel<>();
+    delayed = new TimingWheel<>();
+    liveBySegment.clear();
+    drainedSegments.clear();
+    segmentsDropped = false;
+    bytesSinceCheckpoint = 0;
+    nextId = 1;
+    segmentNo = 0;
+    segmentPosition = 0;
+    loaded = false;
+    load(now);
+  }
+
+  private void load(long now) throws IOException {
+    Files.createDirectories(dir);
+    advance(now);
+    removeOrphans();
+
+    generation = 1;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, STATE_PREFIX + "*" + LOG_SUFFIX)) {
+      for (Path file : files) {
+        generation = Math.max(generation, fileNumber(file, STATE_PREFIX));
+      }
+    }
+
+    // Segments first, so that every state record finds its message. Torn tails left
+    // by a crash are cut off, so the next append overwrites them. With a checkpoint,
+    // only the records appended after it are read.
+    Checkpoint checkpoint = readCheckpoint();
+    long firstSegment = checkpoint == null ? 0 : checkpoint.segmentNo;
+    if (checkpoint != null) {
+      restoreCheckpoint(checkpoint);
+    }
+    for (long number : listSegments()) {
+      if (number < firstSegment) {
+        // Only kept by the checkpoint's messages; one without any waits to be dropped.
+        if (!liveBySegment.containsKey(number)) {
+          drainedSegments.add(number);
+        }
+        continue;
+      }
+      openSegment(number);
+      segmentPosition = scan(segment, number == firstSegment && checkpoint != null ? checkpoint.segmentPosition : 0, true);
+      truncateTail(segment, segmentPosition);
+    }
+    if (segment == null && checkpoint != null) {
+      segmentNo = checkpoint.segmentNo;
+    }
+    // A MOVED record in the newest generation only means a snapshot was interrupted; it is harmless here.
+    stateLog = openChannel(statePath(generation));
+    stateRecords = checkpoint == null ? 0 : checkpoint.stateRecords;
+    statePosition = scan(stateLog, checkpoint == null ? 0 : checkpoint.statePosition, false);
+    truncateTail(stateLog, statePosition);
+
+    List<Entry> deleted = new ArrayList<>();
+    for (Entry entry : entries.values()) {
+      if (!entry.live) {
+        deleted.add(entry);
+      }
+    }
+    for (Entry entry : deleted) {
+      removeEntry(entry);
+    }
+    List<Entry> visible = new ArrayList<>();
+    for (Entry entry : entries.values()) {
+      if (entry.receipt == null && entry.delay == null && !exhausted.contains(entry)) {
+        visible.add(entry);
+      }
+    }
+    visible.sort(Comparator.comparingLong(e -> e.id));
+    for (Entry entry : visible) {
+      ready.add(entry);
+    }
+    loaded = true;
+    advance(now);
+  }
+
+  private List<Long> listSegments() throws IOException {
+    List<Long> numbers = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + LOG_SUFFIX)) {
+      for (Path file : files) {
+        numbers.add(fileNumber(file, SEGMENT_PREFIX));
+      }
+    }
+    numbers.sort(null);
+    return numbers;
+  }
+
+  /*
+   * Reads the complete records appended to the state log since the last catch-up
+   * into stateBuffer, to be applied once the segments have caught up. Returns their
+   * total size, or -1 if the state has moved to a new generation.
+   */
+  private int readState() throws IOException {
+    long available = stateLog.size() - statePosition;
+    if (available > stateBuffer.capacity()) {
+      stateBuffer = ByteBuffer.allocate((int) available);
+    }
+    stateBuffer.clear().limit((int) available);
+    while (stateBuffer.hasRemaining() && stateLog.read(stateBuffer, statePosition + stateBuffer.position()) > 0) {
+      // Read until the buffer holds everything that was available.
+    }
+    int end = stateBuffer.position();
+    int at = 0;
+    while (end - at >= RecordCodec.LENGTH_PREFIX) {
+      int size = RecordCodec.recordSize(stateBuffer, at);
+      if (size < 0 || at + size > end) {
+        break;
+      }
+      byte type = RecordCodec.type(stateBuffer, at);
+      if (type == RecordCodec.MOVED) {
+        return -1;
+      }
+      if (type == RecordCodec.DROPPED) {
+        segmentsDropped = true;
+      }
+      stateRecords++;
+      at += size;
+    }
+    statePosition += at;
+    return at;
+  }
+
+  // Reads the pushes appended since the last catch-up, following segment rolls.
+  private void readSegments() throws IOException {
+    while (true) {
+      if (segment != null) {
+        segmentPosition = scan(segment, segmentPosition, true);
+      }
+      long next = nextSegment();
+      if (next < 0) {
+        return;
+      }
+      openSegment(next);
+    }
+  }
+
+  // The segment following the current one, or -1 if the current one is the active segment.
+  private long nextSegment() throws IOException {
+    if (Files.exists(segmentPath(segmentNo + 1))) {
+      return segmentNo + 1;
+    }
+    if (segmentsDropped || segment == null) {
+      // Segments after the current one may have been dropped before this process read them.
+      segmentsDropped = false;
+      for (long number : listSegments()) {
+        if (number > segmentNo) {
+          return number;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private void openSegment(long number) throws IOException {
+    if (segment != null) {
+      closeLog(segment);
+    }
+    segmentNo = number;
+    segmentPosition = 0;
+    segment = openChannel(segmentPath(number));
+  }
+
+  private void roll() throws IOException {
+    if (segment != null && !liveBySegment.containsKey(segmentNo)) {
+      drainedSegments.add(segmentNo);
+    }
+    openSegment(segmentNo + 1);
+  }
+
+  /*
+   * Applies the complete records of a segment (pushes) or of the state log from
+   * position on, and returns the position after the last one. Only the record
+   * headers are read; push bodies are skipped without being copied.
+   */
+  private long scan(FileChannel channel, long position, boolean pushes) throws IOException {
+    long end = channel.size();
+    long bufferStart = position;
+    readBuffer.clear();
+    while (bufferStart + readBuffer.position() < end
+        && channel.read(readBuffer, bufferStart + readBuffer.position()) > 0) {
+      readBuffer.flip();
+      int at = 0;
+      while (readBuffer.limit() - at >= RecordCodec.LENGTH_PREFIX) {
+        int size = RecordCodec.recordSize(readBuffer, at);
+        if (size < 0 || bufferStart + at + size > end) {
+          // Torn tail: nothing valid follows.
+          bytesSinceCheckpoint += bufferStart + at - position;
+          return bufferStart + at;
+        }
+        // Every push record is at least as long as its header.
+        if (readBuffer.limit() - at < (pushes ? Math.min(size, RecordCodec.DELAYED_HEADER) : size)) {
+          break;
+        }
+        if (pushes) {
+          applyPush(readBuffer, at, bufferStart + at);
+        } else {
+          stateRecords++;
+          applyState(readBuffer, at);
+        }
+        at += size;
+      }
+      if (at >= readBuffer.limit()) {
+        // Possibly past the buffer, when the last body did not fit in it.
+        bufferStart += at;
+        readBuffer.clear();
+      } else {
+        bufferStart += at;
+        readBuffer.position(at);
+        readBuffer.compact();
+      }
+    }
+    bytesSinceCheckpoint += bufferStart - position;
+    return bufferStart;
+  }
+
+  private static void truncateTail(FileChannel channel, long validSize) throws IOException {
+    if (channel.size() > validSize) {
+      channel.truncate(validSize);
+    }
+  }
+
+  private void applyPush(ByteBuffer in, int at, long position) {
+    byte type = RecordCodec.type(in, at);
+    if (type == RecordCodec.PUSH || type == RecordCodec.DELAYED) {
+      addEntry(RecordCodec.id(in, at), segmentNo, position + RecordCodec.headerSize(in, at),
+          RecordCodec.bodyLength(in, at), RecordCodec.priority(in, at), RecordCodec.timestamp(in, at),
+          type == RecordCodec.DELAYED ? RecordCodec.visibleFrom(in, at) : 0);
+    }
+  }
+
+  private void applyState(ByteBuffer in, int at) {
+    switch (RecordCodec.type(in, at)) {
+      case RecordCodec.DELIVERED:
+      case RecordCodec.LIVE: {
+        Entry entry = entries.get(RecordCodec.id(in, at));
+        if (entry != null) {
+          entry.live = true;
+          markDelivered(entry, RecordCodec.receiptHigh(in, at), RecordCodec.receiptLow(in, at),
+              RecordCodec.visibleFrom(in, at), RecordCodec.attempts(in, at));
+        }
+        break;
+      }
+      case RecordCodec.DELETED: {
+        Entry entry = entries.get(RecordCodec.id(in, at));
+        if (entry != null) {
+          removeEntry(entry);
+        }
+        break;
+      }
+      case RecordCodec.SNAPSHOT: {
+        // A snapshot lists every live message up to maxId; the others were deleted.
+        long maxId = RecordCodec.id(in, at);
+        for (Entry entry : entries.values()) {
+          entry.live = entry.id > maxId;
+        }
+        nextId = Math.max(nextId, maxId + 1);
+        break;
+      }
+      default:
+        break;
+    }
+  }
+
+  // Snapshot handling
+
+  private boolean needsStateRewrite() {
+    return stateRecords > STATE_COMPACTION_THRESHOLD && stateRecords > 2 * entries.size();
+  }
+
+  private void rewriteState() throws IOException {
+    long newGeneration = generation + 1;
+    Path temp = dir.resolve(STATE_PREFIX + newGeneration + TEMP_SUFFIX);
+    try (FileChannel snapshot = FileChannel.open(temp,
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      long position = 0;
+      ByteBuffer out = writeBuffer(RecordCodec.LONG_RECORD);
+      RecordCodec.writeLong(out, RecordCodec.SNAPSHOT, nextId - 1);
+      position += write(snapshot, position, out);
+      for (Entry entry : entries.values()) {
+        out = writeBuffer(RecordCodec.DELIVERY_RECORD);
+        RecordCodec.writeDelivery(out, RecordCodec.LIVE, entry.id, entry.receiptHigh, entry.receiptLow,
+            entry.visibleFrom, entry.attempts);
+        position += write(snapshot, position, out);
+      }
+      if (durability != Durability.NONE) {
+        // On disk before it replaces the state log.
+        snapshot.force(false);
+      }
+    }
+
+    appendLong(RecordCodec.MOVED, newGeneration);
+    Files.move(temp, statePath(newGeneration), StandardCopyOption.ATOMIC_MOVE);
+    closeLog(stateLog);
+    Files.deleteIfExists(statePath(generation));
+
+    generation = newGeneration;
+    stateLog = openChannel(statePath(generation));
+    statePosition = stateLog.size();
+    stateRecords = entries.size() + 1;
+  }
+
+  // Checkpoints
+
+  // A checkpoint costs a write of every live message, so it waits for at least as many bytes of log to replay.
+  private boolean needsCheckpoint() {
+    return bytesSinceCheckpoint >= Math.max(segmentSize, (long) entries.size() * CHECKPOINT_ENTRY);
+  }
+
+  /*
+   * Writes the index and the log positions it reflects to checkpoint.bin, through a
+   * temporary file moved into place. With durability, the logs are forced first, so
+   * the checkpoint never points past what is on disk.
+   */
+  private void writeCheckpoint() throws IOException {
+    if (durability != Durability.NONE) {
+      if (segment != null) {
+        segment.force(false);
+      }
+      stateLog.force(false);
+    }
+    Path temp = dir.resolve(CHECKPOINT_FILE + TEMP_SUFFIX);
+    CRC32 crc = new CRC32();
+    try (FileChannel channel = FileChannel.open(temp,
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+          new BufferedOutputStream(Channels.newOutputStream(channel), READ_CHUNK), crc));
+      out.writeInt(CHECKPOINT_MAGIC);
+      out.writeLong(generation);
+      out.writeLong(statePosition);
+      out.writeInt(stateRecords);
+      out.writeLong(nextId);
+      out.writeLong(segmentNo);
+      out.writeLong(segment == null ? 0 : segmentPosition);
+      out.writeInt(entries.size());
+      for (Entry entry : entries.values()) {
+        out.writeLong(entry.id);
+        out.writeLong(entry.segment);
+        out.writeLong(entry.bodyPosition);
+        out.writeInt(entry.bodyLength);
+        out.writeInt(entry.priority);
+        out.writeLong(entry.timestamp);
+        out.writeInt(entry.attempts);
+        out.writeLong(entry.visibleFrom);
+        out.writeLong(entry.receiptHigh);
+        out.writeLong(entry.receiptLow);
+        out.writeByte(entry.delay != null ? CHECKPOINT_DELAYED
+            : entry.receipt != null ? CHECKPOINT_IN_FLIGHT
+            : exhausted.contains(entry) ? CHECKPOINT_EXHAUSTED : CHECKPOINT_READY);
+      }
+      out.writeInt((int) crc.getValue());
+      out.flush();
+      if (durability != Durability.NONE) {
+        channel.force(false);
+      }
+    }
+    Files.move(temp, dir.resolve(CHECKPOINT_FILE), StandardCopyOption.ATOMIC_MOVE);
+    bytesSinceCheckpoint = 0;
+  }
+
+  /*
+   * The checkpoint to load from, or null if there is none or it cannot be trusted:
+   * it fails its checksum, belongs to an older state generation, or points past the
+   * end of a file, e.g. one that lost unforced writes in a crash.
+   */
+  private Checkpoint readCheckpoint() throws IOException {
+    Path path = dir.resolve(CHECKPOINT_FILE);
+    if (Files.notExists(path)) {
+      return null;
+    }
+    Checkpoint checkpoint = parseCheckpoint(path);
+    if (checkpoint == null || checkpoint.generation != generation) {
+      return null;
+    }
+    Path state = statePath(generation);
+    if ((Files.exists(state) ? Files.size(state) : 0) < checkpoint.statePosition) {
+      return null;
+    }
+    long activeSize = segmentSize(checkpoint.segmentNo);
+    if (activeSize >= 0 && activeSize < checkpoint.segmentPosition) {
+      return null;
+    }
+    Map<Long, Long> segmentSizes = new HashMap<>();
+    for (Entry entry : checkpoint.entries) {
+      if (entry.bodyPosition + entry.bodyLength > segmentSizes.computeIfAbsent(entry.segment, this::segmentSize)) {
+        return null;
+      }
+    }
+    return checkpoint;
+  }
+
+  // Reads a checkpoint file, or returns null if it is truncated or fails its checksum.
+  private static Checkpoint parseCheckpoint(Path path) throws IOException {
+    CRC32 crc = new CRC32();
+    try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+        new BufferedInputStream(Files.newInputStream(path), READ_CHUNK), crc))) {
+      if (in.readInt() != CHECKPOINT_MAGIC) {
+        return null;
+      }
+      Checkpoint checkpoint = new Checkpoint();
+      checkpoint.generation = in.readLong();
+      checkpoint.statePosition = in.readLong();
+      checkpoint.stateRecords = in.readInt();
+      checkpoint.nextId = in.readLong();
+      checkpoint.segmentNo = in.readLong();
+      checkpoint.segmentPosition = in.readLong();
+      int count = in.readInt();
+      if (count < 0 || (long) count * CHECKPOINT_ENTRY > Files.size(path)) {
+        return null;
+      }
+      checkpoint.entries = new ArrayList<>(count);
+      checkpoint.states = new byte[count];
+      for (int i = 0; i < count; i++) {
+        Entry entry = new Entry(in.readLong(), in.readLong(), in.readLong(), in.readInt(), in.readInt(), in.readLong());
+        entry.attempts = in.readInt();
+        entry.visibleFrom = in.readLong();
+        entry.receiptHigh = in.readLong();
+        entry.receiptLow = in.readLong();
+        checkpoint.states[i] = in.readByte();
+        checkpoint.entries.add(entry);
+      }
+      int expected = (int) crc.getValue();
+      return in.readInt() == expected ? checkpoint : null;
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  // Indexes the messages of a checkpoint as load would have found them.
+  private void restoreCheckpoint(Checkpoint checkpoint) {
+    for (int i = 0; i < checkpoint.entries.size(); i++) {
+      Entry entry = checkpoint.entries.get(i);
+      entries.put(entry.id, entry);
+      bodyBytes += entry.bodyLength;
+      liveBySegment.merge(entry.segment, 1, Integer::sum);
+      switch (checkpoint.states[i]) {
+        case CHECKPOINT_IN_FLIGHT:
+          entry.receipt = new UUID(entry.receiptHigh, entry.receiptLow).toString();
+          receipts.put(entry.receipt, inFlight.schedule(entry, entry.visibleFrom));
+          break;
+        case CHECKPOINT_DELAYED:
+          entry.delay = delayed.schedule(entry, entry.visibleFrom);
+          break;
+        case CHECKPOINT_EXHAUSTED:
+          if (maxReceiveCount > 0) {
+            exhausted.add(entry);
+          }
+          break;
+        default:
+          // Ready; load adds it with the others.
+          break;
+      }
+    }
+    nextId = Math.max(nextId, checkpoint.nextId);
+  }
+
+  // Temporary files are only written under the queue lock, so any found here were left by a crash.
+  private void removeOrphans() throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + TEMP_SUFFIX)) {
+      for (Path file : files) {
+        System.err.println("Removing incomplete file " + file);
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+
+  // Index maintenance
+
+  private void addEntry(long id, long segment, long bodyPosition, int bodyLength, int priority, long timestamp,
+      long visibleFrom) {
+    Entry entry = new Entry(id, segment, bodyPosition, bodyLength, priority, timestamp);
+    entries.put(id, entry);
+    bodyBytes += bodyLength;
+    makeVisibleFrom(entry, visibleFrom);
+    liveBySegment.merge(segment, 1, Integer::sum);
+    nextId = Math.max(nextId, id + 1);
+  }
+
+  private Message delivered(Entry entry) throws IOException {
+    // Decoded only if the consumer asks for the body as a String.
+    Message msg = new Message(readBody(entry), entry.priority, entry.timestamp);
+    msg.setReceiptId(entry.receipt);
+    msg.setAttempts(entry.attempts);
+    return msg;
+  }
+
+  private void markDelivered(Entry entry, long receiptHigh, long receiptLow, long visibleFrom, int attempts) {
+    unqueue(entry);
+    entry.attempts = attempts;
+    entry.visibleFrom = visibleFrom;
+    entry.receiptHigh = receiptHigh;
+    entry.receiptLow = receiptLow;
+    if (receiptHigh == 0 && receiptLow == 0) {
+      entry.receipt = null;
+      makeVisibleFrom(entry, visibleFrom);
+    } else {
+      entry.receipt = new UUID(receiptHigh, receiptLow).toString();
+      receipts.put(entry.receipt, inFlight.schedule(entry, visibleFrom));
+    }
+  }
+
+  private void removeEntry(Entry entry) {
+    unqueue(entry);
+    forget(entry);
+  }
+
+  // Drops an entry that is no longer in the ready set, a wheel or the exhausted set from the index.
+  private void forget(Entry entry) {
+    entries.remove(entry.id);
+    bodyBytes -= entry.bodyLength;
+    int live = liveBySegment.merge(entry.segment, -1, Integer::sum);
+    if (live == 0) {
+      liveBySegment.remove(entry.segment);
+      if (entry.segment != segmentNo) {
+        drainedSegments.add(entry.segment);
+        closeReader(entry.segment);
+      }
+    }
+  }
+
+  // Puts an entry that is not in flight into the ready set, or into the delay wheel until visibleFrom.
+  private void makeVisibleFrom(Entry entry, long visibleFrom) {
+    entry.visibleFrom = visibleFrom;
+    if (visibleFrom > 0) {
+      // Released by the next advance if it is already due.
+      entry.delay = delayed.schedule(entry, visibleFrom);
+    } else if (loaded) {
+      ready.add(entry);
+    }
+    // While loading, ready entries are only known once the state log is read; load adds them in one pass.
+  }
+
+  // Takes an entry out of the ready set, the delay wheel or the in-flight wheel, wherever it is.
+  private void unqueue(Entry entry) {
+    if (entry.delay != null) {
+      delayed.cancel(entry.delay);
+      entry.delay = null;
+    } else if (entry.receipt != null) {
+      TimingWheel.Timer<Entry> timer = receipts.remove(entry.receipt);
+      if (timer != null) {
+        inFlight.cancel(timer);
+      }
+    } else if (!exhausted.remove(entry)) {
+      ready.remove(entry);
+    }
+  }
+
+  private void advance(long now) {
+    currentTime = now;
+    inFlight.advance(now, requeue);
+    delayed.advance(now, release);
+  }
+
+  private void release(Entry entry) {
+    entry.delay = null;
+    ready.add(entry);
+  }
+
+  private void requeue(Entry entry) {
+    receipts.remove(entry.receipt);
+    entry.receipt = null;
+    entry.receiptHigh = 0;
+    entry.receiptLow = 0;
+    if (maxReceiveCount > 0 && entry.attempts >= maxReceiveCount) {
+      exhausted.add(entry);
+    } else {
+      ready.add(entry);
+    }
+  }
+
+  // File helpers
+
+  private byte[] readBody(Entry entry) throws IOException {
+    byte[] body = new byte[entry.bodyLength];
+    if (!readFully(segmentReader(entry.segment), ByteBuffer.wrap(body), entry.bodyPosition)) {
+      throw new IOException("Message " + entry.id + " is truncated in " + segmentPath(entry.segment));
+    }
+    return body;
+  }
+
+  // Whether the PUSH or DELAYED record in front of the entry's body has the entry's id and body length.
+  private boolean hasRecordHeader(Entry entry) throws IOException {
+    FileChannel channel = segmentReader(entry.segment);
+    for (int header : new int[] {RecordCodec.PUSH_HEADER, RecordCodec.DELAYED_HEADER}) {
+      ByteBuffer in = ByteBuffer.allocate(header);
+      if (entry.bodyPosition >= header && readFully(channel, in, entry.bodyPosition - header)
+          && RecordCodec.recordSize(in, 0) == header + entry.bodyLength
+          && RecordCodec.type(in, 0) == (header == RecordCodec.PUSH_HEADER ? RecordCodec.PUSH : RecordCodec.DELAYED)
+          && RecordCodec.id(in, 0) == entry.id && RecordCodec.bodyLength(in, 0) == entry.bodyLength) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // The active segment, or a cached reader of an older one.
+  private FileChannel segmentReader(long number) throws IOException {
+    FileChannel channel = number == segmentNo ? segment : segmentReaders.get(number);
+    if (channel == null) {
+      if (segmentReaders.size() >= MAX_SEGMENT_READERS) {
+        closeReader(segmentReaders.keySet().iterator().next());
+      }
+      channel = FileChannel.open(segmentPath(number), StandardOpenOption.READ);
+      segmentReaders.put(number, channel);
+    }
+    return channel;
+  }
+
+  // Fills the buffer from the given file position; false if the file ends first.
+  private static boolean readFully(FileChannel channel, ByteBuffer in, long position) throws IOException {
+    while (in.hasRemaining()) {
+      if (channel.read(in, position + in.position()) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // The size of a segment file, or -1 if it does not exist.
+  private long segmentSize(long number) {
+    try {
+      return Files.size(segmentPath(number));
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  private void appendDelivery(byte type, long id, long receiptHigh, long receiptLow, long visibleFrom,
+      int attempts) throws IOException {
+    ByteBuffer out = writeBuffer(RecordCodec.DELIVERY_RECORD);
+    RecordCodec.writeDelivery(out, type, id, receiptHigh, receiptLow, visibleFrom, attempts);
+    statePosition += writeLog(stateLog, statePosition, out);
+    stateRecords++;
+  }
+
+  private void appendLong(byte type, long value) throws IOException {
+    ByteBuffer out = writeBuffer(RecordCodec.LONG_RECORD);
+    RecordCodec.writeLong(out, type, value);
+    statePosition += writeLog(stateLog, statePosition, out);
+    stateRecords++;
+  }
+
+  // The reusable write buffer, cleared and large enough for a record of the given size.
+  private ByteBuffer writeBuffer(int size) {
+    if (writeBuffer.capacity() < size) {
+      writeBuffer = ByteBuffer.allocate(Math.max(size, 2 * writeBuffer.capacity()));
+    }
+    writeBuffer.clear();
+    return writeBuffer;
+  }
+
+  // Writes to the segment or state log, and forces or registers the write as the durability requires.
+  private int writeLog(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+    int length = write(channel, position, buffer);
+    bytesSinceCheckpoint += length;
+    if (durability == Durability.SYNC) {
+      channel.force(false);
+    } else if (groupCommit != null) {
+      lastWrite = groupCommit.written(channel);
+    }
+    return length;
+  }
+
+  // A pending group commit skips closed files, so they are forced first.
+  private void closeLog(FileChannel channel) throws IOException {
+    if (groupCommit != null) {
+      channel.force(false);
+    }
+    channel.close();
+  }
+
+  // Writes what was put into the buffer at the given file position and returns its size.
+  private static int write(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    int length = buffer.remaining();
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+    return length;
+  }
+
+  private static FileChannel openChannel(Path path) throws IOException {
+    return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  private void closeReader(long number) {
+    FileChannel reader = segmentReaders.remove(number);
+    if (reader != null) {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        System.err.println("Failed to close segment: " + segmentPath(number) + ": " + e);
+      }
+    }
+  }
+
+  private void closeChannels() throws IOException {
+    for (FileChannel reader : segmentReaders.values()) {
+      reader.close();
+    }
+    segmentReaders.clear();
+    if (segment != null) {
+      closeLog(segment);
+      segment = null;
+    }
+    if (stateLog != null) {
+      closeLog(stateLog);
+      stateLog = null;
+    }
+  }
+
+  private Path segmentPath(long number) {
+    return dir.resolve(SEGMENT_PREFIX + number + LOG_SUFFIX);
+  }
+
+  private Path statePath(long number) {
+    return dir.resolve(STATE_PREFIX + number + LOG_SUFFIX);
+  }
+
+  private static long fileNumber(Path file, String prefix) {
+    String name = file.getFileName().toString();
+    return Long.parseLong(name.substring(prefix.length(), name.length() - LOG_SUFFIX.length()));
+  }
+
+  private static final class Checkpoint {
+    long generation;
+    long statePosition;
+    int stateRecords;
+    long nextId;
+    long segmentNo;
+    long segmentPosition;
+    List<Entry> entries;
+    // The CHECKPOINT_ state of each entry.
+    byte[] states;
+  }
+
+  private static final class Entry {
+    final long id;
+    final long segment;
+    final long bodyPosition;
+    final int bodyLength;
+    final int priority;
+    final long timestamp;
+    int attempts;
+    long visibleFrom;
+    long receiptHigh;
+    long receiptLow;
+    String receipt;
+    // Set while the entry waits in the delay wheel.
+    TimingWheel.Timer<Entry> delay;
+    // Cleared while loading a snapshot for messages it does not list.
+    boolean live = true;
+
+    Entry(long id, long segment, long bodyPosition, int bodyLength, int priority, long timestamp) {
+      this.id = id;
+      this.segment = segment;
+      this.bodyPosition = bodyPosition;
+      this.bodyLength = bodyLength;
+      this.priority = priority;
+      this.timestamp = timestamp;
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package com.example;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.regex.Pattern;
+
+/**
+ * Converts file-based queues from the old text format, a {@code messages} file
+ * with one {@code attempts:visibleFrom:receipt:priority:body} line per message,
+ * to the binary {@link FileMessageLog}.
+ *
+ * <p>Messages keep their order, attempts and, while in flight, their receipt,
+ * so consumers holding a receipt can still delete the message. The old file is
+ * renamed to {@code messages.migrated} once the converted log is on disk, a
+ * conversion that died part way is started over, and malformed lines are skipped.
+ * The temporary files the old format left behind after a crash are deleted.
+ * {@link FileQueueService} converts a queue the first time it opens it; this
+ * tool does it ahead of time:
+ * <pre>
+ *   java com.example.FileQueueMigration &lt;queueDirectory&gt; [fieldDelimiter]
+ * </pre>
+ */
+public final class FileQueueMigration {
+    static final String LEGACY_FILE = "messages";
+    static final String MIGRATED_FILE = "messages.migrated";
+
+    private FileQueueMigration() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.err.println("Usage: FileQueueMigration <queueDirectory> [fieldDelimiter]");
+            System.exit(1);
+        }
+        int migrated = migrate(Paths.get(args[0]), args.length > 1 ? args[1] : ":");
+        System.out.println("Migrated " + migrated + " queue(s)");
+    }
+
+    /**
+     * Converts every queue under the queue directory that is still in the old format.
+     *
+     * @return the number of queues converted
+     */
+    public static int migrate(Path queueDirectory, String fieldDelimiter) throws IOException, InterruptedException {
+        removeLegacyTempFiles(queueDirectory);
+        int migrated = 0;
+        try (DirectoryStream<Path> queues = Files.newDirectoryStream(queueDirectory, Files::isDirectory)) {
+            for (Path queuePath : queues) {
+                QueueLock lock = QueueLock.forFile(queuePath.resolve(".lock"));
+                try {
+                    lock.lock();
+                    if (migrateQueue(queuePath, fieldDelimiter, System.currentTimeMillis())) {
+                        migrated++;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        return migrated;
+    }
+
+    /**
+     * Converts one queue if it is still in the old format. The caller must hold the queue lock.
+     *
+     * @return true if the queue was converted
+     */
+    static boolean migrateQueue(Path queuePath, String fieldDelimiter, long now) throws IOException {
+        Path legacy = queuePath.resolve(LEGACY_FILE);
+        if (Files.notExists(legacy)) {
+            return false;
+        }
+        Pattern splitter = Pattern.compile(Pattern.quote(fieldDelimiter));
+        // Nothing writes the log before the queue is converted, so any log files are from a conversion
+        // that died part way, and converting again on top of them would duplicate its messages.
+        FileMessageLog.deleteFiles(queuePath);
+        FileMessageLog log = new FileMessageLog(queuePath);
+        log.catchUp(now);
+        try (BufferedReader reader = Files.newBufferedReader(legacy, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = splitter.split(line, 5);
+                if (fields.length < 5) {
+                    System.err.println("Skipping malformed message in " + legacy + ": " + line);
+                    continue;
+                }
+                int attempts;
+                long visibleFrom;
+                int priority;
+                try {
+                    attempts = Integer.parseInt(fields[0]);
+                    visibleFrom = Long.parseLong(fields[1]);
+                    priority = Integer.parseInt(fields[3]);
+                } catch (NumberFormatException e) {
+                    System.err.println("Skipping malformed message in " + legacy + ": " + line);
+                    continue;
+                }
+                // Until its first delivery, a message's visibleFrom is the time it was pushed.
+                long id = log.append(attempts == 0 ? visibleFrom : now, priority, fields[4]);
+                if (attempts > 0) {
+                    log.restore(id, visibleFrom > now ? fields[2] : null, visibleFrom, attempts);
+                }
+            }
+        } finally {
+            // On disk before the old file is renamed, so a crash can't lose the messages of both.
+            log.close();
+        }
+        Files.move(legacy, queuePath.resolve(MIGRATED_FILE), StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    /**
+     * Deletes the {@code temp*.msg} files the old format left in the queue directory
+     * when a process died between writing a queue's new contents and moving them into
+     * place. The queue file itself was left as it was, so nothing is lost.
+     *
+     * @return the number of files deleted
+     */
+    public static int removeLegacyTempFiles(Path queueDirectory) throws IOException {
+        if (Files.notExists(queueDirectory)) {
+            return 0;
+        }
+        int removed = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(queueDirectory, "temp*.msg")) {
+            for (Path file : files) {
+                if (Files.deleteIfExists(file)) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+}
@@ -2,20 +2,57 @@ package com.example;
 
 import java.io.*;
 import java.nio.file.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.LongSupplier;
 
-import static java.nio.file.StandardCopyOption.*;
-
 public class FileQueueService implements QueueService {
     private final String queueDir;
     private final String fieldDelimiter;
     private final int visibilityTimeout;
     private LongSupplier timeSupplier;
+    private final Map<String, FileMessageLog> logs = new ConcurrentHashMap<>();
+    private final QueueMetrics metrics = new QueueMetrics("FileQueueService");
+    private final Map<String, RedrivePolicy> redrivePolicies = new ConcurrentHashMap<>();
+    private final Map<String, CapacityPolicy> capacityPolicies = new ConcurrentHashMap<>();
+    // Per bounded queue, as of the last operation this process made on it.
+    private final Map<String, Double> backPressure = new ConcurrentHashMap<>();
+    // Opened by the first deduplicated push to each queue.
+    private final Map<String, DeduplicationLog> deduplicationLogs = new ConcurrentHashMap<>();
+    private final long deduplicationWindowMillis;
+    private final int deduplicationMaxIds;
+    private volatile DeliveryScheduler deliveryScheduler;
+    private volatile Durability durability;
+    private final long groupCommitNanos;
+    private final int groupCommitWrites;
+    private final AtomicBoolean legacyTempFilesRemoved = new AtomicBoolean();
+
+    private static final QueueWatcher WATCHER = QueueWatcher.get();
+
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "file-queue-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public FileQueueService() {
+        this(null);
+    }
+
+    /**
+     * Keeps queues under {@code queueDirectory} instead of the {@code queueDirectory}
+     * of config.properties, e.g. one service per disk under a {@link ShardedQueueService}.
+     */
+    public FileQueueService(String queueDirectory) {
         Properties confInfo = new Properties();
         try (InputStream inStream = getClass().getClassLoader().getResourceAsStream("config.properties")) {
             confInfo.load(inStream);
@@ -23,214 +60,724 @@ public class FileQueueService implements QueueService {
             throw new IllegalStateException("Failed to load configuration", e);
         }
 
-        this.queueDir = confInfo.getProperty("queueDirectory", "queue-service");
+        this.queueDir = queueDirectory != null ? queueDirectory : confInfo.getProperty("queueDirectory", "queue-service");
         this.fieldDelimiter = confInfo.getProperty("fieldDelimiter", ":");
         this.visibilityTimeout = Integer.parseInt(confInfo.getProperty("visibilityTimeout", "30"));
+        this.deliveryScheduler = DeliveryScheduler.fromConfig(confInfo, "fifo");
+        this.durability = Durability.valueOf(confInfo.getProperty("fileDurability", "none").trim().toUpperCase(Locale.ROOT));
+        this.groupCommitNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(confInfo.getProperty("groupCommitMillis", "5")));
+        this.groupCommitWrites = Integer.parseInt(confInfo.getProperty("groupCommitWrites", "64"));
+        this.deduplicationWindowMillis = TimeUnit.SECONDS.toMillis(
+                Long.parseLong(confInfo.getProperty("deduplicationWindowSeconds", "300")));
+        this.deduplicationMaxIds = Integer.parseInt(confInfo.getProperty("deduplicationMaxIds", "100000"));
+    }
+
+    /**
+     * Sets when queues opened from now on force their writes to disk; by default
+     * the {@code fileDurability} of config.properties, or {@link Durability#NONE}.
+     */
+    public void setDurability(Durability durability) {
+        if (durability == null) {
+            throw new IllegalArgumentException("Durability cannot be null");
+        }
+        this.durability = durability;
+    }
+
+    /**
+     * Sets how queues opened from now on choose between priorities. By default, or
+     * with {@code deliveryScheduler=fifo} in config.properties, messages are
+     * delivered in push order whatever their priority.
+     */
+    public void setDeliveryScheduler(DeliveryScheduler deliveryScheduler) {
+        if (deliveryScheduler == null) {
+            throw new IllegalArgumentException("Delivery scheduler cannot be null");
+        }
+        this.deliveryScheduler = deliveryScheduler;
     }
 
     public void setTimeSupplier(LongSupplier timeSupplier) {
         this.timeSupplier = timeSupplier;
     }
 
-    private void lock(File lock) throws InterruptedException {
-        while (!lock.mkdir()) {
-            Thread.sleep(50);
+    @Override
+    public void push(String queueUrl, String messageBody, int priority) {
+        pushAt(queueUrl, RecordCodec.encodeBody(messageBody), priority, 0, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The bytes are written to the segment as they are; pulled messages
+     * decode them only if their body is asked for as a String.
+     */
+    @Override
+    public void push(String queueUrl, byte[] messageBody, int priority) {
+        pushAt(queueUrl, messageBody, priority, 0, null);
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody, int priority, Duration delay) {
+        pushAt(queueUrl, RecordCodec.encodeBody(messageBody), priority, now() + delay.toMillis(), null);
+    }
+
+    @Override
+    public void pushAt(String queueUrl, String messageBody, int priority, Instant deliverAt) {
+        pushAt(queueUrl, RecordCodec.encodeBody(messageBody), priority, deliverAt.toEpochMilli(), null);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Ids are kept for the {@code deduplicationWindowSeconds} of config.properties,
+     * at most {@code deduplicationMaxIds} per queue, in the queue's {@code dedup.log},
+     * so that pushes by every process and after a restart are checked against them.
+     */
+    @Override
+    public boolean pushDeduplicated(String queueUrl, String messageBody, int priority, String deduplicationId) {
+        if (deduplicationId == null || deduplicationId.isEmpty()) {
+            throw new IllegalArgumentException("Deduplication id cannot be null or empty");
         }
+        return pushAt(queueUrl, RecordCodec.encodeBody(messageBody), priority, 0, deduplicationId);
     }
 
-    private void unlock(File lock) {
-        if (!lock.delete()) {
-            System.err.println("Failed to delete lock file: " + lock.getAbsolutePath());
+    /*
+     * A visibleFrom of 0, or any time not after now, makes the message visible at once.
+     * Returns false if deduplicationId, unless null, was pushed within the window.
+     */
+    private boolean pushAt(String queueUrl, byte[] messageBody, int priority, long visibleFrom, String deduplicationId) {
+        long start = System.nanoTime();
+        String queueName = fromUrl(queueUrl);
+        QueueStats stats = metrics.queue(queueName);
+        QueueLock lock = getLock(queueName);
+        GroupCommit commit;
+        long ticket;
+
+        try {
+            lock(lock, stats);
+            FileMessageLog log = getLog(queueName);
+            DeduplicationLog deduplication = deduplicationId == null ? null : getDeduplicationLog(queueName);
+            // Before the capacity check, so that a retry of a queued message is dropped rather than blocked or rejected.
+            if (isDuplicate(deduplication, deduplicationId, now(), stats)) {
+                return false;
+            }
+            long nowTime = catchUpForPush(queueName, lock, log, stats, 1, messageBody.length);
+            // Again if a blocked push released the lock, during which another push may have taken the id.
+            if (isDuplicate(deduplication, deduplicationId, nowTime, stats)) {
+                return false;
+            }
+            log.append(nowTime, priority, messageBody, visibleFrom);
+            // After the message: a crash in between lets a retry through rather than losing the message.
+            if (deduplication != null) {
+                deduplication.add(deduplicationId, nowTime);
+            }
+            evictOverflow(queueName, log, stats);
+            scheduleCompaction(queueName, log);
+            commit = log.groupCommit();
+            ticket = log.lastWrite();
+            updateDepth(log, stats);
+        } catch (IOException | InterruptedException e) {
+            stats.recordError(QueueOperation.PUSH);
+            throw new RuntimeException("Failed to push message", e);
+        } finally {
+            lock.unlock();
         }
+        awaitCommit(commit, ticket, stats);
+        WATCHER.signal(Paths.get(queueDir, queueName));
+        stats.recordOperation(QueueOperation.PUSH, start, 1);
+        return true;
     }
 
     @Override
-    public void push(String queueUrl, String messageBody, int priority) {
+    public Message pull(String queueUrl) {
+        return pull(queueUrl, TimeUnit.SECONDS.toMillis(visibilityTimeout));
+    }
+
+    private Message pull(String queueUrl, long visibilityMillis) {
+        long start = System.nanoTime();
+        String queueName = fromUrl(queueUrl);
+        QueueStats stats = metrics.queue(queueName);
+        QueueLock lock = getLock(queueName);
+        Message msg;
+
+        try {
+            lock(lock, stats);
+            FileMessageLog log = getLog(queueName);
+            long nowTime = now();
+            log.catchUp(nowTime);
+            moveDeadLetters(queueName, log, stats);
+            msg = log.deliver(nowTime + visibilityMillis);
+            scheduleCompaction(queueName, log);
+            updateDepth(log, stats);
+        } catch (IOException | InterruptedException e) {
+            stats.recordError(QueueOperation.PULL);
+            throw new RuntimeException("Failed to pull message", e);
+        } finally {
+            lock.unlock();
+        }
+        stats.recordOperation(QueueOperation.PULL, start, msg == null ? 0 : 1);
+        stats.recordDelivery(msg);
+        return msg;
+    }
+
+    @Override
+    public Message pull(String queueUrl, Duration wait) {
+        return pull(queueUrl, wait, TimeUnit.SECONDS.toMillis(visibilityTimeout));
+    }
+
+    @Override
+    public Message pull(String queueUrl, Duration wait, Duration visibilityTimeout) {
+        return pull(queueUrl, wait, visibilityTimeout.toMillis());
+    }
+
+    private Message pull(String queueUrl, Duration wait, long visibilityMillis) {
+        long start = System.nanoTime();
         String queueName = fromUrl(queueUrl);
-        File messagesFile = getMessagesFile(queueName);
-        File lock = getLockFile(queueName);
+        QueueStats stats = metrics.queue(queueName);
+        QueueLock lock = getLock(queueName);
+        Path queuePath = Paths.get(queueDir, queueName);
+        long deadline = start + wait.toNanos();
 
         try {
-            lock(lock);
+            while (true) {
+                // Read before looking at the queue, so that a change made in between is not missed.
+                long version = WATCHER.version(queuePath);
+                long nowTime;
+                long nextExpiry;
+                Message msg;
+                try {
+                    lock(lock, stats);
+                    FileMessageLog log = getLog(queueName);
+                    nowTime = now();
+                    log.catchUp(nowTime);
+                    moveDeadLetters(queueName, log, stats);
+                    msg = log.deliver(nowTime + visibilityMillis);
+                    scheduleCompaction(queueName, log);
+                    updateDepth(log, stats);
+                    nextExpiry = log.nextExpiry();
+                } finally {
+                    lock.unlock();
+                }
 
-            if (Files.notExists(messagesFile.toPath())) {
-                Files.createFile(messagesFile.toPath());
+                long remaining = deadline - System.nanoTime();
+                if (msg != null || remaining <= 0) {
+                    stats.recordOperation(QueueOperation.PULL, start, msg == null ? 0 : 1);
+                    stats.recordDelivery(msg);
+                    return msg;
+                }
+                // Wake up when another consumer's message may time out, since that writes nothing.
+                long untilExpiry = nextExpiry - nowTime;
+                if (untilExpiry < TimeUnit.NANOSECONDS.toMillis(remaining)) {
+                    remaining = TimeUnit.MILLISECONDS.toNanos(Math.max(untilExpiry, 1));
+                }
+                WATCHER.await(queuePath, version, remaining);
             }
+        } catch (IOException e) {
+            stats.recordError(QueueOperation.PULL);
+            throw new RuntimeException("Failed to pull message", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    @Override
+    public void delete(String queueUrl, String receiptId) {
+        long start = System.nanoTime();
+        String queueName = fromUrl(queueUrl);
+        QueueStats stats = metrics.queue(queueName);
+        QueueLock lock = getLock(queueName);
 
-            try (PrintWriter writer = new PrintWriter(new FileWriter(messagesFile, true))) {
-                writer.println(createRecord(0, priority, messageBody));
+        try {
+            lock(lock, stats);
+            FileMessageLog log = getLog(queueName);
+            long nowTime = now();
+            log.catchUp(nowTime);
+            if (log.delete(receiptId, nowTime)) {
+                scheduleCompaction(queueName, log);
             }
+            updateDepth(log, stats);
         } catch (IOException | InterruptedException e) {
-            throw new RuntimeException("Failed to push message", e);
+            stats.recordError(QueueOperation.DELETE);
+            throw new RuntimeException("Failed to delete message", e);
         } finally {
-            unlock(lock);
+            lock.unlock();
         }
+        signalRoom(queueName);
+        stats.recordOperation(QueueOperation.DELETE, start, 1);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Appends one small record to the state log; the message body is not touched.
+     */
     @Override
-    public Message pull(String queueUrl) {
+    public boolean changeVisibility(String queueUrl, String receiptId, Duration visibilityTimeout) {
+        long start = System.nanoTime();
         String queueName = fromUrl(queueUrl);
-        File messagesFile = getMessagesFile(queueName);
-        File lock = getLockFile(queueName);
+        QueueStats stats = metrics.queue(queueName);
+        QueueLock lock = getLock(queueName);
+        boolean changed;
 
-        Path tempFilePath;
-        Message message = null;
+        try {
+            lock(lock, stats);
+            FileMessageLog log = getLog(queueName);
+            long nowTime = now();
+            log.catchUp(nowTime);
+            changed = log.changeVisibility(receiptId, nowTime, nowTime + visibilityTimeout.toMillis());
+            updateDepth(log, stats);
+        } catch (IOException | InterruptedException e) {
+            stats.recordError(QueueOperation.CHANGE_VISIBILITY);
+            throw new RuntimeException("Failed to change message visibility", e);
+        } finally {
+            lock.unlock();
+        }
+        if (changed && (visibilityTimeout.isZero() || visibilityTimeout.isNegative())) {
+            // The message is ready again; wake consumers waiting for one.
+            WATCHER.signal(Paths.get(queueDir, queueName));
+        }
+        stats.recordOperation(QueueOperation.CHANGE_VISIBILITY, start, changed ? 1 : 0);
+        return changed;
+    }
+
+    @Override
+    public void pushBatch(String queueUrl, List<String> messageBodies, int priority) {
+        long start = System.nanoTime();
+        String queueName = fromUrl(queueUrl);
+        QueueStats stats = metrics.queue(queueName);
+        QueueLock lock = getLock(queueName);
+        GroupCommit commit;
+        long ticket;
 
         try {
-            lock(lock);
-            tempFilePath = Files.createTempFile(Paths.get(queueDir), "temp", ".msg");
+            long bytes = 0;
+            for (String body : messageBodies) {
+                bytes += Message.utf8Length(body);
+            }
+            lock(lock, stats);
+            FileMessageLog log = getLog(queueName);
+            long nowTime = catchUpForPush(queueName, lock, log, stats, messageBodies.size(), bytes);
+            log.appendAll(nowTime, priority, messageBodies);
+            evictOverflow(queueName, log, stats);
+            scheduleCompaction(queueName, log);
+            commit = log.groupCommit();
+            ticket = log.lastWrite();
+            updateDepth(log, stats);
+        } catch (IOException | InterruptedException e) {
+            stats.recordError(QueueOperation.PUSH);
+            throw new RuntimeException("Failed to push messages", e);
+        } finally {
+            lock.unlock();
+        }
+        awaitCommit(commit, ticket, stats);
+        WATCHER.signal(Paths.get(queueDir, queueName));
+        stats.recordOperation(QueueOperation.PUSH, start, messageBodies.size());
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages) {
+        return pull(queueUrl, maxMessages, TimeUnit.SECONDS.toMillis(visibilityTimeout));
+    }
 
-            try (BufferedReader reader = new BufferedReader(new FileReader(messagesFile));
-                 PrintWriter writer = new PrintWriter(new FileWriter(tempFilePath.toFile(), true))) {
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages, Duration visibilityTimeout) {
+        return pull(queueUrl, maxMessages, visibilityTimeout.toMillis());
+    }
 
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (message == null) {
-                        message = getVisibleMessage(line);
+    private List<Message> pull(String queueUrl, int maxMessages, long visibilityMillis) {
+        long start = System.nanoTime();
+        String queueName = fromUrl(queueUrl);
+        QueueStats stats = metrics.queue(queueName);
+        QueueLock lock = getLock(queueName);
+        List<Message> msgs;
 
-                        if (message == null) {
-                            writer.println(line);
-                        } else {
-                            writer.println(getDeliveredRecord(line, message.getReceiptId()));
-                        }
-                    } else {
-                        writer.println(line);
-                    }
-                }
+        try {
+            lock(lock, stats);
+            FileMessageLog log = getLog(queueName);
+            long nowTime = now();
+            log.catchUp(nowTime);
+            moveDeadLetters(queueName, log, stats);
+            msgs = log.deliver(nowTime + visibilityMillis, maxMessages);
+            scheduleCompaction(queueName, log);
+            updateDepth(log, stats);
+        } catch (IOException | InterruptedException e) {
+            stats.recordError(QueueOperation.PULL);
+            throw new RuntimeException("Failed to pull messages", e);
+        } finally {
+            lock.unlock();
+        }
+        stats.recordOperation(QueueOperation.PULL, start, msgs.size());
+        if (msgs.isEmpty()) {
+            stats.recordDelivery(null);
+        }
+        for (Message msg : msgs) {
+            stats.recordDelivery(msg);
+        }
+        return msgs;
+    }
+
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptIds) {
+        long start = System.nanoTime();
+        String queueName = fromUrl(queueUrl);
+        QueueStats stats = metrics.queue(queueName);
+        QueueLock lock = getLock(queueName);
+        int deleted;
+
+        try {
+            lock(lock, stats);
+            FileMessageLog log = getLog(queueName);
+            long nowTime = now();
+            log.catchUp(nowTime);
+            deleted = log.deleteAll(receiptIds, nowTime);
+            if (deleted > 0) {
+                scheduleCompaction(queueName, log);
             }
+            updateDepth(log, stats);
+        } catch (IOException | InterruptedException e) {
+            stats.recordError(QueueOperation.DELETE);
+            throw new RuntimeException("Failed to delete messages", e);
+        } finally {
+            lock.unlock();
+        }
+        signalRoom(queueName);
+        stats.recordOperation(QueueOperation.DELETE, start, deleted);
+    }
 
-            if (message != null) {
-                Files.move(tempFilePath, messagesFile.toPath(), REPLACE_EXISTING);
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The policy applies to pulls made through this service; every process
+     * using the queue should set the same policy.
+     */
+    @Override
+    public void setRedrivePolicy(String queueUrl, RedrivePolicy policy) {
+        String queueName = fromUrl(queueUrl);
+        synchronized (redrivePolicies) {
+            if (policy == null) {
+                redrivePolicies.remove(queueName);
             } else {
-                Files.delete(tempFilePath);
+                RedrivePolicy.checkNoCycle(redrivePolicies, queueName, policy, this::fromUrl);
+                redrivePolicies.put(queueName, policy);
             }
+        }
+
+        QueueLock lock = getLock(queueName);
+        try {
+            lock.lock();
+            getLog(queueName).setMaxReceiveCount(policy == null ? 0 : policy.getMaxReceiveCount());
         } catch (IOException | InterruptedException e) {
-            throw new RuntimeException("Failed to pull message", e);
+            throw new RuntimeException("Failed to set redrive policy", e);
         } finally {
-            unlock(lock);
+            lock.unlock();
         }
+    }
 
-        return message;
+    @Override
+    public RedrivePolicy getRedrivePolicy(String queueUrl) {
+        return redrivePolicies.get(fromUrl(queueUrl));
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The policy applies to pushes made through this service; every process
+     * using the queue should set the same policy. Pushes blocked by it wake when a
+     * delete is written, by this process or another.
+     */
     @Override
-    public void delete(String queueUrl, String receiptId) {
+    public void setCapacityPolicy(String queueUrl, CapacityPolicy policy) {
         String queueName = fromUrl(queueUrl);
-        File messagesFile = getMessagesFile(queueName);
-        File lock = getLockFile(queueName);
+        if (policy == null) {
+            capacityPolicies.remove(queueName);
+            backPressure.remove(queueName);
+            return;
+        }
+        capacityPolicies.put(queueName, policy);
+        QueueStats stats = metrics.queue(queueName);
+        QueueLock lock = getLock(queueName);
+        try {
+            lock(lock, stats);
+            FileMessageLog log = getLog(queueName);
+            log.catchUp(now());
+            updateDepth(log, stats);
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException("Failed to set capacity policy", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public CapacityPolicy getCapacityPolicy(String queueUrl) {
+        return capacityPolicies.get(fromUrl(queueUrl));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>As of the last operation this service made on the queue: pushes by
+     * other processes show once this one next uses the queue.
+     */
+    @Override
+    public double getBackPressure(String queueUrl) {
+        return backPressure.getOrDefault(fromUrl(queueUrl), 0.0);
+    }
 
-        Path tempFilePath;
-        boolean deleted = false;
+    /**
+     * The metrics of every queue of this service, keyed by queue name.
+     */
+    public QueueMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Checks the index of a queue against its files: every message's record is where
+     * the index expects it, the ready, in-flight and delayed messages add up, and the
+     * checkpoint, if any, passes its checksum. Meant for operators after a crash or
+     * before a backup; it reads the header of every message, so it takes a while on
+     * a large backlog, holding the queue lock throughout.
+     *
+     * @return a description of each problem found, empty if the queue is consistent
+     */
+    public List<String> verifyQueue(String queueUrl) {
+        long start = System.nanoTime();
+        String queueName = fromUrl(queueUrl);
+        QueueStats stats = metrics.queue(queueName);
+        QueueLock lock = getLock(queueName);
 
         try {
-            lock(lock);
-            tempFilePath = Files.createTempFile(Paths.get(queueDir), "temp", ".msg");
+            lock(lock, stats);
+            FileMessageLog log = getLog(queueName);
+            log.catchUp(now());
+            List<String> problems = log.verify();
+            stats.recordOperation(QueueOperation.MAINTENANCE, start, 0);
+            return problems;
+        } catch (IOException | InterruptedException e) {
+            stats.recordError(QueueOperation.MAINTENANCE);
+            throw new RuntimeException("Failed to verify queue " + queueName, e);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            try (BufferedReader reader = new BufferedReader(new FileReader(messagesFile));
-                 PrintWriter writer = new PrintWriter(new FileWriter(tempFilePath.toFile(), true))) {
+    /*
+     * Moves the messages past the queue's max receive count to its dead-letter
+     * queue. Must be called with the queue lock held; takes the dead-letter
+     * queue's lock as well. The messages are appended there before they are
+     * deleted here, so a crash in between leaves a copy in both queues rather
+     * than losing them.
+     */
+    private void moveDeadLetters(String queueName, FileMessageLog log, QueueStats stats)
+            throws IOException, InterruptedException {
+        RedrivePolicy policy = redrivePolicies.get(queueName);
+        if (policy == null || !log.hasExhausted()) {
+            return;
+        }
+        List<Message> messages = log.exhaustedMessages();
+        String deadLetterQueue = fromUrl(policy.getDeadLetterQueueUrl());
+        QueueStats deadLetterStats = metrics.queue(deadLetterQueue);
+        QueueLock deadLetterLock = getLock(deadLetterQueue);
+        try {
+            lock(deadLetterLock, deadLetterStats);
+            FileMessageLog deadLetterLog = getLog(deadLetterQueue);
+            long nowTime = now();
+            deadLetterLog.catchUp(nowTime);
+            deadLetterLog.appendMessages(nowTime, messages);
+            // Durable there before they are dropped here.
+            deadLetterLog.sync();
+            updateDepth(deadLetterLog, deadLetterStats);
+        } finally {
+            deadLetterLock.unlock();
+        }
+        WATCHER.signal(Paths.get(queueDir, deadLetterQueue));
+        stats.recordDeadLetters(log.dropExhausted());
+    }
 
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    if (isToDelete(line, receiptId)) {
-                        deleted = true;
-                    } else {
-                        writer.println(line);
-                    }
-                }
+    /*
+     * Catches the log up, and makes sure that count more messages with bytes of
+     * bodies fit under the queue's capacity policy. A push blocked by the policy
+     * releases the queue lock while it waits for deletes, and catches up again
+     * once it holds the lock. Drop policies make room after the push instead.
+     * Must be called with the queue lock held.
+     *
+     * Returns the time the log was caught up to.
+     */
+    private long catchUpForPush(String queueName, QueueLock lock, FileMessageLog log, QueueStats stats, int count,
+            long bytes) throws IOException, InterruptedException {
+        Path queuePath = Paths.get(queueDir, queueName);
+        long start = System.nanoTime();
+        while (true) {
+            // Read before looking at the queue, so that a delete made in between is not missed.
+            long version = WATCHER.version(queuePath);
+            long nowTime = now();
+            log.catchUp(nowTime);
+            CapacityPolicy policy = capacityPolicies.get(queueName);
+            if (policy == null || policy.dropsMessages() || policy.fits(log.size(), log.bodyBytes(), count, bytes)) {
+                return nowTime;
+            }
+            long remaining = policy.getBlockTimeout().toNanos() - (System.nanoTime() - start);
+            // A batch larger than the queue's limits would never fit.
+            if (policy.getOverflowPolicy() != OverflowPolicy.BLOCK || remaining <= 0
+                    || !policy.fits(0, 0, count, bytes)) {
+                updateDepth(log, stats);
+                stats.recordRejected(count);
+                throw policy.full(queueName, log.size(), log.bodyBytes());
             }
+            lock.unlock();
+            WATCHER.await(queuePath, version, remaining);
+            lock(lock, stats);
+        }
+    }
 
-            if (deleted) {
-                Files.move(tempFilePath, messagesFile.toPath(), REPLACE_EXISTING);
-            } else {
-                Files.delete(tempFilePath);
+    // Must be called with the queue lock held: drops ready messages as the queue's drop policy says, once a push took it past its limits.
+    private void evictOverflow(String queueName, FileMessageLog log, QueueStats stats) throws IOException {
+        CapacityPolicy policy = capacityPolicies.get(queueName);
+        if (policy != null && policy.dropsMessages()) {
+            int dropped = log.evict(policy);
+            if (dropped > 0) {
+                stats.recordDropped(dropped);
             }
+        }
+    }
+
+    // Wakes pushes blocked by the queue's capacity policy after a delete.
+    private void signalRoom(String queueName) {
+        CapacityPolicy policy = capacityPolicies.get(queueName);
+        if (policy != null && policy.getOverflowPolicy() == OverflowPolicy.BLOCK) {
+            WATCHER.signal(Paths.get(queueDir, queueName));
+        }
+    }
+
+    // Waits, outside the queue lock, until the pushed messages are on disk. A null commit means there is nothing to wait for.
+    private static void awaitCommit(GroupCommit commit, long ticket, QueueStats stats) {
+        if (commit == null) {
+            return;
+        }
+        try {
+            commit.await(ticket);
         } catch (IOException | InterruptedException e) {
-            throw new RuntimeException("Failed to delete message", e);
+            stats.recordError(QueueOperation.PUSH);
+            throw new RuntimeException("Failed to commit pushed messages", e);
+        }
+    }
+
+    // Must be called with the queue lock held: hands dropped segments, an oversized state log or a due checkpoint to the compactor.
+    private void scheduleCompaction(String queueName, FileMessageLog log) {
+        if (log.needsCompaction() && log.tryScheduleCompaction()) {
+            COMPACTOR.execute(() -> compact(queueName));
+        }
+    }
+
+    // Drops fully deleted segments, shrinks the state log and writes checkpoints, off the caller's thread.
+    private void compact(String queueName) {
+        QueueStats stats = metrics.queue(queueName);
+        QueueLock lock = getLock(queueName);
+        try {
+            lock(lock, stats);
+            FileMessageLog log = getLog(queueName);
+            long start = System.nanoTime();
+            log.catchUp(now());
+            log.compact();
+            stats.recordOperation(QueueOperation.MAINTENANCE, start, 0);
+        } catch (IOException | InterruptedException e) {
+            stats.recordError(QueueOperation.MAINTENANCE);
+            System.err.println("Failed to compact queue " + queueName + ": " + e);
         } finally {
-            unlock(lock);
+            lock.unlock();
         }
     }
 
     // Additional helper methods...
 
     private String fromUrl(String queueUrl) {
-        String[] parts = queueUrl.split("/");
-        return parts[parts.length - 1];
+        return queueUrl.substring(queueUrl.lastIndexOf('/') + 1);
+    }
+
+    // Must be called with the queue lock held: the first call converts a queue left in the old text format,
+    // and the first call of the service deletes the old format's leftover temporary files.
+    private FileMessageLog getLog(String queueName) throws IOException {
+        FileMessageLog log = logs.get(queueName);
+        if (log == null) {
+            if (legacyTempFilesRemoved.compareAndSet(false, true)) {
+                FileQueueMigration.removeLegacyTempFiles(Paths.get(queueDir));
+            }
+            Path queuePath = Paths.get(queueDir, queueName);
+            FileQueueMigration.migrateQueue(queuePath, fieldDelimiter, now());
+            log = logs.computeIfAbsent(queueName, name -> new FileMessageLog(queuePath, FileMessageLog.SEGMENT_SIZE, deliveryScheduler));
+            log.setDurability(durability, groupCommitNanos, groupCommitWrites);
+            RedrivePolicy policy = redrivePolicies.get(queueName);
+            log.setMaxReceiveCount(policy == null ? 0 : policy.getMaxReceiveCount());
+        }
+        return log;
+    }
+
+    // Must be called with the queue lock held. A null log checks nothing.
+    private static boolean isDuplicate(DeduplicationLog deduplication, String deduplicationId, long now,
+            QueueStats stats) throws IOException {
+        if (deduplication == null || !deduplication.contains(deduplicationId, now)) {
+            return false;
+        }
+        stats.recordDuplicates(1);
+        return true;
     }
 
-    private File getMessagesFile(String queueName) {
-        return Paths.get(queueDir, queueName, "messages").toFile();
+    // Must be called with the queue lock held.
+    private DeduplicationLog getDeduplicationLog(String queueName) {
+        return deduplicationLogs.computeIfAbsent(queueName,
+                name -> new DeduplicationLog(Paths.get(queueDir, name), deduplicationWindowMillis, deduplicationMaxIds));
     }
 
-    private File getLockFile(String queueName) {
+    private QueueLock getLock(String queueName) {
         Path queuePath = Paths.get(queueDir, queueName);
         try {
             Files.createDirectories(queuePath);
         } catch (IOException e) {
             throw new RuntimeException("Failed to create queue directory", e);
         }
-        return queuePath.resolve(".lock").toFile();
+        return QueueLock.forFile(queuePath.resolve(".lock"));
     }
 
-    private String createRecord(int attempts, int priority, String messageBody) {
-        return attempts + fieldDelimiter + now() + fieldDelimiter + UUID.randomUUID() + fieldDelimiter + priority + fieldDelimiter + messageBody;
+    private long now() {
+        return timeSupplier == null ? System.currentTimeMillis() : timeSupplier.getAsLong();
     }
 
-    private Message getVisibleMessage(String record) {
-        String[] fields = record.split(fieldDelimiter, 5);
-        if (fields.length < 5 || Long.parseLong(fields[1]) > now()) {
-            return null;
-        }
-        return new Message(fields[4], fields[2]);
+    // Takes the queue lock, recording how long the caller waited for it.
+    private static void lock(QueueLock lock, QueueStats stats) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        lock.lock();
+        stats.recordLockWait(System.nanoTime() - start);
     }
 
-    private String getDeliveredRecord(String record, String receiptId) {
-        String[] fields = record.split(fieldDelimiter, 5);
-        int attempts = Integer.parseInt(fields[0]) + 1;
-        long visibleFrom = now() + TimeUnit.SECONDS.toMillis(visibilityTimeout);
-        return attempts + fieldDelimiter + visibleFrom + fieldDelimiter + receiptId + fieldDelimiter + fields[3] + fieldDelimiter + fields[4];
+    // Must be called with the queue lock held.
+    private void updateDepth(FileMessageLog log, QueueStats stats) {
+        stats.updateDepth(log.size(), log.inFlightSize());
+        CapacityPolicy policy = capacityPolicies.get(stats.getQueueName());
+        if (policy != null) {
+            backPressure.put(stats.getQueueName(), policy.pressure(log.size(), log.bodyBytes()));
+        }
     }
 
-    private boolean isToDelete(String record, String receiptId) {
-        String[] fields = record.split(fieldDelimiter, 5);
-        return fields.length >= 5 && fields[2].equals(receiptId) && Long.parseLong(fields[1]) <= now();
-    }
+    /**
+     * Deletes the messages in a queue specified by parameter queueUrl.
+     *
+     * @param queueUrl
+     */
+    protected void purgeQueue(String queueUrl) {
+        String queueName = fromUrl(queueUrl);
+        QueueStats stats = metrics.queue(queueName);
+        QueueLock lock = getLock(queueName);
 
-    private long now() {
-        return timeSupplier == null ? System.currentTimeMillis() : timeSupplier.getAsLong();
+        try {
+            lock(lock, stats);
+            FileMessageLog log = getLog(queueName);
+            log.purge(now());
+            updateDepth(log, stats);
+        } catch (IOException | InterruptedException e) {
+            stats.recordError(QueueOperation.MAINTENANCE);
+            System.err.println("Failed to purge queue " + queueName + ": " + e);
+        } finally {
+            lock.unlock();
+        }
     }
-
-    /**
-   * Deletes the messages in a queue specified by parameter queueUrl.
-   *
-   * @param queueUrl
-   */
-  protected void purgeQueue(String queueUrl) {
-    String queueName = fromUrl(queueUrl);
-    File messageFile = getMessagesFile(queueName);
-    File lock = getLockFile(queueName);
-
-    try {
-      lock(lock);
-    } catch (InterruptedException e) {
-      e.printStackTrace();
-      unlock(lock);
-      return;
-    }
-
-    if (Files.exists(messageFile.toPath())) {
-      try {
-        Files.delete(messageFile.toPath());
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-    }
-    try {
-      // Create the empty file with default permissions.
-      Files.createFile(messageFile.toPath());
-    } catch (IOException e) {
-    }
-
-    unlock(lock);
-  }
-}
\ No newline at end of file
+}
@@ -0,0 +1,108 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit for the files of one queue, as in a database log.
+ *
+ * <p>Writers register each write while holding the queue lock, and then wait for
+ * it with {@link #await(long)} after releasing the lock. The first waiter becomes
+ * the leader: it waits up to the commit delay, or until enough writes are
+ * pending, and then forces every file written since the last commit, once,
+ * outside any lock. The other waiters are released by the leader's commit, so N
+ * concurrent pushes cost one force() instead of N.
+ *
+ * <p>A file closed before the leader got to it was forced by whoever closed it
+ * (see {@link FileMessageLog}), so a closed channel is skipped. Thread-safe.
+ */
+final class GroupCommit {
+  private final long maxDelayNanos;
+  private final int maxWrites;
+
+  // Guarded by this.
+  private final Set<FileChannel> dirty = new LinkedHashSet<>();
+  private long written;
+  private long committed;
+  private boolean leading;
+
+  GroupCommit(long maxDelayNanos, int maxWrites) {
+    this.maxDelayNanos = maxDelayNanos;
+    this.maxWrites = maxWrites;
+  }
+
+  /**
+   * Registers a write to {@code channel}.
+   *
+   * @return the ticket to pass to {@link #await(long)}
+   */
+  synchronized long written(FileChannel channel) {
+    dirty.add(channel);
+    written++;
+    if (written - committed >= maxWrites) {
+      // Cut the leader's wait short.
+      notifyAll();
+    }
+    return written;
+  }
+
+  /**
+   * Returns once every write up to {@code ticket} is on disk.
+   */
+  void await(long ticket) throws IOException, InterruptedException {
+    List<FileChannel> group;
+    long upTo;
+    synchronized (this) {
+      while (committed < ticket && leading) {
+        wait();
+      }
+      if (committed >= ticket) {
+        return;
+      }
+      leading = true;
+      try {
+        long deadline = System.nanoTime() + maxDelayNanos;
+        long remaining;
+        while (written - committed < maxWrites && (remaining = deadline - System.nanoTime()) > 0) {
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+      } catch (InterruptedException e) {
+        leading = false;
+        notifyAll();
+        throw e;
+      }
+      group = new ArrayList<>(dirty);
+      dirty.clear();
+      upTo = written;
+    }
+
+    boolean forced = false;
+    try {
+      for (FileChannel channel : group) {
+        try {
+          channel.force(false);
+        } catch (ClosedChannelException e) {
+          // Forced before it was closed.
+        }
+      }
+      forced = true;
+    } finally {
+      synchronized (this) {
+        if (forced) {
+          committed = Math.max(committed, upTo);
+        } else {
+          // The next leader tries again.
+          dirty.addAll(group);
+        }
+        leading = false;
+        notifyAll();
+      }
+    }
+  }
+}
@@ -2,92 +2,377 @@ package com.example;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 public class InMemoryQueueService implements QueueService {
 
-  private final Map<String, PriorityQueue<Message>> queues;
+  private final Map<String, LocalMessageQueue> queues;
+  private final QueueMetrics metrics = new QueueMetrics("InMemoryQueueService");
+  private final Map<String, RedrivePolicy> redrivePolicies = new ConcurrentHashMap<>();
+  private final Map<String, CapacityPolicy> capacityPolicies = new ConcurrentHashMap<>();
+  // Created by the first deduplicated push to each queue.
+  private final Map<String, DeduplicationWindow> deduplication = new ConcurrentHashMap<>();
+  private final long deduplicationWindowMillis;
+  private final int deduplicationMaxIds;
   protected long visibilityTimeout;
+  private LongSupplier timeSupplier;
+  private final LongSupplier clock = this::now;
+  private volatile DeliveryScheduler deliveryScheduler;
+  // Null when messages are kept on the heap.
+  private final OffHeapArena offHeapArena;
+  private final long offHeapPushWait;
 
   public InMemoryQueueService() {
-    this.queues = new ConcurrentHashMap<>();
-    String propFileName = "config.properties";
-    Properties confInfo = new Properties();
-
-    try (InputStream inStream = getClass().getClassLoader().getResourceAsStream(propFileName)) {
-      confInfo.load(inStream);
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+    this(loadConfig());
+  }
 
+  /**
+   * A service configured by {@code confInfo} rather than config.properties. With
+   * {@code inMemoryStorage=offheap}, message bodies and headers are kept in direct
+   * memory (OffHeapMessageQueue.java), up to {@code offHeapMaxBytes} for all of
+   * the service's queues; a push that finds no room waits up to
+   * {@code offHeapPushWaitMillis} for deletes to free some, then fails with a
+   * QueueFullException. {@code deduplicationWindowSeconds} and
+   * {@code deduplicationMaxIds} bound the ids {@link #pushDeduplicated} remembers
+   * per queue.
+   */
+  public InMemoryQueueService(Properties confInfo) {
+    this.queues = new ConcurrentHashMap<>();
     this.visibilityTimeout = Integer.parseInt(confInfo.getProperty("visibilityTimeout", "30"));
+    this.deliveryScheduler = DeliveryScheduler.fromConfig(confInfo, "strict");
+    String storage = confInfo.getProperty("inMemoryStorage", "heap").trim();
+    switch (storage) {
+      case "heap":
+        this.offHeapArena = null;
+        break;
+      case "offheap":
+        this.offHeapArena = new OffHeapArena(Long.parseLong(confInfo.getProperty("offHeapMaxBytes", "268435456")),
+            Integer.parseInt(confInfo.getProperty("offHeapSlabBytes", "4194304")));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown in-memory storage: " + storage);
+    }
+    this.offHeapPushWait = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(confInfo.getProperty("offHeapPushWaitMillis", "0")));
+    this.deduplicationWindowMillis = TimeUnit.SECONDS.toMillis(
+        Long.parseLong(confInfo.getProperty("deduplicationWindowSeconds", "300")));
+    this.deduplicationMaxIds = Integer.parseInt(confInfo.getProperty("deduplicationMaxIds", "100000"));
   }
 
   @Override
   public void push(String queueUrl, String msgBody, int priority) {
-    PriorityQueue<Message> queue = queues.get(queueUrl);
-    if (queue == null) {
-      queue = new PriorityQueue<>(new MessageComparator());
-      queues.put(queueUrl, queue);
+    long start = System.nanoTime();
+    LocalMessageQueue queue = queue(queueUrl);
+    queue.push(new Message(msgBody, priority, now()));
+    queue.stats().recordOperation(QueueOperation.PUSH, start, 1);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The message keeps the array itself as its body, without copying or decoding it.
+   */
+  @Override
+  public void push(String queueUrl, byte[] msgBody, int priority) {
+    long start = System.nanoTime();
+    LocalMessageQueue queue = queue(queueUrl);
+    queue.push(new Message(msgBody, priority, now()));
+    queue.stats().recordOperation(QueueOperation.PUSH, start, 1);
+  }
+
+  @Override
+  public void push(String queueUrl, String msgBody, int priority, Duration delay) {
+    pushAt(queueUrl, msgBody, priority, now() + delay.toMillis());
+  }
+
+  @Override
+  public void pushAt(String queueUrl, String msgBody, int priority, Instant deliverAt) {
+    pushAt(queueUrl, msgBody, priority, deliverAt.toEpochMilli());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Each queue remembers the ids of the last {@code deduplicationWindowSeconds}
+   * of config.properties, at most {@code deduplicationMaxIds} of them, in a
+   * {@link DeduplicationWindow}: O(1) per push and bounded memory. Deduplicated
+   * pushes to one queue are checked and pushed one at a time, so a push that fails
+   * leaves its id free for the retry.
+   */
+  @Override
+  public boolean pushDeduplicated(String queueUrl, String msgBody, int priority, String deduplicationId) {
+    if (deduplicationId == null || deduplicationId.isEmpty()) {
+      throw new IllegalArgumentException("Deduplication id cannot be null or empty");
+    }
+    long start = System.nanoTime();
+    LocalMessageQueue queue = queue(queueUrl);
+    DeduplicationWindow window = deduplication.computeIfAbsent(queueUrl,
+        url -> new DeduplicationWindow(deduplicationWindowMillis, deduplicationMaxIds));
+    synchronized (window) {
+      long now = now();
+      if (window.contains(deduplicationId, now)) {
+        queue.stats().recordDuplicates(1);
+        return false;
+      }
+      queue.push(new Message(msgBody, priority, now));
+      window.add(deduplicationId, now);
     }
-    queue.add(new Message(msgBody, priority, System.currentTimeMillis()));
+    queue.stats().recordOperation(QueueOperation.PUSH, start, 1);
+    return true;
   }
 
   @Override
   public Message pull(String queueUrl) {
-    PriorityQueue<Message> queue = queues.get(queueUrl);
+    LocalMessageQueue queue = queues.get(queueUrl);
     if (queue == null) {
       return null;
     }
 
+    long start = System.nanoTime();
     long nowTime = now();
-    Optional<Message> msgOpt = queue.stream()
-        .filter(m -> m.isVisibleAt(nowTime))
-        .findFirst();
+    Message msg = queue.pull(nowTime, nowTime + TimeUnit.SECONDS.toMillis(visibilityTimeout));
+    recordPull(queue.stats(), start, msg);
+    return msg;
+  }
 
-    if (msgOpt.isEmpty()) {
-      return null;
-    } else {
-      Message msg = msgOpt.get();
-      queue.remove(msg);
-      msg.setReceiptId(UUID.randomUUID().toString());
-      msg.incrementAttempts();
-      msg.setVisibleFrom(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(visibilityTimeout));
+  @Override
+  public Message pull(String queueUrl, Duration wait) {
+    return pull(queueUrl, wait, TimeUnit.SECONDS.toMillis(visibilityTimeout));
+  }
 
-      return new Message(msg.getBody(), msg.getReceiptId());
+  @Override
+  public Message pull(String queueUrl, Duration wait, Duration visibilityTimeout) {
+    return pull(queueUrl, wait, visibilityTimeout.toMillis());
+  }
+
+  @Override
+  public boolean changeVisibility(String queueUrl, String receiptId, Duration visibilityTimeout) {
+    LocalMessageQueue queue = queues.get(queueUrl);
+    if (queue == null) {
+      return false;
     }
+    long start = System.nanoTime();
+    long nowTime = now();
+    boolean changed = queue.changeVisibility(Receipts.parse(receiptId), nowTime, nowTime + visibilityTimeout.toMillis());
+    queue.stats().recordOperation(QueueOperation.CHANGE_VISIBILITY, start, changed ? 1 : 0);
+    return changed;
   }
 
   @Override
   public void delete(String queueUrl, String receiptId) {
-    PriorityQueue<Message> queue = queues.get(queueUrl);
+    delete(queueUrl, Receipts.parse(receiptId));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Uses the receipt the queue keeps for the message, a long, without
+   * formatting or parsing its receipt id.
+   */
+  @Override
+  public void delete(String queueUrl, Message message) {
+    long receipt = message.getReceipt();
+    delete(queueUrl, receipt != Receipts.NONE ? receipt : Receipts.parse(message.getReceiptId()));
+  }
+
+  private void delete(String queueUrl, long receipt) {
+    LocalMessageQueue queue = queues.get(queueUrl);
+    if (queue != null) {
+      long start = System.nanoTime();
+      queue.delete(receipt, now());
+      queue.stats().recordOperation(QueueOperation.DELETE, start, 1);
+    }
+  }
+
+  @Override
+  public void pushBatch(String queueUrl, List<String> msgBodies, int priority) {
+    long start = System.nanoTime();
+    long timestamp = now();
+    List<Message> msgs = new ArrayList<>(msgBodies.size());
+    for (String msgBody : msgBodies) {
+      msgs.add(new Message(msgBody, priority, timestamp));
+    }
+    LocalMessageQueue queue = queue(queueUrl);
+    queue.pushAll(msgs);
+    queue.stats().recordOperation(QueueOperation.PUSH, start, msgs.size());
+  }
+
+  @Override
+  public List<Message> pull(String queueUrl, int maxMessages) {
+    return pull(queueUrl, maxMessages, TimeUnit.SECONDS.toMillis(visibilityTimeout));
+  }
+
+  @Override
+  public List<Message> pull(String queueUrl, int maxMessages, Duration visibilityTimeout) {
+    return pull(queueUrl, maxMessages, visibilityTimeout.toMillis());
+  }
+
+  private List<Message> pull(String queueUrl, int maxMessages, long visibilityMillis) {
+    LocalMessageQueue queue = queues.get(queueUrl);
+    if (queue == null) {
+      return new ArrayList<>();
+    }
+
+    long start = System.nanoTime();
+    long nowTime = now();
+    List<Message> msgs = queue.pull(nowTime, nowTime + visibilityMillis, maxMessages);
+    QueueStats stats = queue.stats();
+    stats.recordOperation(QueueOperation.PULL, start, msgs.size());
+    if (msgs.isEmpty()) {
+      stats.recordDelivery(null);
+    }
+    for (Message msg : msgs) {
+      stats.recordDelivery(msg);
+    }
+    return msgs;
+  }
+
+  @Override
+  public void deleteBatch(String queueUrl, List<String> receiptIds) {
+    LocalMessageQueue queue = queues.get(queueUrl);
     if (queue != null) {
-      long nowTime = now();
-
-      for (Iterator<Message> it = queue.iterator(); it.hasNext();) {
-        Message msg = it.next();
-        if (!msg.isVisibleAt(nowTime) && msg.getReceiptId().equals(receiptId)) {
-          it.remove();
-          break;
-        }
+      long start = System.nanoTime();
+      int deleted = queue.deleteAll(receiptIds, now());
+      queue.stats().recordOperation(QueueOperation.DELETE, start, deleted);
+    }
+  }
+
+  @Override
+  public synchronized void setRedrivePolicy(String queueUrl, RedrivePolicy policy) {
+    if (policy == null) {
+      redrivePolicies.remove(queueUrl);
+      queue(queueUrl).setRedrive(0, null);
+      return;
+    }
+    RedrivePolicy.checkNoCycle(redrivePolicies, queueUrl, policy, url -> url);
+    redrivePolicies.put(queueUrl, policy);
+    queue(queueUrl).setRedrive(policy.getMaxReceiveCount(), queue(policy.getDeadLetterQueueUrl()));
+  }
+
+  @Override
+  public RedrivePolicy getRedrivePolicy(String queueUrl) {
+    return redrivePolicies.get(queueUrl);
+  }
+
+  @Override
+  public int redrive(String deadLetterQueueUrl, String queueUrl, int maxMessages) {
+    LocalMessageQueue deadLetterQueue = queues.get(deadLetterQueueUrl);
+    if (deadLetterQueue == null) {
+      return 0;
+    }
+    // Drained first and pushed after, so that no two queue locks are held at once.
+    List<Message> msgs = deadLetterQueue.drain(now(), maxMessages);
+    if (!msgs.isEmpty()) {
+      try {
+        queue(queueUrl).pushAll(msgs);
+      } catch (QueueFullException e) {
+        deadLetterQueue.restore(msgs);
+        throw e;
       }
     }
+    return msgs.size();
+  }
+
+  @Override
+  public void setCapacityPolicy(String queueUrl, CapacityPolicy policy) {
+    if (policy == null) {
+      capacityPolicies.remove(queueUrl);
+    } else {
+      capacityPolicies.put(queueUrl, policy);
+    }
+    queue(queueUrl).setCapacity(policy);
+  }
+
+  @Override
+  public CapacityPolicy getCapacityPolicy(String queueUrl) {
+    return capacityPolicies.get(queueUrl);
+  }
+
+  @Override
+  public double getBackPressure(String queueUrl) {
+    LocalMessageQueue queue = queues.get(queueUrl);
+    return queue == null ? 0 : queue.backPressure();
+  }
+
+  /**
+   * The metrics of every queue of this service, keyed by queue URL.
+   */
+  public QueueMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Sets how queues created from now on choose between priorities; strict
+   * priority by default, or the {@code deliveryScheduler} of config.properties.
+   */
+  public void setDeliveryScheduler(DeliveryScheduler deliveryScheduler) {
+    if (deliveryScheduler == null) {
+      throw new IllegalArgumentException("Delivery scheduler cannot be null");
+    }
+    this.deliveryScheduler = deliveryScheduler;
+  }
+
+  public void setTimeSupplier(LongSupplier timeSupplier) {
+    this.timeSupplier = timeSupplier;
   }
 
   long now() {
-    return System.currentTimeMillis();
+    return timeSupplier == null ? System.currentTimeMillis() : timeSupplier.getAsLong();
   }
 
-  // Custom comparator for handling priorities and FCFS
-  private static class MessageComparator implements Comparator<Message> {
-    @Override
-    public int compare(Message m1, Message m2) {
-      if (m1.getPriority() != m2.getPriority()) {
-        return Integer.compare(m2.getPriority(), m1.getPriority()); // Higher priority first
-      }
-      return Long.compare(m1.getTimestamp(), m2.getTimestamp()); // FCFS for equal priority
+  private void pushAt(String queueUrl, String msgBody, int priority, long visibleFrom) {
+    long start = System.nanoTime();
+    LocalMessageQueue queue = queue(queueUrl);
+    long now = now();
+    queue.push(new Message(msgBody, priority, now), now, visibleFrom);
+    queue.stats().recordOperation(QueueOperation.PUSH, start, 1);
+  }
+
+  private Message pull(String queueUrl, Duration wait, long visibilityMillis) {
+    // Create the queue, so that the first push to it wakes this consumer.
+    LocalMessageQueue queue = queue(queueUrl);
+    long start = System.nanoTime();
+    try {
+      Message msg = queue.pull(clock, visibilityMillis, wait.toNanos());
+      recordPull(queue.stats(), start, msg);
+      return msg;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
     }
   }
-}
\ No newline at end of file
+
+  private LocalMessageQueue queue(String queueUrl) {
+    LocalMessageQueue queue = queues.get(queueUrl);
+    return queue != null ? queue : queues.computeIfAbsent(queueUrl, this::newQueue);
+  }
+
+  private LocalMessageQueue newQueue(String queueUrl) {
+    if (offHeapArena != null) {
+      return new OffHeapMessageQueue(metrics.queue(queueUrl), deliveryScheduler, offHeapArena, offHeapPushWait);
+    }
+    return new IndexedMessageQueue(metrics.queue(queueUrl), deliveryScheduler);
+  }
+
+  private static Properties loadConfig() {
+    Properties confInfo = new Properties();
+    try (InputStream inStream = InMemoryQueueService.class.getClassLoader().getResourceAsStream("config.properties")) {
+      confInfo.load(inStream);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    return confInfo;
+  }
+
+  private static void recordPull(QueueStats stats, long start, Message msg) {
+    stats.recordOperation(QueueOperation.PULL, start, msg == null ? 0 : 1);
+    stats.recordDelivery(msg);
+  }
+}
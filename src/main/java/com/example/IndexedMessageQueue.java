@@ -0,0 +1,434 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * A single in-memory queue backed by three indexes:
+ * <ul>
+ *   <li>{@link ReadyLanes}: one FIFO lane per priority, with a {@link DeliveryScheduler}
+ *       choosing which lane each delivery comes from,</li>
+ *   <li>a {@link TimingWheel} of in-flight messages keyed by visibility deadline,</li>
+ *   <li>a hash index from receipt to in-flight timer, keyed by the receipt's long
+ *       form ({@link Receipts}) so deliveries and deletes allocate no keys,</li>
+ * </ul>
+ * plus a second {@link TimingWheel} of delayed messages keyed by the time they
+ * become visible. Push and pull are O(1) in the backlog (the scheduler only looks
+ * at the head of each priority band); delete, redelivery of expired messages and
+ * release of due delayed messages are O(1) on the wheel side, so pulls never pay
+ * for scanning invisible messages.
+ *
+ * <p>Each queue is guarded by its own lock, so operations on different queues
+ * never contend with each other and the critical section on one queue is a
+ * handful of index operations.
+ *
+ * <p>A delivered message is handed out as is, not copied: the queue only keeps
+ * using it to track its deadline. A message that comes back for redelivery is
+ * replaced by a fresh instance, so what a consumer holds never changes under it.
+ *
+ * <p>With a redrive policy, a message whose visibility timeout expires after its
+ * last allowed delivery goes to the dead-letter queue instead of back to the
+ * ready lanes, so a poison message costs no more deliveries. The move locks the
+ * dead-letter queue while holding this queue's lock; policies must not form cycles.
+ *
+ * <p>Capacity counts every message, ready, in flight or delayed, and the UTF-8
+ * length of its body; drop policies only ever drop ready messages.
+ */
+class IndexedMessageQueue extends LocalMessageQueue {
+
+  private final ReadyLanes<Message> ready;
+  private final TimingWheel<Message> inFlight = new TimingWheel<>();
+  private final TimingWheel<Message> delayed = new TimingWheel<>();
+  private final LongHashMap<TimingWheel.Timer<Message>> receipts = new LongHashMap<>();
+  private final int epoch = Receipts.newEpoch();
+  private long deliveries;
+  private final ReentrantLock lock = new ReentrantLock();
+  // Signalled whenever a message may have become ready; consumers blocked in pull wait on it.
+  private final Condition available = lock.newCondition();
+  // Signalled whenever messages leave the queue; producers blocked by the capacity policy wait on it.
+  private final Condition space = lock.newCondition();
+  private final Consumer<Message> requeue = this::requeue;
+  private final Consumer<Message> release;
+  private final QueueStats stats;
+  private long nextSequence;
+  private int maxReceiveCount;
+  private LocalMessageQueue deadLetterQueue;
+
+  IndexedMessageQueue(QueueStats stats) {
+    this(stats, DeliveryScheduler.strictPriority());
+  }
+
+  IndexedMessageQueue(QueueStats stats, DeliveryScheduler scheduler) {
+    this.stats = stats;
+    this.ready = new ReadyLanes<>(scheduler, Message::getPriority, Message::getSequence, Message::getTimestamp);
+    this.release = ready::add;
+  }
+
+  @Override
+  QueueStats stats() {
+    return stats;
+  }
+
+  @Override
+  void setRedrive(int maxReceiveCount, LocalMessageQueue deadLetterQueue) {
+    lock.lock();
+    try {
+      this.maxReceiveCount = maxReceiveCount;
+      this.deadLetterQueue = deadLetterQueue;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  void push(Message msg) {
+    int size = msg.bodySize();
+    lock.lock();
+    try {
+      awaitRoom(space, 1, size);
+      msg.setSequence(nextSequence++);
+      ready.add(msg);
+      added(1, size);
+      evictOverflow();
+      available.signal();
+      updateDepth();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Pushes a message that becomes visible at {@code visibleFrom}; one already due
+   * goes straight to the ready lanes.
+   */
+  @Override
+  void push(Message msg, long now, long visibleFrom) {
+    int size = msg.bodySize();
+    lock.lock();
+    try {
+      requeueExpired(now);
+      awaitRoom(space, 1, size);
+      msg.setSequence(nextSequence++);
+      if (visibleFrom <= now) {
+        ready.add(msg);
+      } else {
+        msg.setVisibleFrom(visibleFrom);
+        delayed.schedule(msg, visibleFrom);
+      }
+      added(1, size);
+      evictOverflow();
+      // Also lets waiting consumers shorten their wait to the new message's due time.
+      available.signal();
+      updateDepth();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Pushes several messages under a single lock acquisition. The capacity policy
+   * admits or rejects the batch as a whole.
+   */
+  @Override
+  void pushAll(List<Message> msgs) {
+    long size = 0;
+    for (Message msg : msgs) {
+      size += msg.bodySize();
+    }
+    lock.lock();
+    try {
+      awaitRoom(space, msgs.size(), size);
+      add(msgs, size);
+      evictOverflow();
+      available.signalAll();
+      updateDepth();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  void restore(List<Message> msgs) {
+    long size = 0;
+    for (Message msg : msgs) {
+      size += msg.bodySize();
+    }
+    lock.lock();
+    try {
+      add(msgs, size);
+      available.signalAll();
+      updateDepth();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Delivers the next visible message, making it invisible until {@code visibleUntil}.
+   *
+   * @return the delivered message, or null if no message is visible at {@code now}
+   */
+  @Override
+  Message pull(long now, long visibleUntil) {
+    lock.lock();
+    try {
+      requeueExpired(now);
+      Message msg = deliver(now, visibleUntil);
+      updateDepth();
+      return msg;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Delivers the next visible message, waiting up to {@code waitNanos} for one to
+   * be pushed, for an in-flight message to time out or for a delayed message to
+   * come due. Waiting consumers are parked, not polling: a push wakes one of them,
+   * and a consumer that waits while messages are in flight or delayed sleeps until
+   * the earliest one may become visible.
+   *
+   * @param clock             the current time in milliseconds
+   * @param visibilityTimeout how long the delivered message stays invisible, in milliseconds
+   * @return the delivered message, or null if none became visible in time
+   */
+  @Override
+  Message pull(LongSupplier clock, long visibilityTimeout, long waitNanos) throws InterruptedException {
+    long deadline = System.nanoTime() + waitNanos;
+    lock.lockInterruptibly();
+    try {
+      while (true) {
+        long now = clock.getAsLong();
+        requeueExpired(now);
+        Message msg = deliver(now, now + visibilityTimeout);
+        if (msg != null) {
+          updateDepth();
+          return msg;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return null;
+        }
+        long untilExpiry = Math.min(inFlight.nextExpiry(), delayed.nextExpiry()) - now;
+        if (untilExpiry < TimeUnit.NANOSECONDS.toMillis(remaining)) {
+          remaining = TimeUnit.MILLISECONDS.toNanos(Math.max(untilExpiry, 1));
+        }
+        available.awaitNanos(remaining);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Delivers up to {@code maxMessages} visible messages under a single lock acquisition.
+   *
+   * @return the delivered messages, empty if no message is visible at {@code now}
+   */
+  @Override
+  List<Message> pull(long now, long visibleUntil, int maxMessages) {
+    List<Message> delivered = new ArrayList<>(Math.min(maxMessages, 16));
+    lock.lock();
+    try {
+      requeueExpired(now);
+      Message msg;
+      while (delivered.size() < maxMessages && (msg = deliver(now, visibleUntil)) != null) {
+        delivered.add(msg);
+      }
+      updateDepth();
+      return delivered;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes an in-flight message by its receipt id. A receipt whose visibility
+   * timeout has already expired is no longer valid and is ignored.
+   *
+   * @return true if a message was removed
+   */
+  @Override
+  boolean delete(long receipt, long now) {
+    lock.lock();
+    try {
+      boolean removed = remove(receipt, now);
+      updateDepth();
+      return removed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes several in-flight messages under a single lock acquisition.
+   *
+   * @return the number of messages removed
+   */
+  @Override
+  int deleteAll(List<String> receiptIds, long now) {
+    lock.lock();
+    try {
+      int removed = 0;
+      for (String receiptId : receiptIds) {
+        if (remove(Receipts.parse(receiptId), now)) {
+          removed++;
+        }
+      }
+      updateDepth();
+      return removed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Moves the visibility deadline of an in-flight message to {@code visibleUntil}
+   * by rescheduling its timer, O(1). A deadline not after {@code now} returns the
+   * message to the queue at once, as if its timeout had expired. Expired receipts
+   * are ignored.
+   *
+   * @return true if the message was still in flight
+   */
+  @Override
+  boolean changeVisibility(long receipt, long now, long visibleUntil) {
+    lock.lock();
+    try {
+      TimingWheel.Timer<Message> timer = receipts.get(receipt);
+      if (timer == null || timer.value().isVisibleAt(now)) {
+        return false;
+      }
+      Message msg = timer.value();
+      inFlight.cancel(timer);
+      msg.setVisibleFrom(visibleUntil);
+      receipts.put(receipt, inFlight.schedule(msg, visibleUntil));
+      if (visibleUntil <= now) {
+        requeueExpired(now);
+        available.signal();
+      }
+      updateDepth();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes up to {@code maxMessages} ready messages out of the queue, with their
+   * priority and arrival time but none of their delivery history, for
+   * {@link #pushAll} into another queue.
+   */
+  @Override
+  List<Message> drain(long now, int maxMessages) {
+    List<Message> drained = new ArrayList<>(Math.min(maxMessages, 16));
+    lock.lock();
+    try {
+      requeueExpired(now);
+      Message msg;
+      while (drained.size() < maxMessages && (msg = ready.poll(now)) != null) {
+        drained.add(msg.withoutHistory());
+        removed(1, msg.bodySize());
+      }
+      space.signalAll();
+      updateDepth();
+      return drained;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  int size() {
+    lock.lock();
+    try {
+      return ready.size() + inFlight.size() + delayed.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  boolean evict(OverflowPolicy policy) {
+    Message msg = policy == OverflowPolicy.DROP_OLDEST ? ready.pollOldest() : ready.pollLowest();
+    if (msg == null) {
+      return false;
+    }
+    removed(1, msg.bodySize());
+    return true;
+  }
+
+  // Must be called with the lock held.
+  private void add(List<Message> msgs, long size) {
+    for (Message msg : msgs) {
+      msg.setSequence(nextSequence++);
+      ready.add(msg);
+    }
+    added(msgs.size(), size);
+  }
+
+  // Must be called with the lock held.
+  private Message deliver(long now, long visibleUntil) {
+    Message msg = ready.poll(now);
+    if (msg == null) {
+      return null;
+    }
+    if (!ready.isEmpty()) {
+      // Pass the wakeup on, in case one push or expiry made several messages ready.
+      available.signal();
+    }
+    msg.setReceipt(Receipts.receipt(epoch, ++deliveries));
+    msg.incrementAttempts();
+    msg.setVisibleFrom(visibleUntil);
+    receipts.put(msg.getReceipt(), inFlight.schedule(msg, visibleUntil));
+    return msg;
+  }
+
+  // Must be called with the lock held.
+  private void updateDepth() {
+    int invisible = inFlight.size();
+    stats.updateDepth(ready.size() + invisible + delayed.size(), invisible);
+  }
+
+  // Must be called with the lock held.
+  private boolean remove(long receipt, long now) {
+    TimingWheel.Timer<Message> timer = receipts.get(receipt);
+    if (timer == null || timer.value().isVisibleAt(now)) {
+      return false;
+    }
+    receipts.remove(receipt);
+    inFlight.cancel(timer);
+    removed(1, timer.value().bodySize());
+    space.signalAll();
+    return true;
+  }
+
+  // Moves every in-flight message whose visibility timeout has expired, and every
+  // delayed message that is due, to the ready lanes.
+  private void requeueExpired(long now) {
+    inFlight.advance(now, requeue);
+    delayed.advance(now, release);
+  }
+
+  private void requeue(Message msg) {
+    receipts.remove(msg.getReceipt());
+    if (deadLetterQueue != null && msg.getAttempts() >= maxReceiveCount) {
+      // Starts over in the dead-letter queue, which counts its own deliveries.
+      deadLetterQueue.restore(Collections.singletonList(msg.withoutHistory()));
+      stats.recordDeadLetters(1);
+      removed(1, msg.bodySize());
+      space.signalAll();
+      return;
+    }
+    // The consumer of the expired delivery may still hold msg; deliver a new instance instead.
+    Message again = msg.withoutHistory();
+    again.setAttempts(msg.getAttempts());
+    again.setSequence(msg.getSequence());
+    ready.add(again);
+  }
+}
@@ -0,0 +1,45 @@
+package com.example;
+
+import java.lang.management.ManagementFactory;
+import java.util.Hashtable;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registers an MXBean for every queue of a {@link QueueMetrics}, named
+ * {@code com.example:type=QueueStats,service=<service>,queue=<queue>}. Queues
+ * that get metrics after the export are registered as they appear.
+ */
+public final class JmxMetricsExporter {
+    private JmxMetricsExporter() {
+    }
+
+    public static void export(QueueMetrics metrics) {
+        export(metrics, ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public static void export(QueueMetrics metrics, MBeanServer server) {
+        metrics.onQueue(stats -> register(server, metrics.getServiceName(), stats));
+    }
+
+    static ObjectName objectName(String serviceName, String queueName) throws JMException {
+        Hashtable<String, String> properties = new Hashtable<>();
+        properties.put("type", "QueueStats");
+        properties.put("service", ObjectName.quote(serviceName));
+        properties.put("queue", ObjectName.quote(queueName));
+        return new ObjectName("com.example", properties);
+    }
+
+    private static void register(MBeanServer server, String serviceName, QueueStats stats) {
+        try {
+            ObjectName name = objectName(serviceName, stats.getQueueName());
+            if (!server.isRegistered(name)) {
+                server.registerMBean(stats, name);
+            }
+        } catch (JMException e) {
+            System.err.println("Failed to register queue metrics for " + stats.getQueueName() + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+
+/**
+ * The consuming side of one Kafka-backed queue: a consumer subscribed to the
+ * queue's band topics, a local buffer of the records it polled, and the offsets
+ * it may commit.
+ *
+ * <p>Every polled record is kept until it is deleted. Ready records wait in one
+ * {@link ReadyLanes} lane per band, so the queue's {@link DeliveryScheduler}
+ * decides which band each delivery comes from. A band whose lane holds
+ * {@code prefetchPerBand} records has its partitions paused, so a backlog in
+ * one band cannot crowd the others out of the buffer. Delivered records wait
+ * in a {@link TimingWheel} until they are deleted or their visibility timeout
+ * returns them to their lane.
+ *
+ * <p>Kafka only stores one committed offset per partition, so a delete commits
+ * up to the first record of its partition that is still outstanding. A record
+ * that is never deleted holds back the commits of its partition, and the deleted
+ * records after it stay buffered, so a partition with
+ * {@code maxOutstandingPerPartition} records outstanding is paused as well until
+ * the oldest are deleted or redelivered elsewhere after a rebalance. Commits
+ * are asynchronous and batched: they are sent once {@code commitBatch} deletes
+ * are waiting or {@code commitIntervalMillis} after the first of them, at the
+ * next operation on the queue. After a crash or a rebalance, the records past the
+ * last commit are delivered again, deleted or not.
+ *
+ * <p>Not thread-safe, like the Kafka consumer it wraps; callers synchronize on it.
+ */
+final class KafkaQueueConsumer implements ConsumerRebalanceListener {
+  /** The record header holding a message's own priority, within its band. */
+  static final String PRIORITY_HEADER = "priority";
+
+  private final Consumer<String, String> consumer;
+  // Band priority of each topic of the queue.
+  private final Map<String, Integer> bands;
+  private final ReadyLanes<Pending> ready;
+  private final Map<Integer, Integer> buffered = new HashMap<>();
+  private final int prefetchPerBand;
+  private final int maxOutstandingPerPartition;
+  private final int commitBatch;
+  private final long commitIntervalMillis;
+  private final QueueStats stats;
+
+  private final TimingWheel<Pending> inFlight = new TimingWheel<>();
+  private final Map<String, TimingWheel.Timer<Pending>> receipts = new HashMap<>();
+  // The records of each partition not deleted yet, in offset order.
+  private final Map<TopicPartition, ArrayDeque<Pending>> outstanding = new HashMap<>();
+  private final Map<TopicPartition, OffsetAndMetadata> uncommitted = new HashMap<>();
+  private int uncommittedDeletes;
+  private long commitDueAt = Long.MAX_VALUE;
+  private long sequence;
+
+  /**
+   * @param bands            the band priority of each topic of the queue
+   * @param prefetchPerBand  ready records buffered per band before its partitions are paused
+   * @param maxOutstandingPerPartition records of a partition polled and not yet committed past before
+   *                         it is paused
+   * @param commitBatch      deletes that trigger an offset commit
+   * @param commitIntervalMillis the longest a delete waits for its offset commit to be sent
+   */
+  KafkaQueueConsumer(Consumer<String, String> consumer, Map<String, Integer> bands, DeliveryScheduler scheduler,
+      int prefetchPerBand, int maxOutstandingPerPartition, int commitBatch, long commitIntervalMillis,
+      QueueStats stats) {
+    this.consumer = consumer;
+    this.bands = bands;
+    this.prefetchPerBand = prefetchPerBand;
+    this.maxOutstandingPerPartition = maxOutstandingPerPartition;
+    this.commitBatch = commitBatch;
+    this.commitIntervalMillis = commitIntervalMillis;
+    this.stats = stats;
+    this.ready = new ReadyLanes<>(scheduler, p -> p.band, p -> p.sequence, p -> p.timestamp);
+    consumer.subscribe(bands.keySet(), this);
+  }
+
+  /**
+   * Polls the consumer for up to {@code timeout} and buffers what it returns.
+   * Also sends a commit that is due and returns expired deliveries to their lanes.
+   */
+  void poll(Duration timeout, long now) {
+    advance(now);
+    commitIfDue(now);
+    updatePauses();
+    for (ConsumerRecord<String, String> record : consumer.poll(timeout)) {
+      Integer band = bands.get(record.topic());
+      if (band == null) {
+        continue;
+      }
+      Pending pending = new Pending(new TopicPartition(record.topic(), record.partition()), record.offset(),
+          record.value(), priority(record, band), band, sequence++, record.timestamp());
+      outstanding.computeIfAbsent(pending.partition, tp -> new ArrayDeque<>()).add(pending);
+      makeReady(pending);
+    }
+    updatePauses();
+  }
+
+  boolean hasReady() {
+    return !ready.isEmpty();
+  }
+
+  /**
+   * Delivers the next buffered record, making it invisible until {@code visibleUntil}.
+   *
+   * @return the delivered message, or null if no record is ready
+   */
+  Message deliver(long now, long visibleUntil) {
+    advance(now);
+    Pending pending = ready.poll(now);
+    if (pending == null) {
+      return null;
+    }
+    buffered.merge(pending.band, -1, Integer::sum);
+    pending.attempts++;
+    pending.receipt = UUID.randomUUID().toString();
+    receipts.put(pending.receipt, inFlight.schedule(pending, visibleUntil));
+    Message msg = new Message(pending.body, pending.priority, pending.timestamp);
+    msg.setReceiptId(pending.receipt);
+    msg.setAttempts(pending.attempts);
+    return msg;
+  }
+
+  /**
+   * Deletes a delivered record by receipt and commits past it once its partition
+   * has no earlier record outstanding. Expired and unknown receipts are ignored.
+   *
+   * @return true if a record was deleted
+   */
+  boolean delete(String receiptId, long now) {
+    TimingWheel.Timer<Pending> timer = receipts.get(receiptId);
+    if (timer == null || timer.deadline() <= now) {
+      return false;
+    }
+    receipts.remove(receiptId);
+    inFlight.cancel(timer);
+    Pending pending = timer.value();
+    pending.receipt = null;
+    pending.deleted = true;
+    ArrayDeque<Pending> partition = outstanding.get(pending.partition);
+    Pending last = null;
+    while (partition != null && !partition.isEmpty() && partition.peekFirst().deleted) {
+      last = partition.pollFirst();
+    }
+    if (last != null) {
+      if (uncommitted.isEmpty()) {
+        commitDueAt = now + commitIntervalMillis;
+      }
+      uncommitted.put(pending.partition, new OffsetAndMetadata(last.offset + 1));
+    }
+    uncommittedDeletes++;
+    commitIfDue(now);
+    return true;
+  }
+
+  /**
+   * Moves the visibility deadline of a delivered record. A deadline not after
+   * {@code now} returns it to its lane at once.
+   *
+   * @return true if the record was still in flight
+   */
+  boolean changeVisibility(String receiptId, long now, long visibleUntil) {
+    TimingWheel.Timer<Pending> timer = receipts.get(receiptId);
+    if (timer == null || timer.deadline() <= now) {
+      return false;
+    }
+    inFlight.cancel(timer);
+    receipts.put(receiptId, inFlight.schedule(timer.value(), visibleUntil));
+    advance(now);
+    return true;
+  }
+
+  /** Buffered records, ready or in flight. */
+  int size() {
+    return ready.size() + inFlight.size();
+  }
+
+  int inFlightSize() {
+    return inFlight.size();
+  }
+
+  /**
+   * Commits what was deleted, waiting for the broker, and closes the consumer.
+   */
+  void close() {
+    try {
+      if (!uncommitted.isEmpty()) {
+        consumer.commitSync(uncommitted);
+      }
+    } finally {
+      consumer.close();
+    }
+  }
+
+  /**
+   * Commits what was deleted from the revoked partitions before another consumer
+   * takes them over, and forgets their records: their deliveries can no longer be
+   * deleted here, and the new owner delivers them again.
+   */
+  @Override
+  public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+    Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+    for (TopicPartition partition : partitions) {
+      OffsetAndMetadata offset = uncommitted.remove(partition);
+      if (offset != null) {
+        offsets.put(partition, offset);
+      }
+      ArrayDeque<Pending> records = outstanding.remove(partition);
+      if (records == null) {
+        continue;
+      }
+      for (Pending pending : records) {
+        if (pending.deleted) {
+          // Kept only until the records before it are deleted too.
+          continue;
+        }
+        if (pending.receipt != null) {
+          inFlight.cancel(receipts.remove(pending.receipt));
+        } else if (ready.remove(pending)) {
+          buffered.merge(pending.band, -1, Integer::sum);
+        }
+      }
+    }
+    if (!offsets.isEmpty()) {
+      try {
+        consumer.commitSync(offsets);
+      } catch (RuntimeException e) {
+        stats.recordError(QueueOperation.MAINTENANCE);
+        System.err.println("Failed to commit offsets of revoked partitions " + offsets.keySet() + ": " + e);
+      }
+    }
+  }
+
+  @Override
+  public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+    // New partitions start unpaused; the next poll pauses those of full bands.
+  }
+
+  private void commitIfDue(long now) {
+    if (uncommitted.isEmpty() || (uncommittedDeletes < commitBatch && now < commitDueAt)) {
+      return;
+    }
+    Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>(uncommitted);
+    uncommitted.clear();
+    uncommittedDeletes = 0;
+    commitDueAt = Long.MAX_VALUE;
+    // A failed commit is superseded by the next one; until then, its records may be delivered again.
+    consumer.commitAsync(offsets, (committed, e) -> {
+      if (e != null) {
+        stats.recordError(QueueOperation.MAINTENANCE);
+        System.err.println("Failed to commit offsets " + offsets + ": " + e);
+      }
+    });
+  }
+
+  // Pauses the partitions of the bands whose lane is full, and those with too many records outstanding,
+  // and resumes the others.
+  private void updatePauses() {
+    Set<TopicPartition> assigned = consumer.assignment();
+    if (assigned.isEmpty()) {
+      return;
+    }
+    Set<TopicPartition> paused = consumer.paused();
+    List<TopicPartition> pause = new ArrayList<>();
+    List<TopicPartition> resume = new ArrayList<>();
+    for (TopicPartition partition : assigned) {
+      Integer band = bands.get(partition.topic());
+      ArrayDeque<Pending> records = outstanding.get(partition);
+      boolean full = band != null && buffered.getOrDefault(band, 0) >= prefetchPerBand
+          || records != null && records.size() >= maxOutstandingPerPartition;
+      if (full && !paused.contains(partition)) {
+        pause.add(partition);
+      } else if (!full && paused.contains(partition)) {
+        resume.add(partition);
+      }
+    }
+    if (!pause.isEmpty()) {
+      consumer.pause(pause);
+    }
+    if (!resume.isEmpty()) {
+      consumer.resume(resume);
+    }
+  }
+
+  private void advance(long now) {
+    inFlight.advance(now, this::requeue);
+  }
+
+  private void requeue(Pending pending) {
+    receipts.remove(pending.receipt);
+    pending.receipt = null;
+    makeReady(pending);
+  }
+
+  private void makeReady(Pending pending) {
+    ready.add(pending);
+    buffered.merge(pending.band, 1, Integer::sum);
+  }
+
+  // The message's own priority, or its band's if the producer did not record it.
+  private static int priority(ConsumerRecord<String, String> record, int band) {
+    Header header = record.headers().lastHeader(PRIORITY_HEADER);
+    if (header == null || header.value() == null || header.value().length != Integer.BYTES) {
+      return band;
+    }
+    return ByteBuffer.wrap(header.value()).getInt();
+  }
+
+  private static final class Pending {
+    final TopicPartition partition;
+    final long offset;
+    final String body;
+    final int priority;
+    final int band;
+    final long sequence;
+    final long timestamp;
+    int attempts;
+    String receipt;
+    boolean deleted;
+
+    Pending(TopicPartition partition, long offset, String body, int priority, int band, long sequence,
+        long timestamp) {
+      this.partition = partition;
+      this.offset = offset;
+      this.body = body;
+      this.priority = priority;
+      this.band = band;
+      this.sequence = sequence;
+      this.timestamp = timestamp;
+    }
+  }
+}
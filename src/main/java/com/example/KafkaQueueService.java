@@ -1,85 +1,393 @@
 package com.example;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.serialization.StringSerializer;
-import java.util.Properties;
-import java.util.Collections;
 
-public class KafkaQueueService {
-
-    private KafkaProducer<String, String> producer;
-    private KafkaConsumer<String, String> consumer;
-    private String topic = "priorityQueue";  // Kafka topic for the priority queue
+/**
+ * A QueueService backed by Kafka topics.
+ *
+ * <p>Each queue has one topic per priority band, named {@code <queue>-p<band>}:
+ * {@code kafkaPriorityBands} lists the lowest priority of each band, and a message
+ * goes to the highest band its priority reaches (the lowest band if it reaches
+ * none). The topics must exist, or the brokers must create them automatically.
+ * The message's own priority travels in a record header.
+ *
+ * <p>Each queue is consumed by its own consumer in the service's consumer group
+ * (see {@link KafkaQueueConsumer}). Every polled record is buffered and served,
+ * one band lane each, in the order of the service's {@link DeliveryScheduler}:
+ * by default weighted round-robin, with each band weighted by its priority. The
+ * visibility timeout is kept locally; a record not deleted in time is delivered
+ * again from the buffer. Deletes commit offsets asynchronously, in batches, and
+ * a restarted consumer delivers again whatever was not committed, so delivery is
+ * at least once.
+ *
+ * <p>Producers batch records for up to {@code kafkaLingerMillis} and compress them
+ * with {@code kafkaCompression}; a push waits for its acknowledgement, and a batch
+ * push waits once for the whole batch.
+ *
+ * <p>A queue's consumer is used by one thread at a time, so a waiting pull polls
+ * in slices of {@code kafkaPollMillis} and lets deletes in between. Delayed
+ * messages and redrive policies are not supported. The depth gauges only count
+ * buffered records, not the lag of the topics.
+ */
+public class KafkaQueueService implements QueueService {
+    private final Producer<String, String> producer;
+    private final Supplier<Consumer<String, String>> consumerFactory;
+    private final Map<String, KafkaQueueConsumer> consumers = new ConcurrentHashMap<>();
+    private final QueueMetrics metrics = new QueueMetrics("KafkaQueueService");
+    private final int[] bands;
+    private final int visibilityTimeout;
+    private final DeliveryScheduler deliveryScheduler;
+    private final int prefetchPerBand;
+    private final int maxOutstandingPerPartition;
+    private final int commitBatch;
+    private final long commitIntervalMillis;
+    private final long pollMillis;
+    private LongSupplier timeSupplier;
 
+    /**
+     * Connects to the given brokers, with the settings of config.properties.
+     */
     public KafkaQueueService(String bootstrapServers, String groupId) {
-        // Set up producer properties
+        this(loadConfig(), bootstrapServers, groupId);
+    }
+
+    private KafkaQueueService(Properties confInfo, String bootstrapServers, String groupId) {
+        this(new KafkaProducer<>(producerConfig(bootstrapServers, confInfo)),
+                () -> new KafkaConsumer<>(consumerConfig(bootstrapServers, groupId, confInfo)), confInfo);
+    }
+
+    /**
+     * Uses the given producer, and a consumer from the factory for each queue, e.g.
+     * mock clients in tests.
+     *
+     * @param confInfo settings with the keys of config.properties
+     */
+    public KafkaQueueService(Producer<String, String> producer, Supplier<Consumer<String, String>> consumerFactory,
+            Properties confInfo) {
+        if (producer == null || consumerFactory == null) {
+            throw new IllegalArgumentException("Kafka producer and consumer factory cannot be null");
+        }
+        this.producer = producer;
+        this.consumerFactory = consumerFactory;
+        this.bands = Arrays.stream(confInfo.getProperty("kafkaPriorityBands", "0,5,10").split(","))
+                .map(String::trim).mapToInt(Integer::parseInt).sorted().distinct().toArray();
+        if (bands.length == 0) {
+            throw new IllegalArgumentException("kafkaPriorityBands must list at least one band");
+        }
+        this.visibilityTimeout = Integer.parseInt(confInfo.getProperty("visibilityTimeout", "30"));
+        this.deliveryScheduler = DeliveryScheduler.fromConfig(confInfo, "weighted");
+        this.prefetchPerBand = Integer.parseInt(confInfo.getProperty("kafkaPrefetchRecords", "500"));
+        this.maxOutstandingPerPartition = Integer.parseInt(confInfo.getProperty("kafkaMaxOutstandingRecords", "10000"));
+        this.commitBatch = Integer.parseInt(confInfo.getProperty("kafkaCommitBatch", "100"));
+        this.commitIntervalMillis = Long.parseLong(confInfo.getProperty("kafkaCommitIntervalMillis", "1000"));
+        this.pollMillis = Long.parseLong(confInfo.getProperty("kafkaPollMillis", "100"));
+    }
+
+    static Properties producerConfig(String bootstrapServers, Properties confInfo) {
         Properties producerProps = new Properties();
         producerProps.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
         producerProps.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
         producerProps.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
-        producer = new KafkaProducer<>(producerProps);
+        producerProps.put(ProducerConfig.ACKS_CONFIG, "all");
+        producerProps.put(ProducerConfig.LINGER_MS_CONFIG, confInfo.getProperty("kafkaLingerMillis", "5"));
+        producerProps.put(ProducerConfig.BATCH_SIZE_CONFIG, confInfo.getProperty("kafkaBatchBytes", "65536"));
+        producerProps.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, confInfo.getProperty("kafkaCompression", "lz4"));
+        return producerProps;
+    }
 
-        // Set up consumer properties
+    static Properties consumerConfig(String bootstrapServers, String groupId, Properties confInfo) {
         Properties consumerProps = new Properties();
         consumerProps.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, bootstrapServers);
         consumerProps.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
         consumerProps.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
         consumerProps.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
-        consumer = new KafkaConsumer<>(consumerProps);
-        consumer.subscribe(Collections.singletonList(topic)); // Subscribe to the queue topic
+        consumerProps.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        consumerProps.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+        consumerProps.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, confInfo.getProperty("kafkaPrefetchRecords", "500"));
+        return consumerProps;
     }
 
-    // Push a message into the Kafka queue with a priority
-    public void push(String message, int priority) {
-        long timestamp = System.currentTimeMillis();
-        String messageWithTimestamp = timestamp + ":" + message;  // Create a timestamped message
+    private static Properties loadConfig() {
+        Properties confInfo = new Properties();
+        try (InputStream inStream = KafkaQueueService.class.getClassLoader().getResourceAsStream("config.properties")) {
+            confInfo.load(inStream);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to load configuration", e);
+        }
+        return confInfo;
+    }
 
-        // Create a Kafka producer record with a key to ensure priority-based ordering
-        ProducerRecord<String, String> record = new ProducerRecord<>(topic, String.valueOf(priority), messageWithTimestamp);
+    public void setTimeSupplier(LongSupplier timeSupplier) {
+        this.timeSupplier = timeSupplier;
+    }
 
-        // Send the message to Kafka
-        producer.send(record, (metadata, exception) -> {
-            if (exception != null) {
-                exception.printStackTrace();
-            } else {
-                System.out.println("Sent message: " + messageWithTimestamp + " to partition: " + metadata.partition());
+    @Override
+    public void push(String queueUrl, String messageBody, int priority) {
+        long start = System.nanoTime();
+        QueueStats stats = metrics.queue(fromUrl(queueUrl));
+        try {
+            producer.send(record(queueUrl, messageBody, priority)).get();
+        } catch (ExecutionException e) {
+            stats.recordError(QueueOperation.PUSH);
+            throw new RuntimeException("Failed to push message", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stats.recordError(QueueOperation.PUSH);
+            throw new RuntimeException("Interrupted while pushing message", e);
+        }
+        stats.recordOperation(QueueOperation.PUSH, start, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Sends every record before waiting for any acknowledgement, so the
+     * producer can put them in as few requests as its batching allows.
+     */
+    @Override
+    public void pushBatch(String queueUrl, List<String> messageBodies, int priority) {
+        long start = System.nanoTime();
+        QueueStats stats = metrics.queue(fromUrl(queueUrl));
+        List<Future<RecordMetadata>> sent = new ArrayList<>(messageBodies.size());
+        try {
+            for (String messageBody : messageBodies) {
+                sent.add(producer.send(record(queueUrl, messageBody, priority)));
+            }
+            for (Future<RecordMetadata> future : sent) {
+                future.get();
             }
-        });
-    }
-
-    // Pull a message from the Kafka queue based on priority (lowest key = highest priority)
-    public String pull() {
-        // Poll the consumer to get messages
-        while (true) {
-            var records = consumer.poll(1000); // Poll for messages with a timeout of 1 second
-            if (!records.isEmpty()) {
-                // Process the record with the lowest priority (smallest key)
-                var record = records.iterator().next();
-                String messageWithTimestamp = record.value();
-
-                // Split the message by timestamp (assuming it's in the format "timestamp:message")
-                String[] parts = messageWithTimestamp.split(":");
-                if (parts.length > 1) {
-                    return parts[1]; // Return the message part (after the timestamp)
-                } else {
-                    return null;  // Handle unexpected format
+        } catch (ExecutionException e) {
+            stats.recordError(QueueOperation.PUSH);
+            throw new RuntimeException("Failed to push messages", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stats.recordError(QueueOperation.PUSH);
+            throw new RuntimeException("Interrupted while pushing messages", e);
+        }
+        stats.recordOperation(QueueOperation.PUSH, start, messageBodies.size());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>With nothing buffered, polls Kafka for up to {@code kafkaPollMillis}
+     * before giving up, since a fetch is rarely complete on the first poll.
+     */
+    @Override
+    public Message pull(String queueUrl) {
+        return pull(queueUrl, Duration.ofMillis(pollMillis), TimeUnit.SECONDS.toMillis(visibilityTimeout));
+    }
+
+    @Override
+    public Message pull(String queueUrl, Duration wait) {
+        return pull(queueUrl, wait, TimeUnit.SECONDS.toMillis(visibilityTimeout));
+    }
+
+    @Override
+    public Message pull(String queueUrl, Duration wait, Duration visibilityTimeout) {
+        return pull(queueUrl, wait, visibilityTimeout.toMillis());
+    }
+
+    private Message pull(String queueUrl, Duration wait, long visibilityMillis) {
+        long start = System.nanoTime();
+        String queueName = fromUrl(queueUrl);
+        QueueStats stats = metrics.queue(queueName);
+        KafkaQueueConsumer queue = getConsumer(queueName);
+        long deadline = start + wait.toNanos();
+        Message msg;
+        try {
+            do {
+                synchronized (queue) {
+                    long nowTime = now();
+                    queue.poll(queue.hasReady() ? Duration.ZERO : pollSlice(deadline), nowTime);
+                    msg = queue.deliver(nowTime, nowTime + visibilityMillis);
+                    stats.updateDepth(queue.size(), queue.inFlightSize());
                 }
+            } while (msg == null && System.nanoTime() < deadline && !Thread.currentThread().isInterrupted());
+        } catch (RuntimeException e) {
+            stats.recordError(QueueOperation.PULL);
+            throw e;
+        }
+        stats.recordOperation(QueueOperation.PULL, start, msg == null ? 0 : 1);
+        stats.recordDelivery(msg);
+        return msg;
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages) {
+        return pull(queueUrl, maxMessages, TimeUnit.SECONDS.toMillis(visibilityTimeout));
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages, Duration visibilityTimeout) {
+        return pull(queueUrl, maxMessages, visibilityTimeout.toMillis());
+    }
+
+    private List<Message> pull(String queueUrl, int maxMessages, long visibilityMillis) {
+        long start = System.nanoTime();
+        String queueName = fromUrl(queueUrl);
+        QueueStats stats = metrics.queue(queueName);
+        KafkaQueueConsumer queue = getConsumer(queueName);
+        List<Message> messages = new ArrayList<>();
+        try {
+            synchronized (queue) {
+                long nowTime = now();
+                queue.poll(queue.hasReady() ? Duration.ZERO : Duration.ofMillis(pollMillis), nowTime);
+                Message msg;
+                while (messages.size() < maxMessages && (msg = queue.deliver(nowTime, nowTime + visibilityMillis)) != null) {
+                    messages.add(msg);
+                }
+                stats.updateDepth(queue.size(), queue.inFlightSize());
             }
+        } catch (RuntimeException e) {
+            stats.recordError(QueueOperation.PULL);
+            throw e;
+        }
+        stats.recordOperation(QueueOperation.PULL, start, messages.size());
+        if (messages.isEmpty()) {
+            stats.recordDelivery(null);
         }
+        for (Message msg : messages) {
+            stats.recordDelivery(msg);
+        }
+        return messages;
+    }
+
+    @Override
+    public void delete(String queueUrl, String receiptId) {
+        long start = System.nanoTime();
+        String queueName = fromUrl(queueUrl);
+        KafkaQueueConsumer queue = getConsumer(queueName);
+        synchronized (queue) {
+            queue.delete(receiptId, now());
+            metrics.queue(queueName).updateDepth(queue.size(), queue.inFlightSize());
+        }
+        metrics.queue(queueName).recordOperation(QueueOperation.DELETE, start, 1);
+    }
+
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptIds) {
+        long start = System.nanoTime();
+        String queueName = fromUrl(queueUrl);
+        KafkaQueueConsumer queue = getConsumer(queueName);
+        int deleted = 0;
+        synchronized (queue) {
+            long nowTime = now();
+            for (String receiptId : receiptIds) {
+                if (queue.delete(receiptId, nowTime)) {
+                    deleted++;
+                }
+            }
+            metrics.queue(queueName).updateDepth(queue.size(), queue.inFlightSize());
+        }
+        metrics.queue(queueName).recordOperation(QueueOperation.DELETE, start, deleted);
+    }
+
+    @Override
+    public boolean changeVisibility(String queueUrl, String receiptId, Duration visibilityTimeout) {
+        long start = System.nanoTime();
+        String queueName = fromUrl(queueUrl);
+        KafkaQueueConsumer queue = getConsumer(queueName);
+        boolean changed;
+        synchronized (queue) {
+            long nowTime = now();
+            changed = queue.changeVisibility(receiptId, nowTime, nowTime + visibilityTimeout.toMillis());
+        }
+        metrics.queue(queueName).recordOperation(QueueOperation.CHANGE_VISIBILITY, start, changed ? 1 : 0);
+        return changed;
+    }
+
+    /**
+     * The metrics of every queue of this service, keyed by queue name.
+     */
+    public QueueMetrics getMetrics() {
+        return metrics;
     }
 
-    // Optionally, close the producer and consumer connections
+    /**
+     * Commits the offsets of deleted messages and closes the producer and consumers.
+     */
     public void close() {
-        if (producer != null) {
-            producer.close();
+        for (KafkaQueueConsumer queue : consumers.values()) {
+            synchronized (queue) {
+                queue.close();
+            }
         }
-        if (consumer != null) {
-            consumer.close();
+        consumers.clear();
+        producer.close();
+    }
+
+    /**
+     * The topic holding a queue's messages of the given priority.
+     */
+    String topic(String queueName, int priority) {
+        int band = bands[0];
+        for (int lowest : bands) {
+            if (priority >= lowest) {
+                band = lowest;
+            }
         }
+        return queueName + "-p" + band;
+    }
+
+    private ProducerRecord<String, String> record(String queueUrl, String messageBody, int priority) {
+        ProducerRecord<String, String> record = new ProducerRecord<>(topic(fromUrl(queueUrl), priority), messageBody);
+        record.headers().add(KafkaQueueConsumer.PRIORITY_HEADER, ByteBuffer.allocate(Integer.BYTES).putInt(priority).array());
+        return record;
+    }
+
+    private KafkaQueueConsumer getConsumer(String queueName) {
+        KafkaQueueConsumer queue = consumers.get(queueName);
+        return queue != null ? queue : consumers.computeIfAbsent(queueName, this::openConsumer);
+    }
+
+    private KafkaQueueConsumer openConsumer(String queueName) {
+        Map<String, Integer> topics = new LinkedHashMap<>();
+        for (int band : bands) {
+            topics.put(queueName + "-p" + band, band);
+        }
+        return new KafkaQueueConsumer(consumerFactory.get(), topics, deliveryScheduler, prefetchPerBand,
+                maxOutstandingPerPartition, commitBatch, commitIntervalMillis, metrics.queue(queueName));
+    }
+
+    // The time to poll for: one slice, or what is left until the deadline.
+    private Duration pollSlice(long deadline) {
+        long remaining = Math.max(deadline - System.nanoTime(), 0);
+        return Duration.ofNanos(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(pollMillis)));
+    }
+
+    private String fromUrl(String queueUrl) {
+        String[] parts = queueUrl.split("/");
+        return parts[parts.length - 1];
+    }
+
+    private long now() {
+        return timeSupplier == null ? System.currentTimeMillis() : timeSupplier.getAsLong();
     }
-}
\ No newline at end of file
+}
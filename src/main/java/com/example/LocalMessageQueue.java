@@ -0,0 +1,165 @@
+package com.example;
+
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.function.LongSupplier;
+
+/**
+ * One queue of an {@link InMemoryQueueService}: an {@link IndexedMessageQueue} of
+ * Message objects on the heap, or an {@link OffHeapMessageQueue} of records in
+ * direct memory. Both guard each queue with its own lock and take receipts in
+ * their long form ({@link Receipts}); times are in milliseconds.
+ *
+ * <p>This class keeps the count and body bytes of the queue's messages, and
+ * applies its {@link CapacityPolicy}: subclasses call {@link #awaitRoom} before
+ * adding messages, {@link #evictOverflow} after, and report every message that
+ * enters or leaves the queue.
+ */
+abstract class LocalMessageQueue {
+
+  private volatile CapacityPolicy capacity;
+  // Written with the queue lock held; read without it for the back-pressure signal.
+  private volatile long messages;
+  private volatile long bytes;
+
+  abstract QueueStats stats();
+
+  /**
+   * Sends messages that expire after {@code maxReceiveCount} deliveries to
+   * {@code deadLetterQueue}, a queue of the same service. A null dead-letter queue
+   * turns this off.
+   */
+  abstract void setRedrive(int maxReceiveCount, LocalMessageQueue deadLetterQueue);
+
+  abstract void push(Message msg);
+
+  /**
+   * Pushes a message that becomes visible at {@code visibleFrom}.
+   */
+  abstract void push(Message msg, long now, long visibleFrom);
+
+  abstract void pushAll(List<Message> msgs);
+
+  /**
+   * Pushes messages whatever the capacity policy, e.g. dead letters or messages
+   * that {@link #drain} took out and could not place elsewhere.
+   */
+  abstract void restore(List<Message> msgs);
+
+  /**
+   * @return the delivered message, or null if no message is visible at {@code now}
+   */
+  abstract Message pull(long now, long visibleUntil);
+
+  /**
+   * Delivers the next visible message, waiting up to {@code waitNanos} for one.
+   *
+   * @return the delivered message, or null if none became visible in time
+   */
+  abstract Message pull(LongSupplier clock, long visibilityTimeout, long waitNanos) throws InterruptedException;
+
+  abstract List<Message> pull(long now, long visibleUntil, int maxMessages);
+
+  /**
+   * @return true if an in-flight message was removed
+   */
+  abstract boolean delete(long receipt, long now);
+
+  abstract int deleteAll(List<String> receiptIds, long now);
+
+  /**
+   * @return true if the message was still in flight
+   */
+  abstract boolean changeVisibility(long receipt, long now, long visibleUntil);
+
+  /**
+   * Takes up to {@code maxMessages} ready messages out of the queue, without their
+   * delivery history.
+   */
+  abstract List<Message> drain(long now, int maxMessages);
+
+  abstract int size();
+
+  /**
+   * Drops one ready message to make room, as {@code policy} says, and reports it
+   * with {@link #removed}. Must be called with the queue lock held.
+   *
+   * @return false if no message is ready
+   */
+  abstract boolean evict(OverflowPolicy policy);
+
+  void setCapacity(CapacityPolicy capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * How full the queue is, from 0 to 1; 0 without a capacity policy.
+   */
+  double backPressure() {
+    CapacityPolicy policy = capacity;
+    return policy == null ? 0 : policy.pressure(messages, bytes);
+  }
+
+  // Must be called with the queue lock held.
+  final void added(long count, long size) {
+    messages += count;
+    bytes += size;
+  }
+
+  // Must be called with the queue lock held.
+  final void removed(long count, long size) {
+    messages -= count;
+    bytes -= size;
+  }
+
+  /**
+   * Makes sure that {@code count} messages with {@code size} bytes of bodies may
+   * be added: at once, or under {@link OverflowPolicy#BLOCK} once deletes have
+   * made room. Drop policies make room after the push instead, with
+   * {@link #evictOverflow}. Must be called with the queue lock held.
+   *
+   * @param space signalled by the subclass whenever messages leave the queue
+   * @throws QueueFullException if the messages do not fit, or not in time
+   */
+  final void awaitRoom(Condition space, long count, long size) {
+    CapacityPolicy policy = capacity;
+    if (policy == null || policy.dropsMessages() || policy.fits(messages, bytes, count, size)) {
+      return;
+    }
+    // A batch larger than the queue's limits would never fit.
+    if (policy.getOverflowPolicy() == OverflowPolicy.BLOCK && policy.fits(0, 0, count, size)) {
+      long remaining = policy.getBlockTimeout().toNanos();
+      try {
+        while (remaining > 0) {
+          remaining = space.awaitNanos(remaining);
+          policy = capacity;
+          if (policy == null || policy.fits(messages, bytes, count, size)) {
+            return;
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    stats().recordRejected((int) count);
+    throw policy.full(stats().getQueueName(), messages, bytes);
+  }
+
+  /**
+   * Drops ready messages, as a drop policy says, until the queue is within its
+   * limits or no message is ready. Must be called with the queue lock held.
+   */
+  final void evictOverflow() {
+    CapacityPolicy policy = capacity;
+    if (policy == null || !policy.dropsMessages()) {
+      return;
+    }
+    int dropped = 0;
+    while (!policy.fits(messages, bytes, 0, 0) && evict(policy.getOverflowPolicy())) {
+      dropped++;
+    }
+    if (dropped > 0) {
+      stats().recordDropped(dropped);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package com.example;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from long keys to values, with open addressing over parallel
+ * arrays: no entry objects and no boxed keys, so puts and removes allocate
+ * nothing until the table grows. Key 0 is reserved to mark empty slots.
+ *
+ * <p>Not thread-safe.
+ */
+final class LongHashMap<V> {
+  private static final long EMPTY = 0;
+
+  private long[] keys;
+  private Object[] values;
+  private int size;
+  private int shift;
+
+  LongHashMap() {
+    this(16);
+  }
+
+  LongHashMap(int capacity) {
+    int tableSize = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1);
+    keys = new long[tableSize];
+    values = new Object[tableSize];
+    shift = 64 - Integer.numberOfTrailingZeros(tableSize);
+  }
+
+  int size() {
+    return size;
+  }
+
+  @SuppressWarnings("unchecked")
+  V get(long key) {
+    int slot = find(key);
+    return slot < 0 ? null : (V) values[slot];
+  }
+
+  /**
+   * @return the previous value of the key, or null
+   */
+  @SuppressWarnings("unchecked")
+  V put(long key, V value) {
+    if (key == EMPTY) {
+      throw new IllegalArgumentException("Key 0 is reserved");
+    }
+    int mask = keys.length - 1;
+    for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        V previous = (V) values[slot];
+        values[slot] = value;
+        return previous;
+      }
+      if (keys[slot] == EMPTY) {
+        keys[slot] = key;
+        values[slot] = value;
+        // Keep the table at most half full, so probe sequences stay short.
+        if (++size > keys.length / 2) {
+          grow();
+        }
+        return null;
+      }
+    }
+  }
+
+  /**
+   * @return the value the key had, or null
+   */
+  @SuppressWarnings("unchecked")
+  V remove(long key) {
+    int slot = find(key);
+    if (slot < 0) {
+      return null;
+    }
+    V value = (V) values[slot];
+    // Backward-shift deletion: move later keys of the probe sequence into the gap, so lookups need no tombstones.
+    int mask = keys.length - 1;
+    int gap = slot;
+    for (int next = (gap + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+      int home = slot(keys[next]);
+      // The key at next may fill the gap only if its home slot is not within (gap, next].
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        keys[gap] = keys[next];
+        values[gap] = values[next];
+        gap = next;
+      }
+    }
+    keys[gap] = EMPTY;
+    values[gap] = null;
+    size--;
+    return value;
+  }
+
+  void clear() {
+    Arrays.fill(keys, EMPTY);
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  private int find(long key) {
+    if (key == EMPTY) {
+      return -1;
+    }
+    int mask = keys.length - 1;
+    for (int slot = slot(key); keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  // Fibonacci hashing: the high bits of the key times the golden ratio.
+  private int slot(long key) {
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new Object[oldValues.length * 2];
+    shift--;
+    int mask = keys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = slot(oldKeys[i]);
+        while (keys[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+}
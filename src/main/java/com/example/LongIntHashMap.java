@@ -0,0 +1,135 @@
+package com.example;
+
+import java.util.Arrays;
+
+/**
+ * A {@link LongHashMap} with int values, kept in an int array so that values are
+ * not boxed either. Values must not be negative: -1 stands for a missing key.
+ *
+ * <p>Not thread-safe.
+ */
+final class LongIntHashMap {
+  /** What gets and removes return for a key that is not in the map. */
+  static final int MISSING = -1;
+
+  private static final long EMPTY = 0;
+
+  private long[] keys;
+  private int[] values;
+  private int size;
+  private int shift;
+
+  LongIntHashMap() {
+    this(16);
+  }
+
+  LongIntHashMap(int capacity) {
+    int tableSize = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1);
+    keys = new long[tableSize];
+    values = new int[tableSize];
+    shift = 64 - Integer.numberOfTrailingZeros(tableSize);
+  }
+
+  int size() {
+    return size;
+  }
+
+  int get(long key) {
+    int slot = find(key);
+    return slot < 0 ? MISSING : values[slot];
+  }
+
+  /**
+   * @return the previous value of the key, or {@link #MISSING}
+   */
+  int put(long key, int value) {
+    if (key == EMPTY || value < 0) {
+      throw new IllegalArgumentException("Key 0 and negative values are reserved");
+    }
+    int mask = keys.length - 1;
+    for (int slot = slot(key); ; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        int previous = values[slot];
+        values[slot] = value;
+        return previous;
+      }
+      if (keys[slot] == EMPTY) {
+        keys[slot] = key;
+        values[slot] = value;
+        // Keep the table at most half full, so probe sequences stay short.
+        if (++size > keys.length / 2) {
+          grow();
+        }
+        return MISSING;
+      }
+    }
+  }
+
+  /**
+   * @return the value the key had, or {@link #MISSING}
+   */
+  int remove(long key) {
+    int slot = find(key);
+    if (slot < 0) {
+      return MISSING;
+    }
+    int value = values[slot];
+    // Backward-shift deletion: move later keys of the probe sequence into the gap, so lookups need no tombstones.
+    int mask = keys.length - 1;
+    int gap = slot;
+    for (int next = (gap + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask) {
+      int home = slot(keys[next]);
+      // The key at next may fill the gap only if its home slot is not within (gap, next].
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        keys[gap] = keys[next];
+        values[gap] = values[next];
+        gap = next;
+      }
+    }
+    keys[gap] = EMPTY;
+    size--;
+    return value;
+  }
+
+  void clear() {
+    Arrays.fill(keys, EMPTY);
+    size = 0;
+  }
+
+  private int find(long key) {
+    if (key == EMPTY) {
+      return -1;
+    }
+    int mask = keys.length - 1;
+    for (int slot = slot(key); keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  // Fibonacci hashing: the high bits of the key times the golden ratio.
+  private int slot(long key) {
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new int[oldValues.length * 2];
+    shift--;
+    int mask = keys.length - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = slot(oldKeys[i]);
+        while (keys[slot] != EMPTY) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+}
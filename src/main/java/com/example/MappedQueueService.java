@@ -0,0 +1,282 @@
+package com.example;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A QueueService backed by a memory-mapped ring buffer per queue, for producers
+ * and consumers in different JVMs on the same host.
+ *
+ * <p>Push, pull and delete are a few atomic operations on the mapped region
+ * (see {@link MappedRing}), with no system call per message. The queue lock is
+ * only taken once per queue and process, to create and format the ring file.
+ * Messages are delivered in FIFO order; the priority is stored with each record.
+ * A delayed message is written with its visibleFrom in the future and is
+ * skipped by pulls until then, like an in-flight one.
+ * The ring only frees space up to its oldest record that is not deleted, so a
+ * delayed message holds back the space of every message pushed after it until
+ * it is delivered and deleted. Delays are therefore limited to
+ * {@code mappedMaxDelaySeconds}, 900 seconds by default, as on SQS.
+ * The capacity of a ring is fixed when its file is created.
+ *
+ * <p>Operations are recorded in {@link #getMetrics()}; the ring keeps no count of
+ * its messages, so the depth gauges stay unknown.
+ *
+ * <p>A redrive policy is applied when a message is claimed: one claimed more than
+ * {@code maxReceiveCount} times is offered to the dead-letter ring and then
+ * deleted, without being returned. A crash in between leaves it in both rings.
+ *
+ * <p>A pull may set its own visibility timeout, but the visibility of a claimed
+ * message cannot be changed: a claim is identified by the deadline it stored, so
+ * moving the deadline would invalidate the receipt.
+ */
+public class MappedQueueService implements QueueService {
+    private final String queueDir;
+    private final int visibilityTimeout;
+    private final long capacity;
+    private final long maxDelayMillis;
+    private LongSupplier timeSupplier;
+    private final Map<String, MappedRing> rings = new ConcurrentHashMap<>();
+    private final QueueMetrics metrics = new QueueMetrics("MappedQueueService");
+    private final Map<String, RedrivePolicy> redrivePolicies = new ConcurrentHashMap<>();
+
+    public MappedQueueService() {
+        Properties confInfo = new Properties();
+        try (InputStream inStream = getClass().getClassLoader().getResourceAsStream("config.properties")) {
+            confInfo.load(inStream);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to load configuration", e);
+        }
+
+        this.queueDir = confInfo.getProperty("queueDirectory", "queue-service");
+        this.visibilityTimeout = Integer.parseInt(confInfo.getProperty("visibilityTimeout", "30"));
+        this.capacity = Long.parseLong(confInfo.getProperty("mappedQueueCapacity", "67108864"));
+        this.maxDelayMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(confInfo.getProperty("mappedMaxDelaySeconds", "900")));
+    }
+
+    public void setTimeSupplier(LongSupplier timeSupplier) {
+        this.timeSupplier = timeSupplier;
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody, int priority) {
+        pushAt(queueUrl, messageBody, priority, 0);
+    }
+
+    @Override
+    public void push(String queueUrl, byte[] messageBody, int priority) {
+        pushAt(queueUrl, messageBody, priority, 0);
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody, int priority, Duration delay) {
+        pushAt(queueUrl, messageBody, priority, now() + delay.toMillis());
+    }
+
+    @Override
+    public void pushAt(String queueUrl, String messageBody, int priority, Instant deliverAt) {
+        pushAt(queueUrl, messageBody, priority, deliverAt.toEpochMilli());
+    }
+
+    private void pushAt(String queueUrl, String messageBody, int priority, long visibleFrom) {
+        pushAt(queueUrl, messageBody.getBytes(StandardCharsets.UTF_8), priority, visibleFrom);
+    }
+
+    private void pushAt(String queueUrl, byte[] messageBody, int priority, long visibleFrom) {
+        if (visibleFrom - now() > maxDelayMillis) {
+            throw new IllegalArgumentException("A mapped queue cannot delay a message by more than "
+                    + TimeUnit.MILLISECONDS.toSeconds(maxDelayMillis) + " seconds");
+        }
+        long start = System.nanoTime();
+        QueueStats stats = metrics.queue(fromUrl(queueUrl));
+        if (!getRing(queueUrl).offer(messageBody, priority, visibleFrom)) {
+            stats.recordError(QueueOperation.PUSH);
+            throw new IllegalStateException("Queue is full: " + queueUrl);
+        }
+        stats.recordOperation(QueueOperation.PUSH, start, 1);
+    }
+
+    @Override
+    public Message pull(String queueUrl) {
+        return pull(queueUrl, TimeUnit.SECONDS.toMillis(visibilityTimeout));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Polls the ring with a growing backoff, like {@link QueueService#pull(String, Duration)};
+     * the deadline is stored by the claim itself, since it cannot be changed afterwards.
+     */
+    @Override
+    public Message pull(String queueUrl, Duration wait, Duration visibilityTimeout) {
+        return Backoff.poll(wait, () -> pull(queueUrl, visibilityTimeout.toMillis()));
+    }
+
+    private Message pull(String queueUrl, long visibilityMillis) {
+        long start = System.nanoTime();
+        String queueName = fromUrl(queueUrl);
+        QueueStats stats = metrics.queue(queueName);
+        MappedRing ring = getRing(queueUrl);
+        RedrivePolicy policy = redrivePolicies.get(queueName);
+        long nowTime = now();
+        Message msg = ring.poll(nowTime, nowTime + visibilityMillis);
+        while (msg != null && policy != null && msg.getAttempts() > policy.getMaxReceiveCount()) {
+            moveDeadLetter(ring, policy, stats, msg);
+            msg = ring.poll(nowTime, nowTime + visibilityMillis);
+        }
+        stats.recordOperation(QueueOperation.PULL, start, msg == null ? 0 : 1);
+        stats.recordDelivery(msg);
+        return msg;
+    }
+
+    @Override
+    public void delete(String queueUrl, String receiptId) {
+        long start = System.nanoTime();
+        getRing(queueUrl).delete(receiptId, now());
+        metrics.queue(fromUrl(queueUrl)).recordOperation(QueueOperation.DELETE, start, 1);
+    }
+
+    @Override
+    public void pushBatch(String queueUrl, List<String> messageBodies, int priority) {
+        long start = System.nanoTime();
+        QueueStats stats = metrics.queue(fromUrl(queueUrl));
+        MappedRing ring = getRing(queueUrl);
+        for (String messageBody : messageBodies) {
+            if (!ring.offer(messageBody.getBytes(StandardCharsets.UTF_8), priority, 0)) {
+                stats.recordError(QueueOperation.PUSH);
+                throw new IllegalStateException("Queue is full: " + queueUrl);
+            }
+        }
+        stats.recordOperation(QueueOperation.PUSH, start, messageBodies.size());
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages) {
+        return pull(queueUrl, maxMessages, TimeUnit.SECONDS.toMillis(visibilityTimeout));
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages, Duration visibilityTimeout) {
+        return pull(queueUrl, maxMessages, visibilityTimeout.toMillis());
+    }
+
+    private List<Message> pull(String queueUrl, int maxMessages, long visibilityMillis) {
+        long start = System.nanoTime();
+        String queueName = fromUrl(queueUrl);
+        QueueStats stats = metrics.queue(queueName);
+        MappedRing ring = getRing(queueUrl);
+        RedrivePolicy policy = redrivePolicies.get(queueName);
+        long nowTime = now();
+        List<Message> messages = new ArrayList<>();
+        ring.poll(nowTime, nowTime + visibilityMillis, maxMessages, messages);
+        if (policy != null) {
+            // The batch may come back short; like any pull, it returns what was claimable.
+            messages.removeIf(msg -> msg.getAttempts() > policy.getMaxReceiveCount()
+                    && moveDeadLetter(ring, policy, stats, msg));
+        }
+        stats.recordOperation(QueueOperation.PULL, start, messages.size());
+        if (messages.isEmpty()) {
+            stats.recordDelivery(null);
+        }
+        for (Message msg : messages) {
+            stats.recordDelivery(msg);
+        }
+        return messages;
+    }
+
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptIds) {
+        long start = System.nanoTime();
+        int deleted = getRing(queueUrl).deleteAll(receiptIds, now());
+        metrics.queue(fromUrl(queueUrl)).recordOperation(QueueOperation.DELETE, start, deleted);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The policy applies to pulls made through this service; every process
+     * using the queue should set the same policy.
+     */
+    @Override
+    public void setRedrivePolicy(String queueUrl, RedrivePolicy policy) {
+        if (policy == null) {
+            redrivePolicies.remove(fromUrl(queueUrl));
+        } else {
+            redrivePolicies.put(fromUrl(queueUrl), policy);
+        }
+    }
+
+    @Override
+    public RedrivePolicy getRedrivePolicy(String queueUrl) {
+        return redrivePolicies.get(fromUrl(queueUrl));
+    }
+
+    /**
+     * The metrics of every queue of this service, keyed by queue name.
+     */
+    public QueueMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Copies a claimed message, with its bytes and priority as they are, to the dead-letter ring,
+    // then deletes it with its receipt.
+    private boolean moveDeadLetter(MappedRing ring, RedrivePolicy policy, QueueStats stats, Message msg) {
+        if (!getRing(policy.getDeadLetterQueueUrl()).offer(msg.getBodyBytes(), msg.getPriority(), 0)) {
+            stats.recordError(QueueOperation.PULL);
+            throw new IllegalStateException("Queue is full: " + policy.getDeadLetterQueueUrl());
+        }
+        ring.delete(msg.getReceiptId(), now());
+        stats.recordDeadLetters(1);
+        return true;
+    }
+
+    private MappedRing getRing(String queueUrl) {
+        String queueName = fromUrl(queueUrl);
+        MappedRing ring = rings.get(queueName);
+        return ring != null ? ring : rings.computeIfAbsent(queueName, this::openRing);
+    }
+
+    private MappedRing openRing(String queueName) {
+        Path queuePath = Paths.get(queueDir, queueName);
+        QueueLock lock = null;
+        try {
+            Files.createDirectories(queuePath);
+            lock = QueueLock.forFile(queuePath.resolve("ring.lock"));
+            lock.lock();
+            return MappedRing.open(queuePath.resolve("ring.mmap"), capacity);
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException("Failed to open queue " + queueName, e);
+        } finally {
+            if (lock != null) {
+                lock.unlock();
+            }
+        }
+    }
+
+    private String fromUrl(String queueUrl) {
+        return queueUrl.substring(queueUrl.lastIndexOf('/') + 1);
+    }
+
+    private long now() {
+        return timeSupplier == null ? System.currentTimeMillis() : timeSupplier.getAsLong();
+    }
+
+    /**
+     * Deletes the messages in a queue specified by parameter queueUrl.
+     *
+     * @param queueUrl
+     */
+    protected void purgeQueue(String queueUrl) {
+        getRing(queueUrl).clear();
+    }
+}
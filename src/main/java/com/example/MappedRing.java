@@ -0,0 +1,437 @@
+package com.example;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A ring buffer of variable-length records in a memory-mapped file, shared by
+ * every process that maps the same file.
+ *
+ * <p>Layout (all fields native byte order, longs 8-byte aligned):
+ * <pre>
+ *   0    magic      int
+ *   8    capacity   long   size of the data area
+ *   64   head       long   logical position of the oldest record not yet reclaimed
+ *   128  tail       long   logical position where the next record will be reserved
+ *   256  data area  records at DATA + (position % capacity)
+ * </pre>
+ * Head and tail sit on separate cache lines and only ever grow. Each record is
+ * a fixed 40-byte header followed by the body, padded to 8 bytes:
+ * <pre>
+ *   0    commit       long   (position &lt;&lt; 2) | state
+ *   8    visibleFrom  long   claimed with CAS by consumers
+ *   16   receipt      long   visibleFrom stamp of the latest claim; the reservation time until published
+ *   24   attempts     int
+ *   28   priority     int
+ *   32   length       int    body length in bytes
+ *   36   owner        int    process id of the producer
+ * </pre>
+ * Producers reserve space with a CAS on the tail, mark the record reserved,
+ * fill it and publish it with a release store of the commit word. A record that would
+ * cross the end of the data area is preceded by a padding marker that fills the
+ * rest of the area, so bodies are always contiguous.
+ * Consumers claim a visible record with a CAS on its visibleFrom; the new value
+ * doubles as the receipt, since every claim stores a strictly later deadline.
+ * Deleting a record marks it deleted in its commit word, and the head then
+ * advances over deleted and padding records, freeing their space.
+ *
+ * <p>Because the commit word includes the record's logical position, a stale
+ * record left in a reused slot is never mistaken for a newer one.
+ *
+ * <p>Records are consumed in order, so a reservation its producer never publishes
+ * would hide every later record and, once the head reaches it, stop the ring from
+ * freeing space. Every process that maps the ring holds a shared lock on the byte
+ * of its process id in the {@code .owners} file next to it, which the system
+ * releases when the process dies. A reservation whose owner's byte is not locked
+ * by anyone is deleted, as its producer can no longer write to it. One that is
+ * older than {@link #RESERVATION_TIMEOUT_MILLIS} but whose owner may be alive,
+ * e.g. a stalled process or another one with the same id, is skipped by polls
+ * but keeps its space until it is published. Only a producer that dies between
+ * its tail CAS and marking the record reserved, a few instructions apart, leaves
+ * a record nothing can skip.
+ *
+ * <p>A poll scans from the head, over every in-flight and delayed record before
+ * the first visible one, as there is no shared index of visible records. That is
+ * cheap while consumers delete what they pull, but each pull slows down with
+ * the number of messages in flight or delayed ahead of the visible ones.
+ */
+final class MappedRing {
+    static final int MAGIC = 0x51524E47;
+
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int HEAD_OFFSET = 64;
+    private static final int TAIL_OFFSET = 128;
+    private static final int DATA = 256;
+
+    private static final int RECORD_HEADER = 40;
+    private static final int VISIBLE_FROM = 8;
+    private static final int RECEIPT = 16;
+    private static final int ATTEMPTS = 24;
+    private static final int PRIORITY = 28;
+    private static final int LENGTH = 32;
+    private static final int OWNER = 36;
+
+    private static final long RESERVED = 0;
+    private static final long READY = 1;
+    private static final long DELETED = 2;
+    private static final long PADDING = 3;
+    private static final long STATE_MASK = 3;
+
+    // Deleted records get this visibleFrom so that they can no longer be claimed.
+    private static final long TOMBSTONE = Long.MAX_VALUE;
+
+    static final long RESERVATION_TIMEOUT_MILLIS = 60_000;
+    private static final int PID = (int) ProcessHandle.current().pid();
+    // This process's lock in the owners file of each ring it mapped, held until it exits.
+    private static final Map<Path, FileLock> OWNER_LOCKS = new ConcurrentHashMap<>();
+
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final MappedByteBuffer buffer;
+    private final long capacity;
+    private final FileChannel owners;
+
+    private MappedRing(MappedByteBuffer buffer, long capacity, FileChannel owners) {
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.owners = owners;
+    }
+
+    /**
+     * Maps the ring file, creating and formatting it with the given capacity if needed.
+     * The caller must hold the queue lock so that two processes do not format it at once.
+     */
+    static MappedRing open(Path file, long capacity) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() >= DATA) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, DATA);
+                header.order(ByteOrder.nativeOrder());
+                if (header.getInt(0) == MAGIC) {
+                    capacity = header.getLong(CAPACITY_OFFSET);
+                }
+            }
+            if (capacity % 8 != 0 || capacity > Integer.MAX_VALUE - DATA) {
+                throw new IllegalArgumentException("Capacity must be a multiple of 8 below 2 GB: " + capacity);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA + capacity);
+            buffer.order(ByteOrder.nativeOrder());
+            if (buffer.getInt(0) != MAGIC) {
+                buffer.putLong(CAPACITY_OFFSET, capacity);
+                LONG.setVolatile(buffer, HEAD_OFFSET, 0L);
+                LONG.setVolatile(buffer, TAIL_OFFSET, 0L);
+                INT.setVolatile(buffer, 0, MAGIC);
+            }
+            return new MappedRing(buffer, capacity, lockOwner(file.resolveSibling(file.getFileName() + ".owners")));
+        }
+    }
+
+    // Marks this process as alive for the owners file, once per process, and returns the file's channel.
+    private static FileChannel lockOwner(Path ownersFile) throws IOException {
+        Path key = ownersFile.toAbsolutePath().normalize();
+        FileLock lock = OWNER_LOCKS.get(key);
+        if (lock == null) {
+            synchronized (OWNER_LOCKS) {
+                lock = OWNER_LOCKS.get(key);
+                if (lock == null) {
+                    // Never closed: closing any channel of the file would release the process's locks on it.
+                    FileChannel channel = FileChannel.open(key, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE);
+                    lock = channel.lock(PID, 1, true);
+                    OWNER_LOCKS.put(key, lock);
+                }
+            }
+        }
+        return lock.channel();
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @return false if the ring does not have room for it
+     */
+    boolean offer(byte[] body, int priority, long visibleFrom) {
+        long position = reserve(body.length, priority, visibleFrom, PID, System.currentTimeMillis());
+        if (position < 0) {
+            return false;
+        }
+        publish(position, body);
+        return true;
+    }
+
+    /**
+     * Reserves a record for a body of the given length and marks it reserved by
+     * the owner process at {@code now}, leaving it to {@link #publish}.
+     *
+     * @return the position of the record, or -1 if the ring does not have room for it
+     */
+    long reserve(int length, int priority, long visibleFrom, int owner, long now) {
+        long size = align(RECORD_HEADER + length);
+        if (size > capacity) {
+            throw new IllegalArgumentException("Message of " + length + " bytes does not fit the queue");
+        }
+        long position;
+        long padding;
+        while (true) {
+            long tail = (long) LONG.getVolatile(buffer, TAIL_OFFSET);
+            long head = (long) LONG.getVolatile(buffer, HEAD_OFFSET);
+            long offset = tail % capacity;
+            padding = offset + size > capacity ? capacity - offset : 0;
+            if (tail + padding + size - head > capacity) {
+                return -1;
+            }
+            if (LONG.compareAndSet(buffer, TAIL_OFFSET, tail, tail + padding + size)) {
+                position = tail;
+                break;
+            }
+        }
+        if (padding > 0) {
+            // Padding always runs to the end of the data area, so it needs no length field.
+            LONG.setRelease(buffer, index(position), commit(position, PADDING));
+            position += padding;
+        }
+
+        int at = index(position);
+        buffer.putLong(at + VISIBLE_FROM, visibleFrom);
+        buffer.putLong(at + RECEIPT, now);
+        buffer.putInt(at + ATTEMPTS, 0);
+        buffer.putInt(at + PRIORITY, priority);
+        buffer.putInt(at + LENGTH, length);
+        buffer.putInt(at + OWNER, owner);
+        LONG.setRelease(buffer, at, commit(position, RESERVED));
+        return position;
+    }
+
+    /**
+     * Writes the body of a reserved record and publishes it. Nothing else reuses
+     * the space of a reservation while its owner is alive, so this cannot fail.
+     */
+    void publish(long position, byte[] body) {
+        int at = index(position);
+        ByteBuffer view = buffer.duplicate();
+        view.position(at + RECORD_HEADER);
+        view.put(body);
+        LONG.setRelease(buffer, at, commit(position, READY));
+    }
+
+    /**
+     * Claims the oldest record visible at {@code now} until {@code visibleUntil}.
+     *
+     * @return the claimed message, or null if none is visible
+     */
+    Message poll(long now, long visibleUntil) {
+        List<Message> claimed = new ArrayList<>(1);
+        poll(now, visibleUntil, 1, claimed);
+        return claimed.isEmpty() ? null : claimed.get(0);
+    }
+
+    /**
+     * Claims up to {@code maxMessages} of the oldest records visible at {@code now}
+     * in a single scan, adding them to {@code claimed}. Reservations on the way whose
+     * owner is dead are deleted, and ones that are too old are skipped.
+     */
+    void poll(long now, long visibleUntil, int maxMessages, List<Message> claimed) {
+        int wanted = claimed.size() + maxMessages;
+        long tail = (long) LONG.getVolatile(buffer, TAIL_OFFSET);
+        long position = (long) LONG.getVolatile(buffer, HEAD_OFFSET);
+        boolean abandoned = false;
+        while (position < tail && claimed.size() < wanted) {
+            int at = index(position);
+            long commit = (long) LONG.getAcquire(buffer, at);
+            if (commit == commit(position, RESERVED)) {
+                Reservation reservation = checkReservation(position, at);
+                if (reservation == Reservation.DEAD) {
+                    commit = commit(position, DELETED);
+                    abandoned = true;
+                } else if (reservation == Reservation.STALE) {
+                    // Its length is known, so the records after it need not wait for it.
+                    position = next(position, commit, at);
+                    continue;
+                }
+            }
+            if (commit >>> 2 != position || (commit & STATE_MASK) == RESERVED) {
+                // Reserved but not published yet; later records stay invisible until it is.
+                break;
+            }
+            if ((commit & STATE_MASK) == READY) {
+                long visibleFrom = (long) LONG.getVolatile(buffer, at + VISIBLE_FROM);
+                // A later deadline than any previous claim, so the stamp is unique per claim.
+                long stamp = Math.max(visibleUntil, visibleFrom + 1);
+                if (visibleFrom <= now && LONG.compareAndSet(buffer, at + VISIBLE_FROM, visibleFrom, stamp)) {
+                    buffer.putLong(at + RECEIPT, stamp);
+                    int attempts = (int) INT.getAndAdd(buffer, at + ATTEMPTS, 1) + 1;
+                    byte[] body = new byte[buffer.getInt(at + LENGTH)];
+                    ByteBuffer view = buffer.duplicate();
+                    view.position(at + RECORD_HEADER);
+                    view.get(body);
+                    Message msg = new Message(body, buffer.getInt(at + PRIORITY), System.currentTimeMillis());
+                    msg.setReceiptId(receipt(position, stamp));
+                    msg.setAttempts(attempts);
+                    claimed.add(msg);
+                }
+            }
+            position = next(position, commit, at);
+        }
+        if (abandoned) {
+            reclaim();
+        }
+    }
+
+    /**
+     * Deletes a claimed record, if its receipt is still the latest claim and has not expired.
+     *
+     * @return true if the record was deleted
+     */
+    boolean delete(String receiptId, long now) {
+        if (!markDeleted(receiptId, now)) {
+            return false;
+        }
+        reclaim();
+        return true;
+    }
+
+    /**
+     * Deletes several claimed records, reclaiming their space once at the end.
+     *
+     * @return the number of records deleted
+     */
+    int deleteAll(List<String> receiptIds, long now) {
+        int deleted = 0;
+        for (String receiptId : receiptIds) {
+            if (markDeleted(receiptId, now)) {
+                deleted++;
+            }
+        }
+        if (deleted > 0) {
+            reclaim();
+        }
+        return deleted;
+    }
+
+    private boolean markDeleted(String receiptId, long now) {
+        int separator = receiptId.indexOf('-');
+        if (separator < 0) {
+            return false;
+        }
+        long position;
+        long stamp;
+        try {
+            position = Long.parseLong(receiptId.substring(0, separator));
+            stamp = Long.parseLong(receiptId.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (now >= stamp || position < (long) LONG.getVolatile(buffer, HEAD_OFFSET)) {
+            return false;
+        }
+        int at = index(position);
+        if ((long) LONG.getAcquire(buffer, at) != commit(position, READY)
+                || !LONG.compareAndSet(buffer, at + VISIBLE_FROM, stamp, TOMBSTONE)) {
+            return false;
+        }
+        LONG.setRelease(buffer, at, commit(position, DELETED));
+        return true;
+    }
+
+    /**
+     * Removes every record.
+     */
+    void clear() {
+        LONG.setVolatile(buffer, HEAD_OFFSET, (long) LONG.getVolatile(buffer, TAIL_OFFSET));
+    }
+
+    // Advances the head over deleted and padding records, freeing their space for producers.
+    private void reclaim() {
+        while (true) {
+            long head = (long) LONG.getVolatile(buffer, HEAD_OFFSET);
+            if (head >= (long) LONG.getVolatile(buffer, TAIL_OFFSET)) {
+                return;
+            }
+            int at = index(head);
+            long commit = (long) LONG.getAcquire(buffer, at);
+            if (commit == commit(head, RESERVED) && checkReservation(head, at) == Reservation.DEAD) {
+                commit = commit(head, DELETED);
+            }
+            long state = commit & STATE_MASK;
+            if (commit >>> 2 != head || (state != DELETED && state != PADDING)) {
+                return;
+            }
+            LONG.compareAndSet(buffer, HEAD_OFFSET, head, next(head, commit, at));
+        }
+    }
+
+    private enum Reservation { PENDING, STALE, DEAD }
+
+    // Whether the reservation at the given position may still be published. One whose owner is dead is deleted,
+    // so that its space is freed; a live owner may still write to it, so its space is never reused.
+    private Reservation checkReservation(long position, int at) {
+        int owner = buffer.getInt(at + OWNER);
+        if (owner == 0) {
+            // The reservation is not marked yet.
+            return Reservation.PENDING;
+        }
+        if (owner != PID && !mayBeAlive(owner)) {
+            boolean deleted = LONG.compareAndSet(buffer, at, commit(position, RESERVED), commit(position, DELETED))
+                    || (long) LONG.getAcquire(buffer, at) == commit(position, DELETED);
+            return deleted ? Reservation.DEAD : Reservation.PENDING;
+        }
+        return System.currentTimeMillis() - buffer.getLong(at + RECEIPT) >= RESERVATION_TIMEOUT_MILLIS
+                ? Reservation.STALE : Reservation.PENDING;
+    }
+
+    // False only if no process holds the owner's lock, i.e. the owner has exited.
+    private boolean mayBeAlive(int owner) {
+        try {
+            FileLock probe = owners.tryLock(owner, 1, false);
+            if (probe == null) {
+                return true;
+            }
+            probe.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            // Another thread of this process is probing the same owner.
+            return true;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    // The position of the record after the published record at the given position.
+    private long next(long position, long commit, int at) {
+        if ((commit & STATE_MASK) == PADDING) {
+            return (position / capacity + 1) * capacity;
+        }
+        return position + align(RECORD_HEADER + buffer.getInt(at + LENGTH));
+    }
+
+    private int index(long position) {
+        return (int) (DATA + position % capacity);
+    }
+
+    private static long commit(long position, long state) {
+        return (position << 2) | state;
+    }
+
+    private static String receipt(long position, long stamp) {
+        return position + "-" + stamp;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+}
@@ -1,12 +1,24 @@
 package com.example;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message as pushed and as delivered. The body is held as a String or as
+ * bytes, whichever it was created with, and converted (as UTF-8) only when the
+ * other form is asked for. Backends may hand out receipts as a long and format
+ * the receipt id only when {@link #getReceiptId()} is called.
+ */
 public class Message {
-    private final String body;
+    private String body;
+    private byte[] bodyBytes;
     private final int priority;
     private final long timestamp;
     private String receiptId;
+    private long receipt;
     private int attempts;
     private long visibleFrom;
+    private long sequence;
 
     // Existing constructor
     public Message(String body, int priority, long timestamp) {
@@ -17,6 +29,16 @@ public class Message {
         this.visibleFrom = 0;
     }
 
+    /**
+     * A message with a binary body. The array is not copied, so it must not be
+     * changed afterwards.
+     */
+    public Message(byte[] body, int priority, long timestamp) {
+        this.bodyBytes = body;
+        this.priority = priority;
+        this.timestamp = timestamp;
+    }
+
     // New constructor for body and receiptId
     public Message(String body, String receiptId) {
         this.body = body;
@@ -28,9 +50,54 @@ public class Message {
     }
 
     public String getBody() {
+        if (body == null && bodyBytes != null) {
+            body = new String(bodyBytes, StandardCharsets.UTF_8);
+        }
         return body;
     }
 
+    /**
+     * The body as bytes: as pushed for a binary message, otherwise UTF-8 encoded.
+     * The array is shared, so it must not be changed.
+     */
+    public byte[] getBodyBytes() {
+        if (bodyBytes == null && body != null) {
+            bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        }
+        return bodyBytes;
+    }
+
+    // The length of the body in UTF-8, counted without encoding a String body.
+    int bodySize() {
+        if (bodyBytes != null) {
+            return bodyBytes.length;
+        }
+        return body == null ? 0 : utf8Length(body);
+    }
+
+    // The length of a string in UTF-8, without encoding it.
+    static int utf8Length(String text) {
+        int size = text.length();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x800) {
+                // Three bytes, or four for a surrogate pair.
+                size += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * The body as a read-only buffer over {@link #getBodyBytes()}.
+     */
+    public ByteBuffer getBodyBuffer() {
+        byte[] bytes = getBodyBytes();
+        return bytes == null ? null : ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
     public int getPriority() {
         return priority;
     }
@@ -40,10 +107,27 @@ public class Message {
     }
 
     public String getReceiptId() {
+        if (receiptId == null && receipt != Receipts.NONE) {
+            receiptId = Receipts.format(receipt);
+        }
         return receiptId;
     }
 
-    protected int getAttempts() {
+    // The receipt of a backend that keeps receipts as longs, or Receipts.NONE.
+    long getReceipt() {
+        return receipt;
+    }
+
+    void setReceipt(long receipt) {
+        this.receipt = receipt;
+        this.receiptId = null;
+    }
+
+    /**
+     * How many times this message has been delivered, including this delivery;
+     * more than one means it is a redelivery. Backends that cannot tell report 0.
+     */
+    public int getAttempts() {
       return attempts;
     }
 
@@ -55,11 +139,35 @@ public class Message {
         this.attempts++;
     }
 
+    void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
     public void setVisibleFrom(long visibleFrom) {
         this.visibleFrom = visibleFrom;
     }
 
+    long getVisibleFrom() {
+        return visibleFrom;
+    }
+
+    // Arrival order within a queue, used to keep FCFS stable for equal timestamps.
+    long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
     public boolean isVisibleAt(long now) {
         return now >= visibleFrom;
     }
+
+    // A new message with this one's body, priority and arrival time, but none of its delivery history.
+    Message withoutHistory() {
+        Message copy = bodyBytes != null ? new Message(bodyBytes, priority, timestamp) : new Message(body, priority, timestamp);
+        copy.body = body;
+        return copy;
+    }
 }
\ No newline at end of file
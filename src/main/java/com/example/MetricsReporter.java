@@ -0,0 +1,17 @@
+package com.example;
+
+/**
+ * Publishes queue metrics to a monitoring system.
+ *
+ * <p>Implementations are found with {@link java.util.ServiceLoader}: list the
+ * class in {@code META-INF/services/com.example.MetricsReporter} and call
+ * {@link QueueMetrics#startReporting(java.time.Duration)}. A reporter can also
+ * be scheduled directly with {@link QueueMetrics#startReporting(MetricsReporter, java.time.Duration)}.
+ */
+public interface MetricsReporter {
+    /**
+     * Reports the current value of every queue's metrics. Called periodically on
+     * a single background thread.
+     */
+    void report(QueueMetrics metrics);
+}
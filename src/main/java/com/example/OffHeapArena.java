@@ -0,0 +1,227 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Direct memory for message records: {@link ByteBuffer#allocateDirect direct}
+ * slabs, allocated on demand up to a fixed cap and carved into power-of-two
+ * blocks by a buddy allocator. A freed block merges with its buddy whenever that
+ * is free too, so memory freed by many small messages can serve a large one.
+ *
+ * <p>Free blocks are kept in one doubly linked list per block size, threaded
+ * through the free blocks themselves. The only heap cost is one byte per 64 bytes
+ * of slab, recording where the blocks start and which are free, so the heap does
+ * not grow with the number of records.
+ *
+ * <p>An address is a slab index in the high 32 bits and an offset in that slab in
+ * the low 32. Slabs are kept once allocated and reused. Thread-safe; allocation
+ * may wait for other threads to free blocks.
+ */
+final class OffHeapArena {
+  /** Not an address: what {@link #allocate} returns when there is no room. */
+  static final long NULL = -1;
+
+  private static final int MIN_SHIFT = 6;
+  private static final int MIN_SLAB_SHIFT = 12;
+  private static final int MAX_SLAB_SHIFT = 30;
+
+  private final int slabShift;
+  private final int orders;
+  private final ByteBuffer[] slabs;
+  // Per slab and 64-byte unit: at the start of a block, order + 1 if allocated or
+  // -(order + 1) if free; 0 elsewhere.
+  private final byte[][] blocks;
+  private final long[] freeLists;
+  private int slabCount;
+  private long usedBytes;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition freed = lock.newCondition();
+
+  /**
+   * @param maxBytes  the cap on all slabs together
+   * @param slabBytes the size of each slab, a power of two from 4 KiB to 1 GiB,
+   *                  which is also the largest block
+   */
+  OffHeapArena(long maxBytes, int slabBytes) {
+    if (Integer.bitCount(slabBytes) != 1 || slabBytes < (1 << MIN_SLAB_SHIFT) || slabBytes > (1 << MAX_SLAB_SHIFT)) {
+      throw new IllegalArgumentException("Slab size must be a power of two from 4 KiB to 1 GiB: " + slabBytes);
+    }
+    if (maxBytes < slabBytes) {
+      throw new IllegalArgumentException("Off-heap cap " + maxBytes + " is smaller than one slab of " + slabBytes);
+    }
+    this.slabShift = Integer.numberOfTrailingZeros(slabBytes);
+    this.orders = slabShift - MIN_SHIFT + 1;
+    int maxSlabs = (int) Math.min(maxBytes / slabBytes, Integer.MAX_VALUE);
+    this.slabs = new ByteBuffer[maxSlabs];
+    this.blocks = new byte[maxSlabs][];
+    this.freeLists = new long[orders];
+    Arrays.fill(freeLists, NULL);
+  }
+
+  /**
+   * Allocates a block of at least {@code bytes}, waiting up to {@code waitNanos}
+   * for other threads to free room if the arena is at its cap.
+   *
+   * @return the block's address, or {@link #NULL} if there was no room in time
+   * @throws IllegalArgumentException if {@code bytes} is larger than a slab
+   */
+  long allocate(int bytes, long waitNanos) {
+    int order = order(bytes);
+    long deadline = System.nanoTime() + waitNanos;
+    lock.lock();
+    try {
+      long block;
+      while ((block = allocate(order)) == NULL) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return NULL;
+        }
+        try {
+          freed.awaitNanos(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return NULL;
+        }
+      }
+      return block;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void free(long address) {
+    lock.lock();
+    try {
+      int order = state(address) - 1;
+      if (order < 0) {
+        throw new IllegalStateException("Not an allocated block: " + Long.toHexString(address));
+      }
+      usedBytes -= blockSize(order);
+      long block = address;
+      setState(block, 0);
+      while (order < orders - 1) {
+        long buddy = block ^ blockSize(order);
+        if (state(buddy) != -(order + 1)) {
+          break;
+        }
+        unlink(buddy, order);
+        setState(buddy, 0);
+        block = Math.min(block, buddy);
+        order++;
+      }
+      link(block, order);
+      freed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The slab holding an address. Callers read and write it only with absolute
+   * indexes, or through a {@link ByteBuffer#duplicate duplicate}, so that
+   * threads using different blocks do not disturb each other.
+   */
+  ByteBuffer slab(long address) {
+    return slabs[(int) (address >>> 32)];
+  }
+
+  static int offset(long address) {
+    return (int) address;
+  }
+
+  /** The bytes in allocated blocks, rounded up to block sizes. */
+  long usedBytes() {
+    lock.lock();
+    try {
+      return usedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  long capacity() {
+    return (long) slabs.length << slabShift;
+  }
+
+  // Must be called with the lock held.
+  private long allocate(int order) {
+    int available = order;
+    while (available < orders && freeLists[available] == NULL) {
+      available++;
+    }
+    if (available == orders) {
+      if (slabCount == slabs.length) {
+        return NULL;
+      }
+      addSlab();
+      available = orders - 1;
+    }
+    long block = freeLists[available];
+    unlink(block, available);
+    // Split down to the order asked for, freeing the upper half each time.
+    while (available > order) {
+      available--;
+      link(block + blockSize(available), available);
+    }
+    setState(block, order + 1);
+    usedBytes += blockSize(order);
+    return block;
+  }
+
+  private void addSlab() {
+    slabs[slabCount] = ByteBuffer.allocateDirect(1 << slabShift);
+    blocks[slabCount] = new byte[1 << (slabShift - MIN_SHIFT)];
+    link((long) slabCount << 32, orders - 1);
+    slabCount++;
+  }
+
+  // Free blocks keep the previous and next block of their list in their first 16 bytes.
+
+  private void link(long block, int order) {
+    long next = freeLists[order];
+    slab(block).putLong(offset(block), NULL);
+    slab(block).putLong(offset(block) + 8, next);
+    if (next != NULL) {
+      slab(next).putLong(offset(next), block);
+    }
+    freeLists[order] = block;
+    setState(block, -(order + 1));
+  }
+
+  private void unlink(long block, int order) {
+    long previous = slab(block).getLong(offset(block));
+    long next = slab(block).getLong(offset(block) + 8);
+    if (previous == NULL) {
+      freeLists[order] = next;
+    } else {
+      slab(previous).putLong(offset(previous) + 8, next);
+    }
+    if (next != NULL) {
+      slab(next).putLong(offset(next), previous);
+    }
+  }
+
+  private int state(long address) {
+    return blocks[(int) (address >>> 32)][offset(address) >>> MIN_SHIFT];
+  }
+
+  private void setState(long address, int state) {
+    blocks[(int) (address >>> 32)][offset(address) >>> MIN_SHIFT] = (byte) state;
+  }
+
+  private int order(int bytes) {
+    int order = Math.max(0, 32 - Integer.numberOfLeadingZeros(bytes - 1) - MIN_SHIFT);
+    if (bytes <= 0 || order >= orders) {
+      throw new IllegalArgumentException("Record of " + bytes + " bytes does not fit in an off-heap slab of "
+          + (1 << slabShift));
+    }
+    return order;
+  }
+
+  private static long blockSize(int order) {
+    return 1L << (order + MIN_SHIFT);
+  }
+}
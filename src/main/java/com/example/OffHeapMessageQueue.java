@@ -0,0 +1,792 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * A single in-memory queue that keeps its messages off the heap, for backlogs too
+ * large to hold as {@link Message} objects without long garbage collection pauses.
+ *
+ * <p>Each message is one record in an {@link OffHeapArena} block: its arrival time,
+ * delivery count and body. On the heap, a message is only a slot in a few
+ * primitive arrays: its priority, arrival sequence, visibility time and record
+ * address, plus links for the structure it is in. So the backlog adds no objects
+ * for the collector to trace, and a Message is made only to hand out a delivery.
+ * Slots of deleted messages are reused; the arrays grow to the largest backlog
+ * seen.
+ *
+ * <p>The indexes mirror {@link IndexedMessageQueue}: one FIFO lane per priority,
+ * linked through the slots, with a {@link DeliveryScheduler} choosing the lane;
+ * binary heaps of slots, by deadline, for in-flight and delayed messages; and a
+ * hash index from receipt to slot.
+ *
+ * <p>Records are written to the arena before the queue lock is taken. When the
+ * arena is at its cap, a push waits up to its push wait for deletes to free room,
+ * then fails with a {@link QueueFullException} and leaves the queue as it was. A
+ * push turned away by the queue's capacity policy frees its record the same way.
+ */
+class OffHeapMessageQueue extends LocalMessageQueue {
+
+  private static final int NONE = -1;
+  // Record layout: arrival time, delivery count, body length (-1 for a null body), body.
+  private static final int ATTEMPTS = 8;
+  private static final int LENGTH = 12;
+  private static final int HEADER = 16;
+
+  private final OffHeapArena arena;
+  private final long pushWaitNanos;
+  private final QueueStats stats;
+  private final DeliveryScheduler scheduler;
+  private final ReentrantLock lock = new ReentrantLock();
+  // Signalled whenever a message may have become ready; consumers blocked in pull wait on it.
+  private final Condition available = lock.newCondition();
+  // Signalled whenever messages leave the queue; producers blocked by the capacity policy wait on it.
+  private final Condition space = lock.newCondition();
+
+  // Per slot.
+  private long[] records = new long[16];
+  private int[] priorities = new int[16];
+  private long[] sequences = new long[16];
+  private long[] visibleFrom = new long[16];
+  private long[] slotReceipts = new long[16];
+  // The next slot of a lane, or of the free list.
+  private int[] links = new int[16];
+  // The position of an in-flight or delayed slot in its heap.
+  private int[] heapIndexes = new int[16];
+  private int slotCount;
+  private int freeSlots = NONE;
+
+  private final Map<Integer, Lane> lanes = new HashMap<>();
+  // The non-empty lanes, highest priority first.
+  private final List<Lane> active = new ArrayList<>();
+  private int readyCount;
+  private final SlotHeap inFlight = new SlotHeap(true);
+  private final SlotHeap delayed = new SlotHeap(true);
+  private final LongIntHashMap receipts = new LongIntHashMap();
+  private final int epoch = Receipts.newEpoch();
+  private long deliveries;
+  private long nextSequence;
+  private int maxReceiveCount;
+  private OffHeapMessageQueue deadLetterQueue;
+
+  /**
+   * @param arena     where the records are kept, shared by the queues of a service
+   * @param pushWait  how long a push may wait for room in the arena, in nanoseconds
+   */
+  OffHeapMessageQueue(QueueStats stats, DeliveryScheduler scheduler, OffHeapArena arena, long pushWait) {
+    this.stats = stats;
+    this.scheduler = scheduler;
+    this.arena = arena;
+    this.pushWaitNanos = pushWait;
+  }
+
+  @Override
+  QueueStats stats() {
+    return stats;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The dead-letter queue must be off-heap in the same arena: dead letters
+   * move there by their record, without a copy.
+   */
+  @Override
+  void setRedrive(int maxReceiveCount, LocalMessageQueue deadLetterQueue) {
+    lock.lock();
+    try {
+      this.maxReceiveCount = maxReceiveCount;
+      this.deadLetterQueue = (OffHeapMessageQueue) deadLetterQueue;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  void push(Message msg) {
+    long record = write(msg, 1);
+    lock.lock();
+    try {
+      admit(record);
+      ready(index(record, msg.getPriority()));
+      evictOverflow();
+      available.signal();
+      updateDepth();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  void push(Message msg, long now, long visibleFrom) {
+    long record = write(msg, 1);
+    lock.lock();
+    try {
+      requeueExpired(now);
+      admit(record);
+      int slot = index(record, msg.getPriority());
+      if (visibleFrom <= now) {
+        ready(slot);
+      } else {
+        this.visibleFrom[slot] = visibleFrom;
+        delayed.add(slot);
+      }
+      evictOverflow();
+      // Also lets waiting consumers shorten their wait to the new message's due time.
+      available.signal();
+      updateDepth();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Pushes all of the messages or, if the arena or the capacity policy has no
+   * room for all of them, none.
+   */
+  @Override
+  void pushAll(List<Message> msgs) {
+    long[] written = writeAll(msgs);
+    long size = 0;
+    for (long record : written) {
+      size += bodyLength(record);
+    }
+    lock.lock();
+    try {
+      try {
+        awaitRoom(space, written.length, size);
+      } catch (QueueFullException e) {
+        free(written, written.length);
+        throw e;
+      }
+      for (int i = 0; i < written.length; i++) {
+        ready(index(written[i], msgs.get(i).getPriority()));
+      }
+      evictOverflow();
+      available.signalAll();
+      updateDepth();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  void restore(List<Message> msgs) {
+    long[] written = writeAll(msgs);
+    lock.lock();
+    try {
+      for (int i = 0; i < written.length; i++) {
+        ready(index(written[i], msgs.get(i).getPriority()));
+      }
+      available.signalAll();
+      updateDepth();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  Message pull(long now, long visibleUntil) {
+    lock.lock();
+    try {
+      requeueExpired(now);
+      Message msg = deliver(now, visibleUntil);
+      updateDepth();
+      return msg;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  Message pull(LongSupplier clock, long visibilityTimeout, long waitNanos) throws InterruptedException {
+    long deadline = System.nanoTime() + waitNanos;
+    lock.lockInterruptibly();
+    try {
+      while (true) {
+        long now = clock.getAsLong();
+        requeueExpired(now);
+        Message msg = deliver(now, now + visibilityTimeout);
+        if (msg != null) {
+          updateDepth();
+          return msg;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return null;
+        }
+        long untilExpiry = Math.min(inFlight.nextDeadline(), delayed.nextDeadline()) - now;
+        if (untilExpiry < TimeUnit.NANOSECONDS.toMillis(remaining)) {
+          remaining = TimeUnit.MILLISECONDS.toNanos(Math.max(untilExpiry, 1));
+        }
+        available.awaitNanos(remaining);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  List<Message> pull(long now, long visibleUntil, int maxMessages) {
+    List<Message> delivered = new ArrayList<>(Math.min(maxMessages, 16));
+    lock.lock();
+    try {
+      requeueExpired(now);
+      Message msg;
+      while (delivered.size() < maxMessages && (msg = deliver(now, visibleUntil)) != null) {
+        delivered.add(msg);
+      }
+      updateDepth();
+      return delivered;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  boolean delete(long receipt, long now) {
+    lock.lock();
+    try {
+      boolean removed = remove(receipt, now);
+      updateDepth();
+      return removed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  int deleteAll(List<String> receiptIds, long now) {
+    lock.lock();
+    try {
+      int removed = 0;
+      for (String receiptId : receiptIds) {
+        if (remove(Receipts.parse(receiptId), now)) {
+          removed++;
+        }
+      }
+      updateDepth();
+      return removed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  boolean changeVisibility(long receipt, long now, long visibleUntil) {
+    lock.lock();
+    try {
+      int slot = inFlightSlot(receipt, now);
+      if (slot == NONE) {
+        return false;
+      }
+      inFlight.remove(slot);
+      visibleFrom[slot] = visibleUntil;
+      inFlight.add(slot);
+      if (visibleUntil <= now) {
+        requeueExpired(now);
+        available.signal();
+      }
+      updateDepth();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  List<Message> drain(long now, int maxMessages) {
+    List<Message> drained = new ArrayList<>(Math.min(maxMessages, 16));
+    lock.lock();
+    try {
+      requeueExpired(now);
+      int slot;
+      while (drained.size() < maxMessages && (slot = pollReady(now)) != NONE) {
+        drained.add(read(slot).withoutHistory());
+        releaseSlot(slot);
+      }
+      space.signalAll();
+      updateDepth();
+      return drained;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  int size() {
+    lock.lock();
+    try {
+      return readyCount + inFlight.size() + delayed.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  boolean evict(OverflowPolicy policy) {
+    if (readyCount == 0) {
+      return false;
+    }
+    int index = active.size() - 1;
+    if (policy == OverflowPolicy.DROP_OLDEST) {
+      for (int i = index - 1; i >= 0; i--) {
+        if (active.get(i).getOldestSequence() < active.get(index).getOldestSequence()) {
+          index = i;
+        }
+      }
+    }
+    int slot = pollLane(index);
+    releaseSlot(slot);
+    return true;
+  }
+
+  /**
+   * Takes over the record of a dead letter, as a new message with no deliveries.
+   */
+  private void adopt(long record, int priority) {
+    lock.lock();
+    try {
+      arena.slab(record).putInt(OffHeapArena.offset(record) + ATTEMPTS, 0);
+      ready(index(record, priority));
+      available.signal();
+      updateDepth();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Writes the record of a message pushed on its own or, for the rejected count, in a batch of batchSize.
+  private long write(Message msg, int batchSize) {
+    byte[] body = msg.getBodyBytes();
+    int length = body == null ? 0 : body.length;
+    long record = arena.allocate(HEADER + length, pushWaitNanos);
+    if (record == OffHeapArena.NULL) {
+      stats.recordRejected(batchSize);
+      throw new QueueFullException("Off-heap store is full: " + arena.usedBytes() + " of "
+          + arena.capacity() + " bytes in use");
+    }
+    ByteBuffer slab = arena.slab(record);
+    int at = OffHeapArena.offset(record);
+    slab.putLong(at, msg.getTimestamp());
+    slab.putInt(at + ATTEMPTS, msg.getAttempts());
+    slab.putInt(at + LENGTH, body == null ? -1 : length);
+    if (length > 0) {
+      ByteBuffer view = slab.duplicate();
+      view.position(at + HEADER);
+      view.put(body);
+    }
+    return record;
+  }
+
+  private long[] writeAll(List<Message> msgs) {
+    long[] written = new long[msgs.size()];
+    int count = 0;
+    try {
+      for (Message msg : msgs) {
+        written[count] = write(msg, msgs.size());
+        count++;
+      }
+    } finally {
+      if (count < written.length) {
+        free(written, count);
+      }
+    }
+    return written;
+  }
+
+  private void free(long[] written, int count) {
+    for (int i = 0; i < count; i++) {
+      arena.free(written[i]);
+    }
+  }
+
+  private int bodyLength(long record) {
+    return Math.max(arena.slab(record).getInt(OffHeapArena.offset(record) + LENGTH), 0);
+  }
+
+  // Frees the record if the capacity policy turns it away. Must be called with the lock held.
+  private void admit(long record) {
+    try {
+      awaitRoom(space, 1, bodyLength(record));
+    } catch (QueueFullException e) {
+      arena.free(record);
+      throw e;
+    }
+  }
+
+  // Must be called with the lock held.
+  private Message read(int slot) {
+    long record = records[slot];
+    ByteBuffer slab = arena.slab(record);
+    int at = OffHeapArena.offset(record);
+    int length = slab.getInt(at + LENGTH);
+    byte[] body = null;
+    if (length >= 0) {
+      body = new byte[length];
+      ByteBuffer view = slab.duplicate();
+      view.position(at + HEADER);
+      view.get(body);
+    }
+    Message msg = new Message(body, priorities[slot], slab.getLong(at));
+    msg.setAttempts(slab.getInt(at + ATTEMPTS));
+    msg.setSequence(sequences[slot]);
+    return msg;
+  }
+
+  // Must be called with the lock held.
+  private Message deliver(long now, long visibleUntil) {
+    int slot = pollReady(now);
+    if (slot == NONE) {
+      return null;
+    }
+    if (readyCount > 0) {
+      // Pass the wakeup on, in case one push or expiry made several messages ready.
+      available.signal();
+    }
+    long record = records[slot];
+    int attempts = arena.slab(record).getInt(OffHeapArena.offset(record) + ATTEMPTS) + 1;
+    arena.slab(record).putInt(OffHeapArena.offset(record) + ATTEMPTS, attempts);
+    long receipt = Receipts.receipt(epoch, ++deliveries);
+    slotReceipts[slot] = receipt;
+    receipts.put(receipt, slot);
+    visibleFrom[slot] = visibleUntil;
+    inFlight.add(slot);
+
+    Message msg = read(slot);
+    msg.setReceipt(receipt);
+    msg.setVisibleFrom(visibleUntil);
+    return msg;
+  }
+
+  // Must be called with the lock held.
+  private void updateDepth() {
+    int invisible = inFlight.size();
+    stats.updateDepth(readyCount + invisible + delayed.size(), invisible);
+  }
+
+  // The slot of a message still in flight under this receipt, or NONE. Must be called with the lock held.
+  private int inFlightSlot(long receipt, long now) {
+    int slot = receipts.get(receipt);
+    if (slot == LongIntHashMap.MISSING || visibleFrom[slot] <= now) {
+      return NONE;
+    }
+    return slot;
+  }
+
+  // Must be called with the lock held.
+  private boolean remove(long receipt, long now) {
+    int slot = inFlightSlot(receipt, now);
+    if (slot == NONE) {
+      return false;
+    }
+    receipts.remove(receipt);
+    inFlight.remove(slot);
+    releaseSlot(slot);
+    space.signalAll();
+    return true;
+  }
+
+  // Moves every in-flight message whose visibility timeout has expired, and every
+  // delayed message that is due, to the ready lanes.
+  private void requeueExpired(long now) {
+    while (inFlight.size() > 0 && visibleFrom[inFlight.peek()] <= now) {
+      requeue(inFlight.poll());
+    }
+    while (delayed.size() > 0 && visibleFrom[delayed.peek()] <= now) {
+      ready(delayed.poll());
+    }
+  }
+
+  private void requeue(int slot) {
+    receipts.remove(slotReceipts[slot]);
+    slotReceipts[slot] = Receipts.NONE;
+    long record = records[slot];
+    if (deadLetterQueue != null
+        && arena.slab(record).getInt(OffHeapArena.offset(record) + ATTEMPTS) >= maxReceiveCount) {
+      // Starts over in the dead-letter queue, which counts its own deliveries.
+      deadLetterQueue.adopt(record, priorities[slot]);
+      unindex(slot);
+      stats.recordDeadLetters(1);
+      space.signalAll();
+      return;
+    }
+    ready(slot);
+  }
+
+  private int index(long record, int priority) {
+    int slot = freeSlots;
+    if (slot != NONE) {
+      freeSlots = links[slot];
+    } else {
+      if (slotCount == records.length) {
+        growSlots();
+      }
+      slot = slotCount++;
+    }
+    records[slot] = record;
+    priorities[slot] = priority;
+    sequences[slot] = nextSequence++;
+    visibleFrom[slot] = 0;
+    added(1, bodyLength(record));
+    return slot;
+  }
+
+  // Frees the slot of a message that left the queue, and its record.
+  private void releaseSlot(int slot) {
+    long record = records[slot];
+    unindex(slot);
+    arena.free(record);
+  }
+
+  // Frees the slot of a message that left the queue, whose record has been handed on.
+  private void unindex(int slot) {
+    removed(1, bodyLength(records[slot]));
+    records[slot] = OffHeapArena.NULL;
+    links[slot] = freeSlots;
+    freeSlots = slot;
+  }
+
+  private void growSlots() {
+    int capacity = records.length * 2;
+    records = Arrays.copyOf(records, capacity);
+    priorities = Arrays.copyOf(priorities, capacity);
+    sequences = Arrays.copyOf(sequences, capacity);
+    visibleFrom = Arrays.copyOf(visibleFrom, capacity);
+    slotReceipts = Arrays.copyOf(slotReceipts, capacity);
+    links = Arrays.copyOf(links, capacity);
+    heapIndexes = Arrays.copyOf(heapIndexes, capacity);
+  }
+
+  private void ready(int slot) {
+    Lane lane = lanes.get(priorities[slot]);
+    if (lane == null) {
+      lane = new Lane(priorities[slot]);
+      lanes.put(priorities[slot], lane);
+    }
+    if (lane.size() == 0) {
+      lane.setCredit(0);
+      int at = 0;
+      while (at < active.size() && active.get(at).getPriority() > lane.getPriority()) {
+        at++;
+      }
+      active.add(at, lane);
+    }
+    lane.add(slot);
+    readyCount++;
+  }
+
+  private int pollReady(long now) {
+    if (readyCount == 0) {
+      return NONE;
+    }
+    return pollLane(active.size() == 1 ? 0 : scheduler.select(active, now));
+  }
+
+  private int pollLane(int index) {
+    Lane lane = active.get(index);
+    int slot = lane.poll();
+    readyCount--;
+    if (lane.size() == 0) {
+      active.remove(index);
+    }
+    return slot;
+  }
+
+  /**
+   * The ready slots of one priority, as in {@link ReadyLanes}: a list linked
+   * through the slots in arrival order, plus a heap by sequence for the few that
+   * come back out of order.
+   */
+  private final class Lane implements PriorityBand {
+    private final int bandPriority;
+    private int head = NONE;
+    private int tail = NONE;
+    private int inOrder;
+    private SlotHeap outOfOrder;
+    private long credit;
+
+    Lane(int bandPriority) {
+      this.bandPriority = bandPriority;
+    }
+
+    void add(int slot) {
+      if (tail == NONE || sequences[slot] > sequences[tail]) {
+        links[slot] = NONE;
+        if (tail == NONE) {
+          head = slot;
+        } else {
+          links[tail] = slot;
+        }
+        tail = slot;
+        inOrder++;
+      } else {
+        if (outOfOrder == null) {
+          outOfOrder = new SlotHeap(false);
+        }
+        outOfOrder.add(slot);
+      }
+    }
+
+    int poll() {
+      if (fromOutOfOrder()) {
+        return outOfOrder.poll();
+      }
+      int slot = head;
+      head = links[slot];
+      if (head == NONE) {
+        tail = NONE;
+      }
+      inOrder--;
+      return slot;
+    }
+
+    private int oldest() {
+      return fromOutOfOrder() ? outOfOrder.peek() : head;
+    }
+
+    private boolean fromOutOfOrder() {
+      if (outOfOrder == null || outOfOrder.size() == 0) {
+        return false;
+      }
+      return head == NONE || sequences[outOfOrder.peek()] < sequences[head];
+    }
+
+    @Override
+    public int getPriority() {
+      return bandPriority;
+    }
+
+    @Override
+    public int size() {
+      return inOrder + (outOfOrder == null ? 0 : outOfOrder.size());
+    }
+
+    @Override
+    public long getOldestSequence() {
+      return sequences[oldest()];
+    }
+
+    @Override
+    public long getOldestTimestamp() {
+      long record = records[oldest()];
+      return arena.slab(record).getLong(OffHeapArena.offset(record));
+    }
+
+    @Override
+    public long getCredit() {
+      return credit;
+    }
+
+    @Override
+    public void setCredit(long credit) {
+      this.credit = credit;
+    }
+  }
+
+  /**
+   * A binary min-heap of slots, by visibility time or by sequence. Heaps by
+   * visibility time record each slot's position, so a slot can be removed.
+   */
+  private final class SlotHeap {
+    private final boolean byDeadline;
+    private int[] slots = new int[16];
+    private int size;
+
+    SlotHeap(boolean byDeadline) {
+      this.byDeadline = byDeadline;
+    }
+
+    int size() {
+      return size;
+    }
+
+    int peek() {
+      return slots[0];
+    }
+
+    long nextDeadline() {
+      return size == 0 ? Long.MAX_VALUE : visibleFrom[slots[0]];
+    }
+
+    void add(int slot) {
+      if (size == slots.length) {
+        slots = Arrays.copyOf(slots, size * 2);
+      }
+      place(slot, size++);
+      siftUp(size - 1);
+    }
+
+    int poll() {
+      int slot = slots[0];
+      removeAt(0);
+      return slot;
+    }
+
+    void remove(int slot) {
+      removeAt(heapIndexes[slot]);
+    }
+
+    private void removeAt(int index) {
+      int last = slots[--size];
+      if (index < size) {
+        place(last, index);
+        siftDown(index);
+        if (slots[index] == last) {
+          siftUp(index);
+        }
+      }
+    }
+
+    private void siftUp(int index) {
+      int slot = slots[index];
+      while (index > 0) {
+        int parent = (index - 1) >>> 1;
+        if (key(slots[parent]) <= key(slot)) {
+          break;
+        }
+        place(slots[parent], index);
+        index = parent;
+      }
+      place(slot, index);
+    }
+
+    private void siftDown(int index) {
+      int slot = slots[index];
+      while (true) {
+        int child = 2 * index + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && key(slots[child + 1]) < key(slots[child])) {
+          child++;
+        }
+        if (key(slot) <= key(slots[child])) {
+          break;
+        }
+        place(slots[child], index);
+        index = child;
+      }
+      place(slot, index);
+    }
+
+    private void place(int slot, int index) {
+      slots[index] = slot;
+      if (byDeadline) {
+        heapIndexes[slot] = index;
+      }
+    }
+
+    private long key(int slot) {
+      return byDeadline ? visibleFrom[slot] : sequences[slot];
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package com.example;
+
+/**
+ * What a bounded queue does with a push that would take it past its
+ * {@link CapacityPolicy}.
+ */
+public enum OverflowPolicy {
+    /**
+     * The push waits, up to the policy's block timeout, for consumers to delete
+     * enough messages, and then fails with a {@link QueueFullException}.
+     */
+    BLOCK,
+
+    /**
+     * The push fails at once with a {@link QueueFullException}.
+     */
+    REJECT,
+
+    /**
+     * The push succeeds, and ready messages of the lowest priority present,
+     * oldest first, are dropped until the queue is within its limits again. This
+     * may be the pushed message itself, if nothing ranks lower.
+     */
+    DROP_LOWEST_PRIORITY,
+
+    /**
+     * The push succeeds, and the oldest ready messages, whatever their priority,
+     * are dropped until the queue is within its limits again.
+     */
+    DROP_OLDEST
+}
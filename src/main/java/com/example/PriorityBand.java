@@ -0,0 +1,33 @@
+package com.example;
+
+/**
+ * The ready messages of one priority in a queue, as seen by a {@link DeliveryScheduler}.
+ */
+public interface PriorityBand {
+    public int getPriority();
+
+    /**
+     * The number of ready messages in the band; never 0 when passed to a scheduler.
+     */
+    public int size();
+
+    /**
+     * The arrival order of the band's oldest ready message, comparable across the
+     * bands of one queue.
+     */
+    public long getOldestSequence();
+
+    /**
+     * When the band's oldest ready message was pushed, in milliseconds.
+     */
+    public long getOldestTimestamp();
+
+    /**
+     * Scratch space for schedulers that keep state per band, such as
+     * {@link DeliveryScheduler#weightedRoundRobin}. Reset to 0 whenever the band
+     * becomes non-empty.
+     */
+    public long getCredit();
+
+    public void setCredit(long credit);
+}
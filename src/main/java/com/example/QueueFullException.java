@@ -0,0 +1,14 @@
+package com.example;
+
+/**
+ * Thrown by a push to a queue that has no room for the message: the queue is at
+ * the limits of its {@link CapacityPolicy}, or a backend has run out of the
+ * storage it may use. Nothing of the push is stored.
+ */
+public class QueueFullException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    public QueueFullException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,124 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Mutual exclusion for one file-based queue, across threads and processes.
+ *
+ * <p>Threads of the same JVM first serialize on a {@link ReentrantLock}; only the
+ * thread that gets in takes the OS-level {@link FileLock} on the queue's lock
+ * file. When it leaves while other threads of this JVM are waiting, the OS lock
+ * is handed over with the local lock instead of being released and re-acquired,
+ * so contended operations inside one JVM cost a lock handoff rather than a
+ * system call. After {@value #MAX_HANDOFFS} consecutive handoffs the OS lock is
+ * released anyway, so other processes are not starved.
+ *
+ * <p>The OS releases a {@link FileLock} when its process dies, so a crashed
+ * holder can no longer wedge the queue. A {@code .lock} directory left behind
+ * by the old mkdir-based lock is treated as stale and removed.
+ *
+ * <p>{@link FileLock}s are held per JVM, so there is exactly one instance per
+ * lock file, shared by every service instance in the JVM.
+ */
+final class QueueLock {
+  static final int MAX_HANDOFFS = 64;
+
+  private static final Map<Path, QueueLock> LOCKS = new ConcurrentHashMap<>();
+
+  private final Path path;
+  private final ReentrantLock local = new ReentrantLock();
+  private FileChannel channel;
+  private FileLock fileLock;
+  private int handoffs;
+
+  private QueueLock(Path path) {
+    this.path = path;
+  }
+
+  static QueueLock forFile(Path lockFile) {
+    return LOCKS.computeIfAbsent(lockFile.toAbsolutePath().normalize(), QueueLock::new);
+  }
+
+  void lock() throws IOException, InterruptedException {
+    local.lockInterruptibly();
+    if (fileLock != null) {
+      // Re-entered, or handed over by the previous local owner.
+      return;
+    }
+    try {
+      acquireFileLock();
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      local.unlock();
+      throw e;
+    }
+  }
+
+  /**
+   * Releases the lock. Does nothing if the current thread does not hold it, so
+   * callers can unlock in a finally block even when {@link #lock()} failed.
+   */
+  void unlock() {
+    if (!local.isHeldByCurrentThread()) {
+      return;
+    }
+    try {
+      if (local.getHoldCount() == 1 && fileLock != null) {
+        if (local.hasQueuedThreads() && handoffs < MAX_HANDOFFS) {
+          handoffs++;
+        } else {
+          handoffs = 0;
+          releaseFileLock();
+        }
+      }
+    } finally {
+      local.unlock();
+    }
+  }
+
+  private void acquireFileLock() throws IOException, InterruptedException {
+    if (Files.isDirectory(path)) {
+      // Stale lock directory from the mkdir-based lock; nothing holds it any more.
+      Files.deleteIfExists(path);
+    }
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    try {
+      fileLock = channel.lock();
+    } catch (FileLockInterruptionException e) {
+      closeChannel();
+      throw new InterruptedException("Interrupted while waiting for " + path);
+    } catch (IOException | RuntimeException e) {
+      closeChannel();
+      throw e;
+    }
+  }
+
+  private void releaseFileLock() {
+    try {
+      fileLock.release();
+    } catch (IOException e) {
+      System.err.println("Failed to release lock file: " + path + ": " + e);
+    } finally {
+      fileLock = null;
+      closeChannel();
+    }
+  }
+
+  private void closeChannel() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      System.err.println("Failed to close lock file: " + path + ": " + e);
+    } finally {
+      channel = null;
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package com.example;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The metrics of every queue one queue service has touched, keyed by the
+ * service's own queue name or URL. Each backend owns an instance, available
+ * from its {@code getMetrics()}.
+ *
+ * <p>Metrics can be exported over JMX with {@link JmxMetricsExporter} or
+ * published periodically by {@link MetricsReporter}s.
+ */
+public class QueueMetrics {
+    private static final ScheduledExecutorService REPORTING = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "queue-metrics-reporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String serviceName;
+    private final Map<String, QueueStats> queues = new ConcurrentHashMap<>();
+    private final List<Consumer<QueueStats>> listeners = new CopyOnWriteArrayList<>();
+
+    public QueueMetrics(String serviceName) {
+        this.serviceName = serviceName;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    /**
+     * The metrics of a queue, created on first use.
+     */
+    public QueueStats queue(String queueName) {
+        QueueStats stats = queues.get(queueName);
+        if (stats != null) {
+            return stats;
+        }
+        stats = new QueueStats(queueName);
+        QueueStats existing = queues.putIfAbsent(queueName, stats);
+        if (existing != null) {
+            return existing;
+        }
+        for (Consumer<QueueStats> listener : listeners) {
+            listener.accept(stats);
+        }
+        return stats;
+    }
+
+    public Collection<QueueStats> queues() {
+        return queues.values();
+    }
+
+    /**
+     * Calls {@code listener} for every queue that already has metrics and for
+     * every queue that gets them later.
+     */
+    public void onQueue(Consumer<QueueStats> listener) {
+        listeners.add(listener);
+        for (QueueStats stats : queues.values()) {
+            listener.accept(stats);
+        }
+    }
+
+    /**
+     * Calls {@code reporter} every {@code period} until the returned handle is closed.
+     */
+    public AutoCloseable startReporting(MetricsReporter reporter, Duration period) {
+        long millis = Math.max(1, period.toMillis());
+        ScheduledFuture<?> task = REPORTING.scheduleAtFixedRate(() -> {
+            try {
+                reporter.report(this);
+            } catch (RuntimeException e) {
+                // Keep the schedule alive; the next report may succeed.
+                System.err.println("Metrics reporter " + reporter.getClass().getName() + " failed: " + e);
+            }
+        }, millis, millis, TimeUnit.MILLISECONDS);
+        return () -> task.cancel(false);
+    }
+
+    /**
+     * Starts every {@link MetricsReporter} registered with {@link ServiceLoader}.
+     *
+     * @return a handle per reporter started
+     */
+    public List<AutoCloseable> startReporting(Duration period) {
+        List<AutoCloseable> handles = new ArrayList<>();
+        for (MetricsReporter reporter : ServiceLoader.load(MetricsReporter.class)) {
+            handles.add(startReporting(reporter, period));
+        }
+        return handles;
+    }
+}
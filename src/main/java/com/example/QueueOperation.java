@@ -0,0 +1,17 @@
+package com.example;
+
+/**
+ * The operations {@link QueueStats} keeps counts, errors and latencies for.
+ */
+public enum QueueOperation {
+    /** push and pushBatch. */
+    PUSH,
+    /** pull, including batch pulls and pulls that wait for a message. */
+    PULL,
+    /** delete and deleteBatch. */
+    DELETE,
+    /** changeVisibility, e.g. heartbeats of long-running consumers. */
+    CHANGE_VISIBILITY,
+    /** Background work such as compaction, and purges. */
+    MAINTENANCE
+}
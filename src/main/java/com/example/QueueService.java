@@ -1,5 +1,12 @@
 package com.example;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
 public interface QueueService {
     /**
      * Push a message onto a queue with a specified priority.
@@ -10,6 +17,82 @@ public interface QueueService {
      */
     public void push(String queueUrl, String messageBody, int priority);
 
+    /**
+     * Push a message with a binary body. Backends that store bytes keep the body
+     * as is; the default implementation pushes it as a UTF-8 string, so it must
+     * then be valid UTF-8.
+     *
+     * @param queueUrl    the URL of the queue
+     * @param messageBody the body of the message, not to be changed afterwards
+     * @param priority    the priority of the message
+     */
+    public default void push(String queueUrl, byte[] messageBody, int priority) {
+        push(queueUrl, new String(messageBody, StandardCharsets.UTF_8), priority);
+    }
+
+    /**
+     * Push a message whose body is the remaining bytes of {@code messageBody},
+     * leaving the buffer's position unchanged.
+     *
+     * @param queueUrl    the URL of the queue
+     * @param messageBody the body of the message
+     * @param priority    the priority of the message
+     */
+    public default void push(String queueUrl, ByteBuffer messageBody, int priority) {
+        byte[] bytes = new byte[messageBody.remaining()];
+        messageBody.duplicate().get(bytes);
+        push(queueUrl, bytes, priority);
+    }
+
+    /**
+     * Push a message that stays invisible until {@code delay} has passed, e.g. to
+     * retry with a backoff or to schedule a job without holding a thread. Backends
+     * keep delayed messages in a timer index, so they cost nothing until due.
+     *
+     * @param queueUrl    the URL of the queue
+     * @param messageBody the body of the message
+     * @param priority    the priority of the message
+     * @param delay       how long the message stays invisible; zero or negative means none
+     * @throws UnsupportedOperationException if the backend cannot delay messages
+     */
+    public default void push(String queueUrl, String messageBody, int priority, Duration delay) {
+        if (delay.isZero() || delay.isNegative()) {
+            push(queueUrl, messageBody, priority);
+            return;
+        }
+        throw new UnsupportedOperationException("Delayed messages are not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Push a message that stays invisible until {@code deliverAt}. A time in the
+     * past makes it visible at once.
+     *
+     * @param queueUrl    the URL of the queue
+     * @param messageBody the body of the message
+     * @param priority    the priority of the message
+     * @param deliverAt   when the message becomes visible
+     */
+    public default void pushAt(String queueUrl, String messageBody, int priority, Instant deliverAt) {
+        push(queueUrl, messageBody, priority, Duration.between(Instant.now(), deliverAt));
+    }
+
+    /**
+     * Push a message unless a message with the same deduplication id was pushed to
+     * the queue within the backend's deduplication window, so that a producer can
+     * retry a push whose outcome it does not know without creating a duplicate.
+     * A duplicate is dropped at admission and never delivered.
+     *
+     * @param queueUrl        the URL of the queue
+     * @param messageBody     the body of the message
+     * @param priority        the priority of the message
+     * @param deduplicationId the id shared by every attempt to push this message
+     * @return true if the message was pushed, false if it was dropped as a duplicate
+     * @throws UnsupportedOperationException if the backend cannot deduplicate
+     */
+    public default boolean pushDeduplicated(String queueUrl, String messageBody, int priority, String deduplicationId) {
+        throw new UnsupportedOperationException("Deduplication is not supported by " + getClass().getSimpleName());
+    }
+
     /**
      * Retrieves a single message from a queue.
      *
@@ -18,6 +101,56 @@ public interface QueueService {
      */
     public Message pull(String queueUrl);
 
+    /**
+     * Retrieves a single message from a queue, waiting up to {@code wait} for one
+     * to become available. The default implementation polls with a growing backoff;
+     * backends override it to block until a message is pushed or becomes visible again.
+     *
+     * @param queueUrl the URL of the queue
+     * @param wait     the maximum time to wait
+     * @return the retrieved message, or null if none became available in time
+     *         or the calling thread was interrupted
+     */
+    public default Message pull(String queueUrl, Duration wait) {
+        return Backoff.poll(wait, () -> pull(queueUrl));
+    }
+
+    /**
+     * Retrieves a single message like {@link #pull(String, Duration)}, keeping it
+     * invisible for {@code visibilityTimeout} instead of the queue's default. The
+     * default implementation pulls and then calls {@link #changeVisibility}.
+     *
+     * @param queueUrl          the URL of the queue
+     * @param wait              the maximum time to wait; zero does not wait
+     * @param visibilityTimeout how long the retrieved message stays invisible
+     * @return the retrieved message, or null if none became available in time
+     */
+    public default Message pull(String queueUrl, Duration wait, Duration visibilityTimeout) {
+        Message msg = pull(queueUrl, wait);
+        if (msg != null) {
+            changeVisibility(queueUrl, msg.getReceiptId(), visibilityTimeout);
+        }
+        return msg;
+    }
+
+    /**
+     * Makes a received message visible again {@code visibilityTimeout} from now
+     * instead of at the end of its current timeout. Long-running consumers call it
+     * periodically as a heartbeat, so the queue's default timeout can stay short
+     * and a crashed consumer's message is redelivered quickly. A zero timeout
+     * gives the message up for redelivery at once.
+     *
+     * @param queueUrl          the URL of the queue
+     * @param receiptId         the receipt ID of the message
+     * @param visibilityTimeout the new timeout, counted from now
+     * @return true if the message was still in flight with this receipt; false if
+     *         it was deleted or its visibility timeout had already expired
+     * @throws UnsupportedOperationException if the backend cannot change visibility
+     */
+    public default boolean changeVisibility(String queueUrl, String receiptId, Duration visibilityTimeout) {
+        throw new UnsupportedOperationException("Changing visibility is not supported by " + getClass().getSimpleName());
+    }
+
     /**
      * Deletes a message from the queue that was received by pull().
      *
@@ -25,4 +158,162 @@ public interface QueueService {
      * @param receiptId the receipt ID of the message
      */
     public void delete(String queueUrl, String receiptId);
-}
\ No newline at end of file
+
+    /**
+     * Deletes a message that was received by pull(). Backends that keep receipts
+     * in another form than the receipt id can delete without converting it.
+     *
+     * @param queueUrl the URL of the queue
+     * @param message  the received message
+     */
+    public default void delete(String queueUrl, Message message) {
+        delete(queueUrl, message.getReceiptId());
+    }
+
+    /**
+     * Pushes several messages onto a queue with the same priority. Backends
+     * override this to send the whole batch in as few operations as they can.
+     *
+     * @param queueUrl      the URL of the queue
+     * @param messageBodies the bodies of the messages, in push order
+     * @param priority      the priority of the messages
+     */
+    public default void pushBatch(String queueUrl, List<String> messageBodies, int priority) {
+        for (String messageBody : messageBodies) {
+            push(queueUrl, messageBody, priority);
+        }
+    }
+
+    /**
+     * Retrieves up to {@code maxMessages} messages from a queue.
+     *
+     * @param queueUrl    the URL of the queue
+     * @param maxMessages the maximum number of messages to retrieve
+     * @return the retrieved messages, empty if none is available
+     */
+    public default List<Message> pull(String queueUrl, int maxMessages) {
+        List<Message> messages = new ArrayList<>();
+        Message msg;
+        while (messages.size() < maxMessages && (msg = pull(queueUrl)) != null) {
+            messages.add(msg);
+        }
+        return messages;
+    }
+
+    /**
+     * Retrieves up to {@code maxMessages} messages, keeping them invisible for
+     * {@code visibilityTimeout} instead of the queue's default. The default
+     * implementation pulls and then calls {@link #changeVisibility} for each.
+     *
+     * @param queueUrl          the URL of the queue
+     * @param maxMessages       the maximum number of messages to retrieve
+     * @param visibilityTimeout how long the retrieved messages stay invisible
+     * @return the retrieved messages, empty if none is available
+     */
+    public default List<Message> pull(String queueUrl, int maxMessages, Duration visibilityTimeout) {
+        List<Message> messages = pull(queueUrl, maxMessages);
+        for (Message message : messages) {
+            changeVisibility(queueUrl, message.getReceiptId(), visibilityTimeout);
+        }
+        return messages;
+    }
+
+    /**
+     * Deletes several messages that were received by pull().
+     *
+     * @param queueUrl   the URL of the queue
+     * @param receiptIds the receipt IDs of the messages
+     */
+    public default void deleteBatch(String queueUrl, List<String> receiptIds) {
+        for (String receiptId : receiptIds) {
+            delete(queueUrl, receiptId);
+        }
+    }
+
+    /**
+     * Sets the redrive policy of a queue, replacing any previous one: a message
+     * received {@code maxReceiveCount} times without being deleted is moved to the
+     * dead-letter queue instead of being delivered again.
+     *
+     * @param queueUrl the URL of the queue
+     * @param policy   the redrive policy, or null to remove it
+     * @throws UnsupportedOperationException if the backend has no dead-letter support
+     */
+    public default void setRedrivePolicy(String queueUrl, RedrivePolicy policy) {
+        throw new UnsupportedOperationException("Redrive policies are not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * The redrive policy of a queue.
+     *
+     * @param queueUrl the URL of the queue
+     * @return the redrive policy, or null if the queue has none
+     */
+    public default RedrivePolicy getRedrivePolicy(String queueUrl) {
+        return null;
+    }
+
+    /**
+     * Moves up to {@code maxMessages} messages from a dead-letter queue back to a
+     * queue, e.g. once the bug that made them fail is fixed. The default
+     * implementation pulls a batch, pushes it and then deletes it, so a failure in
+     * between leaves the messages in both queues rather than in neither.
+     *
+     * @param deadLetterQueueUrl the URL of the dead-letter queue
+     * @param queueUrl           the URL of the queue to move the messages to
+     * @param maxMessages        the maximum number of messages to move
+     * @return the number of messages moved
+     */
+    public default int redrive(String deadLetterQueueUrl, String queueUrl, int maxMessages) {
+        List<Message> messages = pull(deadLetterQueueUrl, maxMessages);
+        if (messages.isEmpty()) {
+            return 0;
+        }
+        List<String> messageBodies = new ArrayList<>(messages.size());
+        List<String> receiptIds = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            messageBodies.add(message.getBody());
+            receiptIds.add(message.getReceiptId());
+        }
+        pushBatch(queueUrl, messageBodies, 0);
+        deleteBatch(deadLetterQueueUrl, receiptIds);
+        return messages.size();
+    }
+
+    /**
+     * Bounds a queue, replacing any previous policy: pushes past its message or
+     * byte limit block, fail with a {@link QueueFullException} or drop messages,
+     * as the policy's {@link OverflowPolicy} says.
+     *
+     * @param queueUrl the URL of the queue
+     * @param policy   the capacity policy, or null to remove it
+     * @throws UnsupportedOperationException if the backend cannot bound its queues
+     */
+    public default void setCapacityPolicy(String queueUrl, CapacityPolicy policy) {
+        throw new UnsupportedOperationException("Capacity policies are not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * The capacity policy of a queue.
+     *
+     * @param queueUrl the URL of the queue
+     * @return the capacity policy, or null if the queue is unbounded
+     */
+    public default CapacityPolicy getCapacityPolicy(String queueUrl) {
+        return null;
+    }
+
+    /**
+     * How close a queue is to its capacity policy's limits, for producers to slow
+     * down before pushes start to block, fail or drop messages: from 0, empty or
+     * unbounded, to 1, full. Cheap enough to call before every push: it reads
+     * counters the queue keeps up to date, without taking the queue's lock.
+     *
+     * @param queueUrl the URL of the queue
+     * @return the larger of the message count and body bytes as a fraction of
+     *     their limits; 0 for an unbounded queue
+     */
+    public default double getBackPressure(String queueUrl) {
+        return 0;
+    }
+}
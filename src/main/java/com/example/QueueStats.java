@@ -0,0 +1,228 @@
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of one queue: operation and error counters and latency histograms
+ * for every {@link QueueOperation}, the time spent waiting for the queue lock,
+ * delivery outcomes, overflows, and depth gauges.
+ *
+ * <p>The recording methods are called on every queue operation. They only touch
+ * counters and histograms allocated up front, so they never allocate.
+ */
+public class QueueStats implements QueueStatsMXBean {
+    private static final QueueOperation[] OPERATIONS = QueueOperation.values();
+
+    private final String queueName;
+    private final LongAdder[] operations = new LongAdder[OPERATIONS.length];
+    private final LongAdder[] errors = new LongAdder[OPERATIONS.length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+    private final LatencyHistogram lockWait = new LatencyHistogram();
+    private final LongAdder emptyPulls = new LongAdder();
+    private final LongAdder redeliveries = new LongAdder();
+    private final LongAdder deadLetters = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private volatile long depth = -1;
+    private volatile long inFlight = -1;
+
+    QueueStats(String queueName) {
+        this.queueName = queueName;
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            operations[i] = new LongAdder();
+            errors[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records an operation that started at {@code startNanos} ({@link System#nanoTime()})
+     * and handled {@code messages} messages.
+     */
+    void recordOperation(QueueOperation operation, long startNanos, int messages) {
+        latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+        operations[operation.ordinal()].add(messages);
+    }
+
+    void recordError(QueueOperation operation) {
+        errors[operation.ordinal()].increment();
+    }
+
+    void recordLockWait(long nanos) {
+        lockWait.record(nanos);
+    }
+
+    /**
+     * Records the outcome of a pull: no message, a first delivery or a redelivery.
+     */
+    void recordDelivery(Message msg) {
+        if (msg == null) {
+            emptyPulls.increment();
+        } else if (msg.getAttempts() > 1) {
+            redeliveries.increment();
+        }
+    }
+
+    /**
+     * Records messages moved to the dead-letter queue by the queue's redrive policy.
+     */
+    void recordDeadLetters(int messages) {
+        deadLetters.add(messages);
+    }
+
+    /**
+     * Records messages dropped to keep the queue within its {@link CapacityPolicy}.
+     */
+    void recordDropped(int messages) {
+        dropped.add(messages);
+    }
+
+    /**
+     * Records messages not pushed because the queue was full.
+     */
+    void recordRejected(int messages) {
+        rejected.add(messages);
+    }
+
+    /**
+     * Records pushes dropped because their deduplication id was seen within the window.
+     */
+    void recordDuplicates(int messages) {
+        duplicates.add(messages);
+    }
+
+    /**
+     * Sets the gauges to the number of messages in the queue, in flight or not,
+     * and the number of those that are in flight.
+     */
+    void updateDepth(long depth, long inFlight) {
+        this.depth = depth;
+        this.inFlight = inFlight;
+    }
+
+    public long getOperationCount(QueueOperation operation) {
+        return operations[operation.ordinal()].sum();
+    }
+
+    public long getErrorCount(QueueOperation operation) {
+        return errors[operation.ordinal()].sum();
+    }
+
+    public LatencyHistogram getLatency(QueueOperation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    public LatencyHistogram getLockWait() {
+        return lockWait;
+    }
+
+    @Override
+    public String getQueueName() {
+        return queueName;
+    }
+
+    @Override
+    public long getDepth() {
+        return depth;
+    }
+
+    @Override
+    public long getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public long getPushCount() {
+        return getOperationCount(QueueOperation.PUSH);
+    }
+
+    @Override
+    public long getPullCount() {
+        return getOperationCount(QueueOperation.PULL);
+    }
+
+    @Override
+    public long getDeleteCount() {
+        return getOperationCount(QueueOperation.DELETE);
+    }
+
+    @Override
+    public long getErrorCount() {
+        long total = 0;
+        for (LongAdder error : errors) {
+            total += error.sum();
+        }
+        return total;
+    }
+
+    @Override
+    public long getEmptyPullCount() {
+        return emptyPulls.sum();
+    }
+
+    @Override
+    public long getRedeliveryCount() {
+        return redeliveries.sum();
+    }
+
+    @Override
+    public long getDeadLetterCount() {
+        return deadLetters.sum();
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    @Override
+    public long getPushLatencyP99Micros() {
+        return micros(getLatency(QueueOperation.PUSH).getPercentile(99));
+    }
+
+    @Override
+    public long getPullLatencyP50Micros() {
+        return micros(getLatency(QueueOperation.PULL).getPercentile(50));
+    }
+
+    @Override
+    public long getPullLatencyP99Micros() {
+        return micros(getLatency(QueueOperation.PULL).getPercentile(99));
+    }
+
+    @Override
+    public long getPullLatencyMaxMicros() {
+        return micros(getLatency(QueueOperation.PULL).getMax());
+    }
+
+    @Override
+    public long getDeleteLatencyP99Micros() {
+        return micros(getLatency(QueueOperation.DELETE).getPercentile(99));
+    }
+
+    @Override
+    public long getLockWaitP99Micros() {
+        return micros(lockWait.getPercentile(99));
+    }
+
+    @Override
+    public long getLockWaitMaxMicros() {
+        return micros(lockWait.getMax());
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,47 @@
+package com.example;
+
+/**
+ * The JMX view of a {@link QueueStats}. Latencies are in microseconds; gauges
+ * are -1 when the backend cannot observe them.
+ */
+public interface QueueStatsMXBean {
+    String getQueueName();
+
+    long getDepth();
+
+    long getInFlight();
+
+    long getPushCount();
+
+    long getPullCount();
+
+    long getDeleteCount();
+
+    long getErrorCount();
+
+    long getEmptyPullCount();
+
+    long getRedeliveryCount();
+
+    long getDeadLetterCount();
+
+    long getDroppedCount();
+
+    long getRejectedCount();
+
+    long getDuplicateCount();
+
+    long getPushLatencyP99Micros();
+
+    long getPullLatencyP50Micros();
+
+    long getPullLatencyP99Micros();
+
+    long getPullLatencyMaxMicros();
+
+    long getDeleteLatencyP99Micros();
+
+    long getLockWaitP99Micros();
+
+    long getLockWaitMaxMicros();
+}
@@ -0,0 +1,152 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Wakes consumers blocked on a file-based queue when the queue's files change.
+ *
+ * <p>Each watched queue directory has a change counter. A consumer reads the
+ * counter, looks for a message and, if there is none, waits until the counter
+ * moves. Pushes from this JVM bump the counter directly through {@link #signal(Path)};
+ * pushes from other processes are picked up by a {@link WatchService} (inotify
+ * on Linux) whose events are handled on a single daemon thread. Where the
+ * platform offers no watch service, waits are capped at {@value #FALLBACK_POLL_MILLIS} ms
+ * so that consumers still notice changes from other processes.
+ *
+ * <p>There is one instance per JVM, shared by every {@link FileQueueService}.
+ */
+final class QueueWatcher {
+  static final long FALLBACK_POLL_MILLIS = 50;
+
+  private static final QueueWatcher INSTANCE = new QueueWatcher();
+
+  private final Map<Path, Directory> directories = new ConcurrentHashMap<>();
+  private final WatchService watchService;
+
+  private QueueWatcher() {
+    WatchService service;
+    try {
+      service = FileSystems.getDefault().newWatchService();
+    } catch (IOException | UnsupportedOperationException e) {
+      System.err.println("File queue changes will be polled, no watch service: " + e);
+      service = null;
+    }
+    this.watchService = service;
+    if (service != null) {
+      Thread thread = new Thread(this::dispatch, "file-queue-watcher");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  static QueueWatcher get() {
+    return INSTANCE;
+  }
+
+  /**
+   * The change counter of a queue directory, to be passed to {@link #await}.
+   * Starts watching the directory on first use.
+   */
+  long version(Path queueDir) {
+    return directory(queueDir).version();
+  }
+
+  /**
+   * Waits until the queue directory changes after {@code version} was read, or
+   * until {@code nanos} have passed.
+   */
+  void await(Path queueDir, long version, long nanos) throws InterruptedException {
+    if (watchService == null) {
+      nanos = Math.min(nanos, TimeUnit.MILLISECONDS.toNanos(FALLBACK_POLL_MILLIS));
+    }
+    directory(queueDir).await(version, nanos);
+  }
+
+  /**
+   * Records a change made to the queue by this JVM and wakes its waiting consumers.
+   */
+  void signal(Path queueDir) {
+    Directory directory = directories.get(queueDir.toAbsolutePath().normalize());
+    if (directory != null) {
+      directory.signal();
+    }
+  }
+
+  private Directory directory(Path queueDir) {
+    Path path = queueDir.toAbsolutePath().normalize();
+    Directory directory = directories.get(path);
+    return directory != null ? directory : directories.computeIfAbsent(path, this::watch);
+  }
+
+  private Directory watch(Path path) {
+    if (watchService != null) {
+      try {
+        path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+      } catch (IOException e) {
+        System.err.println("Failed to watch queue directory: " + path + ": " + e);
+      }
+    }
+    return new Directory();
+  }
+
+  private void dispatch() {
+    try {
+      while (true) {
+        WatchKey key = watchService.take();
+        key.pollEvents();
+        Directory directory = directories.get((Path) key.watchable());
+        if (directory != null) {
+          directory.signal();
+        }
+        if (!key.reset()) {
+          // The directory was deleted; watch it again if the queue is used again.
+          directories.remove((Path) key.watchable());
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // The JVM is shutting down.
+    }
+  }
+
+  private static final class Directory {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private volatile long version;
+
+    long version() {
+      return version;
+    }
+
+    void signal() {
+      lock.lock();
+      try {
+        version++;
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void await(long seen, long nanos) throws InterruptedException {
+      lock.lockInterruptibly();
+      try {
+        while (version == seen && nanos > 0) {
+          nanos = changed.awaitNanos(nanos);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
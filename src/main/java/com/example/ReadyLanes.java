@@ -0,0 +1,225 @@
+package com.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * The ready messages of one local queue, in one FIFO lane per priority, with a
+ * {@link DeliveryScheduler} choosing the lane each delivery comes from.
+ *
+ * <p>Messages normally become ready in arrival order and are appended to the
+ * tail of their lane in O(1). The few that come back out of order (redelivered
+ * after a visibility timeout, or released by a delay) go to a small per-lane heap
+ * that is merged with the lane by arrival order, so each lane stays FIFO.
+ * Choosing a lane costs O(number of non-empty lanes), whatever the backlog.
+ *
+ * <p>Not thread-safe; callers guard it with the lock of the queue it belongs to.
+ *
+ * @param <T> the type of the queued values
+ */
+final class ReadyLanes<T> {
+
+  private final DeliveryScheduler scheduler;
+  private final ToIntFunction<T> priority;
+  private final ToLongFunction<T> sequence;
+  private final ToLongFunction<T> timestamp;
+  private final Comparator<T> arrivalOrder;
+  private final Map<Integer, Lane> lanes = new HashMap<>();
+  // The non-empty lanes, highest priority first.
+  private final List<Lane> active = new ArrayList<>();
+  private int size;
+
+  /**
+   * @param priority  the priority band of a value
+   * @param sequence  the arrival order of a value within the queue
+   * @param timestamp when a value was pushed, in milliseconds
+   */
+  ReadyLanes(DeliveryScheduler scheduler, ToIntFunction<T> priority, ToLongFunction<T> sequence,
+      ToLongFunction<T> timestamp) {
+    this.scheduler = scheduler;
+    this.priority = priority;
+    this.sequence = sequence;
+    this.timestamp = timestamp;
+    this.arrivalOrder = Comparator.comparingLong(sequence);
+  }
+
+  void add(T value) {
+    int bandPriority = priority.applyAsInt(value);
+    Lane lane = lanes.get(bandPriority);
+    if (lane == null) {
+      lane = new Lane(bandPriority);
+      lanes.put(bandPriority, lane);
+    }
+    if (lane.size() == 0) {
+      activate(lane);
+    }
+    lane.add(value);
+    size++;
+  }
+
+  void addAll(Collection<T> values) {
+    for (T value : values) {
+      add(value);
+    }
+  }
+
+  /**
+   * Takes the next value to deliver, or returns null if there is none.
+   */
+  T poll(long now) {
+    if (size == 0) {
+      return null;
+    }
+    return poll(active.size() == 1 ? 0 : scheduler.select(active, now));
+  }
+
+  /**
+   * Takes the value that arrived first, whatever its priority, or returns null if
+   * there is none.
+   */
+  T pollOldest() {
+    if (size == 0) {
+      return null;
+    }
+    int oldest = 0;
+    for (int i = 1; i < active.size(); i++) {
+      if (active.get(i).getOldestSequence() < active.get(oldest).getOldestSequence()) {
+        oldest = i;
+      }
+    }
+    return poll(oldest);
+  }
+
+  /**
+   * Takes the value that arrived first among those of the lowest priority, or
+   * returns null if there is none.
+   */
+  T pollLowest() {
+    return size == 0 ? null : poll(active.size() - 1);
+  }
+
+  boolean remove(T value) {
+    Lane lane = lanes.get(priority.applyAsInt(value));
+    if (lane == null || !lane.remove(value)) {
+      return false;
+    }
+    size--;
+    if (lane.size() == 0) {
+      active.remove(lane);
+    }
+    return true;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  void clear() {
+    lanes.clear();
+    active.clear();
+    size = 0;
+  }
+
+  private T poll(int index) {
+    Lane lane = active.get(index);
+    T value = lane.poll();
+    size--;
+    if (lane.size() == 0) {
+      active.remove(index);
+    }
+    return value;
+  }
+
+  private void activate(Lane lane) {
+    lane.setCredit(0);
+    int at = 0;
+    while (at < active.size() && active.get(at).getPriority() > lane.getPriority()) {
+      at++;
+    }
+    active.add(at, lane);
+  }
+
+  private final class Lane implements PriorityBand {
+    private final int bandPriority;
+    private final ArrayDeque<T> inOrder = new ArrayDeque<>();
+    private PriorityQueue<T> outOfOrder;
+    private long credit;
+
+    Lane(int bandPriority) {
+      this.bandPriority = bandPriority;
+    }
+
+    void add(T value) {
+      if (inOrder.isEmpty() || sequence.applyAsLong(value) > sequence.applyAsLong(inOrder.peekLast())) {
+        inOrder.addLast(value);
+      } else {
+        if (outOfOrder == null) {
+          outOfOrder = new PriorityQueue<>(arrivalOrder);
+        }
+        outOfOrder.add(value);
+      }
+    }
+
+    T poll() {
+      return fromOutOfOrder() ? outOfOrder.poll() : inOrder.pollFirst();
+    }
+
+    boolean remove(T value) {
+      // Values are mostly removed near the head, where the scan is short.
+      return (outOfOrder != null && outOfOrder.remove(value)) || inOrder.remove(value);
+    }
+
+    private T oldest() {
+      return fromOutOfOrder() ? outOfOrder.peek() : inOrder.peekFirst();
+    }
+
+    private boolean fromOutOfOrder() {
+      if (outOfOrder == null || outOfOrder.isEmpty()) {
+        return false;
+      }
+      return inOrder.isEmpty() || arrivalOrder.compare(outOfOrder.peek(), inOrder.peekFirst()) < 0;
+    }
+
+    @Override
+    public int getPriority() {
+      return bandPriority;
+    }
+
+    @Override
+    public int size() {
+      return inOrder.size() + (outOfOrder == null ? 0 : outOfOrder.size());
+    }
+
+    @Override
+    public long getOldestSequence() {
+      return sequence.applyAsLong(oldest());
+    }
+
+    @Override
+    public long getOldestTimestamp() {
+      return timestamp.applyAsLong(oldest());
+    }
+
+    @Override
+    public long getCredit() {
+      return credit;
+    }
+
+    @Override
+    public void setCredit(long credit) {
+      this.credit = credit;
+    }
+  }
+}
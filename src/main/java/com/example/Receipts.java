@@ -0,0 +1,59 @@
+package com.example;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Receipt ids of the in-memory queues, encoded in a long: the queue's epoch in
+ * the top 16 bits and its delivery count in the low 48. Creating one costs an
+ * increment, and a receipt can be mistaken neither for one of another queue
+ * instance nor for one of an earlier delivery of the same message. The string
+ * form, made only when asked for, is 16 hex digits.
+ */
+final class Receipts {
+  /** Not a receipt: epochs start at 1, so no receipt is 0. */
+  static final long NONE = 0;
+
+  private static final int SEQUENCE_BITS = 48;
+  private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private Receipts() {
+  }
+
+  /** A random epoch for a new queue instance, never 0. */
+  static int newEpoch() {
+    return 1 + ThreadLocalRandom.current().nextInt(0xffff);
+  }
+
+  static long receipt(int epoch, long sequence) {
+    return ((long) epoch << SEQUENCE_BITS) | (sequence & SEQUENCE_MASK);
+  }
+
+  static String format(long receipt) {
+    char[] digits = new char[16];
+    for (int i = 15; i >= 0; i--) {
+      digits[i] = HEX[(int) (receipt & 0xf)];
+      receipt >>>= 4;
+    }
+    return new String(digits);
+  }
+
+  /**
+   * @return the receipt a string made by {@link #format} stands for, or
+   *     {@link #NONE} if the string is not one
+   */
+  static long parse(String receiptId) {
+    if (receiptId == null || receiptId.length() != 16) {
+      return NONE;
+    }
+    long receipt = 0;
+    for (int i = 0; i < 16; i++) {
+      int digit = Character.digit(receiptId.charAt(i), 16);
+      if (digit < 0) {
+        return NONE;
+      }
+      receipt = (receipt << 4) | digit;
+    }
+    return receipt;
+  }
+}
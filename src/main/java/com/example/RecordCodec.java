@@ -0,0 +1,144 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary layout of the records in the segment and state logs of a file-based queue.
+ *
+ * <p>Every record is length-prefixed and has fixed-width header fields, so a
+ * reader can take the fields it needs straight out of a {@link ByteBuffer} and
+ * skip the body without decoding it. Bodies may contain any bytes, including
+ * newlines and the old field delimiter.
+ * <pre>
+ *   length   int    bytes that follow the length field
+ *   type     byte
+ *
+ *   PUSH       id long, timestamp long, priority int, bodyLength int, body bytes
+ *   DELAYED    id long, timestamp long, priority int, bodyLength int, visibleFrom long, body bytes
+ *   DELIVERED  id long, receipt (2 longs), visibleFrom long, attempts int
+ *   LIVE       same as DELIVERED, inside a snapshot
+ *   DELETED    id long
+ *   DROPPED    segment long
+ *   SNAPSHOT   maxId long
+ *   MOVED      generation long
+ * </pre>
+ * A zero or truncated length marks the end of the valid data, e.g. after a torn write.
+ * All accessors take the buffer index of the record's length field.
+ */
+final class RecordCodec {
+  static final byte PUSH = 1;
+  static final byte DELIVERED = 2;
+  static final byte DELETED = 3;
+  static final byte DROPPED = 4;
+  static final byte SNAPSHOT = 5;
+  static final byte LIVE = 6;
+  static final byte MOVED = 7;
+  static final byte DELAYED = 8;
+
+  static final int LENGTH_PREFIX = 4;
+  /** Bytes of a push record before its body, including the length prefix. */
+  static final int PUSH_HEADER = LENGTH_PREFIX + 1 + 8 + 8 + 4 + 4;
+  /** Bytes of a delayed push record before its body, including the length prefix. */
+  static final int DELAYED_HEADER = PUSH_HEADER + 8;
+  static final int DELIVERY_RECORD = LENGTH_PREFIX + 1 + 8 + 16 + 8 + 4;
+  static final int LONG_RECORD = LENGTH_PREFIX + 1 + 8;
+
+  private RecordCodec() {
+  }
+
+  static void writePush(ByteBuffer out, long id, long timestamp, int priority, byte[] body) {
+    out.putInt(PUSH_HEADER - LENGTH_PREFIX + body.length);
+    out.put(PUSH);
+    out.putLong(id);
+    out.putLong(timestamp);
+    out.putInt(priority);
+    out.putInt(body.length);
+    out.put(body);
+  }
+
+  static void writeDelayed(ByteBuffer out, long id, long timestamp, int priority, long visibleFrom, byte[] body) {
+    out.putInt(DELAYED_HEADER - LENGTH_PREFIX + body.length);
+    out.put(DELAYED);
+    out.putLong(id);
+    out.putLong(timestamp);
+    out.putInt(priority);
+    out.putInt(body.length);
+    out.putLong(visibleFrom);
+    out.put(body);
+  }
+
+  static void writeDelivery(ByteBuffer out, byte type, long id, long receiptHigh, long receiptLow,
+      long visibleFrom, int attempts) {
+    out.putInt(DELIVERY_RECORD - LENGTH_PREFIX);
+    out.put(type);
+    out.putLong(id);
+    out.putLong(receiptHigh);
+    out.putLong(receiptLow);
+    out.putLong(visibleFrom);
+    out.putInt(attempts);
+  }
+
+  static void writeLong(ByteBuffer out, byte type, long value) {
+    out.putInt(LONG_RECORD - LENGTH_PREFIX);
+    out.put(type);
+    out.putLong(value);
+  }
+
+  /** Total size of the record at {@code at}, or -1 if the length field is not valid. */
+  static int recordSize(ByteBuffer in, int at) {
+    int length = in.getInt(at);
+    return length <= 0 ? -1 : LENGTH_PREFIX + length;
+  }
+
+  static byte type(ByteBuffer in, int at) {
+    return in.get(at + LENGTH_PREFIX);
+  }
+
+  /** Bytes before the body of a PUSH or DELAYED record. */
+  static int headerSize(ByteBuffer in, int at) {
+    return type(in, at) == DELAYED ? DELAYED_HEADER : PUSH_HEADER;
+  }
+
+  /** The id of a PUSH, DELAYED, DELIVERED, LIVE or DELETED record, or the value of any other record. */
+  static long id(ByteBuffer in, int at) {
+    return in.getLong(at + LENGTH_PREFIX + 1);
+  }
+
+  static long timestamp(ByteBuffer in, int at) {
+    return in.getLong(at + LENGTH_PREFIX + 9);
+  }
+
+  static int priority(ByteBuffer in, int at) {
+    return in.getInt(at + LENGTH_PREFIX + 17);
+  }
+
+  static int bodyLength(ByteBuffer in, int at) {
+    return in.getInt(at + LENGTH_PREFIX + 21);
+  }
+
+  static long receiptHigh(ByteBuffer in, int at) {
+    return in.getLong(at + LENGTH_PREFIX + 9);
+  }
+
+  static long receiptLow(ByteBuffer in, int at) {
+    return in.getLong(at + LENGTH_PREFIX + 17);
+  }
+
+  /** The visibleFrom of a DELIVERED, LIVE or DELAYED record, which all keep it at the same offset. */
+  static long visibleFrom(ByteBuffer in, int at) {
+    return in.getLong(at + LENGTH_PREFIX + 25);
+  }
+
+  static int attempts(ByteBuffer in, int at) {
+    return in.getInt(at + LENGTH_PREFIX + 33);
+  }
+
+  static String decodeBody(byte[] body) {
+    return new String(body, StandardCharsets.UTF_8);
+  }
+
+  static byte[] encodeBody(String body) {
+    return body.getBytes(StandardCharsets.UTF_8);
+  }
+}
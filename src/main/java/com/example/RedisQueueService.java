@@ -0,0 +1,511 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+/**
+ * A QueueService backed by Redis.
+ *
+ * <p>Each queue is a set of keys sharing the hash tag {@code {<queue>}}, so they
+ * stay on one node of a cluster:
+ * <ul>
+ *   <li>{@code ready}: a sorted set of the visible message ids, scored by minus
+ *       their priority, so the highest priority comes first and ids, which grow
+ *       with every push, keep equal priorities in FIFO order;</li>
+ *   <li>{@code inflight}: a sorted set of the delivered message ids, scored by
+ *       the time they become visible again;</li>
+ *   <li>{@code bodies}, {@code priorities}, {@code timestamps}, {@code receipts}
+ *       and {@code attempts}: hashes of each message's fields, keyed by id;</li>
+ *   <li>{@code seq}: the counter the ids are taken from.</li>
+ * </ul>
+ *
+ * <p>Every operation that touches more than one key is a Lua script, so it is
+ * atomic and takes one round trip: a pull moves the ids it pops into
+ * {@code inflight} and gives each a fresh receipt, a delete removes a message
+ * only while its receipt is current and its deadline has not passed, and
+ * expired deliveries are moved back to {@code ready}. That happens at the start
+ * of every pull and, for queues without pulls, on a background reaper every
+ * {@code redisReaperMillis}. Deadlines use the client's clock, so the clocks of
+ * the service's hosts should be kept in sync.
+ *
+ * <p>Connections come from a {@link JedisPool}, so the service is thread-safe.
+ * A batch push sends its messages in chunks of {@code redisBatchSize}, all
+ * pipelined in one round trip; a batch pull and a batch delete are one script
+ * call each. Delayed messages and redrive policies are not supported.
+ */
+public class RedisQueueService implements QueueService {
+    private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "redis-queue-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Expired deliveries a pull moves back to ready before popping; the reaper takes care of the rest.
+    private static final int PULL_REAP_LIMIT = 100;
+
+    // Shared by every script: KEYS are the queue's keys, in the order of keys().
+    private static final String PRELUDE = String.join("\n",
+            "local ready, inflight, bodies, priorities = KEYS[1], KEYS[2], KEYS[3], KEYS[4]",
+            "local timestamps, receipts, attempts, seq = KEYS[5], KEYS[6], KEYS[7], KEYS[8]",
+            "local function requeue(id)",
+            "  redis.call('ZREM', inflight, id)",
+            "  redis.call('HDEL', receipts, id)",
+            "  redis.call('ZADD', ready, -tonumber(redis.call('HGET', priorities, id)), id)",
+            "end",
+            "local function requeueExpired(now, limit)",
+            "  local expired = redis.call('ZRANGEBYSCORE', inflight, '-inf', now, 'LIMIT', 0, limit)",
+            "  for _, id in ipairs(expired) do",
+            "    requeue(id)",
+            "  end",
+            "  return #expired",
+            "end",
+            "");
+
+    /** ARGV: priority, timestamp, then the bodies. Returns the number of messages pushed. */
+    static final Script PUSH = new Script(
+            "local priority = tonumber(ARGV[1])",
+            "local last = redis.call('INCRBY', seq, #ARGV - 2)",
+            "for i = 3, #ARGV do",
+            "  local id = string.format('%016x', last - #ARGV + i)",
+            "  redis.call('HSET', bodies, id, ARGV[i])",
+            "  redis.call('HSET', priorities, id, priority)",
+            "  redis.call('HSET', timestamps, id, ARGV[2])",
+            "  redis.call('ZADD', ready, -priority, id)",
+            "end",
+            "return #ARGV - 2");
+
+    /**
+     * ARGV: now, visibleUntil, then one receipt token per message wanted. Returns the
+     * queue's size and in-flight count, then id, token, attempts, priority, timestamp
+     * and body of each message delivered.
+     */
+    static final Script PULL = new Script(
+            "requeueExpired(ARGV[1], " + PULL_REAP_LIMIT + ")",
+            "local popped = redis.call('ZPOPMIN', ready, #ARGV - 2)",
+            "local result = {0, 0}",
+            "for i = 1, #popped, 2 do",
+            "  local id = popped[i]",
+            "  local token = ARGV[2 + (i + 1) / 2]",
+            "  redis.call('ZADD', inflight, ARGV[2], id)",
+            "  redis.call('HSET', receipts, id, token)",
+            "  result[#result + 1] = id",
+            "  result[#result + 1] = token",
+            "  result[#result + 1] = redis.call('HINCRBY', attempts, id, 1)",
+            "  result[#result + 1] = redis.call('HGET', priorities, id)",
+            "  result[#result + 1] = redis.call('HGET', timestamps, id)",
+            "  result[#result + 1] = redis.call('HGET', bodies, id)",
+            "end",
+            "result[2] = redis.call('ZCARD', inflight)",
+            "result[1] = redis.call('ZCARD', ready) + result[2]",
+            "return result");
+
+    /** ARGV: now, then an id and token per message. Returns the number of messages deleted. */
+    static final Script DELETE = new Script(
+            "local now = tonumber(ARGV[1])",
+            "local deleted = 0",
+            "for i = 2, #ARGV - 1, 2 do",
+            "  local id = ARGV[i]",
+            "  local deadline = redis.call('ZSCORE', inflight, id)",
+            "  if deadline and tonumber(deadline) > now and redis.call('HGET', receipts, id) == ARGV[i + 1] then",
+            "    redis.call('ZREM', inflight, id)",
+            "    redis.call('HDEL', bodies, id)",
+            "    redis.call('HDEL', priorities, id)",
+            "    redis.call('HDEL', timestamps, id)",
+            "    redis.call('HDEL', receipts, id)",
+            "    redis.call('HDEL', attempts, id)",
+            "    deleted = deleted + 1",
+            "  end",
+            "end",
+            "return deleted");
+
+    /**
+     * ARGV: now, id, token, visibleUntil. A deadline not after now makes the message
+     * visible at once. Returns 1 if the message was still in flight, else 0.
+     */
+    static final Script CHANGE_VISIBILITY = new Script(
+            "local now = tonumber(ARGV[1])",
+            "local id = ARGV[2]",
+            "local deadline = redis.call('ZSCORE', inflight, id)",
+            "if not deadline or tonumber(deadline) <= now or redis.call('HGET', receipts, id) ~= ARGV[3] then",
+            "  return 0",
+            "end",
+            "if tonumber(ARGV[4]) <= now then",
+            "  requeue(id)",
+            "else",
+            "  redis.call('ZADD', inflight, ARGV[4], id)",
+            "end",
+            "return 1");
+
+    /** ARGV: now, limit. Returns the number of expired deliveries made visible again. */
+    static final Script REAP = new Script(
+            "return requeueExpired(ARGV[1], ARGV[2])");
+
+    private final JedisPool pool;
+    private final QueueMetrics metrics = new QueueMetrics("RedisQueueService");
+    // Queues used through this service, which the reaper looks after.
+    private final Set<String> queues = ConcurrentHashMap.newKeySet();
+    private final String keyPrefix;
+    private final int visibilityTimeout;
+    private final int batchSize;
+    private final int reaperLimit;
+    private final ScheduledFuture<?> reaper;
+    private LongSupplier timeSupplier;
+
+    /**
+     * Connects to the given Redis server, with the settings of config.properties.
+     */
+    public RedisQueueService(String host, int port) {
+        this(loadConfig(), host, port);
+    }
+
+    private RedisQueueService(Properties confInfo, String host, int port) {
+        this(new JedisPool(poolConfig(confInfo), host, port), confInfo);
+    }
+
+    /**
+     * Uses connections from the given pool, which the service closes on {@link #close()}.
+     *
+     * @param confInfo settings with the keys of config.properties
+     */
+    public RedisQueueService(JedisPool pool, Properties confInfo) {
+        if (pool == null) {
+            throw new IllegalArgumentException("Jedis pool cannot be null");
+        }
+        this.pool = pool;
+        this.keyPrefix = confInfo.getProperty("redisKeyPrefix", "queue:");
+        this.visibilityTimeout = Integer.parseInt(confInfo.getProperty("visibilityTimeout", "30"));
+        this.batchSize = Integer.parseInt(confInfo.getProperty("redisBatchSize", "100"));
+        this.reaperLimit = Integer.parseInt(confInfo.getProperty("redisReaperLimit", "1000"));
+        long reaperMillis = Long.parseLong(confInfo.getProperty("redisReaperMillis", "1000"));
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("redisBatchSize must be at least 1");
+        }
+        this.reaper = reaperMillis > 0
+                ? REAPER.scheduleWithFixedDelay(this::reap, reaperMillis, reaperMillis, TimeUnit.MILLISECONDS)
+                : null;
+    }
+
+    static JedisPoolConfig poolConfig(Properties confInfo) {
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        int poolSize = Integer.parseInt(confInfo.getProperty("redisPoolSize", "16"));
+        poolConfig.setMaxTotal(poolSize);
+        poolConfig.setMaxIdle(poolSize);
+        return poolConfig;
+    }
+
+    static Properties loadConfig() {
+        Properties confInfo = new Properties();
+        try (InputStream inStream = RedisQueueService.class.getClassLoader().getResourceAsStream("config.properties")) {
+            confInfo.load(inStream);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to load configuration", e);
+        }
+        return confInfo;
+    }
+
+    public void setTimeSupplier(LongSupplier timeSupplier) {
+        this.timeSupplier = timeSupplier;
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody, int priority) {
+        long start = System.nanoTime();
+        String queueName = queueName(queueUrl);
+        QueueStats stats = metrics.queue(queueName);
+        try (Jedis jedis = pool.getResource()) {
+            eval(jedis, PUSH, queueName, Arrays.asList(String.valueOf(priority), String.valueOf(now()), messageBody));
+        } catch (JedisException e) {
+            stats.recordError(QueueOperation.PUSH);
+            throw new RuntimeException("Failed to push message", e);
+        }
+        stats.recordOperation(QueueOperation.PUSH, start, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Pushes chunks of {@code redisBatchSize} messages, one script call each,
+     * pipelined so the whole batch takes one round trip. Each chunk is atomic;
+     * the batch as a whole is not.
+     */
+    @Override
+    public void pushBatch(String queueUrl, List<String> messageBodies, int priority) {
+        long start = System.nanoTime();
+        String queueName = queueName(queueUrl);
+        QueueStats stats = metrics.queue(queueName);
+        List<String> keys = keys(queueName);
+        String timestamp = String.valueOf(now());
+        try (Jedis jedis = pool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            // Loading the script first spares a NOSCRIPT error in the middle of the pipeline.
+            pipeline.scriptLoad(PUSH.source, keys.get(0));
+            List<Response<Object>> pushed = new ArrayList<>();
+            for (int from = 0; from < messageBodies.size(); from += batchSize) {
+                List<String> args = new ArrayList<>();
+                args.add(String.valueOf(priority));
+                args.add(timestamp);
+                args.addAll(messageBodies.subList(from, Math.min(from + batchSize, messageBodies.size())));
+                pushed.add(pipeline.evalsha(PUSH.sha, keys, args));
+            }
+            pipeline.sync();
+            for (Response<Object> response : pushed) {
+                response.get();
+            }
+        } catch (JedisException e) {
+            stats.recordError(QueueOperation.PUSH);
+            throw new RuntimeException("Failed to push messages", e);
+        }
+        stats.recordOperation(QueueOperation.PUSH, start, messageBodies.size());
+    }
+
+    @Override
+    public Message pull(String queueUrl) {
+        List<Message> messages = pull(queueUrl, 1, TimeUnit.SECONDS.toMillis(visibilityTimeout));
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages) {
+        return pull(queueUrl, maxMessages, TimeUnit.SECONDS.toMillis(visibilityTimeout));
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages, Duration visibilityTimeout) {
+        return pull(queueUrl, maxMessages, visibilityTimeout.toMillis());
+    }
+
+    private List<Message> pull(String queueUrl, int maxMessages, long visibilityMillis) {
+        long start = System.nanoTime();
+        String queueName = queueName(queueUrl);
+        QueueStats stats = metrics.queue(queueName);
+        if (maxMessages < 1) {
+            return new ArrayList<>();
+        }
+        long nowTime = now();
+        List<String> args = new ArrayList<>(maxMessages + 2);
+        args.add(String.valueOf(nowTime));
+        args.add(String.valueOf(nowTime + visibilityMillis));
+        for (int i = 0; i < maxMessages; i++) {
+            args.add(UUID.randomUUID().toString());
+        }
+        List<?> result;
+        try (Jedis jedis = pool.getResource()) {
+            result = (List<?>) eval(jedis, PULL, queueName, args);
+        } catch (JedisException e) {
+            stats.recordError(QueueOperation.PULL);
+            throw new RuntimeException("Failed to pull messages", e);
+        }
+        List<Message> messages = new ArrayList<>((result.size() - 2) / 6);
+        for (int i = 2; i + 5 < result.size(); i += 6) {
+            Message msg = new Message(String.valueOf(result.get(i + 5)), Integer.parseInt(String.valueOf(result.get(i + 3))),
+                    Long.parseLong(String.valueOf(result.get(i + 4))));
+            msg.setReceiptId(result.get(i) + ":" + result.get(i + 1));
+            msg.setAttempts(((Number) result.get(i + 2)).intValue());
+            messages.add(msg);
+        }
+        stats.updateDepth(((Number) result.get(0)).intValue(), ((Number) result.get(1)).intValue());
+        stats.recordOperation(QueueOperation.PULL, start, messages.size());
+        if (messages.isEmpty()) {
+            stats.recordDelivery(null);
+        }
+        for (Message msg : messages) {
+            stats.recordDelivery(msg);
+        }
+        return messages;
+    }
+
+    @Override
+    public void delete(String queueUrl, String receiptId) {
+        deleteBatch(queueUrl, Arrays.asList(receiptId));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Deletes every message in one script call. Receipts that are malformed,
+     * superseded by a later delivery or past their deadline are ignored.
+     */
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptIds) {
+        long start = System.nanoTime();
+        String queueName = queueName(queueUrl);
+        QueueStats stats = metrics.queue(queueName);
+        List<String> args = new ArrayList<>(receiptIds.size() * 2 + 1);
+        args.add(String.valueOf(now()));
+        for (String receiptId : receiptIds) {
+            int separator = receiptId == null ? -1 : receiptId.indexOf(':');
+            if (separator > 0) {
+                args.add(receiptId.substring(0, separator));
+                args.add(receiptId.substring(separator + 1));
+            }
+        }
+        int deleted = 0;
+        if (args.size() > 1) {
+            try (Jedis jedis = pool.getResource()) {
+                deleted = ((Number) eval(jedis, DELETE, queueName, args)).intValue();
+            } catch (JedisException e) {
+                stats.recordError(QueueOperation.DELETE);
+                throw new RuntimeException("Failed to delete messages", e);
+            }
+        }
+        stats.recordOperation(QueueOperation.DELETE, start, deleted);
+    }
+
+    @Override
+    public boolean changeVisibility(String queueUrl, String receiptId, Duration visibilityTimeout) {
+        long start = System.nanoTime();
+        String queueName = queueName(queueUrl);
+        QueueStats stats = metrics.queue(queueName);
+        int separator = receiptId == null ? -1 : receiptId.indexOf(':');
+        boolean changed = false;
+        if (separator > 0) {
+            long nowTime = now();
+            try (Jedis jedis = pool.getResource()) {
+                Object result = eval(jedis, CHANGE_VISIBILITY, queueName, Arrays.asList(String.valueOf(nowTime),
+                        receiptId.substring(0, separator), receiptId.substring(separator + 1),
+                        String.valueOf(nowTime + visibilityTimeout.toMillis())));
+                changed = ((Number) result).intValue() == 1;
+            } catch (JedisException e) {
+                stats.recordError(QueueOperation.CHANGE_VISIBILITY);
+                throw new RuntimeException("Failed to change message visibility", e);
+            }
+        }
+        stats.recordOperation(QueueOperation.CHANGE_VISIBILITY, start, changed ? 1 : 0);
+        return changed;
+    }
+
+    /**
+     * Moves the expired deliveries of every queue used through this service back
+     * to their ready set, up to {@code redisReaperLimit} per queue, in one pipelined
+     * round trip. Runs every {@code redisReaperMillis} in the background.
+     *
+     * @return the number of messages made visible again
+     */
+    int reap() {
+        if (queues.isEmpty()) {
+            return 0;
+        }
+        String nowTime = String.valueOf(now());
+        List<String> queueNames = new ArrayList<>(queues);
+        List<Response<Object>> reaped = new ArrayList<>(queueNames.size());
+        int total = 0;
+        try (Jedis jedis = pool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.scriptLoad(REAP.source, keys(queueNames.get(0)).get(0));
+            for (String queueName : queueNames) {
+                reaped.add(pipeline.evalsha(REAP.sha, keys(queueName), Arrays.asList(nowTime, String.valueOf(reaperLimit))));
+            }
+            pipeline.sync();
+            for (Response<Object> response : reaped) {
+                total += ((Number) response.get()).intValue();
+            }
+        } catch (RuntimeException e) {
+            // Keep the schedule alive; the next pull or reap retries.
+            for (String queueName : queueNames) {
+                metrics.queue(queueName).recordError(QueueOperation.MAINTENANCE);
+            }
+            System.err.println("Failed to reap expired messages: " + e);
+        }
+        return total;
+    }
+
+    /**
+     * The metrics of every queue of this service, keyed by queue name.
+     */
+    public QueueMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Stops the reaper and closes the connection pool.
+     */
+    public void close() {
+        if (reaper != null) {
+            reaper.cancel(false);
+        }
+        pool.close();
+    }
+
+    protected void purgeQueue(String queueUrl) {
+        String queueName = queueName(queueUrl);
+        try (Jedis jedis = pool.getResource()) {
+            jedis.del(keys(queueName).toArray(new String[0]));
+        }
+        metrics.queue(queueName).updateDepth(0, 0);
+    }
+
+    // Runs a script by its digest, sending the source only if the server does not have it cached.
+    private Object eval(Jedis jedis, Script script, String queueName, List<String> args) {
+        List<String> keys = keys(queueName);
+        try {
+            return jedis.evalsha(script.sha, keys, args);
+        } catch (JedisNoScriptException e) {
+            return jedis.eval(script.source, keys, args);
+        }
+    }
+
+    // The queue's keys, in the order the scripts expect them.
+    private List<String> keys(String queueName) {
+        String prefix = keyPrefix + "{" + queueName + "}:";
+        return Arrays.asList(prefix + "ready", prefix + "inflight", prefix + "bodies", prefix + "priorities",
+                prefix + "timestamps", prefix + "receipts", prefix + "attempts", prefix + "seq");
+    }
+
+    private String queueName(String queueUrl) {
+        String[] parts = queueUrl.split("/");
+        String queueName = parts[parts.length - 1];
+        queues.add(queueName);
+        return queueName;
+    }
+
+    private long now() {
+        return timeSupplier == null ? System.currentTimeMillis() : timeSupplier.getAsLong();
+    }
+
+    /** A Lua script and the SHA-1 digest EVALSHA knows it by. */
+    static final class Script {
+        final String source;
+        final String sha;
+
+        Script(String... lines) {
+            this.source = PRELUDE + String.join("\n", lines);
+            this.sha = sha1(source);
+        }
+
+        private static String sha1(String source) {
+            try {
+                StringBuilder hex = new StringBuilder(40);
+                for (byte b : MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8))) {
+                    hex.append(String.format("%02x", b));
+                }
+                return hex.toString();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-1 is not available", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.example;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * The redrive policy of a queue: a message that has been received
+ * {@code maxReceiveCount} times without being deleted is moved to the
+ * dead-letter queue instead of being delivered again.
+ */
+public final class RedrivePolicy {
+    private final String deadLetterQueueUrl;
+    private final int maxReceiveCount;
+
+    public RedrivePolicy(String deadLetterQueueUrl, int maxReceiveCount) {
+        if (deadLetterQueueUrl == null || deadLetterQueueUrl.isEmpty()) {
+            throw new IllegalArgumentException("Dead-letter queue URL cannot be null or empty");
+        }
+        if (maxReceiveCount < 1) {
+            throw new IllegalArgumentException("Max receive count must be at least 1");
+        }
+        this.deadLetterQueueUrl = deadLetterQueueUrl;
+        this.maxReceiveCount = maxReceiveCount;
+    }
+
+    public String getDeadLetterQueueUrl() {
+        return deadLetterQueueUrl;
+    }
+
+    public int getMaxReceiveCount() {
+        return maxReceiveCount;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof RedrivePolicy)) {
+            return false;
+        }
+        RedrivePolicy other = (RedrivePolicy) o;
+        return maxReceiveCount == other.maxReceiveCount && deadLetterQueueUrl.equals(other.deadLetterQueueUrl);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * deadLetterQueueUrl.hashCode() + maxReceiveCount;
+    }
+
+    @Override
+    public String toString() {
+        return "RedrivePolicy[deadLetterQueueUrl=" + deadLetterQueueUrl + ", maxReceiveCount=" + maxReceiveCount + "]";
+    }
+
+    /**
+     * Rejects a policy for {@code queue} whose dead letters would eventually flow
+     * back into it. Backends that move a dead letter while holding the locks of
+     * both queues rely on this to always take the locks in the same order.
+     *
+     * @param policies the policies already set, keyed like {@code queue}
+     * @param key      maps a queue URL to the key of its queue
+     */
+    static void checkNoCycle(Map<String, RedrivePolicy> policies, String queue, RedrivePolicy policy,
+            UnaryOperator<String> key) {
+        Set<String> seen = new HashSet<>();
+        String next = key.apply(policy.getDeadLetterQueueUrl());
+        while (next != null && seen.add(next)) {
+            if (next.equals(queue)) {
+                throw new IllegalArgumentException("Redrive policy of " + queue + " would form a cycle through "
+                        + policy.getDeadLetterQueueUrl());
+            }
+            RedrivePolicy nextPolicy = policies.get(next);
+            next = nextPolicy == null ? null : key.apply(nextPolicy.getDeadLetterQueueUrl());
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.example;
+
+/**
+ * How a {@link ShardedQueueService} picks the shard a pushed message goes to.
+ */
+public enum ShardSelection {
+    /**
+     * Each push of a queue goes to the next shard in turn, so shards fill evenly
+     * whatever the messages. A batch push is split into one batch per shard.
+     */
+    ROUND_ROBIN,
+    /**
+     * A message goes to the shard its key hashes to, the body unless a key is
+     * given, so messages with the same key stay in one shard and in FIFO order.
+     */
+    HASH
+}
@@ -0,0 +1,377 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A QueueService that splits each logical queue into {@code shards} physical
+ * queues, so a hot queue is not serialized on one structure, lock or disk.
+ *
+ * <p>Shard {@code i} of the queue at {@code <url>} is the queue at
+ * {@code <url>-s<i>} of backend {@code i % backends.size()}. With one in-memory
+ * backend, every shard has its own lock, so producers and consumers of a single
+ * queue can use all cores; with one {@link FileQueueService} per directory,
+ * the shards of a queue are spread over as many disks.
+ *
+ * <p>Producers pick a shard by {@link ShardSelection}: round-robin, or by the
+ * hash of a key given to {@link #push(String, String, String, int)} (the body
+ * otherwise). Consumers start at a home shard, chosen by thread, and steal from
+ * the other shards in turn when it is empty, so an idle consumer helps drain
+ * whichever shards have a backlog while busy ones rarely contend. A waiting pull
+ * blocks on the home shard a slice at a time, sweeping the others in between.
+ *
+ * <p>Messages are FIFO, and priorities are honored, within a shard only.
+ * Receipts are prefixed with the shard they came from, so deletes and visibility
+ * changes go straight to it. Redrive policies are set on the shard queues of the
+ * backends directly, if the backend supports them.
+ *
+ * <p>A capacity policy is split evenly over the shards, each bounded by its share
+ * of the limits, and the back-pressure of a queue is that of its fullest shard.
+ * With hash selection, a skewed key can fill one shard well before the others.
+ */
+public class ShardedQueueService implements QueueService {
+    // How long a waiting pull waits on its home shard before checking the others again.
+    static final Duration WAIT_SLICE = Duration.ofMillis(100);
+
+    private final List<QueueService> backends;
+    private final int shards;
+    private final ShardSelection selection;
+    // Round-robin position of each queue.
+    private final Map<String, AtomicInteger> nextShard = new ConcurrentHashMap<>();
+    private final Map<String, CapacityPolicy> capacityPolicies = new ConcurrentHashMap<>();
+
+    /**
+     * Shards queues over the given backends with the {@code queueShards} and
+     * {@code shardSelection} of config.properties.
+     */
+    public ShardedQueueService(List<QueueService> backends) {
+        this(backends, loadConfig());
+    }
+
+    private ShardedQueueService(List<QueueService> backends, Properties confInfo) {
+        this(backends, Integer.parseInt(confInfo.getProperty("queueShards", "4")),
+                ShardSelection.valueOf(confInfo.getProperty("shardSelection", "round_robin").trim().toUpperCase(Locale.ROOT)));
+    }
+
+    /**
+     * @param backends  the services holding the shards, e.g. one file queue per disk
+     * @param shards    the number of shards of each queue, at least one per backend
+     * @param selection how producers pick a shard
+     */
+    public ShardedQueueService(List<QueueService> backends, int shards, ShardSelection selection) {
+        if (backends == null || backends.isEmpty()) {
+            throw new IllegalArgumentException("At least one backend is required");
+        }
+        if (shards < backends.size()) {
+            throw new IllegalArgumentException("Shards must be at least the number of backends, got " + shards);
+        }
+        if (selection == null) {
+            throw new IllegalArgumentException("Shard selection cannot be null");
+        }
+        this.backends = new ArrayList<>(backends);
+        this.shards = shards;
+        this.selection = selection;
+    }
+
+    private static Properties loadConfig() {
+        Properties confInfo = new Properties();
+        try (InputStream inStream = ShardedQueueService.class.getClassLoader().getResourceAsStream("config.properties")) {
+            confInfo.load(inStream);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to load configuration", e);
+        }
+        return confInfo;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody, int priority) {
+        int shard = pushShard(queueUrl, messageBody);
+        backend(shard).push(shardUrl(queueUrl, shard), messageBody, priority);
+    }
+
+    @Override
+    public void push(String queueUrl, byte[] messageBody, int priority) {
+        // Hashed as text, so a body lands on the same shard whichever overload pushes it.
+        int shard = selection == ShardSelection.HASH
+                ? hashShard(new String(messageBody, StandardCharsets.UTF_8)) : nextShard(queueUrl);
+        backend(shard).push(shardUrl(queueUrl, shard), messageBody, priority);
+    }
+
+    /**
+     * Pushes a message to the shard {@code shardKey} hashes to, whatever the
+     * {@link ShardSelection}, so messages with the same key are delivered in order.
+     */
+    public void push(String queueUrl, String shardKey, String messageBody, int priority) {
+        int shard = hashShard(shardKey);
+        backend(shard).push(shardUrl(queueUrl, shard), messageBody, priority);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The shard is chosen by the hash of the deduplication id, whatever the
+     * shard selection, so that every attempt is checked by the same shard.
+     */
+    @Override
+    public boolean pushDeduplicated(String queueUrl, String messageBody, int priority, String deduplicationId) {
+        int shard = hashShard(deduplicationId);
+        return backend(shard).pushDeduplicated(shardUrl(queueUrl, shard), messageBody, priority, deduplicationId);
+    }
+
+    @Override
+    public void push(String queueUrl, String messageBody, int priority, Duration delay) {
+        int shard = pushShard(queueUrl, messageBody);
+        backend(shard).push(shardUrl(queueUrl, shard), messageBody, priority, delay);
+    }
+
+    @Override
+    public void pushAt(String queueUrl, String messageBody, int priority, Instant deliverAt) {
+        int shard = pushShard(queueUrl, messageBody);
+        backend(shard).pushAt(shardUrl(queueUrl, shard), messageBody, priority, deliverAt);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Splits the batch by shard and pushes one batch to each, keeping the
+     * order of the messages that share a shard.
+     */
+    @Override
+    public void pushBatch(String queueUrl, List<String> messageBodies, int priority) {
+        List<List<String>> byShard = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            byShard.add(new ArrayList<>());
+        }
+        for (String messageBody : messageBodies) {
+            byShard.get(pushShard(queueUrl, messageBody)).add(messageBody);
+        }
+        for (int shard = 0; shard < shards; shard++) {
+            if (!byShard.get(shard).isEmpty()) {
+                backend(shard).pushBatch(shardUrl(queueUrl, shard), byShard.get(shard), priority);
+            }
+        }
+    }
+
+    @Override
+    public Message pull(String queueUrl) {
+        int home = homeShard();
+        for (int i = 0; i < shards; i++) {
+            int shard = (home + i) % shards;
+            Message msg = backend(shard).pull(shardUrl(queueUrl, shard));
+            if (msg != null) {
+                return tag(msg, shard);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Sweeps every shard without waiting, then waits on the home shard for up to
+     * {@link #WAIT_SLICE} and sweeps again, so a message pushed to the home shard is
+     * returned at once and one pushed to another shard within a slice.
+     */
+    @Override
+    public Message pull(String queueUrl, Duration wait) {
+        return pull(queueUrl, wait, null);
+    }
+
+    @Override
+    public Message pull(String queueUrl, Duration wait, Duration visibilityTimeout) {
+        long deadline = System.nanoTime() + wait.toNanos();
+        int home = homeShard();
+        while (true) {
+            for (int i = 0; i < shards; i++) {
+                int shard = (home + i) % shards;
+                Message msg = pull(shard, queueUrl, Duration.ZERO, visibilityTimeout);
+                if (msg != null) {
+                    return tag(msg, shard);
+                }
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            Duration slice = Duration.ofNanos(Math.min(remaining, WAIT_SLICE.toNanos()));
+            Message msg = pull(home, queueUrl, slice, visibilityTimeout);
+            if (msg != null) {
+                return tag(msg, home);
+            }
+        }
+    }
+
+    // A pull from one shard, with the backend's own visibility timeout unless one is given.
+    private Message pull(int shard, String queueUrl, Duration wait, Duration visibilityTimeout) {
+        QueueService backend = backend(shard);
+        String shardUrl = shardUrl(queueUrl, shard);
+        return visibilityTimeout == null ? backend.pull(shardUrl, wait) : backend.pull(shardUrl, wait, visibilityTimeout);
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages) {
+        return pull(queueUrl, maxMessages, null);
+    }
+
+    @Override
+    public List<Message> pull(String queueUrl, int maxMessages, Duration visibilityTimeout) {
+        List<Message> messages = new ArrayList<>();
+        int home = homeShard();
+        for (int i = 0; i < shards && messages.size() < maxMessages; i++) {
+            int shard = (home + i) % shards;
+            QueueService backend = backend(shard);
+            String shardUrl = shardUrl(queueUrl, shard);
+            int wanted = maxMessages - messages.size();
+            List<Message> pulled = visibilityTimeout == null ? backend.pull(shardUrl, wanted)
+                    : backend.pull(shardUrl, wanted, visibilityTimeout);
+            for (Message msg : pulled) {
+                messages.add(tag(msg, shard));
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public boolean changeVisibility(String queueUrl, String receiptId, Duration visibilityTimeout) {
+        int shard = shardOf(receiptId);
+        return shard >= 0 && backend(shard).changeVisibility(shardUrl(queueUrl, shard),
+                receiptId.substring(receiptId.indexOf(':') + 1), visibilityTimeout);
+    }
+
+    @Override
+    public void delete(String queueUrl, String receiptId) {
+        int shard = shardOf(receiptId);
+        if (shard >= 0) {
+            backend(shard).delete(shardUrl(queueUrl, shard), receiptId.substring(receiptId.indexOf(':') + 1));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Sends one batch delete to each shard the receipts came from.
+     */
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptIds) {
+        List<List<String>> byShard = new ArrayList<>(Collections.nCopies(shards, null));
+        for (String receiptId : receiptIds) {
+            int shard = shardOf(receiptId);
+            if (shard < 0) {
+                continue;
+            }
+            if (byShard.get(shard) == null) {
+                byShard.set(shard, new ArrayList<>());
+            }
+            byShard.get(shard).add(receiptId.substring(receiptId.indexOf(':') + 1));
+        }
+        for (int shard = 0; shard < shards; shard++) {
+            if (byShard.get(shard) != null) {
+                backend(shard).deleteBatch(shardUrl(queueUrl, shard), byShard.get(shard));
+            }
+        }
+    }
+
+    @Override
+    public void setCapacityPolicy(String queueUrl, CapacityPolicy policy) {
+        CapacityPolicy shardPolicy = null;
+        if (policy != null) {
+            shardPolicy = new CapacityPolicy(share(policy.getMaxMessages()), share(policy.getMaxBytes()),
+                    policy.getOverflowPolicy(), policy.getBlockTimeout());
+        }
+        for (int shard = 0; shard < shards; shard++) {
+            backend(shard).setCapacityPolicy(shardUrl(queueUrl, shard), shardPolicy);
+        }
+        if (policy == null) {
+            capacityPolicies.remove(queueUrl);
+        } else {
+            capacityPolicies.put(queueUrl, policy);
+        }
+    }
+
+    @Override
+    public CapacityPolicy getCapacityPolicy(String queueUrl) {
+        return capacityPolicies.get(queueUrl);
+    }
+
+    @Override
+    public double getBackPressure(String queueUrl) {
+        double pressure = 0;
+        for (int shard = 0; shard < shards; shard++) {
+            pressure = Math.max(pressure, backend(shard).getBackPressure(shardUrl(queueUrl, shard)));
+        }
+        return pressure;
+    }
+
+    /**
+     * The URL of one shard of a queue, in its backend.
+     */
+    public String shardUrl(String queueUrl, int shard) {
+        return queueUrl + "-s" + shard;
+    }
+
+    // A shard's part of a capacity limit, rounded up; 0 stays no limit.
+    private long share(long limit) {
+        return (limit + shards - 1) / shards;
+    }
+
+    private QueueService backend(int shard) {
+        return backends.get(shard % backends.size());
+    }
+
+    private int pushShard(String queueUrl, String messageBody) {
+        return selection == ShardSelection.HASH ? hashShard(messageBody) : nextShard(queueUrl);
+    }
+
+    private int nextShard(String queueUrl) {
+        AtomicInteger next = nextShard.computeIfAbsent(queueUrl, url -> new AtomicInteger());
+        return Math.floorMod(next.getAndIncrement(), shards);
+    }
+
+    private int hashShard(String key) {
+        return spread(key == null ? 0 : key.hashCode());
+    }
+
+    // Spreads the hash code, as HashMap does, so keys differing only in high bits do not collide.
+    private int spread(int hash) {
+        return Math.floorMod(hash ^ (hash >>> 16), shards);
+    }
+
+    // Spreads consumer threads over the shards; the rest are stolen from in turn.
+    private int homeShard() {
+        return (int) Math.floorMod(Thread.currentThread().getId(), (long) shards);
+    }
+
+    private static Message tag(Message msg, int shard) {
+        msg.setReceiptId(shard + ":" + msg.getReceiptId());
+        return msg;
+    }
+
+    // The shard a receipt came from, or -1 if it is not one of ours.
+    private int shardOf(String receiptId) {
+        int separator = receiptId == null ? -1 : receiptId.indexOf(':');
+        if (separator <= 0) {
+            return -1;
+        }
+        try {
+            int shard = Integer.parseInt(receiptId.substring(0, separator));
+            return shard < shards ? shard : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+
+/**
+ * An {@link AsyncQueueService} on the asynchronous SQS client. Requests are
+ * handed to the client's own executor and the futures are completed from its
+ * callbacks, so no caller thread waits on a round trip.
+ */
+public class SqsAsyncQueueService implements AsyncQueueService {
+    private final AmazonSQSAsync sqs;
+
+    public SqsAsyncQueueService(AmazonSQSAsync sqsClient) {
+        if (sqsClient == null) {
+            throw new IllegalArgumentException("AmazonSQSAsync client cannot be null");
+        }
+        this.sqs = sqsClient;
+    }
+
+    @Override
+    public CompletableFuture<Void> pushAsync(String queueUrl, String messageBody, int priority) {
+        // As in SqsQueueService, SQS has no message priority and the priority is ignored.
+        if (queueUrl == null || queueUrl.isEmpty()) {
+            throw new IllegalArgumentException("Queue URL cannot be null or empty");
+        }
+        if (messageBody == null) {
+            throw new IllegalArgumentException("Message body cannot be null");
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        sqs.sendMessageAsync(new SendMessageRequest(queueUrl, messageBody), completing(future, result -> null));
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<com.example.Message> pullAsync(String queueUrl) {
+        if (queueUrl == null || queueUrl.isEmpty()) {
+            throw new IllegalArgumentException("Queue URL cannot be null or empty");
+        }
+        CompletableFuture<com.example.Message> future = new CompletableFuture<>();
+        sqs.receiveMessageAsync(new ReceiveMessageRequest(queueUrl).withMaxNumberOfMessages(1),
+                completing(future, result -> {
+                    List<Message> messages = result.getMessages();
+                    if (messages == null || messages.isEmpty()) {
+                        return null; // No messages available
+                    }
+                    Message sqsMsg = messages.get(0);
+                    return new com.example.Message(sqsMsg.getBody(), sqsMsg.getReceiptHandle());
+                }));
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(String queueUrl, String receiptId) {
+        if (queueUrl == null || queueUrl.isEmpty()) {
+            throw new IllegalArgumentException("Queue URL cannot be null or empty");
+        }
+        if (receiptId == null || receiptId.isEmpty()) {
+            throw new IllegalArgumentException("Receipt ID cannot be null or empty");
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        sqs.deleteMessageAsync(new DeleteMessageRequest(queueUrl, receiptId), completing(future, result -> null));
+        return future;
+    }
+
+    // A client callback that completes the future with the converted result, or with the failure.
+    private static <REQUEST extends AmazonWebServiceRequest, RESULT, T> AsyncHandler<REQUEST, RESULT> completing(
+            CompletableFuture<T> future, Function<RESULT, T> convert) {
+        return new AsyncHandler<REQUEST, RESULT>() {
+            @Override
+            public void onError(Exception exception) {
+                future.completeExceptionally(exception);
+            }
+
+            @Override
+            public void onSuccess(REQUEST request, RESULT result) {
+                try {
+                    future.complete(convert.apply(result));
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        };
+    }
+}
@@ -1,13 +1,47 @@
 package com.example;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageNotInflightException;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
 
 public class SqsQueueService implements QueueService {
     // The QueueService implementation intended for a production environment.
+    // SQS accepts at most this many entries per batch request and returns at most this many messages per receive.
+    static final int MAX_BATCH_SIZE = 10;
+    // SQS accepts at most this many bytes of message bodies per batch request.
+    static final int MAX_BATCH_BYTES = 256 * 1024;
+    // The longest wait SQS accepts for a single long-polling receive.
+    static final int MAX_WAIT_SECONDS = 20;
+    // The longest delay SQS accepts for a single message.
+    static final int MAX_DELAY_SECONDS = 900;
+    // The longest visibility timeout SQS accepts.
+    static final int MAX_VISIBILITY_SECONDS = 43_200;
+    // The message attribute SQS counts deliveries in.
+    static final String RECEIVE_COUNT = "ApproximateReceiveCount";
+    // Fields of the RedrivePolicy queue attribute, a small JSON document.
+    private static final Pattern DEAD_LETTER_TARGET = Pattern.compile("\"deadLetterTargetArn\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern MAX_RECEIVE_COUNT = Pattern.compile("\"maxReceiveCount\"\\s*:\\s*\"?(\\d+)");
+
     private final AmazonSQS sqs;
+    private final QueueMetrics metrics = new QueueMetrics("SqsQueueService");
 
     public SqsQueueService(AmazonSQS sqsClient) {
         if (sqsClient == null) {
@@ -26,25 +60,159 @@ public class SqsQueueService implements QueueService {
         if (messageBody == null) {
             throw new IllegalArgumentException("Message body cannot be null");
         }
-        sqs.sendMessage(queueUrl, messageBody);
+        long start = System.nanoTime();
+        QueueStats stats = metrics.queue(queueUrl);
+        try {
+            sqs.sendMessage(queueUrl, messageBody);
+        } catch (RuntimeException e) {
+            stats.recordError(QueueOperation.PUSH);
+            throw e;
+        }
+        stats.recordOperation(QueueOperation.PUSH, start, 1);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Uses the message's DelaySeconds, so the delay is rounded up to whole
+     * seconds and cannot exceed {@value #MAX_DELAY_SECONDS} seconds.
+     */
     @Override
-    public com.example.Message pull(String queueUrl) {
+    public void push(String queueUrl, String messageBody, int priority, Duration delay) {
+        if (delay.isZero() || delay.isNegative()) {
+            push(queueUrl, messageBody, priority);
+            return;
+        }
         if (queueUrl == null || queueUrl.isEmpty()) {
             throw new IllegalArgumentException("Queue URL cannot be null or empty");
         }
+        if (messageBody == null) {
+            throw new IllegalArgumentException("Message body cannot be null");
+        }
+        long delaySeconds = TimeUnit.NANOSECONDS.toSeconds(delay.toNanos() + 999_999_999L);
+        if (delaySeconds > MAX_DELAY_SECONDS) {
+            throw new IllegalArgumentException("SQS cannot delay a message by more than " + MAX_DELAY_SECONDS + " seconds");
+        }
+        long start = System.nanoTime();
+        QueueStats stats = metrics.queue(queueUrl);
+        try {
+            sqs.sendMessage(new SendMessageRequest(queueUrl, messageBody).withDelaySeconds((int) delaySeconds));
+        } catch (RuntimeException e) {
+            stats.recordError(QueueOperation.PUSH);
+            throw e;
+        }
+        stats.recordOperation(QueueOperation.PUSH, start, 1);
+    }
 
-        List<Message> messages = sqs.receiveMessage(queueUrl).getMessages();
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Only for FIFO queues, whose URL ends in {@code .fifo}: the id is sent as
+     * the MessageDeduplicationId, and SQS drops duplicates within its own
+     * five-minute window. SQS does not report a dropped duplicate, so this always
+     * returns true. Each priority is its own message group, so messages of one
+     * priority are delivered in order.
+     */
+    @Override
+    public boolean pushDeduplicated(String queueUrl, String messageBody, int priority, String deduplicationId) {
+        if (queueUrl == null || queueUrl.isEmpty()) {
+            throw new IllegalArgumentException("Queue URL cannot be null or empty");
+        }
+        if (!queueUrl.endsWith(".fifo")) {
+            throw new UnsupportedOperationException("SQS deduplicates only in FIFO queues: " + queueUrl);
+        }
+        if (messageBody == null) {
+            throw new IllegalArgumentException("Message body cannot be null");
+        }
+        if (deduplicationId == null || deduplicationId.isEmpty()) {
+            throw new IllegalArgumentException("Deduplication id cannot be null or empty");
+        }
+        long start = System.nanoTime();
+        QueueStats stats = metrics.queue(queueUrl);
+        try {
+            sqs.sendMessage(new SendMessageRequest(queueUrl, messageBody)
+                    .withMessageDeduplicationId(deduplicationId)
+                    .withMessageGroupId(String.valueOf(priority)));
+        } catch (RuntimeException e) {
+            stats.recordError(QueueOperation.PUSH);
+            throw e;
+        }
+        stats.recordOperation(QueueOperation.PUSH, start, 1);
+        return true;
+    }
+
+    @Override
+    public com.example.Message pull(String queueUrl) {
+        if (queueUrl == null || queueUrl.isEmpty()) {
+            throw new IllegalArgumentException("Queue URL cannot be null or empty");
+        }
 
-        if (messages == null || messages.isEmpty()) {
-            return null; // No messages available
+        long start = System.nanoTime();
+        QueueStats stats = metrics.queue(queueUrl);
+        List<Message> messages;
+        try {
+            messages = sqs.receiveMessage(new ReceiveMessageRequest(queueUrl).withAttributeNames(RECEIVE_COUNT))
+                    .getMessages();
+        } catch (RuntimeException e) {
+            stats.recordError(QueueOperation.PULL);
+            throw e;
         }
 
-        // Retrieve the first message
-        Message sqsMsg = messages.get(0);
+        // Retrieve the first message, if any
+        com.example.Message msg = messages == null || messages.isEmpty() ? null : toMessage(messages.get(0));
+        stats.recordOperation(QueueOperation.PULL, start, msg == null ? 0 : 1);
+        stats.recordDelivery(msg);
+        return msg;
+    }
+
+    @Override
+    public com.example.Message pull(String queueUrl, Duration wait) {
+        return pull(queueUrl, wait, (Integer) null);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Sets the receive request's VisibilityTimeout, rounded up to whole seconds.
+     */
+    @Override
+    public com.example.Message pull(String queueUrl, Duration wait, Duration visibilityTimeout) {
+        return pull(queueUrl, wait, visibilitySeconds(visibilityTimeout));
+    }
 
-        return new com.example.Message(sqsMsg.getBody(), sqsMsg.getReceiptHandle());
+    // A null visibility timeout leaves the queue's default.
+    private com.example.Message pull(String queueUrl, Duration wait, Integer visibilitySeconds) {
+        if (queueUrl == null || queueUrl.isEmpty()) {
+            throw new IllegalArgumentException("Queue URL cannot be null or empty");
+        }
+
+        // Long polling: SQS holds each request open for up to 20 seconds until a message arrives.
+        long start = System.nanoTime();
+        QueueStats stats = metrics.queue(queueUrl);
+        long deadline = start + wait.toNanos();
+        com.example.Message msg = null;
+        try {
+            while (msg == null) {
+                long remainingSeconds = TimeUnit.NANOSECONDS.toSeconds(deadline - System.nanoTime() + 999_999_999L);
+                ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl)
+                        .withMaxNumberOfMessages(1)
+                        .withAttributeNames(RECEIVE_COUNT)
+                        .withVisibilityTimeout(visibilitySeconds)
+                        .withWaitTimeSeconds((int) Math.max(0, Math.min(remainingSeconds, MAX_WAIT_SECONDS)));
+                List<Message> messages = sqs.receiveMessage(request).getMessages();
+                if (messages != null && !messages.isEmpty()) {
+                    msg = toMessage(messages.get(0));
+                } else if (remainingSeconds <= MAX_WAIT_SECONDS || Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            stats.recordError(QueueOperation.PULL);
+            throw e;
+        }
+        stats.recordOperation(QueueOperation.PULL, start, msg == null ? 0 : 1);
+        stats.recordDelivery(msg);
+        return msg;
     }
 
     @Override
@@ -55,6 +223,243 @@ public class SqsQueueService implements QueueService {
         if (receiptId == null || receiptId.isEmpty()) {
             throw new IllegalArgumentException("Receipt ID cannot be null or empty");
         }
-        sqs.deleteMessage(queueUrl, receiptId);
+        long start = System.nanoTime();
+        QueueStats stats = metrics.queue(queueUrl);
+        try {
+            sqs.deleteMessage(queueUrl, receiptId);
+        } catch (RuntimeException e) {
+            stats.recordError(QueueOperation.DELETE);
+            throw e;
+        }
+        stats.recordOperation(QueueOperation.DELETE, start, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Uses ChangeMessageVisibility, rounding the timeout up to whole seconds.
+     */
+    @Override
+    public boolean changeVisibility(String queueUrl, String receiptId, Duration visibilityTimeout) {
+        if (queueUrl == null || queueUrl.isEmpty()) {
+            throw new IllegalArgumentException("Queue URL cannot be null or empty");
+        }
+        if (receiptId == null || receiptId.isEmpty()) {
+            throw new IllegalArgumentException("Receipt ID cannot be null or empty");
+        }
+        int visibilitySeconds = visibilitySeconds(visibilityTimeout);
+        long start = System.nanoTime();
+        QueueStats stats = metrics.queue(queueUrl);
+        try {
+            sqs.changeMessageVisibility(new ChangeMessageVisibilityRequest(queueUrl, receiptId, visibilitySeconds));
+        } catch (MessageNotInflightException | ReceiptHandleIsInvalidException e) {
+            stats.recordOperation(QueueOperation.CHANGE_VISIBILITY, start, 0);
+            return false;
+        } catch (RuntimeException e) {
+            stats.recordError(QueueOperation.CHANGE_VISIBILITY);
+            throw e;
+        }
+        stats.recordOperation(QueueOperation.CHANGE_VISIBILITY, start, 1);
+        return true;
+    }
+
+    @Override
+    public void pushBatch(String queueUrl, List<String> messageBodies, int priority) {
+        // As in push(), the priority is ignored.
+        if (queueUrl == null || queueUrl.isEmpty()) {
+            throw new IllegalArgumentException("Queue URL cannot be null or empty");
+        }
+        // Up front, so that a bad body does not leave the batch half sent.
+        for (String messageBody : messageBodies) {
+            if (messageBody == null) {
+                throw new IllegalArgumentException("Message body cannot be null");
+            }
+        }
+        long startNanos = System.nanoTime();
+        QueueStats stats = metrics.queue(queueUrl);
+        int i = 0;
+        while (i < messageBodies.size()) {
+            List<SendMessageBatchRequestEntry> entries = new ArrayList<>(MAX_BATCH_SIZE);
+            long bytes = 0;
+            for (; i < messageBodies.size() && entries.size() < MAX_BATCH_SIZE; i++) {
+                int length = com.example.Message.utf8Length(messageBodies.get(i));
+                // A body over the limit by itself is sent alone, for SQS to reject.
+                if (!entries.isEmpty() && bytes + length > MAX_BATCH_BYTES) {
+                    break;
+                }
+                bytes += length;
+                entries.add(new SendMessageBatchRequestEntry(String.valueOf(i), messageBodies.get(i)));
+            }
+            try {
+                checkBatchResult("push", sqs.sendMessageBatch(queueUrl, entries).getFailed());
+            } catch (RuntimeException e) {
+                stats.recordError(QueueOperation.PUSH);
+                throw e;
+            }
+        }
+        stats.recordOperation(QueueOperation.PUSH, startNanos, messageBodies.size());
+    }
+
+    @Override
+    public List<com.example.Message> pull(String queueUrl, int maxMessages) {
+        return pull(queueUrl, maxMessages, (Integer) null);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Sets the receive requests' VisibilityTimeout, rounded up to whole seconds.
+     */
+    @Override
+    public List<com.example.Message> pull(String queueUrl, int maxMessages, Duration visibilityTimeout) {
+        return pull(queueUrl, maxMessages, visibilitySeconds(visibilityTimeout));
+    }
+
+    private List<com.example.Message> pull(String queueUrl, int maxMessages, Integer visibilitySeconds) {
+        if (queueUrl == null || queueUrl.isEmpty()) {
+            throw new IllegalArgumentException("Queue URL cannot be null or empty");
+        }
+
+        long start = System.nanoTime();
+        QueueStats stats = metrics.queue(queueUrl);
+        List<com.example.Message> messages = new ArrayList<>(maxMessages);
+        try {
+            while (messages.size() < maxMessages) {
+                ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl)
+                        .withMaxNumberOfMessages(Math.min(maxMessages - messages.size(), MAX_BATCH_SIZE))
+                        .withAttributeNames(RECEIVE_COUNT)
+                        .withVisibilityTimeout(visibilitySeconds);
+                List<Message> received = sqs.receiveMessage(request).getMessages();
+                if (received == null || received.isEmpty()) {
+                    break;
+                }
+                for (Message sqsMsg : received) {
+                    messages.add(toMessage(sqsMsg));
+                }
+            }
+        } catch (RuntimeException e) {
+            stats.recordError(QueueOperation.PULL);
+            throw e;
+        }
+        stats.recordOperation(QueueOperation.PULL, start, messages.size());
+        if (messages.isEmpty()) {
+            stats.recordDelivery(null);
+        }
+        for (com.example.Message msg : messages) {
+            stats.recordDelivery(msg);
+        }
+        return messages;
+    }
+
+    @Override
+    public void deleteBatch(String queueUrl, List<String> receiptIds) {
+        if (queueUrl == null || queueUrl.isEmpty()) {
+            throw new IllegalArgumentException("Queue URL cannot be null or empty");
+        }
+        // Up front, so that a bad receipt does not leave the batch half deleted.
+        for (String receiptId : receiptIds) {
+            if (receiptId == null || receiptId.isEmpty()) {
+                throw new IllegalArgumentException("Receipt ID cannot be null or empty");
+            }
+        }
+        long startNanos = System.nanoTime();
+        QueueStats stats = metrics.queue(queueUrl);
+        for (int start = 0; start < receiptIds.size(); start += MAX_BATCH_SIZE) {
+            List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(MAX_BATCH_SIZE);
+            for (int i = start; i < Math.min(start + MAX_BATCH_SIZE, receiptIds.size()); i++) {
+                entries.add(new DeleteMessageBatchRequestEntry(String.valueOf(i), receiptIds.get(i)));
+            }
+            try {
+                checkBatchResult("delete", sqs.deleteMessageBatch(queueUrl, entries).getFailed());
+            } catch (RuntimeException e) {
+                stats.recordError(QueueOperation.DELETE);
+                throw e;
+            }
+        }
+        stats.recordOperation(QueueOperation.DELETE, startNanos, receiptIds.size());
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Sets the queue's RedrivePolicy attribute, so SQS itself moves the messages.
+     */
+    @Override
+    public void setRedrivePolicy(String queueUrl, RedrivePolicy policy) {
+        if (queueUrl == null || queueUrl.isEmpty()) {
+            throw new IllegalArgumentException("Queue URL cannot be null or empty");
+        }
+        String redrivePolicy = ""; // An empty policy removes it
+        if (policy != null) {
+            String deadLetterTargetArn = sqs.getQueueAttributes(new GetQueueAttributesRequest(policy.getDeadLetterQueueUrl())
+                    .withAttributeNames(QueueAttributeName.QueueArn))
+                    .getAttributes().get(QueueAttributeName.QueueArn.toString());
+            redrivePolicy = "{\"maxReceiveCount\":\"" + policy.getMaxReceiveCount()
+                    + "\",\"deadLetterTargetArn\":\"" + deadLetterTargetArn + "\"}";
+        }
+        sqs.setQueueAttributes(queueUrl,
+                Collections.singletonMap(QueueAttributeName.RedrivePolicy.toString(), redrivePolicy));
+    }
+
+    @Override
+    public RedrivePolicy getRedrivePolicy(String queueUrl) {
+        if (queueUrl == null || queueUrl.isEmpty()) {
+            throw new IllegalArgumentException("Queue URL cannot be null or empty");
+        }
+        String redrivePolicy = sqs.getQueueAttributes(new GetQueueAttributesRequest(queueUrl)
+                .withAttributeNames(QueueAttributeName.RedrivePolicy))
+                .getAttributes().get(QueueAttributeName.RedrivePolicy.toString());
+        if (redrivePolicy == null || redrivePolicy.isEmpty()) {
+            return null;
+        }
+        Matcher target = DEAD_LETTER_TARGET.matcher(redrivePolicy);
+        Matcher maxReceiveCount = MAX_RECEIVE_COUNT.matcher(redrivePolicy);
+        if (!target.find() || !maxReceiveCount.find()) {
+            throw new IllegalStateException("Unrecognized redrive policy: " + redrivePolicy);
+        }
+        // arn:aws:sqs:<region>:<account>:<queue name>
+        String[] arn = target.group(1).split(":");
+        String deadLetterQueueUrl = sqs.getQueueUrl(new GetQueueUrlRequest(arn[5]).withQueueOwnerAWSAccountId(arn[4]))
+                .getQueueUrl();
+        return new RedrivePolicy(deadLetterQueueUrl, Integer.parseInt(maxReceiveCount.group(1)));
+    }
+
+    /**
+     * The metrics of every queue of this service, keyed by queue URL. SQS keeps
+     * the depth of a queue to itself, so the depth gauges stay unknown.
+     */
+    public QueueMetrics getMetrics() {
+        return metrics;
+    }
+
+    // SQS takes visibility timeouts in whole seconds, so a timeout is rounded up.
+    private static int visibilitySeconds(Duration visibilityTimeout) {
+        if (visibilityTimeout.isNegative()) {
+            return 0;
+        }
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(visibilityTimeout.toNanos() + 999_999_999L);
+        if (seconds > MAX_VISIBILITY_SECONDS) {
+            throw new IllegalArgumentException("SQS cannot hide a message for more than " + MAX_VISIBILITY_SECONDS + " seconds");
+        }
+        return (int) seconds;
+    }
+
+    // Carries the delivery count over when SQS returned it.
+    private static com.example.Message toMessage(Message sqsMsg) {
+        com.example.Message msg = new com.example.Message(sqsMsg.getBody(), sqsMsg.getReceiptHandle());
+        String receiveCount = sqsMsg.getAttributes() == null ? null : sqsMsg.getAttributes().get(RECEIVE_COUNT);
+        if (receiveCount != null) {
+            msg.setAttempts(Integer.parseInt(receiveCount));
+        }
+        return msg;
+    }
+
+    // Batch requests succeed even when some entries fail; surface those failures like single calls would.
+    private static void checkBatchResult(String operation, List<BatchResultErrorEntry> failed) {
+        if (failed != null && !failed.isEmpty()) {
+            BatchResultErrorEntry first = failed.get(0);
+            throw new RuntimeException("Failed to " + operation + " " + failed.size() + " message(s), first error: "
+                    + first.getCode() + " " + first.getMessage());
+        }
     }
 }
\ No newline at end of file
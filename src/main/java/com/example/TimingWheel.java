@@ -0,0 +1,257 @@
+package com.example;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timing wheel with millisecond resolution, used by the local
+ * queue services to return in-flight messages to the ready set when their
+ * visibility timeout expires.
+ *
+ * <p>The wheel has {@value #LEVELS} levels of 64 slots. Level 0 holds timers due
+ * within the next 64 ms, level 1 within the next 64^2 ms, and so on; when the
+ * wheel crosses a slot boundary of level n, that slot is cascaded down into the
+ * finer levels. Scheduling and cancelling are O(1), and expiring a timer is
+ * O(1) amortized over its cascades. Each level keeps a 64-bit occupancy bitmap,
+ * so advancing over idle periods skips empty slots instead of visiting them.
+ *
+ * <p>The wheel has no clock of its own: callers pass the current time to
+ * {@link #advance(long, Consumer)}, which keeps it deterministic under an
+ * injected time supplier. The wheel must be advanced once before the first
+ * timer is scheduled, so that it knows where "now" is. It is not thread-safe;
+ * callers guard it with the lock of the queue it belongs to.
+ *
+ * @param <T> the type of the value carried by each timer
+ */
+class TimingWheel<T> {
+  static final int LEVELS = 6;
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final long SLOT_MASK = SLOTS - 1;
+  private static final long MAX_DELTA = (1L << (LEVELS * SLOT_BITS)) - 1;
+
+  // Timers scheduled with a deadline the wheel has already passed live in this extra row.
+  private static final int OVERDUE = LEVELS;
+
+  // Java cannot create an array of a generic type; the raw array only ever holds this wheel's Timer<T>.
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private final Timer<T>[][] slots = new Timer[LEVELS + 1][SLOTS];
+  private final long[] occupied = new long[LEVELS + 1];
+  private long currentTick = Long.MIN_VALUE;
+  private int size;
+
+  /**
+   * A scheduled timer. Returned by {@link #schedule(Object, long)} so that it can be cancelled.
+   */
+  static final class Timer<T> {
+    private final T value;
+    private final long deadline;
+    private Timer<T> prev;
+    private Timer<T> next;
+    private int level = -1;
+    private int slot;
+
+    private Timer(T value, long deadline) {
+      this.value = value;
+      this.deadline = deadline;
+    }
+
+    T value() {
+      return value;
+    }
+
+    long deadline() {
+      return deadline;
+    }
+
+    boolean isScheduled() {
+      return level >= 0;
+    }
+  }
+
+  /**
+   * Schedules {@code value} to expire once the wheel is advanced to {@code deadline} or later.
+   */
+  Timer<T> schedule(T value, long deadline) {
+    if (currentTick == Long.MIN_VALUE) {
+      throw new IllegalStateException("The timing wheel must be advanced before scheduling");
+    }
+    Timer<T> timer = new Timer<>(value, deadline);
+    insert(timer);
+    size++;
+    return timer;
+  }
+
+  /**
+   * Cancels a timer that has not expired yet.
+   *
+   * @return true if the timer was still scheduled
+   */
+  boolean cancel(Timer<T> timer) {
+    if (!timer.isScheduled()) {
+      return false;
+    }
+    unlink(timer);
+    size--;
+    return true;
+  }
+
+  /**
+   * Expires every timer whose deadline is at or before {@code now}, handing its value to {@code expired}.
+   */
+  void advance(long now, Consumer<? super T> expired) {
+    if (currentTick == Long.MIN_VALUE) {
+      currentTick = now;
+    }
+    if (occupied[OVERDUE] != 0) {
+      expireSlot(OVERDUE, 0, expired);
+    }
+    if (size == 0) {
+      // Nothing to expire; just move the wheel forward so new timers are placed relative to now.
+      if (now >= currentTick) {
+        currentTick = now + 1;
+      }
+      return;
+    }
+    while (currentTick <= now) {
+      int index = (int) (currentTick & SLOT_MASK);
+      if (index == 0) {
+        cascade(1);
+      }
+      if ((occupied[0] & (1L << index)) != 0) {
+        expireSlot(0, index, expired);
+      }
+      if (size == 0) {
+        currentTick = now + 1;
+        return;
+      }
+      currentTick = Math.min(nextTickToVisit(currentTick), now + 1);
+    }
+  }
+
+  /**
+   * A time at or before the earliest deadline of the scheduled timers, for callers
+   * that sleep until something may expire: advancing the wheel to this time may
+   * expire nothing, but advancing it to an earlier time never expires anything.
+   *
+   * @return the time, or {@link Long#MAX_VALUE} if no timer is scheduled
+   */
+  long nextExpiry() {
+    if (size == 0) {
+      return Long.MAX_VALUE;
+    }
+    if (occupied[OVERDUE] != 0) {
+      return currentTick - 1;
+    }
+    return nextTickToVisit(currentTick - 1);
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  private void expireSlot(int level, int index, Consumer<? super T> expired) {
+    Timer<T> timer = slots[level][index];
+    while (timer != null) {
+      Timer<T> next = timer.next;
+      unlink(timer);
+      size--;
+      expired.accept(timer.value);
+      timer = next;
+    }
+  }
+
+  // Moves the timers of the current slot at the given level down to the finer levels.
+  private void cascade(int level) {
+    if (level >= LEVELS) {
+      return;
+    }
+    int index = (int) ((currentTick >>> (level * SLOT_BITS)) & SLOT_MASK);
+    if (index == 0) {
+      cascade(level + 1);
+    }
+    Timer<T> timer = slots[level][index];
+    while (timer != null) {
+      Timer<T> next = timer.next;
+      unlink(timer);
+      insert(timer);
+      timer = next;
+    }
+  }
+
+  /*
+   * The next tick after {@code tick} that has to be visited: the start of the next
+   * occupied slot at the finest non-empty level, or the wrap of that level when its
+   * remaining timers sit in slots of the next rotation. Empty levels are skipped
+   * entirely, which is what makes long idle periods cheap to advance over.
+   */
+  private long nextTickToVisit(long tick) {
+    for (int level = 0; level < LEVELS; level++) {
+      int shift = level * SLOT_BITS;
+      int index = (int) ((tick >>> shift) & SLOT_MASK);
+      long blockStart = (tick >>> (shift + SLOT_BITS)) << (shift + SLOT_BITS);
+      long later = index == SLOTS - 1 ? 0 : occupied[level] & (-1L << (index + 1));
+      if (later != 0) {
+        return blockStart + ((long) Long.numberOfTrailingZeros(later) << shift);
+      }
+      if (occupied[level] != 0) {
+        return blockStart + (1L << (shift + SLOT_BITS));
+      }
+    }
+    return tick + 1;
+  }
+
+  private void insert(Timer<T> timer) {
+    long delta = timer.deadline - currentTick;
+    int level;
+    long tick;
+    if (delta < 0) {
+      // The wheel has already passed this deadline: fire on the next advance.
+      level = OVERDUE;
+      tick = 0;
+    } else {
+      if (delta > MAX_DELTA) {
+        delta = MAX_DELTA;
+      }
+      level = 0;
+      while (level < LEVELS - 1 && delta >= 1L << ((level + 1) * SLOT_BITS)) {
+        level++;
+      }
+      tick = currentTick + delta;
+    }
+    int slot = (int) ((tick >>> (level * SLOT_BITS)) & SLOT_MASK);
+
+    Timer<T> head = slots[level][slot];
+    timer.prev = null;
+    timer.next = head;
+    if (head != null) {
+      head.prev = timer;
+    }
+    slots[level][slot] = timer;
+    occupied[level] |= 1L << slot;
+    timer.level = level;
+    timer.slot = slot;
+  }
+
+  private void unlink(Timer<T> timer) {
+    int level = timer.level;
+    int slot = timer.slot;
+    if (timer.prev != null) {
+      timer.prev.next = timer.next;
+    } else {
+      slots[level][slot] = timer.next;
+    }
+    if (timer.next != null) {
+      timer.next.prev = timer.prev;
+    }
+    if (slots[level][slot] == null) {
+      occupied[level] &= ~(1L << slot);
+    }
+    timer.prev = null;
+    timer.next = null;
+    timer.level = -1;
+  }
+}
@@ -0,0 +1,81 @@
+package com.example;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+
+public class AsyncQueueServiceTest {
+    private final String queueUrl = "https://sqs.ap-1.amazonaws.com/007/MyAsyncQueue";
+
+    @Test
+    public void testWrappedServiceKeepsManyOperationsInFlight() throws Exception {
+        AsyncQueueService qs = AsyncQueueService.wrap(new InMemoryQueueService());
+        List<CompletableFuture<Void>> pushes = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            pushes.add(qs.pushAsync(queueUrl, "Message " + i, 1));
+        }
+        CompletableFuture.allOf(pushes.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+        List<CompletableFuture<Message>> pulls = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            pulls.add(qs.pullAsync(queueUrl));
+        }
+        Set<String> bodies = new HashSet<>();
+        List<CompletableFuture<Void>> deletes = new ArrayList<>();
+        for (CompletableFuture<Message> pull : pulls) {
+            Message msg = pull.get(10, TimeUnit.SECONDS);
+            bodies.add(msg.getBody());
+            deletes.add(qs.deleteAsync(queueUrl, msg.getReceiptId()));
+        }
+        CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+        assertEquals(1_000, bodies.size());
+        assertNull(qs.pullAsync(queueUrl).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSqsFuturesCompleteFromClientCallbacks() throws Exception {
+        AmazonSQSAsync sqs = mock(AmazonSQSAsync.class);
+        when(sqs.receiveMessageAsync(any(ReceiveMessageRequest.class), any(AsyncHandler.class))).thenAnswer(call -> {
+            AsyncHandler<ReceiveMessageRequest, ReceiveMessageResult> handler = call.getArgument(1);
+            handler.onSuccess(call.getArgument(0), new ReceiveMessageResult().withMessages(
+                    new com.amazonaws.services.sqs.model.Message().withBody("Async").withReceiptHandle("r")));
+            return null;
+        });
+        when(sqs.sendMessageAsync(any(SendMessageRequest.class), any(AsyncHandler.class))).thenAnswer(call -> {
+            AsyncHandler<SendMessageRequest, ?> handler = call.getArgument(1);
+            handler.onError(new AmazonServiceException("Throttled"));
+            return null;
+        });
+        SqsAsyncQueueService qs = new SqsAsyncQueueService(sqs);
+
+        Message msg = qs.pullAsync(queueUrl).get(10, TimeUnit.SECONDS);
+        assertEquals("Async", msg.getBody());
+        assertEquals("r", msg.getReceiptId());
+
+        try {
+            qs.pushAsync(queueUrl, "Rejected", 1).get(10, TimeUnit.SECONDS);
+            fail("The client error must fail the future");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AmazonServiceException);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.example;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DeduplicationWindowTest {
+
+    @Test
+    public void testIdsExpireAfterTheWindow() {
+        DeduplicationWindow window = new DeduplicationWindow(1_000, 100);
+        assertTrue(window.add("a", 0));
+        assertTrue(window.add("b", 500));
+        assertFalse(window.add("a", 999));
+        assertTrue(window.contains("b", 1_000));
+        assertFalse(window.contains("a", 1_000));
+        assertEquals(1, window.size());
+        assertTrue(window.add("a", 1_000));
+        assertFalse(window.contains("b", 1_500));
+    }
+
+    @Test
+    public void testOldestIdsAreForgottenBeyondTheLimit() {
+        DeduplicationWindow window = new DeduplicationWindow(60_000, 3);
+        for (int i = 0; i < 40; i++) {
+            assertTrue(window.add("id" + i, i));
+        }
+        assertEquals(3, window.size());
+        assertFalse(window.contains("id36", 40));
+        assertTrue(window.contains("id37", 40));
+        assertFalse(window.add("id39", 40));
+    }
+
+    @Test
+    public void testRestoredIdsKeepTheirExpiry() {
+        DeduplicationWindow window = new DeduplicationWindow(1_000, 100);
+        window.restore("gone", 100, 200);
+        window.restore("a", 500, 200);
+        window.restore("b", 900, 200);
+        // Restored again by a later record: the earlier expiry no longer applies.
+        window.restore("a", 1_200, 300);
+        assertFalse(window.contains("gone", 300));
+        assertTrue(window.contains("a", 1_000));
+        assertFalse(window.contains("b", 1_000));
+
+        List<String> live = new ArrayList<>();
+        window.forEach((id, expiry) -> live.add(id + "@" + expiry));
+        assertEquals(Arrays.asList("a@1200"), live);
+    }
+}
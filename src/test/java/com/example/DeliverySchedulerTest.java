@@ -0,0 +1,146 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class DeliverySchedulerTest {
+
+    private static ReadyLanes<Message> lanes(DeliveryScheduler scheduler) {
+        return new ReadyLanes<>(scheduler, Message::getPriority, Message::getSequence, Message::getTimestamp);
+    }
+
+    private static Message message(String body, int priority, long sequence, long timestamp) {
+        Message msg = new Message(body, priority, timestamp);
+        msg.setSequence(sequence);
+        return msg;
+    }
+
+    private static List<String> drain(ReadyLanes<Message> lanes, long now) {
+        List<String> bodies = new ArrayList<>();
+        Message msg;
+        while ((msg = lanes.poll(now)) != null) {
+            bodies.add(msg.getBody());
+        }
+        return bodies;
+    }
+
+    @Test
+    public void testStrictPriorityDeliversHighestBandFirstAndFifoWithinBand() {
+        ReadyLanes<Message> lanes = lanes(DeliveryScheduler.strictPriority());
+        lanes.add(message("low-1", 1, 0, 0));
+        lanes.add(message("high-1", 5, 1, 0));
+        lanes.add(message("low-2", 1, 2, 0));
+        lanes.add(message("high-2", 5, 3, 0));
+
+        assertEquals(List.of("high-1", "high-2", "low-1", "low-2"), drain(lanes, 0));
+        assertTrue(lanes.isEmpty());
+    }
+
+    @Test
+    public void testFifoIgnoresPriority() {
+        ReadyLanes<Message> lanes = lanes(DeliveryScheduler.fifo());
+        lanes.add(message("a", 1, 0, 0));
+        lanes.add(message("b", 9, 1, 0));
+        lanes.add(message("c", 5, 2, 0));
+
+        assertEquals(List.of("a", "b", "c"), drain(lanes, 0));
+    }
+
+    @Test
+    public void testRedeliveredMessageReturnsToItsPlaceInTheBand() {
+        ReadyLanes<Message> lanes = lanes(DeliveryScheduler.strictPriority());
+        Message first = message("first", 1, 0, 0);
+        Message second = message("second", 1, 1, 0);
+        lanes.add(first);
+        lanes.add(second);
+        lanes.add(message("third", 1, 2, 0));
+
+        assertEquals("first", lanes.poll(0).getBody());
+        assertEquals("second", lanes.poll(0).getBody());
+        // Their visibility timeouts expire in the opposite order.
+        lanes.add(second);
+        lanes.add(first);
+
+        assertEquals(List.of("first", "second", "third"), drain(lanes, 0));
+    }
+
+    @Test
+    public void testRemoveTakesMessageOutOfItsBand() {
+        ReadyLanes<Message> lanes = lanes(DeliveryScheduler.strictPriority());
+        Message high = message("high", 5, 0, 0);
+        lanes.add(high);
+        lanes.add(message("low", 1, 1, 0));
+
+        assertTrue(lanes.remove(high));
+        assertEquals(1, lanes.size());
+        assertEquals("low", lanes.poll(0).getBody());
+        assertNull(lanes.poll(0));
+    }
+
+    @Test
+    public void testWeightedRoundRobinSharesDeliveriesByWeight() {
+        ReadyLanes<Message> lanes = lanes(DeliveryScheduler.weightedRoundRobin(priority -> priority));
+        for (int i = 0; i < 100; i++) {
+            lanes.add(message("high", 3, 2 * i, 0));
+            lanes.add(message("low", 1, 2 * i + 1, 0));
+        }
+
+        List<String> first = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            first.add(lanes.poll(0).getBody());
+        }
+        assertEquals(30, first.stream().filter("high"::equals).count());
+        assertEquals(10, first.stream().filter("low"::equals).count());
+        // Smooth interleaving: the low band never waits more than one round of four.
+        for (int i = 0; i + 4 <= first.size(); i++) {
+            assertTrue(first.subList(i, i + 4).contains("low"));
+        }
+    }
+
+    @Test
+    public void testAgingEventuallyDeliversLowPriority() {
+        ReadyLanes<Message> lanes = lanes(DeliveryScheduler.aging(100));
+        lanes.add(message("old-low", 1, 0, 0));
+        lanes.add(message("new-high", 3, 1, 150));
+
+        // After 150ms the low message has gained one level; not enough to overtake.
+        assertEquals("new-high", lanes.poll(150).getBody());
+
+        lanes.add(message("newer-high", 3, 2, 250));
+        // After 250ms it has gained two and ties with the high band, which wins ties.
+        assertEquals("newer-high", lanes.poll(250).getBody());
+
+        lanes.add(message("newest-high", 3, 3, 300));
+        assertEquals("old-low", lanes.poll(300).getBody());
+        assertEquals("newest-high", lanes.poll(300).getBody());
+    }
+
+    @Test
+    public void testFromConfigSelectsMode() {
+        Properties config = new Properties();
+        ReadyLanes<Message> lanes = lanes(DeliveryScheduler.fromConfig(config, "fifo"));
+        lanes.add(message("a", 1, 0, 0));
+        lanes.add(message("b", 9, 1, 0));
+        assertEquals("a", lanes.poll(0).getBody());
+
+        config.setProperty("deliveryScheduler", "strict");
+        lanes = lanes(DeliveryScheduler.fromConfig(config, "fifo"));
+        lanes.add(message("a", 1, 0, 0));
+        lanes.add(message("b", 9, 1, 0));
+        assertEquals("b", lanes.poll(0).getBody());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromConfigRejectsUnknownMode() {
+        Properties config = new Properties();
+        config.setProperty("deliveryScheduler", "random");
+        DeliveryScheduler.fromConfig(config, "fifo");
+    }
+}
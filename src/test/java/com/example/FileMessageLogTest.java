@@ -0,0 +1,263 @@
+package com.example;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileMessageLogTest {
+    private static final long VISIBILITY = 30_000;
+
+    private Path dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("file-message-log");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testSecondProcessSeesAppendsDeliveriesAndDeletes() throws IOException {
+        FileMessageLog first = new FileMessageLog(dir);
+        FileMessageLog second = new FileMessageLog(dir);
+
+        first.catchUp(1_000);
+        first.append(1_000, 1, "a:b:c");
+        first.append(1_000, 1, "second");
+
+        second.catchUp(1_000);
+        Message msg = second.deliver(1_000 + VISIBILITY);
+        assertEquals("a:b:c", msg.getBody());
+
+        // The first process must not deliver the message the second one holds.
+        first.catchUp(1_001);
+        Message other = first.deliver(1_001 + VISIBILITY);
+        assertEquals("second", other.getBody());
+        assertNull(first.deliver(1_001 + VISIBILITY));
+
+        // A receipt issued by one process can be deleted through the other.
+        assertTrue(first.delete(msg.getReceiptId(), 1_002));
+        second.catchUp(1_003);
+        assertEquals(1, second.size());
+    }
+
+    @Test
+    public void testStateSurvivesRestart() throws IOException {
+        FileMessageLog log = new FileMessageLog(dir);
+        log.catchUp(1_000);
+        log.append(1_000, 1, "deleted");
+        log.append(1_000, 1, "in flight");
+        log.append(1_000, 1, "ready");
+        Message deleted = log.deliver(1_000 + VISIBILITY);
+        log.delete(deleted.getReceiptId(), 1_000);
+        log.deliver(1_000 + VISIBILITY);
+
+        FileMessageLog restarted = new FileMessageLog(dir);
+        restarted.catchUp(2_000);
+        assertEquals(2, restarted.size());
+        assertEquals("ready", restarted.deliver(2_000 + VISIBILITY).getBody());
+        assertNull(restarted.deliver(2_000 + VISIBILITY));
+
+        // Once the visibility timeout expires the in-flight message is delivered again.
+        restarted.catchUp(1_000 + VISIBILITY);
+        assertEquals("in flight", restarted.deliver(1_000 + 2 * VISIBILITY).getBody());
+    }
+
+    @Test
+    public void testCompactionDropsDeletedSegmentsAndSnapshotsState() throws IOException {
+        FileMessageLog log = new FileMessageLog(dir, 64);
+        FileMessageLog reader = new FileMessageLog(dir, 64);
+        log.catchUp(0);
+        reader.catchUp(0);
+
+        int total = FileMessageLog.STATE_COMPACTION_THRESHOLD;
+        for (int i = 0; i < total; i++) {
+            log.append(0, 1, "message " + i);
+        }
+        for (int i = 0; i < total - 1; i++) {
+            Message msg = log.deliver(VISIBILITY);
+            assertTrue(log.delete(msg.getReceiptId(), 0));
+        }
+        assertTrue(log.needsCompaction());
+        log.compact();
+        assertFalse(log.needsCompaction());
+
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(3, files.count()); // the active segment, the rewritten state log and its checkpoint
+        }
+
+        // A process that was attached before the compaction reloads and sees the same queue.
+        reader.catchUp(0);
+        assertEquals(1, reader.size());
+        assertEquals("message " + (total - 1), reader.deliver(VISIBILITY).getBody());
+
+        FileMessageLog restarted = new FileMessageLog(dir, 64);
+        restarted.catchUp(0);
+        assertEquals(1, restarted.size());
+        assertNull(restarted.deliver(VISIBILITY));
+    }
+
+    @Test
+    public void testBodiesLargerThanReadBufferAndWithNewlines() throws IOException {
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 200_000) {
+            large.append("line\n");
+        }
+        FileMessageLog log = new FileMessageLog(dir);
+        log.catchUp(1_000);
+        log.append(1_000, 1, large.toString());
+        log.append(1_000, 1, "after\nlarge");
+
+        FileMessageLog restarted = new FileMessageLog(dir);
+        restarted.catchUp(1_000);
+        assertEquals(2, restarted.size());
+        assertEquals(large.toString(), restarted.deliver(1_000 + VISIBILITY).getBody());
+        assertEquals("after\nlarge", restarted.deliver(1_000 + VISIBILITY).getBody());
+    }
+
+    @Test
+    public void testBatchesSpanSegmentsAndSurviveRestart() throws IOException {
+        FileMessageLog log = new FileMessageLog(dir, 64);
+        log.catchUp(1_000);
+        log.appendAll(1_000, 1, Arrays.asList("batch 1", "batch 2", "batch 3", "batch 4", "batch 5"));
+        List<Message> delivered = log.deliver(1_000 + VISIBILITY, 3);
+        assertEquals(3, delivered.size());
+        assertEquals(2, log.deleteAll(Arrays.asList(delivered.get(0).getReceiptId(),
+                delivered.get(1).getReceiptId(), delivered.get(1).getReceiptId(), "unknown"), 1_000));
+
+        FileMessageLog restarted = new FileMessageLog(dir, 64);
+        restarted.catchUp(1_000);
+        assertEquals(3, restarted.size());
+        List<Message> rest = restarted.deliver(1_000 + VISIBILITY, 10);
+        assertEquals(2, rest.size());
+        assertEquals("batch 4", rest.get(0).getBody());
+        assertEquals("batch 5", rest.get(1).getBody());
+        assertTrue(restarted.delete(delivered.get(2).getReceiptId(), 1_000));
+    }
+
+    @Test
+    public void testDelayedMessagesBecomeReadyWhenDue() throws IOException {
+        FileMessageLog log = new FileMessageLog(dir);
+        log.catchUp(1_000);
+        log.append(1_000, 1, "later", 5_000);
+        log.append(1_000, 1, "now");
+        assertTrue(log.nextExpiry() <= 5_000);
+
+        assertEquals("now", log.deliver(1_000 + VISIBILITY).getBody());
+        assertNull(log.deliver(1_000 + VISIBILITY));
+
+        // Another process sees the delay too, and the message once it is due.
+        FileMessageLog other = new FileMessageLog(dir);
+        other.catchUp(4_999);
+        assertNull(other.deliver(4_999 + VISIBILITY));
+        other.catchUp(5_000);
+        assertEquals("later", other.deliver(5_000 + VISIBILITY).getBody());
+    }
+
+    @Test
+    public void testRestartReplaysOnlyTheTailAfterACheckpoint() throws IOException {
+        FileMessageLog log = new FileMessageLog(dir, 64);
+        log.catchUp(1_000);
+        for (int i = 0; i < 6; i++) {
+            log.append(1_000, 1, body(i));
+        }
+        log.append(1_000, 1, "later", 5_000);
+        Message deleted = log.deliver(1_000 + VISIBILITY);
+        assertTrue(log.delete(deleted.getReceiptId(), 1_000));
+        Message inFlight = log.deliver(1_000 + VISIBILITY);
+        assertTrue(log.needsCompaction());
+        log.compact();
+        assertFalse(log.needsCompaction());
+        assertTrue(Files.exists(dir.resolve("checkpoint.bin")));
+
+        // Written after the checkpoint, so replayed on restart.
+        long stateSize = Files.size(dir.resolve("state-1.log"));
+        log.append(1_000, 1, "after checkpoint");
+        assertEquals(body(2), log.deliver(1_000 + VISIBILITY).getBody());
+
+        // Blank out the state log up to the checkpoint: a full scan would lose the
+        // delete and the first delivery, the tail replay never reads them.
+        try (FileChannel state = FileChannel.open(dir.resolve("state-1.log"), StandardOpenOption.WRITE)) {
+            state.write(ByteBuffer.allocate((int) stateSize), 0);
+        }
+
+        FileMessageLog restarted = new FileMessageLog(dir, 64);
+        restarted.catchUp(2_000);
+        assertEquals(7, restarted.size());
+        assertEquals(2, restarted.inFlightSize());
+        assertTrue(restarted.verify().isEmpty());
+        assertTrue(restarted.delete(inFlight.getReceiptId(), 2_000));
+        List<Message> ready = restarted.deliver(2_000 + VISIBILITY, 10);
+        assertEquals(4, ready.size());
+        assertEquals(body(3), ready.get(0).getBody());
+        assertEquals("after checkpoint", ready.get(3).getBody());
+        restarted.catchUp(5_000);
+        assertEquals("later", restarted.deliver(5_000 + VISIBILITY).getBody());
+    }
+
+    @Test
+    public void testCorruptCheckpointAndOrphansAreIgnoredOnLoad() throws IOException {
+        FileMessageLog log = new FileMessageLog(dir, 64);
+        log.catchUp(1_000);
+        for (int i = 0; i < 4; i++) {
+            log.append(1_000, 1, body(i));
+        }
+        log.deliver(1_000 + VISIBILITY);
+        log.compact();
+
+        Path checkpoint = dir.resolve("checkpoint.bin");
+        byte[] bytes = Files.readAllBytes(checkpoint);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(checkpoint, bytes);
+        Files.write(dir.resolve("state-2.tmp"), new byte[] {1, 2, 3});
+        Files.write(dir.resolve("checkpoint.bin.tmp"), new byte[] {1, 2, 3});
+        assertEquals(Arrays.asList("Checkpoint " + checkpoint + " is corrupt"), log.verify());
+
+        // The full scan finds the same queue, and the crashed writes' temporary files are gone.
+        FileMessageLog restarted = new FileMessageLog(dir, 64);
+        restarted.catchUp(1_000);
+        assertEquals(4, restarted.size());
+        assertEquals(1, restarted.inFlightSize());
+        assertEquals(body(1), restarted.deliver(1_000 + VISIBILITY).getBody());
+        assertFalse(Files.exists(dir.resolve("state-2.tmp")));
+        assertFalse(Files.exists(dir.resolve("checkpoint.bin.tmp")));
+    }
+
+    @Test
+    public void testVerifyReportsTruncatedSegments() throws IOException {
+        FileMessageLog log = new FileMessageLog(dir);
+        log.catchUp(1_000);
+        log.append(1_000, 1, "first");
+        log.append(1_000, 1, "second");
+        assertTrue(log.verify().isEmpty());
+
+        try (FileChannel segment = FileChannel.open(dir.resolve("segment-1.log"), StandardOpenOption.WRITE)) {
+            segment.truncate(segment.size() - 1);
+        }
+        List<String> problems = log.verify();
+        assertEquals(1, problems.size());
+        assertTrue(problems.get(0).startsWith("Message 2 is truncated"));
+    }
+
+    // Long enough that the log outgrows the checkpoint, which is then due.
+    private static String body(int i) {
+        return "message " + i + " with a body longer than its checkpoint entry";
+    }
+}
@@ -0,0 +1,84 @@
+package com.example;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileQueueMigrationTest {
+    private static final long VISIBILITY = 30_000;
+    private static final String RECEIPT = "7c9e6679-7425-40de-944b-e07fc1f90ae7";
+
+    private Path dir;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("file-queue-migration");
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testMigrateKeepsOrderAndInFlightReceipts() throws IOException, InterruptedException {
+        long now = System.currentTimeMillis();
+        Path queue = Files.createDirectories(dir.resolve("MyQueue"));
+        Files.write(queue.resolve(FileQueueMigration.LEGACY_FILE), Arrays.asList(
+                "0:" + (now - 2_000) + ":" + RECEIPT + ":1:first:with:delimiters",
+                "1:" + (now + VISIBILITY) + ":" + RECEIPT + ":1:in flight",
+                "2:" + (now - 1_000) + ":00000000-0000-0000-0000-000000000001:1:timed out"),
+                StandardCharsets.UTF_8);
+
+        assertEquals(1, FileQueueMigration.migrate(dir, ":"));
+        assertFalse(Files.exists(queue.resolve(FileQueueMigration.LEGACY_FILE)));
+        assertTrue(Files.exists(queue.resolve(FileQueueMigration.MIGRATED_FILE)));
+        assertEquals(0, FileQueueMigration.migrate(dir, ":"));
+
+        FileMessageLog log = new FileMessageLog(queue);
+        log.catchUp(now);
+        assertEquals(3, log.size());
+        assertEquals("first:with:delimiters", log.deliver(now + VISIBILITY).getBody());
+        assertEquals("timed out", log.deliver(now + VISIBILITY).getBody());
+        assertNull(log.deliver(now + VISIBILITY));
+
+        // The receipt handed out before the migration still deletes the in-flight message.
+        assertTrue(log.delete(RECEIPT, now));
+        assertEquals(2, log.size());
+    }
+
+    @Test
+    public void testMigrateStartsOverAfterAPartialRunAndSkipsMalformedLines() throws IOException {
+        long now = System.currentTimeMillis();
+        Path queue = Files.createDirectories(dir.resolve("MyQueue"));
+        Files.write(queue.resolve(FileQueueMigration.LEGACY_FILE), Arrays.asList(
+                "0:" + (now - 2_000) + ":" + RECEIPT + ":1:first",
+                "0:not a time:" + RECEIPT + ":1:malformed",
+                "short line",
+                "0:" + (now - 1_000) + ":" + RECEIPT + ":1:second"),
+                StandardCharsets.UTF_8);
+        // What a conversion that died before renaming the old file leaves behind.
+        FileMessageLog partial = new FileMessageLog(queue);
+        partial.catchUp(now);
+        partial.append(now - 2_000, 1, "first");
+        partial.close();
+
+        assertTrue(FileQueueMigration.migrateQueue(queue, ":", now));
+        FileMessageLog log = new FileMessageLog(queue);
+        log.catchUp(now);
+        assertEquals(2, log.size());
+        assertEquals("first", log.deliver(now + VISIBILITY).getBody());
+        assertEquals("second", log.deliver(now + VISIBILITY).getBody());
+    }
+}
@@ -1,8 +1,26 @@
 package com.example;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -27,6 +45,18 @@ public class FileQueueTest {
         assertTrue(msg != null && msg.getBody().equals(message));
     }
 
+    @Test
+    public void testBinaryBodiesAreWrittenAsIs() {
+        byte[] body = {0, -1, '\n', ':', -128};
+        qs.push(queueUrl, body, 7);
+        Message msg = qs.pull(queueUrl);
+
+        assertArrayEquals(body, msg.getBodyBytes());
+        assertEquals(7, msg.getPriority());
+        qs.delete(queueUrl, msg);
+        assertTrue(qs.verifyQueue(queueUrl).isEmpty());
+    }
+
     @Test
     public void testPullMessage() {
         String msgBody = "{\"name\":\"John\",\"age\":30,\"cars\": {\"car1\":\"Ford\",\"car2\":\"BMW\"}}";
@@ -99,4 +129,299 @@ public class FileQueueTest {
         Message msg = queueService.pull(queueUrl);
         assertTrue(msg != null && msg.getBody().equals(message));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testBatchPushPullDelete() {
+        qs.pushBatch(queueUrl, Arrays.asList("Batch 1", "Batch 2", "Batch 3"), 1);
+
+        List<Message> msgs = qs.pull(queueUrl, 2);
+        assertEquals(2, msgs.size());
+        assertEquals("Batch 1", msgs.get(0).getBody());
+        assertEquals("Batch 2", msgs.get(1).getBody());
+
+        // Only the receipts that deleted something count.
+        qs.deleteBatch(queueUrl, Arrays.asList(msgs.get(0).getReceiptId(), msgs.get(1).getReceiptId(),
+                msgs.get(0).getReceiptId(), "not-a-receipt"));
+        assertEquals(2, qs.getMetrics().queue("MyQueue").getDeleteCount());
+        List<Message> rest = qs.pull(queueUrl, 10);
+        assertEquals(1, rest.size());
+        assertEquals("Batch 3", rest.get(0).getBody());
+        assertTrue(qs.pull(queueUrl, 10).isEmpty());
+    }
+
+    @Test
+    public void testBlockingPullIsWokenByAnotherProcess() throws Exception {
+        CompletableFuture<Message> pulled = CompletableFuture.supplyAsync(() -> qs.pull(queueUrl, Duration.ofSeconds(10)));
+        Thread.sleep(100);
+        assertFalse(pulled.isDone());
+
+        // Append the way another process would, bypassing this JVM's service and its direct wakeup.
+        Path queuePath = Paths.get("nigel-qs", "MyQueue");
+        QueueLock lock = QueueLock.forFile(queuePath.resolve(".lock"));
+        lock.lock();
+        try {
+            FileMessageLog other = new FileMessageLog(queuePath);
+            other.catchUp(System.currentTimeMillis());
+            other.append(System.currentTimeMillis(), 1, "From elsewhere");
+        } finally {
+            lock.unlock();
+        }
+        assertEquals("From elsewhere", pulled.get(5, TimeUnit.SECONDS).getBody());
+    }
+
+    @Test
+    public void testMetricsRecordLockWaitAndDepth() {
+        qs.push(queueUrl, "Message A", 1);
+        qs.push(queueUrl, "Message B", 1);
+        Message msg = qs.pull(queueUrl);
+        qs.delete(queueUrl, msg.getReceiptId());
+
+        QueueStats stats = qs.getMetrics().queue("MyQueue");
+        assertEquals(2, stats.getPushCount());
+        assertEquals(1, stats.getPullCount());
+        assertEquals(1, stats.getDeleteCount());
+        assertEquals(1, stats.getDepth());
+        assertEquals(0, stats.getInFlight());
+        // The purge in setup, two pushes, the pull and the delete each took the queue lock.
+        assertEquals(5, stats.getLockWait().getCount());
+    }
+
+    @Test
+    public void testRedrivePolicyMovesPoisonMessageToDeadLetterQueue() {
+        String deadLetterQueueUrl = "https://sqs.ap-1.amazonaws.com/007/MyDeadLetterQueue";
+        qs.purgeQueue(deadLetterQueueUrl);
+        long[] clock = {System.currentTimeMillis()};
+        qs.setTimeSupplier(() -> clock[0]);
+        qs.setRedrivePolicy(queueUrl, new RedrivePolicy(deadLetterQueueUrl, 2));
+
+        // Not valid UTF-8, so only the bytes themselves survive the move.
+        byte[] poison = {(byte) 0xFF, 'P'};
+        qs.push(queueUrl, poison, 3);
+        qs.push(queueUrl, "Healthy", 1);
+        for (int i = 0; i < 2; i++) {
+            assertArrayEquals(poison, qs.pull(queueUrl).getBodyBytes());
+            clock[0] += TimeUnit.SECONDS.toMillis(30) + 1;
+        }
+
+        Message healthy = qs.pull(queueUrl);
+        assertEquals("Healthy", healthy.getBody());
+        qs.delete(queueUrl, healthy.getReceiptId());
+        assertNull(qs.pull(queueUrl));
+        Message deadLetter = qs.pull(deadLetterQueueUrl);
+        assertArrayEquals(poison, deadLetter.getBodyBytes());
+        assertEquals(3, deadLetter.getPriority());
+
+        // A fresh service sees the move, whatever its policy.
+        FileQueueService other = new FileQueueService();
+        other.setTimeSupplier(() -> clock[0] + TimeUnit.SECONDS.toMillis(30) + 1);
+        assertNull(other.pull(queueUrl));
+        assertEquals(1, other.redrive(deadLetterQueueUrl, queueUrl, 10));
+        // redrive() moves bodies as Strings, so the bad byte comes back decoded.
+        assertEquals(new String(poison, StandardCharsets.UTF_8), other.pull(queueUrl).getBody());
+        assertNull(other.pull(deadLetterQueueUrl));
+    }
+
+    @Test
+    public void testDelayedPushIsInvisibleUntilDue() {
+        long[] clock = {System.currentTimeMillis()};
+        qs.setTimeSupplier(() -> clock[0]);
+
+        qs.push(queueUrl, "Later", 1, Duration.ofSeconds(5));
+        qs.push(queueUrl, "Now", 1);
+
+        assertEquals("Now", qs.pull(queueUrl).getBody());
+        assertNull(qs.pull(queueUrl));
+
+        // The delay is stored with the message, so another process honours it.
+        FileQueueService other = new FileQueueService();
+        other.setTimeSupplier(() -> clock[0] + TimeUnit.SECONDS.toMillis(5));
+        assertEquals("Later", other.pull(queueUrl).getBody());
+    }
+
+    @Test
+    public void testStrictSchedulerDeliversByPriorityAcrossRestarts() {
+        // The scheduler applies to queues a service opens after it is set.
+        FileQueueService strict = new FileQueueService();
+        strict.setDeliveryScheduler(DeliveryScheduler.strictPriority());
+        strict.push(queueUrl, "Low", 1);
+        strict.push(queueUrl, "High", 5);
+        strict.push(queueUrl, "Medium", 3);
+        assertEquals("High", strict.pull(queueUrl).getBody());
+
+        // A fresh service rebuilds the lanes from the log.
+        FileQueueService other = new FileQueueService();
+        other.setDeliveryScheduler(DeliveryScheduler.strictPriority());
+        assertEquals("Medium", other.pull(queueUrl).getBody());
+        assertEquals("Low", other.pull(queueUrl).getBody());
+        assertNull(other.pull(queueUrl));
+    }
+
+    @Test
+    public void testChangeVisibilityIsSeenByOtherProcesses() {
+        long[] clock = {System.currentTimeMillis()};
+        qs.setTimeSupplier(() -> clock[0]);
+        qs.push(queueUrl, "Long job", 1);
+        Message msg = qs.pull(queueUrl, Duration.ZERO, Duration.ofSeconds(5));
+
+        assertTrue(qs.changeVisibility(queueUrl, msg.getReceiptId(), Duration.ofMinutes(5)));
+        FileQueueService other = new FileQueueService();
+        other.setTimeSupplier(() -> clock[0] + TimeUnit.SECONDS.toMillis(30) + 1);
+        assertNull(other.pull(queueUrl));
+
+        assertTrue(qs.changeVisibility(queueUrl, msg.getReceiptId(), Duration.ZERO));
+        assertEquals("Long job", other.pull(queueUrl).getBody());
+        assertFalse(qs.changeVisibility(queueUrl, msg.getReceiptId(), Duration.ofMinutes(5)));
+    }
+
+    @Test
+    public void testGroupCommitSharesForceBetweenConcurrentPushers() throws Exception {
+        FileQueueService durable = new FileQueueService();
+        durable.setDurability(Durability.GROUP);
+        int pushers = 8;
+        int perPusher = 25;
+        ExecutorService executor = Executors.newFixedThreadPool(pushers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int p = 0; p < pushers; p++) {
+                int pusher = p;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < perPusher; i++) {
+                        durable.push(queueUrl, "Message " + pusher + "-" + i, 1);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(pushers * perPusher, durable.pull(queueUrl, 1000).size());
+    }
+
+    @Test
+    public void testCapacityPolicyBoundsTheQueue() throws Exception {
+        qs.setCapacityPolicy(queueUrl, new CapacityPolicy(2, 0, OverflowPolicy.REJECT));
+        qs.pushBatch(queueUrl, Arrays.asList("A", "B"), 1);
+        assertEquals(1.0, qs.getBackPressure(queueUrl), 0);
+        try {
+            qs.push(queueUrl, "C", 1);
+            fail("Expected the queue to be full");
+        } catch (QueueFullException e) {
+            // Expected.
+        }
+
+        qs.setCapacityPolicy(queueUrl, new CapacityPolicy(2, 0, OverflowPolicy.DROP_OLDEST));
+        qs.push(queueUrl, "C", 1);
+        assertEquals(1, qs.getMetrics().queue("MyQueue").getDroppedCount());
+        // The drop is in the state log, so another process sees it too.
+        List<Message> msgs = new FileQueueService().pull(queueUrl, 10);
+        assertEquals(Arrays.asList("B", "C"), bodies(msgs));
+
+        qs.setCapacityPolicy(queueUrl, new CapacityPolicy(2, 0, OverflowPolicy.BLOCK, Duration.ofSeconds(10)));
+        CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> qs.push(queueUrl, "D", 1));
+        Thread.sleep(200);
+        assertFalse(producer.isDone());
+        qs.delete(queueUrl, msgs.get(0).getReceiptId());
+        producer.get(10, TimeUnit.SECONDS);
+        assertEquals(1.0, qs.getBackPressure(queueUrl), 0);
+    }
+
+    @Test
+    public void testDeduplicationIdsAreSharedAndSurviveARestart() throws Exception {
+        Files.deleteIfExists(Paths.get("nigel-qs", "MyQueue", DeduplicationLog.FILE));
+        long[] clock = {System.currentTimeMillis()};
+        qs.setTimeSupplier(() -> clock[0]);
+        assertTrue(qs.pushDeduplicated(queueUrl, "Order 42", 1, "order-42"));
+        assertFalse(qs.pushDeduplicated(queueUrl, "Order 42", 1, "order-42"));
+        assertEquals(1, qs.getMetrics().queue("MyQueue").getDuplicateCount());
+
+        // Another process, or this one restarted, reads the ids from the queue's dedup.log.
+        FileQueueService other = new FileQueueService();
+        other.setTimeSupplier(() -> clock[0]);
+        assertFalse(other.pushDeduplicated(queueUrl, "Order 42", 1, "order-42"));
+        assertTrue(other.pushDeduplicated(queueUrl, "Order 43", 1, "order-43"));
+        assertFalse(qs.pushDeduplicated(queueUrl, "Order 43", 1, "order-43"));
+        assertEquals(Arrays.asList("Order 42", "Order 43"), bodies(qs.pull(queueUrl, 10)));
+
+        clock[0] += TimeUnit.MINUTES.toMillis(5);
+        assertTrue(other.pushDeduplicated(queueUrl, "Order 42", 1, "order-42"));
+    }
+
+    @Test
+    public void testDuplicateIsDroppedBeforeTheCapacityPolicy() throws Exception {
+        Files.deleteIfExists(Paths.get("nigel-qs", "MyQueue", DeduplicationLog.FILE));
+        qs.setCapacityPolicy(queueUrl, new CapacityPolicy(1, 0, OverflowPolicy.REJECT));
+        assertTrue(qs.pushDeduplicated(queueUrl, "Order 42", 1, "order-42"));
+        // The queue is full, but the retry is already queued, so it is a duplicate rather than rejected.
+        assertFalse(qs.pushDeduplicated(queueUrl, "Order 42", 1, "order-42"));
+        assertEquals(1, qs.getMetrics().queue("MyQueue").getDuplicateCount());
+        assertEquals(0, qs.getMetrics().queue("MyQueue").getRejectedCount());
+    }
+
+    @Test
+    public void testDeduplicationLogIsRewrittenWithTheLiveIds() throws Exception {
+        Files.deleteIfExists(Paths.get("nigel-qs", "MyQueue", DeduplicationLog.FILE));
+        long[] clock = {System.currentTimeMillis()};
+        qs.setTimeSupplier(() -> clock[0]);
+        FileQueueService other = new FileQueueService();
+        other.setTimeSupplier(() -> clock[0]);
+        assertTrue(other.pushDeduplicated(queueUrl, "M", 1, "first"));
+        for (int i = 0; i < 3_000; i++) {
+            assertTrue(qs.pushDeduplicated(queueUrl, "M", 1, "id-" + i));
+            if (i == 1_000) {
+                // Everything so far expires, so the log is soon rewritten.
+                clock[0] += TimeUnit.MINUTES.toMillis(10);
+            }
+        }
+        assertTrue(Files.size(Paths.get("nigel-qs", "MyQueue", DeduplicationLog.FILE)) < 3_000 * 16);
+        // The other service reads the rewritten log, not the old file it had open.
+        assertFalse(other.pushDeduplicated(queueUrl, "M", 1, "id-2999"));
+        assertTrue(other.pushDeduplicated(queueUrl, "M", 1, "id-5"));
+    }
+
+    @Test
+    public void testStrayResetRecordInTheDeduplicationLogIsDropped() throws Exception {
+        Path file = Paths.get("nigel-qs", "MyQueue", DeduplicationLog.FILE);
+        // What a rewrite that wrote its reset record before replacing the file could leave behind.
+        Files.write(file, ByteBuffer.allocate(12).putInt(-1).putLong(0).array());
+        assertTrue(qs.pushDeduplicated(queueUrl, "Order 42", 1, "order-42"));
+        assertFalse(new FileQueueService().pushDeduplicated(queueUrl, "Order 42", 1, "order-42"));
+    }
+
+    private static List<String> bodies(List<Message> msgs) {
+        List<String> bodies = new ArrayList<>(msgs.size());
+        for (Message msg : msgs) {
+            bodies.add(msg.getBody());
+        }
+        return bodies;
+    }
+
+    @Test
+    public void testSyncDurabilityForcesEveryWrite() {
+        FileQueueService durable = new FileQueueService();
+        durable.setDurability(Durability.SYNC);
+        durable.push(queueUrl, "Durable", 1);
+        Message msg = durable.pull(queueUrl);
+        assertEquals("Durable", msg.getBody());
+        durable.delete(queueUrl, msg.getReceiptId());
+        assertNull(new FileQueueService().pull(queueUrl));
+    }
+
+    @Test
+    public void testVerifyQueueAndLegacyTempFileCleanup() throws Exception {
+        // Left in the queue directory by the old format when a process died mid-rewrite.
+        Path orphan = Files.createTempFile(Paths.get("nigel-qs"), "temp", ".msg");
+        FileQueueService restarted = new FileQueueService();
+        restarted.pushBatch(queueUrl, Arrays.asList("A", "B", "C"), 1);
+        restarted.push(queueUrl, "Later", 1, Duration.ofMinutes(1));
+        Message msg = restarted.pull(queueUrl);
+        restarted.delete(queueUrl, restarted.pull(queueUrl).getReceiptId());
+
+        assertFalse(Files.exists(orphan));
+        assertTrue(restarted.verifyQueue(queueUrl).isEmpty());
+        assertTrue(restarted.changeVisibility(queueUrl, msg.getReceiptId(), Duration.ofSeconds(5)));
+        assertTrue(new FileQueueService().verifyQueue(queueUrl).isEmpty());
+    }
+}
@@ -0,0 +1,78 @@
+package com.example;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Multi-threaded stress tests for {@link InMemoryQueueService}.
+ */
+public class InMemoryQueueStressTest {
+    private static final String QUEUE_URL = "https://sqs.ap-1.amazonaws.com/007/StressQueue";
+
+    @Test
+    public void testConcurrentProducersAndConsumersDeliverEachMessageOnce() throws Exception {
+        final int producers = 32;
+        final int consumers = 32;
+        final int messagesPerProducer = 2_000;
+        final int total = producers * messagesPerProducer;
+
+        InMemoryQueueService qs = new InMemoryQueueService();
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        AtomicInteger duplicates = new AtomicInteger();
+        AtomicInteger consumed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService pool = Executors.newFixedThreadPool(producers + consumers);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            futures.add(pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < messagesPerProducer; i++) {
+                    qs.push(QUEUE_URL, producer + "-" + i, i % 4);
+                }
+                return null;
+            }));
+        }
+        for (int c = 0; c < consumers; c++) {
+            futures.add(pool.submit(() -> {
+                start.await();
+                while (consumed.get() < total) {
+                    Message msg = qs.pull(QUEUE_URL);
+                    if (msg == null) {
+                        Thread.yield();
+                        continue;
+                    }
+                    if (!received.add(msg.getBody())) {
+                        duplicates.incrementAndGet();
+                    }
+                    qs.delete(QUEUE_URL, msg.getReceiptId());
+                    consumed.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        assertEquals(0, duplicates.get());
+        assertEquals(total, received.size());
+        assertNull(qs.pull(QUEUE_URL));
+    }
+}
@@ -2,8 +2,19 @@ package com.example;
 
 import static org.junit.Assert.*;
 
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -141,4 +152,454 @@ public class InMemoryQueueTest {
         assertEquals("First Message", msg1.getBody());
         assertEquals("Second Message", msg2.getBody());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testRedeliveryAfterTimeoutRestoresPriorityOrder() {
+        long[] clock = {1000L};
+        InMemoryQueueService queueService = new InMemoryQueueService() {
+            @Override
+            long now() {
+                return clock[0];
+            }
+        };
+
+        queueService.push(queueUrl, "High Priority Message", 10);
+        queueService.push(queueUrl, "Low Priority Message", 1);
+
+        Message high = queueService.pull(queueUrl);
+        assertEquals("High Priority Message", high.getBody());
+
+        clock[0] += TimeUnit.SECONDS.toMillis(queueService.visibilityTimeout);
+        queueService.delete(queueUrl, high.getReceiptId()); // Receipt has expired, so this is a no-op
+
+        Message redelivered = queueService.pull(queueUrl);
+        assertEquals("High Priority Message", redelivered.getBody());
+        assertNotEquals(high.getReceiptId(), redelivered.getReceiptId());
+
+        queueService.delete(queueUrl, redelivered.getReceiptId());
+        assertEquals("Low Priority Message", queueService.pull(queueUrl).getBody());
+        assertNull(queueService.pull(queueUrl));
+    }
+
+    @Test
+    public void testBatchPushPullDelete() {
+        qs.pushBatch(queueUrl, Arrays.asList("Batch 1", "Batch 2", "Batch 3"), 1);
+
+        List<Message> msgs = qs.pull(queueUrl, 2);
+        assertEquals(2, msgs.size());
+        assertEquals("Batch 1", msgs.get(0).getBody());
+        assertEquals("Batch 2", msgs.get(1).getBody());
+
+        qs.deleteBatch(queueUrl, Arrays.asList(msgs.get(0).getReceiptId(), msgs.get(1).getReceiptId()));
+        List<Message> rest = qs.pull(queueUrl, 10);
+        assertEquals(1, rest.size());
+        assertEquals("Batch 3", rest.get(0).getBody());
+        assertTrue(qs.pull(queueUrl, 10).isEmpty());
+    }
+
+    @Test
+    public void testBlockingPullIsWokenByPush() throws Exception {
+        CompletableFuture<Message> pulled = CompletableFuture.supplyAsync(() -> qs.pull(queueUrl, Duration.ofSeconds(10)));
+        Thread.sleep(50);
+        assertFalse(pulled.isDone());
+
+        qs.push(queueUrl, "Wake up", 1);
+        assertEquals("Wake up", pulled.get(5, TimeUnit.SECONDS).getBody());
+    }
+
+    @Test
+    public void testBlockingPullTimesOut() {
+        long start = System.nanoTime();
+        assertNull(qs.pull(queueUrl, Duration.ofMillis(100)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void testBlockingPullIsWokenByVisibilityTimeout() {
+        ((InMemoryQueueService) qs).visibilityTimeout = 1;
+        qs.push(queueUrl, "Redelivered", 1);
+        assertNotNull(qs.pull(queueUrl));
+
+        long start = System.nanoTime();
+        Message msg = qs.pull(queueUrl, Duration.ofSeconds(10));
+        assertEquals("Redelivered", msg.getBody());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testMetricsCountOperationsAndRedeliveries() {
+        long[] clock = {1000L};
+        InMemoryQueueService queueService = new InMemoryQueueService() {
+            @Override
+            long now() {
+                return clock[0];
+            }
+        };
+
+        queueService.push(queueUrl, "Message A", 1);
+        queueService.push(queueUrl, "Message B", 1);
+        Message first = queueService.pull(queueUrl);
+        assertEquals(1, first.getAttempts());
+
+        QueueStats stats = queueService.getMetrics().queue(queueUrl);
+        assertEquals(2, stats.getDepth());
+        assertEquals(1, stats.getInFlight());
+
+        clock[0] += TimeUnit.SECONDS.toMillis(queueService.visibilityTimeout);
+        Message redelivered = queueService.pull(queueUrl);
+        assertEquals("Message A", redelivered.getBody());
+        assertEquals(2, redelivered.getAttempts());
+        queueService.delete(queueUrl, redelivered.getReceiptId());
+
+        assertEquals(2, stats.getPushCount());
+        assertEquals(2, stats.getPullCount());
+        assertEquals(1, stats.getDeleteCount());
+        assertEquals(1, stats.getRedeliveryCount());
+        assertEquals(1, stats.getDepth());
+        assertEquals(0, stats.getInFlight());
+        assertEquals(2, stats.getLatency(QueueOperation.PULL).getCount());
+
+        // A batch is stamped with the service's clock, and only the receipts that deleted something count.
+        queueService.pushBatch(queueUrl, Arrays.asList("Message C"), 1);
+        List<Message> batch = queueService.pull(queueUrl, 10);
+        assertEquals(clock[0], batch.get(1).getTimestamp());
+        queueService.deleteBatch(queueUrl, Arrays.asList(first.getReceiptId(), batch.get(1).getReceiptId()));
+        assertEquals(2, stats.getDeleteCount());
+    }
+
+    @Test
+    public void testRedrivePolicyMovesPoisonMessageToDeadLetterQueue() {
+        long[] clock = {1000L};
+        InMemoryQueueService queueService = new InMemoryQueueService() {
+            @Override
+            long now() {
+                return clock[0];
+            }
+        };
+        String deadLetterQueueUrl = "https://sqs.ap-1.amazonaws.com/007/MyDeadLetterQueue";
+        queueService.setRedrivePolicy(queueUrl, new RedrivePolicy(deadLetterQueueUrl, 2));
+
+        queueService.push(queueUrl, "Poison", 5);
+        for (int i = 0; i < 2; i++) {
+            assertEquals("Poison", queueService.pull(queueUrl).getBody());
+            clock[0] += TimeUnit.SECONDS.toMillis(queueService.visibilityTimeout);
+        }
+
+        assertNull(queueService.pull(queueUrl));
+        assertEquals(1, queueService.getMetrics().queue(queueUrl).getDeadLetterCount());
+        Message deadLetter = queueService.pull(deadLetterQueueUrl);
+        assertEquals("Poison", deadLetter.getBody());
+        assertEquals(1, deadLetter.getAttempts());
+
+        clock[0] += TimeUnit.SECONDS.toMillis(queueService.visibilityTimeout);
+        assertEquals(1, queueService.redrive(deadLetterQueueUrl, queueUrl, 10));
+        assertNull(queueService.pull(deadLetterQueueUrl));
+        assertEquals("Poison", queueService.pull(queueUrl).getBody());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRedrivePolicyRejectsCycle() {
+        String deadLetterQueueUrl = "https://sqs.ap-1.amazonaws.com/007/MyDeadLetterQueue";
+        qs.setRedrivePolicy(queueUrl, new RedrivePolicy(deadLetterQueueUrl, 3));
+        qs.setRedrivePolicy(deadLetterQueueUrl, new RedrivePolicy(queueUrl, 3));
+    }
+
+    @Test
+    public void testDelayedPushIsInvisibleUntilDue() {
+        long[] clock = {1000L};
+        InMemoryQueueService queueService = new InMemoryQueueService() {
+            @Override
+            long now() {
+                return clock[0];
+            }
+        };
+
+        queueService.push(queueUrl, "Later", 10, Duration.ofSeconds(5));
+        queueService.pushAt(queueUrl, "Scheduled", 10, Instant.ofEpochMilli(3000));
+        queueService.push(queueUrl, "Now", 1);
+
+        assertEquals("Now", queueService.pull(queueUrl).getBody());
+        assertNull(queueService.pull(queueUrl));
+        clock[0] = 3000;
+        assertEquals("Scheduled", queueService.pull(queueUrl).getBody());
+        clock[0] = 5999;
+        assertNull(queueService.pull(queueUrl));
+        clock[0] = 6000;
+        assertEquals("Later", queueService.pull(queueUrl).getBody());
+    }
+
+    @Test
+    public void testBlockingPullIsWokenWhenDelayedMessageIsDue() {
+        qs.push(queueUrl, "Delayed", 1, Duration.ofMillis(200));
+
+        long start = System.nanoTime();
+        Message msg = qs.pull(queueUrl, Duration.ofSeconds(10));
+        assertEquals("Delayed", msg.getBody());
+        long waited = System.nanoTime() - start;
+        assertTrue(waited >= TimeUnit.MILLISECONDS.toNanos(150) && waited < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testAgingSchedulerDoesNotStarveLowPriority() {
+        long[] clock = {1000L};
+        InMemoryQueueService queueService = new InMemoryQueueService() {
+            @Override
+            long now() {
+                return clock[0];
+            }
+        };
+        queueService.setDeliveryScheduler(DeliveryScheduler.aging(1000));
+
+        queueService.push(queueUrl, "Low", 1);
+        // A steady stream of high priority messages, each pushed a second after the last.
+        for (int i = 0; i < 5; i++) {
+            clock[0] += 1000;
+            queueService.push(queueUrl, "High " + i, 3);
+            Message msg = queueService.pull(queueUrl);
+            if (msg.getBody().equals("Low")) {
+                // Two seconds of waiting bring it level with the newest high message.
+                assertTrue(i >= 2);
+                return;
+            }
+        }
+        fail("Low priority message was starved");
+    }
+
+    @Test
+    public void testChangeVisibilityExtendsAndReleasesMessage() {
+        long[] clock = {1000L};
+        InMemoryQueueService queueService = new InMemoryQueueService() {
+            @Override
+            long now() {
+                return clock[0];
+            }
+        };
+        queueService.push(queueUrl, "Long job", 1);
+        Message msg = queueService.pull(queueUrl);
+
+        // A heartbeat just before the default timeout keeps the message hidden past it.
+        clock[0] += TimeUnit.SECONDS.toMillis(queueService.visibilityTimeout) - 1;
+        assertTrue(queueService.changeVisibility(queueUrl, msg.getReceiptId(), Duration.ofMinutes(5)));
+        clock[0] += TimeUnit.SECONDS.toMillis(queueService.visibilityTimeout);
+        assertNull(queueService.pull(queueUrl));
+
+        // A zero timeout gives it up at once.
+        assertTrue(queueService.changeVisibility(queueUrl, msg.getReceiptId(), Duration.ZERO));
+        assertFalse(queueService.changeVisibility(queueUrl, msg.getReceiptId(), Duration.ofMinutes(5)));
+        Message redelivered = queueService.pull(queueUrl);
+        assertEquals("Long job", redelivered.getBody());
+        assertEquals(2, redelivered.getAttempts());
+    }
+
+    @Test
+    public void testPullWithOwnVisibilityTimeout() {
+        long[] clock = {1000L};
+        InMemoryQueueService queueService = new InMemoryQueueService() {
+            @Override
+            long now() {
+                return clock[0];
+            }
+        };
+        queueService.pushBatch(queueUrl, Arrays.asList("A", "B"), 1);
+
+        assertEquals("A", queueService.pull(queueUrl, Duration.ZERO, Duration.ofSeconds(2)).getBody());
+        assertEquals("B", queueService.pull(queueUrl, 10, Duration.ofSeconds(5)).get(0).getBody());
+
+        clock[0] += 2000;
+        assertEquals("A", queueService.pull(queueUrl).getBody());
+        assertNull(queueService.pull(queueUrl));
+        clock[0] += 3000;
+        assertEquals("B", queueService.pull(queueUrl).getBody());
+    }
+
+    @Test
+    public void testBinaryBodiesAreKeptAsPushed() {
+        byte[] body = {0, -1, 'x', -128};
+        qs.push(queueUrl, body, 1);
+        qs.push(queueUrl, ByteBuffer.wrap("text".getBytes(StandardCharsets.UTF_8)), 1);
+
+        Message msg = qs.pull(queueUrl);
+        assertSame(body, msg.getBodyBytes());
+        assertEquals(4, msg.getBodyBuffer().remaining());
+        assertEquals("text", qs.pull(queueUrl).getBody());
+    }
+
+    @Test
+    public void testRedeliveryLeavesTheEarlierMessageAlone() {
+        long[] clock = {1000L};
+        InMemoryQueueService queueService = new InMemoryQueueService() {
+            @Override
+            long now() {
+                return clock[0];
+            }
+        };
+        queueService.push(queueUrl, "Retry me", 1);
+        Message first = queueService.pull(queueUrl);
+        String firstReceipt = first.getReceiptId();
+
+        clock[0] += TimeUnit.SECONDS.toMillis(queueService.visibilityTimeout);
+        Message second = queueService.pull(queueUrl);
+        assertNotSame(first, second);
+        assertEquals(1, first.getAttempts());
+        assertEquals(firstReceipt, first.getReceiptId());
+        assertEquals(2, second.getAttempts());
+        assertNotEquals(firstReceipt, second.getReceiptId());
+
+        // The expired receipt no longer deletes; the message itself does.
+        queueService.delete(queueUrl, first);
+        assertFalse(queueService.changeVisibility(queueUrl, firstReceipt, Duration.ZERO));
+        queueService.delete(queueUrl, second);
+        clock[0] += TimeUnit.SECONDS.toMillis(queueService.visibilityTimeout);
+        assertNull(queueService.pull(queueUrl));
+    }
+
+    @Test
+    public void testRoundTripAllocatesOnlyTheMessageAndItsTimer() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        qs.pushBatch(queueUrl, Collections.nCopies(100, "Message"), 1);
+        for (int i = 0; i < 20_000; i++) {
+            roundTrip();
+        }
+
+        int rounds = 100_000;
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < rounds; i++) {
+            roundTrip();
+        }
+        long perRound = (threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / rounds;
+        // The pushed Message and its in-flight timer; receipts, lookups and deliveries add nothing.
+        assertTrue("Allocated " + perRound + " bytes per round trip", perRound < 160);
+    }
+
+    @Test
+    public void testCapacityPolicyRejectsOrDropsOverflow() {
+        qs.setCapacityPolicy(queueUrl, new CapacityPolicy(2, 0, OverflowPolicy.REJECT));
+        qs.push(queueUrl, "A", 1);
+        assertEquals(0.5, qs.getBackPressure(queueUrl), 0);
+        qs.push(queueUrl, "B", 1);
+        try {
+            qs.push(queueUrl, "C", 1);
+            fail("Expected the queue to be full");
+        } catch (QueueFullException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("2 messages"));
+        }
+        assertEquals(1.0, qs.getBackPressure(queueUrl), 0);
+        // In-flight messages count until they are deleted.
+        Message a = qs.pull(queueUrl);
+        try {
+            qs.pushBatch(queueUrl, Collections.singletonList("C"), 1);
+            fail("Expected the queue to be full");
+        } catch (QueueFullException e) {
+            // Expected.
+        }
+        qs.delete(queueUrl, a);
+        qs.push(queueUrl, "C", 1);
+
+        qs.setCapacityPolicy(queueUrl, new CapacityPolicy(2, 0, OverflowPolicy.DROP_OLDEST));
+        qs.push(queueUrl, "D", 1);
+        assertEquals(Arrays.asList("C", "D"), bodies(qs.pull(queueUrl, 10)));
+
+        String other = queueUrl + "-priorities";
+        qs.setCapacityPolicy(other, new CapacityPolicy(2, 0, OverflowPolicy.DROP_LOWEST_PRIORITY));
+        qs.push(other, "Low", 1);
+        qs.push(other, "High", 5);
+        qs.push(other, "Mid", 3);
+        // The pushed message itself goes when it has the lowest priority.
+        qs.push(other, "Lowest", 0);
+        assertEquals(Arrays.asList("High", "Mid"), bodies(qs.pull(other, 10)));
+        assertEquals(2, ((InMemoryQueueService) qs).getMetrics().queue(other).getDroppedCount());
+        assertEquals(2, ((InMemoryQueueService) qs).getMetrics().queue(queueUrl).getRejectedCount());
+    }
+
+    @Test
+    public void testByteLimitCountsUtf8Bodies() {
+        qs.setCapacityPolicy(queueUrl, new CapacityPolicy(0, 10, OverflowPolicy.REJECT));
+        // Six bytes in UTF-8.
+        qs.push(queueUrl, "h\u00e9llo", 1);
+        assertEquals(0.6, qs.getBackPressure(queueUrl), 1e-9);
+        try {
+            qs.push(queueUrl, "h\u00e9llo", 1);
+            fail("Expected the queue to be full");
+        } catch (QueueFullException e) {
+            // Expected.
+        }
+        qs.push(queueUrl, new byte[4], 1);
+        assertEquals(1.0, qs.getBackPressure(queueUrl), 0);
+        qs.setCapacityPolicy(queueUrl, null);
+        assertEquals(0, qs.getBackPressure(queueUrl), 0);
+        assertNull(qs.getCapacityPolicy(queueUrl));
+    }
+
+    @Test
+    public void testBlockedPushWaitsForADelete() throws Exception {
+        CapacityPolicy policy = new CapacityPolicy(1, 0, OverflowPolicy.BLOCK, Duration.ofSeconds(10));
+        qs.setCapacityPolicy(queueUrl, policy);
+        assertEquals(policy, qs.getCapacityPolicy(queueUrl));
+        qs.push(queueUrl, "First", 1);
+        CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> qs.push(queueUrl, "Second", 1));
+        Thread.sleep(100);
+        assertFalse(producer.isDone());
+
+        qs.delete(queueUrl, qs.pull(queueUrl));
+        producer.get(10, TimeUnit.SECONDS);
+        assertEquals("Second", qs.pull(queueUrl).getBody());
+
+        qs.setCapacityPolicy(queueUrl, new CapacityPolicy(1, 0, OverflowPolicy.BLOCK, Duration.ofMillis(50)));
+        try {
+            qs.push(queueUrl, "Third", 1);
+            fail("Expected the push to time out");
+        } catch (QueueFullException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testDeduplicatedPushDropsRetriesWithinTheWindow() {
+        long[] clock = {1_000};
+        InMemoryQueueService queueService = new InMemoryQueueService();
+        queueService.setTimeSupplier(() -> clock[0]);
+        assertTrue(queueService.pushDeduplicated(queueUrl, "Order 42", 1, "order-42"));
+        assertFalse(queueService.pushDeduplicated(queueUrl, "Order 42", 1, "order-42"));
+        // Ids are per queue.
+        assertTrue(queueService.pushDeduplicated(queueUrl + "-other", "Order 42", 1, "order-42"));
+
+        // Still a duplicate once the first copy has been consumed.
+        queueService.delete(queueUrl, queueService.pull(queueUrl));
+        assertFalse(queueService.pushDeduplicated(queueUrl, "Order 42", 1, "order-42"));
+        assertNull(queueService.pull(queueUrl));
+        assertEquals(2, queueService.getMetrics().queue(queueUrl).getDuplicateCount());
+
+        clock[0] += TimeUnit.MINUTES.toMillis(5);
+        assertTrue(queueService.pushDeduplicated(queueUrl, "Order 42", 1, "order-42"));
+        assertEquals("Order 42", queueService.pull(queueUrl).getBody());
+    }
+
+    @Test
+    public void testFailedDeduplicatedPushLeavesItsIdFree() {
+        qs.setCapacityPolicy(queueUrl, new CapacityPolicy(1, 0, OverflowPolicy.REJECT));
+        qs.push(queueUrl, "Filler", 1);
+        try {
+            qs.pushDeduplicated(queueUrl, "Order 42", 1, "order-42");
+            fail("Expected the queue to be full");
+        } catch (QueueFullException e) {
+            // Expected.
+        }
+        qs.delete(queueUrl, qs.pull(queueUrl));
+        assertTrue(qs.pushDeduplicated(queueUrl, "Order 42", 1, "order-42"));
+    }
+
+    private static List<String> bodies(List<Message> msgs) {
+        List<String> bodies = new ArrayList<>(msgs.size());
+        for (Message msg : msgs) {
+            bodies.add(msg.getBody());
+        }
+        return bodies;
+    }
+
+    private void roundTrip() {
+        qs.push(queueUrl, "Message", 1);
+        qs.delete(queueUrl, qs.pull(queueUrl));
+    }
+}
@@ -1,40 +1,226 @@
 package com.example;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Before;
+import org.junit.Test;
+
 public class KafkaQueueServiceTest {
-    public static void main(String[] args) {
-        // Kafka configuration - replace with your Kafka broker's address and consumer group
-        String bootstrapServers = "localhost:9092";
-        String groupId = "test-group";
-
-        // Create an instance of KafkaQueueService
-        KafkaQueueService queueService = new KafkaQueueService(bootstrapServers, groupId);
-
-        // Push some messages with different priorities
-        System.out.println("Pushing messages with varying priorities...");
-        queueService.push("Message with priority 1", 1);
-        queueService.push("Message with priority 5", 5);
-        queueService.push("Message with priority 3", 3);
-        queueService.push("Message with priority 10", 10);
-        queueService.push("Message with priority 2", 2);
-
-        System.out.println("Pushed messages, now wait for 2 seconds");
-        // Wait a moment to ensure messages are sent before pulling
-        try {
-            Thread.sleep(2000);  // Sleep for 2 seconds to ensure messages are in the queue
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    private static final List<String> TOPICS = Arrays.asList("MyQueue-p0", "MyQueue-p5", "MyQueue-p10");
+
+    private MockProducer<String, String> producer;
+    private MockConsumer<String, String> consumer;
+    private KafkaQueueService qs;
+    private final Properties confInfo = new Properties();
+    private final Map<TopicPartition, Long> nextOffsets = new HashMap<>();
+    private int forwarded;
+    private final long[] clock = {1_000};
+    private String queueUrl = "https://sqs.ap-1.amazonaws.com/007/MyQueue";
+
+    @Before
+    public void setup() {
+        producer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        confInfo.setProperty("kafkaPollMillis", "1");
+        qs = newService();
+    }
+
+    private KafkaQueueService newService() {
+        KafkaQueueService service = new KafkaQueueService(producer, () -> consumer, confInfo);
+        service.setTimeSupplier(() -> clock[0]);
+        return service;
+    }
+
+    // Opens the consumer, assigns it one partition per band and hands it what was produced so far.
+    private void forward() {
+        if (nextOffsets.isEmpty()) {
+            qs.pull(queueUrl, 1);
+            for (String topic : TOPICS) {
+                nextOffsets.put(new TopicPartition(topic, 0), 0L);
+            }
+            consumer.rebalance(nextOffsets.keySet());
+            consumer.updateBeginningOffsets(new HashMap<>(nextOffsets));
+        }
+        List<ProducerRecord<String, String>> history = producer.history();
+        for (; forwarded < history.size(); forwarded++) {
+            ProducerRecord<String, String> record = history.get(forwarded);
+            TopicPartition partition = new TopicPartition(record.topic(), 0);
+            long offset = nextOffsets.merge(partition, 1L, Long::sum) - 1;
+            consumer.addRecord(new ConsumerRecord<>(record.topic(), 0, offset, clock[0], TimestampType.CREATE_TIME,
+                    0, record.value().length(), null, record.value(), new RecordHeaders(record.headers().toArray()),
+                    Optional.empty()));
+        }
+    }
+
+    @Test
+    public void testEveryPolledRecordIsServedWithItsWholeBody() {
+        qs.pushBatch(queueUrl, Arrays.asList("a:b:c", "second", "1700000000:third"), 1);
+        forward();
+
+        List<Message> messages = qs.pull(queueUrl, 10);
+        assertEquals(3, messages.size());
+        assertEquals("a:b:c", messages.get(0).getBody());
+        assertEquals("second", messages.get(1).getBody());
+        assertEquals("1700000000:third", messages.get(2).getBody());
+        assertNull(qs.pull(queueUrl));
+    }
+
+    @Test
+    public void testPriorityBandsHaveOneTopicEachAndAreWeighted() {
+        for (int i = 0; i < 10; i++) {
+            qs.push(queueUrl, "low " + i, 1);
+            qs.push(queueUrl, "mid " + i, 7);
+            qs.push(queueUrl, "high " + i, 12);
+        }
+        assertEquals("MyQueue-p0", producer.history().get(0).topic());
+        assertEquals("MyQueue-p5", producer.history().get(1).topic());
+        assertEquals("MyQueue-p10", producer.history().get(2).topic());
+        forward();
+
+        // Weighted round-robin by band priority: 10 high, 5 mid and 1 low in 16 deliveries.
+        Map<Integer, Integer> delivered = new HashMap<>();
+        for (Message msg : qs.pull(queueUrl, 16)) {
+            delivered.merge(msg.getPriority(), 1, Integer::sum);
         }
+        assertEquals(Integer.valueOf(10), delivered.get(12));
+        assertEquals(Integer.valueOf(5), delivered.get(7));
+        assertEquals(Integer.valueOf(1), delivered.get(1));
+    }
+
+    @Test
+    public void testDeletesCommitContiguousOffsetsInBatches() {
+        confInfo.setProperty("kafkaCommitBatch", "2");
+        qs = newService();
+        qs.pushBatch(queueUrl, Arrays.asList("first", "second", "third"), 0);
+        forward();
+        List<Message> messages = qs.pull(queueUrl, 3);
+        TopicPartition partition = new TopicPartition("MyQueue-p0", 0);
+
+        // The second record cannot be committed while the first is outstanding.
+        qs.delete(queueUrl, messages.get(1).getReceiptId());
+        assertNull(consumer.committed(Collections.singleton(partition)).get(partition));
+        qs.delete(queueUrl, messages.get(0).getReceiptId());
+        assertEquals(2, consumer.committed(Collections.singleton(partition)).get(partition).offset());
+
+        // The last delete waits for the next batch, or for the commit interval to pass.
+        qs.delete(queueUrl, messages.get(2).getReceiptId());
+        assertEquals(2, consumer.committed(Collections.singleton(partition)).get(partition).offset());
+        clock[0] += 1_000;
+        assertNull(qs.pull(queueUrl));
+        assertEquals(3, consumer.committed(Collections.singleton(partition)).get(partition).offset());
+
+        // A batch counts only the receipts that deleted something.
+        qs.deleteBatch(queueUrl, Arrays.asList(messages.get(0).getReceiptId(), "not-a-receipt"));
+        assertEquals(3, qs.getMetrics().queue("MyQueue").getDeleteCount());
+        qs.close();
+        assertTrue(consumer.closed());
+    }
+
+    @Test
+    public void testVisibilityTimeoutRedeliversFromTheBuffer() {
+        qs.push(queueUrl, "Retry me", 0);
+        forward();
+        Message msg = qs.pull(queueUrl);
+        assertNull(qs.pull(queueUrl));
+
+        clock[0] += 30_000;
+        Message again = qs.pull(queueUrl);
+        assertEquals("Retry me", again.getBody());
+        assertEquals(2, again.getAttempts());
+        assertFalse(qs.changeVisibility(queueUrl, msg.getReceiptId(), Duration.ofSeconds(10)));
+        assertTrue(qs.changeVisibility(queueUrl, again.getReceiptId(), Duration.ZERO));
+        assertEquals(3, qs.pull(queueUrl).getAttempts());
+    }
 
-        System.out.println("Wait over");
+    @Test
+    public void testFullBandsArePausedUntilDrained() {
+        confInfo.setProperty("kafkaPrefetchRecords", "2");
+        qs = newService();
+        List<String> bodies = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            bodies.add("message " + i);
+        }
+        qs.pushBatch(queueUrl, bodies, 0);
+        forward();
+
+        TopicPartition partition = new TopicPartition("MyQueue-p0", 0);
+        assertEquals("message 0", qs.pull(queueUrl).getBody());
+        assertEquals(Collections.singleton(partition), consumer.paused());
+        assertEquals(3, qs.pull(queueUrl, 3).size());
+        assertEquals("message 4", qs.pull(queueUrl).getBody());
+        assertTrue(consumer.paused().isEmpty());
+    }
 
-        // Pull and process the messages in priority order
-        System.out.println("Pulling messages based on priority...");
-        String message;
-        while ((message = queueService.pull()) != null) {
-            System.out.println("Pulled message: " + message);
+    @Test
+    public void testPartitionIsPausedWhileAnUndeletedRecordHoldsBackItsCommits() {
+        confInfo.setProperty("kafkaMaxOutstandingRecords", "3");
+        qs = newService();
+        qs.pushBatch(queueUrl, Arrays.asList("stuck", "a", "b", "c"), 0);
+        forward();
+
+        TopicPartition partition = new TopicPartition("MyQueue-p0", 0);
+        Message stuck = qs.pull(queueUrl);
+        assertEquals("stuck", stuck.getBody());
+        for (Message msg : qs.pull(queueUrl, 10)) {
+            qs.delete(queueUrl, msg.getReceiptId());
         }
+        assertNull(qs.pull(queueUrl));
+        assertEquals(Collections.singleton(partition), consumer.paused());
+
+        qs.delete(queueUrl, stuck.getReceiptId());
+        assertNull(qs.pull(queueUrl));
+        assertTrue(consumer.paused().isEmpty());
+    }
+
+    @Test
+    public void testRevokeSkipsADeletedRecordBehindAnOutstandingOne() {
+        TopicPartition partition = new TopicPartition("MyQueue-p0", 0);
+        KafkaQueueConsumer queue = new KafkaQueueConsumer(consumer, Collections.singletonMap("MyQueue-p0", 0),
+                DeliveryScheduler.fifo(), 10, 100, 100, 1_000, new QueueMetrics("test").queue("MyQueue"));
+        consumer.rebalance(Collections.singleton(partition));
+        consumer.updateBeginningOffsets(Collections.singletonMap(partition, 0L));
+        consumer.addRecord(new ConsumerRecord<>("MyQueue-p0", 0, 0, null, "first"));
+        consumer.addRecord(new ConsumerRecord<>("MyQueue-p0", 0, 1, null, "second"));
+        queue.poll(Duration.ZERO, clock[0]);
+        Message first = queue.deliver(clock[0], clock[0] + 30_000);
+        Message second = queue.deliver(clock[0], clock[0] + 30_000);
+        assertTrue(queue.delete(second.getReceiptId(), clock[0]));
+
+        queue.onPartitionsRevoked(Collections.singleton(partition));
+        assertEquals(0, queue.size());
+        assertFalse(queue.delete(first.getReceiptId(), clock[0]));
+    }
 
-        // Close the queue service (producer and consumer)
-        queueService.close();
+    @Test
+    public void testProducerBatchingComesFromConfig() {
+        confInfo.setProperty("kafkaLingerMillis", "20");
+        confInfo.setProperty("kafkaCompression", "zstd");
+        Properties producerProps = KafkaQueueService.producerConfig("localhost:9092", confInfo);
+        assertEquals("20", producerProps.get(ProducerConfig.LINGER_MS_CONFIG));
+        assertEquals("zstd", producerProps.get(ProducerConfig.COMPRESSION_TYPE_CONFIG));
+        assertEquals("65536", producerProps.get(ProducerConfig.BATCH_SIZE_CONFIG));
     }
 }
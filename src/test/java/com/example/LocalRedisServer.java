@@ -0,0 +1,345 @@
+package com.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+
+/**
+ * A stand-in for a local Redis server, for tests that cannot rely on one being
+ * installed. It speaks RESP over a real socket, so the service's pooled Jedis
+ * connections, pipelines and NOSCRIPT handling are exercised as they would be
+ * against Redis, and it knows RedisQueueService's Lua scripts by digest, running
+ * a Java rendition of each. Like Redis, it runs one command at a time and starts
+ * with an empty script cache.
+ */
+class LocalRedisServer implements AutoCloseable {
+    private final ServerSocket serverSocket;
+    private final Map<String, BiFunction<List<String>, List<String>, Object>> scripts = new HashMap<>();
+    private final Map<String, String> shaBySource = new HashMap<>();
+    private final Set<String> loaded = new HashSet<>();
+    private final Map<String, Map<String, Double>> zsets = new HashMap<>();
+    private final Map<String, Map<String, String>> hashes = new HashMap<>();
+    private final Map<String, Long> counters = new HashMap<>();
+    private final List<String> commands = new ArrayList<>();
+    private final List<Socket> clients = new ArrayList<>();
+
+    LocalRedisServer() throws IOException {
+        register(RedisQueueService.PUSH, this::push);
+        register(RedisQueueService.PULL, this::pull);
+        register(RedisQueueService.DELETE, this::delete);
+        register(RedisQueueService.CHANGE_VISIBILITY, this::changeVisibility);
+        register(RedisQueueService.REAP, (keys, args) -> (long) requeueExpired(keys, args.get(0),
+                Integer.parseInt(args.get(1))));
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "local-redis-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /** The name of every command received so far, e.g. EVALSHA or SCRIPT. */
+    synchronized List<String> commands() {
+        return new ArrayList<>(commands);
+    }
+
+    synchronized int zcard(String key) {
+        return zsets.getOrDefault(key, Collections.emptyMap()).size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        synchronized (this) {
+            for (Socket client : clients) {
+                client.close();
+            }
+        }
+    }
+
+    private void register(RedisQueueService.Script script, BiFunction<List<String>, List<String>, Object> body) {
+        scripts.put(script.sha, body);
+        shaBySource.put(script.source, script.sha);
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                synchronized (this) {
+                    clients.add(client);
+                }
+                Thread thread = new Thread(() -> serve(client), "local-redis-client");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try (Socket socket = client) {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            List<String> command;
+            while ((command = readCommand(in)) != null) {
+                Object reply;
+                synchronized (this) {
+                    commands.add(command.get(0).toUpperCase());
+                    reply = execute(command);
+                }
+                writeReply(out, reply);
+                // Like Redis, answer a pipeline's commands without waiting for the client to read.
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            // The client went away.
+        }
+    }
+
+    private Object execute(List<String> command) {
+        switch (command.get(0).toUpperCase()) {
+            case "PING":
+                return new StatusReply("PONG");
+            case "QUIT":
+                return new StatusReply("OK");
+            case "DEL":
+                long deleted = 0;
+                for (String key : command.subList(1, command.size())) {
+                    if (zsets.remove(key) != null | hashes.remove(key) != null | counters.remove(key) != null) {
+                        deleted++;
+                    }
+                }
+                return deleted;
+            case "SCRIPT":
+                String sha = shaBySource.get(command.get(2));
+                if (!"LOAD".equalsIgnoreCase(command.get(1)) || sha == null) {
+                    return new ErrorReply("ERR unsupported script");
+                }
+                loaded.add(sha);
+                return sha;
+            case "EVAL":
+                String source = command.get(1);
+                if (!shaBySource.containsKey(source)) {
+                    return new ErrorReply("ERR unsupported script");
+                }
+                loaded.add(shaBySource.get(source));
+                return run(shaBySource.get(source), command);
+            case "EVALSHA":
+                if (!loaded.contains(command.get(1))) {
+                    return new ErrorReply("NOSCRIPT No matching script. Please use EVAL.");
+                }
+                return run(command.get(1), command);
+            default:
+                return new ErrorReply("ERR unknown command '" + command.get(0) + "'");
+        }
+    }
+
+    private Object run(String sha, List<String> command) {
+        int numKeys = Integer.parseInt(command.get(2));
+        List<String> keys = command.subList(3, 3 + numKeys);
+        List<String> args = command.subList(3 + numKeys, command.size());
+        return scripts.get(sha).apply(keys, args);
+    }
+
+    // The scripts, key for key as RedisQueueService writes them in Lua.
+
+    private Object push(List<String> keys, List<String> args) {
+        long priority = Long.parseLong(args.get(0));
+        int count = args.size() - 2;
+        long last = counters.merge(keys.get(7), (long) count, Long::sum);
+        for (int i = 0; i < count; i++) {
+            String id = String.format("%016x", last - count + 1 + i);
+            hash(keys.get(2)).put(id, args.get(2 + i));
+            hash(keys.get(3)).put(id, String.valueOf(priority));
+            hash(keys.get(4)).put(id, args.get(1));
+            zset(keys.get(0)).put(id, (double) -priority);
+        }
+        return (long) count;
+    }
+
+    private Object pull(List<String> keys, List<String> args) {
+        requeueExpired(keys, args.get(0), 100);
+        List<Object> result = new ArrayList<>();
+        result.add(0L);
+        result.add(0L);
+        List<String> popped = range(keys.get(0), Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, args.size() - 2);
+        for (int i = 0; i < popped.size(); i++) {
+            String id = popped.get(i);
+            String token = args.get(2 + i);
+            zset(keys.get(0)).remove(id);
+            zset(keys.get(1)).put(id, Double.parseDouble(args.get(1)));
+            hash(keys.get(5)).put(id, token);
+            long attempts = Long.parseLong(hash(keys.get(6)).getOrDefault(id, "0")) + 1;
+            hash(keys.get(6)).put(id, String.valueOf(attempts));
+            result.add(id);
+            result.add(token);
+            result.add(attempts);
+            result.add(hash(keys.get(3)).get(id));
+            result.add(hash(keys.get(4)).get(id));
+            result.add(hash(keys.get(2)).get(id));
+        }
+        result.set(1, (long) zcard(keys.get(1)));
+        result.set(0, (long) zcard(keys.get(0)) + (long) result.get(1));
+        return result;
+    }
+
+    private Object delete(List<String> keys, List<String> args) {
+        double now = Double.parseDouble(args.get(0));
+        long deleted = 0;
+        for (int i = 1; i + 1 < args.size(); i += 2) {
+            String id = args.get(i);
+            Double deadline = zset(keys.get(1)).get(id);
+            if (deadline != null && deadline > now && args.get(i + 1).equals(hash(keys.get(5)).get(id))) {
+                zset(keys.get(1)).remove(id);
+                for (int key = 2; key <= 6; key++) {
+                    hash(keys.get(key)).remove(id);
+                }
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private Object changeVisibility(List<String> keys, List<String> args) {
+        double now = Double.parseDouble(args.get(0));
+        String id = args.get(1);
+        Double deadline = zset(keys.get(1)).get(id);
+        if (deadline == null || deadline <= now || !args.get(2).equals(hash(keys.get(5)).get(id))) {
+            return 0L;
+        }
+        if (Double.parseDouble(args.get(3)) <= now) {
+            requeue(keys, id);
+        } else {
+            zset(keys.get(1)).put(id, Double.parseDouble(args.get(3)));
+        }
+        return 1L;
+    }
+
+    private int requeueExpired(List<String> keys, String now, int limit) {
+        List<String> expired = range(keys.get(1), Double.NEGATIVE_INFINITY, Double.parseDouble(now), limit);
+        for (String id : expired) {
+            requeue(keys, id);
+        }
+        return expired.size();
+    }
+
+    private void requeue(List<String> keys, String id) {
+        zset(keys.get(1)).remove(id);
+        hash(keys.get(5)).remove(id);
+        zset(keys.get(0)).put(id, -Double.parseDouble(hash(keys.get(3)).get(id)));
+    }
+
+    // Up to limit members scored within [min, max], in Redis order: by score, then member.
+    private List<String> range(String key, double min, double max, int limit) {
+        List<Map.Entry<String, Double>> entries = new ArrayList<>(zset(key).entrySet());
+        entries.sort(Map.Entry.<String, Double>comparingByValue().thenComparing(Map.Entry.comparingByKey()));
+        List<String> members = new ArrayList<>();
+        for (Map.Entry<String, Double> entry : entries) {
+            if (members.size() < limit && entry.getValue() >= min && entry.getValue() <= max) {
+                members.add(entry.getKey());
+            }
+        }
+        return members;
+    }
+
+    private Map<String, Double> zset(String key) {
+        return zsets.computeIfAbsent(key, k -> new HashMap<>());
+    }
+
+    private Map<String, String> hash(String key) {
+        return hashes.computeIfAbsent(key, k -> new HashMap<>());
+    }
+
+    // RESP: clients send each command as an array of bulk strings.
+    private static List<String> readCommand(InputStream in) throws IOException {
+        String header = readLine(in);
+        if (header == null) {
+            return null;
+        }
+        if (header.charAt(0) != '*') {
+            throw new IOException("Expected an array, got " + header);
+        }
+        int count = Integer.parseInt(header.substring(1));
+        List<String> command = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = Integer.parseInt(readLine(in).substring(1));
+            byte[] bytes = in.readNBytes(length + 2);
+            command.add(new String(bytes, 0, length, StandardCharsets.UTF_8));
+        }
+        return command;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                return null;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void writeReply(OutputStream out, Object reply) throws IOException {
+        if (reply == null) {
+            out.write("$-1\r\n".getBytes(StandardCharsets.UTF_8));
+        } else if (reply instanceof StatusReply) {
+            out.write(("+" + ((StatusReply) reply).text + "\r\n").getBytes(StandardCharsets.UTF_8));
+        } else if (reply instanceof ErrorReply) {
+            out.write(("-" + ((ErrorReply) reply).text + "\r\n").getBytes(StandardCharsets.UTF_8));
+        } else if (reply instanceof Long) {
+            out.write((":" + reply + "\r\n").getBytes(StandardCharsets.UTF_8));
+        } else if (reply instanceof String) {
+            byte[] bytes = ((String) reply).getBytes(StandardCharsets.UTF_8);
+            out.write(("$" + bytes.length + "\r\n").getBytes(StandardCharsets.UTF_8));
+            out.write(bytes);
+            out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        } else {
+            List<?> items = (List<?>) reply;
+            out.write(("*" + items.size() + "\r\n").getBytes(StandardCharsets.UTF_8));
+            for (Object item : items) {
+                writeReply(out, item);
+            }
+        }
+    }
+
+    private static final class StatusReply {
+        final String text;
+
+        StatusReply(String text) {
+            this.text = text;
+        }
+    }
+
+    private static final class ErrorReply {
+        final String text;
+
+        ErrorReply(String text) {
+            this.text = text;
+        }
+    }
+}
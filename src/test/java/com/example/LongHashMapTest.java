@@ -0,0 +1,81 @@
+package com.example;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongHashMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        LongHashMap<String> map = new LongHashMap<>();
+        assertNull(map.put(7, "a"));
+        assertEquals("a", map.put(7, "b"));
+        assertEquals("b", map.get(7));
+        assertNull(map.get(8));
+        assertEquals("b", map.remove(7));
+        assertNull(map.remove(7));
+        assertEquals(0, map.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroIsReserved() {
+        new LongHashMap<String>().put(0, "a");
+    }
+
+    @Test
+    public void testMatchesHashMapUnderRandomOperations() {
+        LongHashMap<Long> map = new LongHashMap<>(4);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            // Few distinct keys, so removes often hit probe sequences that must be shifted back.
+            long key = 1 + random.nextInt(2_000);
+            if (random.nextBoolean()) {
+                assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+            } else {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = 1; key <= 2_000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void testIntValuesMatchHashMapUnderRandomOperations() {
+        LongIntHashMap map = new LongIntHashMap(4);
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 200_000; i++) {
+            long key = 1 + random.nextInt(2_000);
+            if (random.nextBoolean()) {
+                assertEquals((int) expected.getOrDefault(key, LongIntHashMap.MISSING), map.put(key, i));
+                expected.put(key, i);
+            } else {
+                Integer removed = expected.remove(key);
+                assertEquals(removed == null ? LongIntHashMap.MISSING : removed, map.remove(key));
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = 1; key <= 2_000; key++) {
+            assertEquals((int) expected.getOrDefault(key, LongIntHashMap.MISSING), map.get(key));
+        }
+    }
+
+    @Test
+    public void testReceiptsRoundTripThroughTheirString() {
+        long receipt = Receipts.receipt(Receipts.newEpoch(), 123_456_789L);
+        String receiptId = Receipts.format(receipt);
+        assertEquals(16, receiptId.length());
+        assertEquals(receipt, Receipts.parse(receiptId));
+        assertEquals(Receipts.NONE, Receipts.parse("not a receipt id"));
+        assertEquals(Receipts.NONE, Receipts.parse("0123456789abcdeg"));
+        assertNotEquals(Receipts.NONE, Receipts.receipt(1, 0));
+    }
+}
@@ -0,0 +1,230 @@
+package com.example;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedQueueTest {
+    private MappedQueueService qs;
+    private final String queueUrl = "https://sqs.ap-1.amazonaws.com/007/MyMappedQueue";
+
+    @Before
+    public void setup() {
+        qs = new MappedQueueService();
+        qs.purgeQueue(queueUrl);
+    }
+
+    @Test
+    public void testSendMessage() {
+        qs.push(queueUrl, "Good message!", 1);
+        Message msg = qs.pull(queueUrl);
+
+        assertNotNull(msg);
+        assertEquals("Good message!", msg.getBody());
+        assertTrue(msg.getReceiptId() != null && !msg.getReceiptId().isEmpty());
+    }
+
+    @Test
+    public void testPullEmptyQueue() {
+        assertNull(qs.pull(queueUrl));
+    }
+
+    @Test
+    public void testDoublePull() {
+        qs.push(queueUrl, "Message A.", 1);
+        qs.pull(queueUrl);
+        assertNull(qs.pull(queueUrl));
+    }
+
+    @Test
+    public void testDeleteMessage() {
+        qs.push(queueUrl, "Message A.", 1);
+        Message msg = qs.pull(queueUrl);
+        qs.delete(queueUrl, msg.getReceiptId());
+
+        qs.setTimeSupplier(() -> System.currentTimeMillis() + 1000 * 30 + 1);
+        assertNull(qs.pull(queueUrl));
+    }
+
+    @Test
+    public void testFIFO3Msgs() {
+        String[] msgStrs = {"Test msg 1", "Test msg 2", "{\n  \"name\":\"John\"\n}"};
+        qs.push(queueUrl, msgStrs[0], 1);
+        qs.push(queueUrl, msgStrs[1], 2);
+        qs.push(queueUrl, msgStrs[2], 3);
+
+        assertEquals(msgStrs[0], qs.pull(queueUrl).getBody());
+        assertEquals(msgStrs[1], qs.pull(queueUrl).getBody());
+        assertEquals(msgStrs[2], qs.pull(queueUrl).getBody());
+    }
+
+    @Test
+    public void testAckTimeout() {
+        qs.push(queueUrl, "Message A.", 1);
+        Message first = qs.pull(queueUrl);
+        qs.setTimeSupplier(() -> System.currentTimeMillis() + 1000 * 30 + 1);
+
+        Message msg = qs.pull(queueUrl);
+        assertNotNull(msg);
+        assertEquals("Message A.", msg.getBody());
+
+        // The first receipt is no longer valid once the message was delivered again.
+        qs.delete(queueUrl, first.getReceiptId());
+        qs.setTimeSupplier(() -> System.currentTimeMillis() + 1000 * 60 + 2);
+        assertNotNull(qs.pull(queueUrl));
+    }
+
+    @Test
+    public void testRingWrapsAroundAndSharesStateAcrossMappings() throws Exception {
+        Path file = Files.createTempDirectory("mapped-ring").resolve("ring.mmap");
+        MappedRing producer = MappedRing.open(file, 1024);
+        MappedRing consumer = MappedRing.open(file, 1024); // a second mapping, as another process would have
+
+        byte[] body = new byte[100];
+        int delivered = 0;
+        for (int i = 0; i < 100; i++) {
+            body[0] = (byte) i;
+            while (!producer.offer(body, 1, 0)) {
+                Message msg = consumer.poll(0, 1_000);
+                assertNotNull("a full ring must have something to consume", msg);
+                assertEquals(delivered++, msg.getBody().getBytes(StandardCharsets.UTF_8)[0]);
+                assertTrue(consumer.delete(msg.getReceiptId(), 0));
+            }
+        }
+        Message msg;
+        while ((msg = consumer.poll(0, 1_000)) != null) {
+            assertEquals(delivered++, msg.getBody().getBytes(StandardCharsets.UTF_8)[0]);
+            assertTrue(producer.delete(msg.getReceiptId(), 0));
+        }
+        assertEquals(100, delivered);
+    }
+
+    @Test
+    public void testReservationOfADeadProducerIsSkippedAndFreed() throws Exception {
+        Path file = Files.createTempDirectory("mapped-ring").resolve("ring.mmap");
+        MappedRing ring = MappedRing.open(file, 1024);
+        // No process has this id, so the producer that reserved the record is gone.
+        assertTrue(ring.reserve(400, 1, 0, Integer.MAX_VALUE, System.currentTimeMillis()) >= 0);
+        assertTrue(ring.offer("After".getBytes(StandardCharsets.UTF_8), 1, 0));
+
+        Message msg = ring.poll(0, 1_000);
+        assertEquals("After", msg.getBody());
+        assertTrue(ring.delete(msg.getReceiptId(), 0));
+        // Both records were freed, so there is room for two records of nearly half the ring again.
+        assertTrue(ring.offer(new byte[440], 1, 0));
+        assertTrue(ring.offer(new byte[440], 1, 0));
+    }
+
+    @Test
+    public void testStaleReservationOfALiveProducerIsSkippedButKeepsItsSpace() throws Exception {
+        Path file = Files.createTempDirectory("mapped-ring").resolve("ring.mmap");
+        MappedRing ring = MappedRing.open(file, 1024);
+        long now = System.currentTimeMillis();
+        long stalled = ring.reserve(400, 1, 0, (int) ProcessHandle.current().pid(),
+                now - MappedRing.RESERVATION_TIMEOUT_MILLIS);
+        assertTrue(ring.offer("After".getBytes(StandardCharsets.UTF_8), 1, 0));
+
+        Message msg = ring.poll(0, 1_000);
+        assertEquals("After", msg.getBody());
+        assertTrue(ring.delete(msg.getReceiptId(), 0));
+        // The stalled producer may still write its body, so the head stays before it.
+        assertTrue(ring.offer(new byte[440], 1, 0));
+        assertFalse(ring.offer(new byte[440], 1, 0));
+
+        byte[] body = new byte[400];
+        body[0] = 42;
+        ring.publish(stalled, body);
+        assertEquals(42, ring.poll(0, 1_000).getBody().getBytes(StandardCharsets.UTF_8)[0]);
+    }
+
+    @Test
+    public void testBatchPushPullDelete() {
+        qs.pushBatch(queueUrl, Arrays.asList("Batch 1", "Batch 2", "Batch 3"), 1);
+
+        List<Message> msgs = qs.pull(queueUrl, 2);
+        assertEquals(2, msgs.size());
+        assertEquals("Batch 1", msgs.get(0).getBody());
+        assertEquals("Batch 2", msgs.get(1).getBody());
+
+        // Only the receipts that deleted something count.
+        qs.deleteBatch(queueUrl, Arrays.asList(msgs.get(0).getReceiptId(), msgs.get(1).getReceiptId(),
+                msgs.get(0).getReceiptId(), "not-a-receipt"));
+        assertEquals(2, qs.getMetrics().queue("MyMappedQueue").getDeleteCount());
+        List<Message> rest = qs.pull(queueUrl, 10);
+        assertEquals(1, rest.size());
+        assertEquals("Batch 3", rest.get(0).getBody());
+        assertTrue(qs.pull(queueUrl, 10).isEmpty());
+    }
+
+    @Test
+    public void testRedrivePolicyMovesPoisonMessageToDeadLetterQueue() {
+        String deadLetterQueueUrl = "https://sqs.ap-1.amazonaws.com/007/MyMappedDeadLetterQueue";
+        qs.purgeQueue(deadLetterQueueUrl);
+        long[] clock = {System.currentTimeMillis()};
+        qs.setTimeSupplier(() -> clock[0]);
+        qs.setRedrivePolicy(queueUrl, new RedrivePolicy(deadLetterQueueUrl, 1));
+
+        // Not valid UTF-8, so only the bytes themselves survive the move.
+        byte[] poison = {(byte) 0xFF, 'P'};
+        qs.push(queueUrl, poison, 3);
+        assertArrayEquals(poison, qs.pull(queueUrl).getBodyBytes());
+        clock[0] += TimeUnit.SECONDS.toMillis(30) + 1;
+
+        assertNull(qs.pull(queueUrl));
+        assertEquals(1, qs.getMetrics().queue("MyMappedQueue").getDeadLetterCount());
+        Message deadLetter = qs.pull(deadLetterQueueUrl);
+        assertArrayEquals(poison, deadLetter.getBodyBytes());
+        assertEquals(3, deadLetter.getPriority());
+    }
+
+    @Test
+    public void testDelayedPushIsInvisibleUntilDue() {
+        long[] clock = {System.currentTimeMillis()};
+        qs.setTimeSupplier(() -> clock[0]);
+
+        qs.push(queueUrl, "Later", 1, Duration.ofSeconds(5));
+        qs.push(queueUrl, "Now", 1);
+
+        assertEquals("Now", qs.pull(queueUrl).getBody());
+        assertNull(qs.pull(queueUrl));
+        clock[0] += TimeUnit.SECONDS.toMillis(5);
+        assertEquals("Later", qs.pull(queueUrl).getBody());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDelayBeyondTheLimitIsRejected() {
+        qs.push(queueUrl, "Much later", 1, Duration.ofSeconds(901));
+    }
+
+    @Test
+    public void testPullWithOwnVisibilityTimeout() {
+        long[] clock = {System.currentTimeMillis()};
+        qs.setTimeSupplier(() -> clock[0]);
+        qs.push(queueUrl, "Short", 1);
+        qs.push(queueUrl, "Long", 1);
+
+        assertEquals("Short", qs.pull(queueUrl, Duration.ZERO, Duration.ofSeconds(1)).getBody());
+        assertEquals("Long", qs.pull(queueUrl, 1, Duration.ofMinutes(5)).get(0).getBody());
+
+        clock[0] += TimeUnit.SECONDS.toMillis(1);
+        assertEquals("Short", qs.pull(queueUrl).getBody());
+        clock[0] += TimeUnit.SECONDS.toMillis(31);
+        assertEquals("Short", qs.pull(queueUrl).getBody());
+        assertNull(qs.pull(queueUrl));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testChangeVisibilityIsNotSupported() {
+        qs.push(queueUrl, "Message A.", 1);
+        qs.changeVisibility(queueUrl, qs.pull(queueUrl).getReceiptId(), Duration.ofMinutes(5));
+    }
+}
@@ -0,0 +1,253 @@
+package com.example;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class OffHeapQueueTest {
+    private final String queueUrl = "https://sqs.ap-1.amazonaws.com/007/MyQueue";
+    private final long[] clock = {1_000};
+    private final Properties confInfo = new Properties();
+
+    private InMemoryQueueService qs;
+
+    @Before
+    public void setup() {
+        confInfo.setProperty("inMemoryStorage", "offheap");
+        // Two slabs of 4 KiB: room for eight 1 KiB records.
+        confInfo.setProperty("offHeapMaxBytes", "8192");
+        confInfo.setProperty("offHeapSlabBytes", "4096");
+        qs = newService();
+    }
+
+    private InMemoryQueueService newService() {
+        InMemoryQueueService service = new InMemoryQueueService(confInfo);
+        service.setTimeSupplier(() -> clock[0]);
+        return service;
+    }
+
+    private static String body(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+    @Test
+    public void testPriorityOrderRedeliveryAndDelays() {
+        qs.push(queueUrl, "Low", 1);
+        qs.push(queueUrl, "High", 10);
+        qs.push(queueUrl, new byte[] {0, 1, 2}, 5);
+        qs.push(queueUrl, "Later", 10, Duration.ofSeconds(5));
+
+        Message high = qs.pull(queueUrl);
+        assertEquals("High", high.getBody());
+        assertEquals(10, high.getPriority());
+        assertEquals(1_000, high.getTimestamp());
+        assertArrayEquals(new byte[] {0, 1, 2}, qs.pull(queueUrl).getBodyBytes());
+        Message low = qs.pull(queueUrl);
+        assertEquals("Low", low.getBody());
+        assertNull(qs.pull(queueUrl));
+        qs.delete(queueUrl, high);
+        qs.delete(queueUrl, low.getReceiptId());
+
+        clock[0] += 30_000;
+        // The delayed message is due, and the undeleted one is back, still ahead of lower priorities.
+        Message later = qs.pull(queueUrl);
+        assertEquals("Later", later.getBody());
+        qs.delete(queueUrl, later);
+        Message again = qs.pull(queueUrl);
+        assertArrayEquals(new byte[] {0, 1, 2}, again.getBodyBytes());
+        assertEquals(2, again.getAttempts());
+        assertTrue(qs.changeVisibility(queueUrl, again.getReceiptId(), Duration.ofMinutes(5)));
+        clock[0] += 60_000;
+        assertNull(qs.pull(queueUrl));
+    }
+
+    @Test
+    public void testFullStoreRejectsPushesUntilDeletesFreeRoom() {
+        // A 1,000 byte body and its header take a 1 KiB block.
+        for (int i = 0; i < 8; i++) {
+            qs.push(queueUrl, body(1_000), 0);
+        }
+        try {
+            qs.push(queueUrl, body(1_000), 0);
+            fail("Expected the store to be full");
+        } catch (QueueFullException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("8192 of 8192 bytes"));
+        }
+        Message msg = qs.pull(queueUrl);
+        qs.delete(queueUrl, msg.getReceiptId());
+
+        // A batch that does not fit is not pushed at all.
+        try {
+            qs.pushBatch(queueUrl, Arrays.asList(body(1_000), body(1_000)), 0);
+            fail("Expected the store to be full");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        assertEquals(7, qs.pull(queueUrl, 10).size());
+        qs.push(queueUrl, body(1_000), 0);
+    }
+
+    @Test
+    public void testPushWaitsForAConsumerToFreeRoom() throws Exception {
+        confInfo.setProperty("offHeapPushWaitMillis", "10000");
+        qs = newService();
+        for (int i = 0; i < 8; i++) {
+            qs.push(queueUrl, body(1_000), 0);
+        }
+        CompletableFuture<Void> producer = CompletableFuture.runAsync(() -> qs.push(queueUrl, "Waited", 0));
+        Thread.sleep(100);
+        assertFalse(producer.isDone());
+
+        qs.delete(queueUrl, qs.pull(queueUrl));
+        producer.get(10, TimeUnit.SECONDS);
+        assertEquals(8, qs.pull(queueUrl, 10).size());
+    }
+
+    @Test
+    public void testDroppedMessagesFreeTheirRecords() {
+        qs.setCapacityPolicy(queueUrl, new CapacityPolicy(4, 0, OverflowPolicy.DROP_OLDEST));
+        // Twice what the store holds: each push past the limit frees the oldest record.
+        for (int i = 0; i < 16; i++) {
+            qs.push(queueUrl, i + body(1_000), 0);
+        }
+        List<Message> msgs = qs.pull(queueUrl, 10);
+        assertEquals(4, msgs.size());
+        assertTrue(msgs.get(0).getBody().startsWith("12"));
+
+        // A rejected push leaves no record behind either.
+        qs.setCapacityPolicy(queueUrl, new CapacityPolicy(0, 4_000, OverflowPolicy.REJECT));
+        for (int i = 0; i < 16; i++) {
+            try {
+                qs.push(queueUrl, body(1_000), 0);
+                fail("Expected the queue to be full");
+            } catch (QueueFullException e) {
+                // Expected.
+            }
+        }
+        for (Message msg : msgs) {
+            qs.delete(queueUrl, msg);
+        }
+        assertEquals(0.0, qs.getBackPressure(queueUrl), 0);
+        for (int i = 0; i < 4; i++) {
+            qs.push(queueUrl, body(1_000), 0);
+        }
+        assertEquals(1.0, qs.getBackPressure(queueUrl), 0);
+    }
+
+    @Test
+    public void testDeadLettersKeepTheirBody() {
+        String deadLetterQueueUrl = "https://sqs.ap-1.amazonaws.com/007/MyQueue-dlq";
+        qs.setRedrivePolicy(queueUrl, new RedrivePolicy(deadLetterQueueUrl, 1));
+        qs.push(queueUrl, "Poison", 3);
+        assertEquals(1, qs.pull(queueUrl).getAttempts());
+
+        clock[0] += 30_000;
+        assertNull(qs.pull(queueUrl));
+        Message dead = qs.pull(deadLetterQueueUrl);
+        assertEquals("Poison", dead.getBody());
+        assertEquals(3, dead.getPriority());
+        assertEquals(1, dead.getAttempts());
+
+        clock[0] += 30_000;
+        assertEquals(1, qs.redrive(deadLetterQueueUrl, queueUrl, 10));
+        assertEquals("Poison", qs.pull(queueUrl).getBody());
+    }
+
+    @Test
+    public void testConcurrentConsumersReceiveEachMessageOnce() throws Exception {
+        confInfo.setProperty("offHeapMaxBytes", String.valueOf(1 << 20));
+        qs = new InMemoryQueueService(confInfo);
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        ExecutorService threads = Executors.newFixedThreadPool(6);
+        for (int t = 0; t < 2; t++) {
+            int producer = t;
+            threads.execute(() -> {
+                for (int i = 0; i < 2_000; i++) {
+                    qs.push(queueUrl, producer + ":" + i, i % 3);
+                }
+            });
+        }
+        for (int t = 0; t < 4; t++) {
+            threads.execute(() -> {
+                while (received.size() < 4_000) {
+                    Message msg = qs.pull(queueUrl, Duration.ofMillis(10));
+                    if (msg != null) {
+                        assertTrue(received.add(msg.getBody()));
+                        qs.delete(queueUrl, msg);
+                    }
+                }
+            });
+        }
+        threads.shutdown();
+        assertTrue(threads.awaitTermination(30, TimeUnit.SECONDS));
+        assertEquals(4_000, received.size());
+        assertNull(qs.pull(queueUrl));
+    }
+
+    @Test
+    public void testArenaMergesFreedBlocks() {
+        OffHeapArena arena = new OffHeapArena(4096, 4096);
+        List<Long> blocks = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            blocks.add(arena.allocate(40, 0));
+        }
+        assertEquals(OffHeapArena.NULL, arena.allocate(1, 0));
+        assertEquals(4096, arena.usedBytes());
+
+        // Freed in an order that leaves most blocks waiting for their buddy.
+        Collections.shuffle(blocks, new Random(7));
+        for (long block : blocks) {
+            arena.free(block);
+        }
+        assertEquals(0, arena.usedBytes());
+        assertNotEquals(OffHeapArena.NULL, arena.allocate(4096, 0));
+    }
+
+    @Test
+    public void testArenaBlocksNeverOverlap() {
+        OffHeapArena arena = new OffHeapArena(1 << 16, 1 << 14);
+        List<long[]> live = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            long block = random.nextInt(3) == 0 ? OffHeapArena.NULL : arena.allocate(1 + random.nextInt(2_000), 0);
+            if (block == OffHeapArena.NULL) {
+                if (!live.isEmpty()) {
+                    long[] freed = live.remove(random.nextInt(live.size()));
+                    assertEquals(freed[1], arena.slab(freed[0]).getLong(OffHeapArena.offset(freed[0])));
+                    arena.free(freed[0]);
+                }
+                continue;
+            }
+            // Stamp each block, to catch another block being handed out over it.
+            long stamp = random.nextLong();
+            arena.slab(block).putLong(OffHeapArena.offset(block), stamp);
+            live.add(new long[] {block, stamp});
+        }
+        for (long[] block : live) {
+            assertEquals(block[1], arena.slab(block[0]).getLong(OffHeapArena.offset(block[0])));
+        }
+    }
+}
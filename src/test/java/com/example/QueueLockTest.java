@@ -0,0 +1,80 @@
+package com.example;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class QueueLockTest {
+
+    @Test
+    public void testStaleLockDirectoryIsRecovered() throws Exception {
+        Path dir = Files.createTempDirectory("queue-lock");
+        Path lockFile = dir.resolve(".lock");
+        Files.createDirectory(lockFile); // left behind by a crashed holder of the old mkdir lock
+
+        QueueLock lock = QueueLock.forFile(lockFile);
+        lock.lock();
+        lock.unlock();
+
+        assertTrue(Files.isRegularFile(lockFile));
+    }
+
+    @Test
+    public void testMutualExclusionAcrossThreads() throws Exception {
+        Path lockFile = Files.createTempDirectory("queue-lock").resolve(".lock");
+        QueueLock lock = QueueLock.forFile(lockFile);
+        AtomicInteger inside = new AtomicInteger();
+        AtomicInteger violations = new AtomicInteger();
+        int[] counter = {0};
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 1_000; i++) {
+                    try {
+                        lock.lock();
+                        try {
+                            if (inside.incrementAndGet() != 1) {
+                                violations.incrementAndGet();
+                            }
+                            counter[0]++;
+                            inside.decrementAndGet();
+                        } finally {
+                            lock.unlock();
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, violations.get());
+        assertEquals(8_000, counter[0]);
+    }
+
+    @Test
+    public void testSameFileSharesOneLock() throws Exception {
+        Path lockFile = Files.createTempDirectory("queue-lock").resolve(".lock");
+        QueueLock first = QueueLock.forFile(lockFile);
+        QueueLock second = QueueLock.forFile(lockFile.getParent().resolve("./.lock"));
+        assertSame(first, second);
+
+        // Re-entrant: the OS lock is taken once and kept until the outermost unlock.
+        first.lock();
+        second.lock();
+        second.unlock();
+        first.unlock();
+    }
+}
@@ -0,0 +1,79 @@
+package com.example;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class QueueMetricsTest {
+
+    @Test
+    public void testHistogramBucketsBoundRelativeError() {
+        for (long value = 0; value < 10_000_000_000L; value = value * 3 / 2 + 1) {
+            int index = LatencyHistogram.index(value);
+            long highest = LatencyHistogram.highestValue(index);
+            assertTrue(value <= highest);
+            assertTrue("value " + value, highest - value <= Math.max(value / LatencyHistogram.SUB_BUCKETS, 0));
+            assertEquals(index, LatencyHistogram.index(highest));
+        }
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(1000), histogram.getMax());
+        assertEquals(500_000, histogram.getPercentile(50), 500_000 / LatencyHistogram.SUB_BUCKETS);
+        assertEquals(990_000, histogram.getPercentile(99), 990_000 / LatencyHistogram.SUB_BUCKETS);
+        assertEquals(histogram.getMax(), histogram.getPercentile(100));
+        assertEquals(500_500, histogram.getMean(), 1);
+    }
+
+    @Test
+    public void testQueuesAreExportedOverJmx() throws Exception {
+        InMemoryQueueService qs = new InMemoryQueueService();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        JmxMetricsExporter.export(qs.getMetrics(), server);
+
+        qs.push("queue-a", "Message", 1);
+        qs.pull("queue-a");
+        qs.pull("queue-a");
+
+        ObjectName name = JmxMetricsExporter.objectName("InMemoryQueueService", "queue-a");
+        try {
+            assertEquals(1L, server.getAttribute(name, "PushCount"));
+            assertEquals(1L, server.getAttribute(name, "EmptyPullCount"));
+            assertEquals(1L, server.getAttribute(name, "InFlight"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    @Test
+    public void testReporterIsCalledPeriodically() throws Exception {
+        QueueMetrics metrics = new QueueMetrics("test");
+        metrics.queue("queue-a").recordError(QueueOperation.PUSH);
+        CountDownLatch reports = new CountDownLatch(2);
+
+        AutoCloseable reporting = metrics.startReporting(m -> {
+            assertEquals(1, m.queue("queue-a").getErrorCount());
+            reports.countDown();
+        }, Duration.ofMillis(10));
+        try {
+            assertTrue(reports.await(5, TimeUnit.SECONDS));
+        } finally {
+            reporting.close();
+        }
+    }
+}
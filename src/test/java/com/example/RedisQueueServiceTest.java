@@ -0,0 +1,149 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+public class RedisQueueServiceTest {
+    private final String queueUrl = "https://sqs.ap-1.amazonaws.com/007/MyQueue";
+    private final Properties confInfo = new Properties();
+    private final long[] clock = {1_000};
+
+    private LocalRedisServer server;
+    private RedisQueueService qs;
+
+    @Before
+    public void setup() throws IOException {
+        server = new LocalRedisServer();
+        // Reaping is driven by the tests.
+        confInfo.setProperty("redisReaperMillis", "0");
+        qs = newService();
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        qs.close();
+        server.close();
+    }
+
+    private RedisQueueService newService() {
+        RedisQueueService service = new RedisQueueService(new JedisPool(new JedisPoolConfig(), "localhost",
+                server.getPort()), confInfo);
+        service.setTimeSupplier(() -> clock[0]);
+        return service;
+    }
+
+    @Test
+    public void testHighestPriorityFirstThenPushOrder() {
+        qs.push(queueUrl, "Low", 1);
+        qs.push(queueUrl, "High A", 10);
+        qs.push(queueUrl, "12:00:00 High B", 10);
+
+        assertEquals("High A", qs.pull(queueUrl).getBody());
+        Message msg = qs.pull(queueUrl);
+        assertEquals("12:00:00 High B", msg.getBody());
+        assertEquals(10, msg.getPriority());
+        assertEquals(1_000, msg.getTimestamp());
+        assertEquals("Low", qs.pull(queueUrl).getBody());
+        assertNull(qs.pull(queueUrl));
+    }
+
+    @Test
+    public void testDeleteByReceiptBeforeTheDeadline() {
+        qs.push(queueUrl, "Delete me", 0);
+        qs.push(queueUrl, "Keep me", 0);
+        Message deleted = qs.pull(queueUrl);
+        Message kept = qs.pull(queueUrl);
+        qs.delete(queueUrl, deleted.getReceiptId());
+        qs.delete(queueUrl, "not-a-receipt");
+
+        clock[0] += 30_000;
+        // Too late: the message is visible again, and the receipt no longer deletes it.
+        qs.delete(queueUrl, kept.getReceiptId());
+        Message again = qs.pull(queueUrl);
+        assertEquals("Keep me", again.getBody());
+        assertEquals(2, again.getAttempts());
+        assertNull(qs.pull(queueUrl));
+    }
+
+    @Test
+    public void testChangeVisibilityNeedsTheLatestReceipt() {
+        qs.push(queueUrl, "Retry me", 0);
+        Message msg = qs.pull(queueUrl);
+        assertTrue(qs.changeVisibility(queueUrl, msg.getReceiptId(), Duration.ofMinutes(5)));
+        clock[0] += 60_000;
+        assertNull(qs.pull(queueUrl));
+
+        assertTrue(qs.changeVisibility(queueUrl, msg.getReceiptId(), Duration.ZERO));
+        Message again = qs.pull(queueUrl);
+        assertEquals(2, again.getAttempts());
+        assertFalse(qs.changeVisibility(queueUrl, msg.getReceiptId(), Duration.ofSeconds(10)));
+        qs.delete(queueUrl, msg.getReceiptId());
+
+        clock[0] += 30_000;
+        assertEquals(3, qs.pull(queueUrl).getAttempts());
+    }
+
+    @Test
+    public void testBatchPushIsPipelinedInChunks() {
+        confInfo.setProperty("redisBatchSize", "2");
+        qs.close();
+        qs = newService();
+        List<String> bodies = Arrays.asList("m0", "m1", "m2", "m3", "m4");
+        qs.pushBatch(queueUrl, bodies, 3);
+
+        // The script is loaded once, ahead of one call per chunk.
+        assertEquals(Arrays.asList("SCRIPT", "EVALSHA", "EVALSHA", "EVALSHA"), server.commands());
+        List<Message> messages = qs.pull(queueUrl, 10, Duration.ofSeconds(5));
+        assertEquals(bodies, messages.stream().map(Message::getBody).collect(Collectors.toList()));
+
+        List<String> receipts = new ArrayList<>();
+        for (Message msg : messages) {
+            receipts.add(msg.getReceiptId());
+        }
+        // Only the receipts that deleted something count.
+        receipts.add(receipts.get(0));
+        receipts.add("not-a-receipt");
+        qs.deleteBatch(queueUrl, receipts);
+        assertEquals(5, qs.getMetrics().queue("MyQueue").getDeleteCount());
+        clock[0] += 5_000;
+        assertEquals(Collections.emptyList(), qs.pull(queueUrl, 10));
+    }
+
+    @Test
+    public void testScriptsAreSentOnlyWhenTheServerLacksThem() {
+        qs.push(queueUrl, "first", 0);
+        qs.push(queueUrl, "second", 0);
+        assertEquals(Arrays.asList("EVALSHA", "EVAL", "EVALSHA"), server.commands());
+    }
+
+    @Test
+    public void testReaperRequeuesExpiredDeliveries() {
+        qs.pushBatch(queueUrl, Arrays.asList("a", "b", "c"), 0);
+        qs.pull(queueUrl, 2, Duration.ofSeconds(10));
+        qs.pull(queueUrl, 1, Duration.ofSeconds(60));
+        assertEquals(0, qs.reap());
+
+        clock[0] += 10_000;
+        assertEquals(2, qs.reap());
+        assertEquals(2, server.zcard("queue:{MyQueue}:ready"));
+        assertEquals(1, server.zcard("queue:{MyQueue}:inflight"));
+    }
+}
@@ -0,0 +1,111 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * Runs RedisQueueService's Lua scripts on a real Redis server, which
+ * {@link LocalRedisServer} only imitates. Set {@code -Dredis.host} and
+ * {@code -Dredis.port} to use a server other than localhost:6379; the tests are
+ * skipped when none answers.
+ */
+public class RedisScriptsTest {
+    private static final String HOST = System.getProperty("redis.host", "localhost");
+    private static final int PORT = Integer.getInteger("redis.port", 6379);
+
+    private final String queueUrl = "https://sqs.ap-1.amazonaws.com/007/MyQueue";
+    private final long[] clock = {1_000};
+
+    private RedisQueueService qs;
+
+    @Before
+    public void setup() {
+        try (Jedis jedis = new Jedis(HOST, PORT, 1_000)) {
+            jedis.ping();
+        } catch (JedisException e) {
+            Assume.assumeNoException("No Redis server at " + HOST + ":" + PORT, e);
+        }
+        Properties confInfo = new Properties();
+        // Keys of their own, so the tests leave other data on the server alone.
+        confInfo.setProperty("redisKeyPrefix", "queue-test-" + UUID.randomUUID() + ":");
+        confInfo.setProperty("redisReaperMillis", "0");
+        qs = new RedisQueueService(new JedisPool(new JedisPoolConfig(), HOST, PORT), confInfo);
+        qs.setTimeSupplier(() -> clock[0]);
+    }
+
+    @After
+    public void cleanup() {
+        if (qs != null) {
+            qs.purgeQueue(queueUrl);
+            qs.close();
+        }
+    }
+
+    @Test
+    public void testPushPullAndDelete() {
+        qs.push(queueUrl, "Low", 1);
+        qs.pushBatch(queueUrl, Arrays.asList("High A", "12:00:00 High B"), 10);
+
+        assertEquals("High A", qs.pull(queueUrl).getBody());
+        Message msg = qs.pull(queueUrl);
+        assertEquals("12:00:00 High B", msg.getBody());
+        assertEquals(10, msg.getPriority());
+        assertEquals(1_000, msg.getTimestamp());
+        qs.delete(queueUrl, msg.getReceiptId());
+        qs.delete(queueUrl, "not-a-receipt");
+
+        Message low = qs.pull(queueUrl);
+        assertEquals("Low", low.getBody());
+        assertNull(qs.pull(queueUrl));
+        clock[0] += 30_000;
+        // Too late: the message is visible again, and the receipt no longer deletes it.
+        qs.delete(queueUrl, low.getReceiptId());
+        Message again = qs.pull(queueUrl);
+        assertEquals("Low", again.getBody());
+        assertEquals(2, again.getAttempts());
+        assertNull(qs.pull(queueUrl));
+    }
+
+    @Test
+    public void testChangeVisibilityNeedsTheLatestReceipt() {
+        qs.push(queueUrl, "Retry me", 0);
+        Message msg = qs.pull(queueUrl);
+        assertTrue(qs.changeVisibility(queueUrl, msg.getReceiptId(), Duration.ofMinutes(5)));
+        clock[0] += 60_000;
+        assertNull(qs.pull(queueUrl));
+
+        assertTrue(qs.changeVisibility(queueUrl, msg.getReceiptId(), Duration.ZERO));
+        Message again = qs.pull(queueUrl);
+        assertEquals(2, again.getAttempts());
+        assertFalse(qs.changeVisibility(queueUrl, msg.getReceiptId(), Duration.ofSeconds(10)));
+    }
+
+    @Test
+    public void testReaperRequeuesExpiredDeliveries() {
+        qs.pushBatch(queueUrl, Arrays.asList("a", "b", "c"), 0);
+        qs.pull(queueUrl, 2, Duration.ofSeconds(10));
+        qs.pull(queueUrl, 1, Duration.ofSeconds(60));
+        assertEquals(0, qs.reap());
+
+        clock[0] += 10_000;
+        assertEquals(2, qs.reap());
+        assertEquals(2, qs.pull(queueUrl, 10).size());
+    }
+}
@@ -0,0 +1,222 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ShardedQueueServiceTest {
+    private final String queueUrl = "https://sqs.ap-1.amazonaws.com/007/MyQueue";
+    private final long[] clock = {1_000};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private InMemoryQueueService backend;
+    private ShardedQueueService qs;
+
+    @Before
+    public void setup() {
+        backend = new InMemoryQueueService();
+        backend.setTimeSupplier(() -> clock[0]);
+        qs = new ShardedQueueService(Collections.singletonList(backend), 4, ShardSelection.ROUND_ROBIN);
+    }
+
+    @Test
+    public void testWaitingPullFindsAMessagePushedToAnotherShard() throws Exception {
+        // Not the shard this thread waits on, which is chosen by thread id.
+        int shard = (int) ((Thread.currentThread().getId() + 1) % 4);
+        ExecutorService producer = Executors.newSingleThreadExecutor();
+        try {
+            producer.submit(() -> {
+                TimeUnit.MILLISECONDS.sleep(200);
+                backend.push(qs.shardUrl(queueUrl, shard), "Stolen", 0);
+                return null;
+            });
+            long start = System.nanoTime();
+            Message msg = qs.pull(queueUrl, Duration.ofSeconds(10), Duration.ofSeconds(30));
+            assertEquals("Stolen", msg.getBody());
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        } finally {
+            producer.shutdownNow();
+        }
+
+        long start = System.nanoTime();
+        assertNull(qs.pull(queueUrl, Duration.ofMillis(250)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(250));
+    }
+
+    @Test
+    public void testRoundRobinSpreadsPushesAndPullsStealFromEveryShard() {
+        for (int i = 0; i < 6; i++) {
+            qs.push(queueUrl, "single " + i, 0);
+        }
+        qs.pushBatch(queueUrl, Arrays.asList("batch 0", "batch 1"), 0);
+
+        List<Integer> perShard = new ArrayList<>();
+        for (int shard = 0; shard < 4; shard++) {
+            perShard.add(backend.pull(qs.shardUrl(queueUrl, shard), 10, Duration.ZERO).size());
+        }
+        assertEquals(Arrays.asList(2, 2, 2, 2), perShard);
+
+        // A single consumer drains every shard, not just its own.
+        assertEquals(8, qs.pull(queueUrl, 10).size());
+        assertNull(qs.pull(queueUrl));
+    }
+
+    @Test
+    public void testHashKeepsAKeyInOneShardInOrder() {
+        qs = new ShardedQueueService(Collections.singletonList(backend), 4, ShardSelection.HASH);
+        for (int i = 0; i < 5; i++) {
+            qs.push(queueUrl, "order-42", "step " + i, 0);
+        }
+
+        int shards = 0;
+        List<String> bodies = new ArrayList<>();
+        for (int shard = 0; shard < 4; shard++) {
+            List<Message> messages = backend.pull(qs.shardUrl(queueUrl, shard), 10);
+            if (!messages.isEmpty()) {
+                shards++;
+                messages.forEach(msg -> bodies.add(msg.getBody()));
+            }
+        }
+        assertEquals(1, shards);
+        assertEquals(Arrays.asList("step 0", "step 1", "step 2", "step 3", "step 4"), bodies);
+    }
+
+    @Test
+    public void testTextAndBinaryPushesOfABodyShareAShard() {
+        qs = new ShardedQueueService(Collections.singletonList(backend), 4, ShardSelection.HASH);
+        for (int i = 0; i < 8; i++) {
+            qs.push(queueUrl, "body " + i, 0);
+            qs.push(queueUrl, ("body " + i).getBytes(StandardCharsets.UTF_8), 0);
+        }
+
+        int total = 0;
+        for (int shard = 0; shard < 4; shard++) {
+            List<Message> messages = backend.pull(qs.shardUrl(queueUrl, shard), 16);
+            for (Message msg : messages) {
+                assertEquals(2, messages.stream().filter(other -> other.getBody().equals(msg.getBody())).count());
+            }
+            total += messages.size();
+        }
+        assertEquals(16, total);
+    }
+
+    @Test
+    public void testReceiptsGoBackToTheirShard() {
+        qs.pushBatch(queueUrl, Arrays.asList("a", "b", "c", "d"), 0);
+        List<Message> messages = qs.pull(queueUrl, 4);
+        assertEquals(4, messages.size());
+
+        qs.delete(queueUrl, messages.get(0).getReceiptId());
+        qs.deleteBatch(queueUrl, Arrays.asList(messages.get(1).getReceiptId(), "not-a-receipt"));
+        assertTrue(qs.changeVisibility(queueUrl, messages.get(2).getReceiptId(), Duration.ofMinutes(5)));
+        assertFalse(qs.changeVisibility(queueUrl, "9:unknown", Duration.ofMinutes(5)));
+
+        // Only the message without a new deadline comes back after the default timeout.
+        clock[0] += 30_000;
+        List<Message> again = qs.pull(queueUrl, 4);
+        assertEquals(1, again.size());
+        assertEquals(messages.get(3).getBody(), again.get(0).getBody());
+    }
+
+    @Test
+    public void testDeduplicatedPushesOfOneIdGoToOneShard() {
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i == 0, qs.pushDeduplicated(queueUrl, "Order 42", 0, "order-42"));
+        }
+        assertEquals(1, qs.pull(queueUrl, 10).size());
+    }
+
+    @Test
+    public void testCapacityPolicyIsSplitOverTheShards() {
+        CapacityPolicy policy = new CapacityPolicy(8, 0, OverflowPolicy.REJECT);
+        qs.setCapacityPolicy(queueUrl, policy);
+        assertEquals(policy, qs.getCapacityPolicy(queueUrl));
+        assertEquals(2, backend.getCapacityPolicy(qs.shardUrl(queueUrl, 3)).getMaxMessages());
+
+        for (int i = 0; i < 7; i++) {
+            qs.push(queueUrl, "m" + i, 0);
+        }
+        // Three shards are full; the back-pressure is that of the fullest.
+        assertEquals(1.0, qs.getBackPressure(queueUrl), 0);
+        qs.push(queueUrl, "m7", 0);
+        try {
+            qs.push(queueUrl, "m8", 0);
+            fail("Expected the shard to be full");
+        } catch (QueueFullException e) {
+            // Expected.
+        }
+        qs.setCapacityPolicy(queueUrl, null);
+        qs.push(queueUrl, "m8", 0);
+        assertEquals(0, qs.getBackPressure(queueUrl), 0);
+    }
+
+    @Test
+    public void testFileShardsAreSpreadOverDirectories() throws Exception {
+        File first = folder.newFolder("disk1");
+        File second = folder.newFolder("disk2");
+        qs = new ShardedQueueService(Arrays.asList(new FileQueueService(first.getPath()),
+                new FileQueueService(second.getPath())), 4, ShardSelection.ROUND_ROBIN);
+        qs.pushBatch(queueUrl, Arrays.asList("a", "b", "c", "d"), 0);
+
+        assertTrue(new File(first, "MyQueue-s0").isDirectory());
+        assertTrue(new File(second, "MyQueue-s1").isDirectory());
+        assertTrue(new File(first, "MyQueue-s2").isDirectory());
+        assertTrue(new File(second, "MyQueue-s3").isDirectory());
+        List<Message> messages = qs.pull(queueUrl, 10);
+        assertEquals(4, messages.size());
+        for (Message msg : messages) {
+            qs.delete(queueUrl, msg.getReceiptId());
+        }
+        assertNull(qs.pull(queueUrl));
+    }
+
+    @Test
+    public void testConcurrentConsumersReceiveEachMessageOnce() throws Exception {
+        qs = new ShardedQueueService(Collections.singletonList(new InMemoryQueueService()), 8,
+                ShardSelection.ROUND_ROBIN);
+        List<String> bodies = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            bodies.add("message " + i);
+        }
+        qs.pushBatch(queueUrl, bodies, 0);
+
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        ExecutorService consumers = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            consumers.execute(() -> {
+                List<Message> messages;
+                while (!(messages = qs.pull(queueUrl, 16)).isEmpty()) {
+                    for (Message msg : messages) {
+                        assertTrue(received.add(msg.getBody()));
+                        qs.delete(queueUrl, msg.getReceiptId());
+                    }
+                }
+            });
+        }
+        consumers.shutdown();
+        assertTrue(consumers.awaitTermination(30, TimeUnit.SECONDS));
+        assertEquals(2_000, received.size());
+    }
+}
@@ -0,0 +1,255 @@
+package com.example;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.MessageNotInflightException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+
+public class SqsQueueServiceTest {
+    private final String queueUrl = "https://sqs.ap-1.amazonaws.com/007/MyQueue";
+
+    private AmazonSQS sqs;
+    private SqsQueueService qs;
+
+    @Before
+    public void setup() {
+        sqs = mock(AmazonSQS.class);
+        qs = new SqsQueueService(sqs);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPushBatchSendsChunksOfTen() {
+        when(sqs.sendMessageBatch(eq(queueUrl), anyList())).thenReturn(new SendMessageBatchResult());
+        List<String> bodies = new ArrayList<>();
+        for (int i = 0; i < 23; i++) {
+            bodies.add("Message " + i);
+        }
+
+        qs.pushBatch(queueUrl, bodies, 1);
+
+        ArgumentCaptor<List<SendMessageBatchRequestEntry>> batches = ArgumentCaptor.forClass(List.class);
+        verify(sqs, times(3)).sendMessageBatch(eq(queueUrl), batches.capture());
+        assertEquals(10, batches.getAllValues().get(0).size());
+        assertEquals(10, batches.getAllValues().get(1).size());
+        assertEquals(3, batches.getAllValues().get(2).size());
+        assertEquals("Message 22", batches.getAllValues().get(2).get(2).getMessageBody());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPushBatchSplitsChunksByPayloadSize() {
+        when(sqs.sendMessageBatch(eq(queueUrl), anyList())).thenReturn(new SendMessageBatchResult());
+        char[] chars = new char[100 * 1024];
+        Arrays.fill(chars, 'x');
+        String large = new String(chars);
+
+        qs.pushBatch(queueUrl, Arrays.asList(large, large, large, "small"), 1);
+
+        ArgumentCaptor<List<SendMessageBatchRequestEntry>> batches = ArgumentCaptor.forClass(List.class);
+        verify(sqs, times(2)).sendMessageBatch(eq(queueUrl), batches.capture());
+        assertEquals(2, batches.getAllValues().get(0).size());
+        assertEquals(2, batches.getAllValues().get(1).size());
+    }
+
+    @Test
+    public void testPushBatchRejectsANullBodyBeforeSendingAnything() {
+        try {
+            qs.pushBatch(queueUrl, Arrays.asList("first", null), 1);
+            fail("Expected the null body to be rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        verify(sqs, never()).sendMessageBatch(eq(queueUrl), anyList());
+    }
+
+    @Test
+    public void testDeleteBatchRejectsAnEmptyReceiptBeforeDeletingAnything() {
+        List<String> receiptIds = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            receiptIds.add("receipt-" + i);
+        }
+        receiptIds.add("");
+        try {
+            qs.deleteBatch(queueUrl, receiptIds);
+            fail("Expected the empty receipt to be rejected");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+        verify(sqs, never()).deleteMessageBatch(eq(queueUrl), anyList());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testPushBatchReportsFailedEntries() {
+        when(sqs.sendMessageBatch(eq(queueUrl), anyList())).thenReturn(new SendMessageBatchResult()
+                .withFailed(new BatchResultErrorEntry().withId("0").withCode("InvalidMessageContents")));
+
+        qs.pushBatch(queueUrl, Arrays.asList("bad"), 1);
+    }
+
+    @Test
+    public void testPullReceivesUpToTenPerRequest() {
+        List<com.amazonaws.services.sqs.model.Message> first = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            first.add(new com.amazonaws.services.sqs.model.Message().withBody("Message " + i).withReceiptHandle("r" + i));
+        }
+        when(sqs.receiveMessage(any(ReceiveMessageRequest.class)))
+                .thenReturn(new ReceiveMessageResult().withMessages(first))
+                .thenReturn(new ReceiveMessageResult().withMessages(new com.amazonaws.services.sqs.model.Message()
+                        .withBody("Message 10").withReceiptHandle("r10")))
+                .thenReturn(new ReceiveMessageResult());
+
+        List<Message> msgs = qs.pull(queueUrl, 12);
+
+        assertEquals(11, msgs.size());
+        assertEquals("Message 10", msgs.get(10).getBody());
+        assertEquals("r10", msgs.get(10).getReceiptId());
+        ArgumentCaptor<ReceiveMessageRequest> requests = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(sqs, times(3)).receiveMessage(requests.capture());
+        assertEquals(Integer.valueOf(10), requests.getAllValues().get(0).getMaxNumberOfMessages());
+        assertEquals(Integer.valueOf(2), requests.getAllValues().get(1).getMaxNumberOfMessages());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testDeleteBatchSendsReceipts() {
+        when(sqs.deleteMessageBatch(eq(queueUrl), anyList())).thenReturn(new DeleteMessageBatchResult());
+
+        qs.deleteBatch(queueUrl, Arrays.asList("r1", "r2"));
+
+        ArgumentCaptor<List<DeleteMessageBatchRequestEntry>> batch = ArgumentCaptor.forClass(List.class);
+        verify(sqs).deleteMessageBatch(eq(queueUrl), batch.capture());
+        assertEquals("r1", batch.getValue().get(0).getReceiptHandle());
+        assertEquals("r2", batch.getValue().get(1).getReceiptHandle());
+    }
+
+    @Test
+    public void testPullWithWaitUsesLongPolling() {
+        when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(new ReceiveMessageResult()
+                .withMessages(new com.amazonaws.services.sqs.model.Message().withBody("Waited").withReceiptHandle("r")));
+
+        Message msg = qs.pull(queueUrl, Duration.ofSeconds(3));
+
+        assertEquals("Waited", msg.getBody());
+        ArgumentCaptor<ReceiveMessageRequest> request = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(sqs).receiveMessage(request.capture());
+        assertEquals(Integer.valueOf(3), request.getValue().getWaitTimeSeconds());
+        assertEquals(Integer.valueOf(1), request.getValue().getMaxNumberOfMessages());
+    }
+
+    @Test
+    public void testSetRedrivePolicySetsQueueAttribute() {
+        String deadLetterQueueUrl = "https://sqs.ap-1.amazonaws.com/007/MyDeadLetterQueue";
+        when(sqs.getQueueAttributes(any(GetQueueAttributesRequest.class))).thenReturn(new GetQueueAttributesResult()
+                .addAttributesEntry("QueueArn", "arn:aws:sqs:ap-1:007:MyDeadLetterQueue"));
+
+        qs.setRedrivePolicy(queueUrl, new RedrivePolicy(deadLetterQueueUrl, 5));
+
+        verify(sqs).setQueueAttributes(queueUrl, Collections.singletonMap("RedrivePolicy",
+                "{\"maxReceiveCount\":\"5\",\"deadLetterTargetArn\":\"arn:aws:sqs:ap-1:007:MyDeadLetterQueue\"}"));
+    }
+
+    @Test
+    public void testGetRedrivePolicyParsesQueueAttribute() {
+        String deadLetterQueueUrl = "https://sqs.ap-1.amazonaws.com/007/MyDeadLetterQueue";
+        when(sqs.getQueueAttributes(any(GetQueueAttributesRequest.class))).thenReturn(new GetQueueAttributesResult()
+                .addAttributesEntry("RedrivePolicy",
+                        "{\"deadLetterTargetArn\":\"arn:aws:sqs:ap-1:007:MyDeadLetterQueue\",\"maxReceiveCount\":7}"));
+        when(sqs.getQueueUrl(any(GetQueueUrlRequest.class))).thenReturn(new GetQueueUrlResult().withQueueUrl(deadLetterQueueUrl));
+
+        assertEquals(new RedrivePolicy(deadLetterQueueUrl, 7), qs.getRedrivePolicy(queueUrl));
+        ArgumentCaptor<GetQueueUrlRequest> request = ArgumentCaptor.forClass(GetQueueUrlRequest.class);
+        verify(sqs).getQueueUrl(request.capture());
+        assertEquals("MyDeadLetterQueue", request.getValue().getQueueName());
+        assertEquals("007", request.getValue().getQueueOwnerAWSAccountId());
+    }
+
+    @Test
+    public void testDeduplicatedPushUsesTheFifoDeduplicationId() {
+        String fifoQueueUrl = queueUrl + ".fifo";
+        assertTrue(qs.pushDeduplicated(fifoQueueUrl, "Once", 3, "order-42"));
+
+        ArgumentCaptor<SendMessageRequest> request = ArgumentCaptor.forClass(SendMessageRequest.class);
+        verify(sqs).sendMessage(request.capture());
+        assertEquals(fifoQueueUrl, request.getValue().getQueueUrl());
+        assertEquals("order-42", request.getValue().getMessageDeduplicationId());
+        assertEquals("3", request.getValue().getMessageGroupId());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testDeduplicatedPushNeedsAFifoQueue() {
+        qs.pushDeduplicated(queueUrl, "Once", 3, "order-42");
+    }
+
+    @Test
+    public void testDelayedPushUsesDelaySeconds() {
+        qs.push(queueUrl, "Later", 1, Duration.ofMillis(1500));
+
+        ArgumentCaptor<SendMessageRequest> request = ArgumentCaptor.forClass(SendMessageRequest.class);
+        verify(sqs).sendMessage(request.capture());
+        assertEquals("Later", request.getValue().getMessageBody());
+        assertEquals(Integer.valueOf(2), request.getValue().getDelaySeconds());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDelayedPushRejectsDelayBeyondSqsLimit() {
+        qs.push(queueUrl, "Too late", 1, Duration.ofMinutes(16));
+    }
+
+    @Test
+    public void testChangeVisibilityUsesChangeMessageVisibility() {
+        assertTrue(qs.changeVisibility(queueUrl, "receipt", Duration.ofMillis(1500)));
+
+        ArgumentCaptor<ChangeMessageVisibilityRequest> request = ArgumentCaptor.forClass(ChangeMessageVisibilityRequest.class);
+        verify(sqs).changeMessageVisibility(request.capture());
+        assertEquals("receipt", request.getValue().getReceiptHandle());
+        assertEquals(Integer.valueOf(2), request.getValue().getVisibilityTimeout());
+    }
+
+    @Test
+    public void testChangeVisibilityOfExpiredReceiptReturnsFalse() {
+        when(sqs.changeMessageVisibility(any(ChangeMessageVisibilityRequest.class)))
+                .thenThrow(new MessageNotInflightException("not in flight"));
+
+        assertFalse(qs.changeVisibility(queueUrl, "receipt", Duration.ofSeconds(30)));
+    }
+
+    @Test
+    public void testPullWithOwnVisibilityTimeoutSetsRequest() {
+        when(sqs.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(new ReceiveMessageResult()
+                .withMessages(new com.amazonaws.services.sqs.model.Message().withBody("Body").withReceiptHandle("r")));
+
+        assertEquals("Body", qs.pull(queueUrl, Duration.ZERO, Duration.ofMinutes(2)).getBody());
+
+        ArgumentCaptor<ReceiveMessageRequest> request = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(sqs).receiveMessage(request.capture());
+        assertEquals(Integer.valueOf(120), request.getValue().getVisibilityTimeout());
+    }
+}
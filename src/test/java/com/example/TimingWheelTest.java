@@ -0,0 +1,124 @@
+package com.example;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    @Test
+    public void testExpiresAtDeadline() {
+        TimingWheel<String> wheel = new TimingWheel<>();
+        List<String> expired = new ArrayList<>();
+        wheel.advance(1_000, expired::add);
+
+        wheel.schedule("a", 1_010);
+        wheel.schedule("b", 1_100);
+
+        wheel.advance(1_009, expired::add);
+        assertTrue(expired.isEmpty());
+
+        wheel.advance(1_010, expired::add);
+        assertEquals(List.of("a"), expired);
+
+        wheel.advance(1_099, expired::add);
+        assertEquals(List.of("a"), expired);
+
+        wheel.advance(1_100, expired::add);
+        assertEquals(List.of("a", "b"), expired);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    public void testCancel() {
+        TimingWheel<String> wheel = new TimingWheel<>();
+        List<String> expired = new ArrayList<>();
+        wheel.advance(0, expired::add);
+
+        TimingWheel.Timer<String> timer = wheel.schedule("a", 30_000);
+        wheel.schedule("b", 30_000);
+        assertTrue(wheel.cancel(timer));
+        assertFalse(wheel.cancel(timer));
+
+        wheel.advance(30_000, expired::add);
+        assertEquals(List.of("b"), expired);
+    }
+
+    @Test
+    public void testOverdueTimerExpiresOnNextAdvance() {
+        TimingWheel<String> wheel = new TimingWheel<>();
+        List<String> expired = new ArrayList<>();
+        wheel.advance(5_000, expired::add);
+
+        wheel.schedule("late", 4_000);
+        wheel.advance(5_000, expired::add);
+        assertEquals(List.of("late"), expired);
+    }
+
+    @Test
+    public void testRandomDeadlinesAcrossAllLevels() {
+        Random random = new Random(42);
+        TimingWheel<Long> wheel = new TimingWheel<>();
+        long start = 1_700_000_000_000L;
+        long[] now = {start};
+        wheel.advance(now[0], deadline -> fail("nothing scheduled yet"));
+
+        Map<Long, Integer> pending = new HashMap<>();
+        for (int i = 0; i < 5_000; i++) {
+            // Spread deadlines from a few milliseconds to several days ahead.
+            long deadline = start + (long) Math.pow(10, random.nextDouble() * 9);
+            wheel.schedule(deadline, deadline);
+            pending.merge(deadline, 1, Integer::sum);
+        }
+
+        while (!wheel.isEmpty()) {
+            now[0] += 1 + (long) Math.pow(10, random.nextDouble() * 7);
+            wheel.advance(now[0], deadline -> {
+                assertTrue("expired early", deadline <= now[0]);
+                pending.merge(deadline, -1, Integer::sum);
+            });
+            for (Map.Entry<Long, Integer> entry : pending.entrySet()) {
+                if (entry.getKey() <= now[0]) {
+                    assertEquals("expired late: " + entry.getKey(), 0, (int) entry.getValue());
+                }
+            }
+        }
+        assertEquals(0, pending.values().stream().mapToInt(Integer::intValue).sum());
+    }
+
+    @Test
+    public void testNextExpiryNeverOvershootsADeadline() {
+        TimingWheel<Long> wheel = new TimingWheel<>();
+        List<Long> expired = new ArrayList<>();
+        assertEquals(Long.MAX_VALUE, wheel.nextExpiry());
+        wheel.advance(0, expired::add);
+
+        Random random = new Random(7);
+        List<Long> deadlines = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            long deadline = 1 + random.nextInt(1 << 20);
+            deadlines.add(deadline);
+            wheel.schedule(deadline, deadline);
+        }
+        deadlines.sort(null);
+
+        // A consumer that only wakes up at nextExpiry() still sees every timer expire on time.
+        long now = 0;
+        while (!wheel.isEmpty()) {
+            long next = wheel.nextExpiry();
+            assertTrue(next > now);
+            assertTrue(next <= deadlines.get(expired.size()));
+            now = next;
+            wheel.advance(now, expired::add);
+            long due = now;
+            assertEquals(deadlines.stream().filter(deadline -> deadline <= due).count(), expired.size());
+        }
+        assertEquals(deadlines.size(), expired.size());
+    }
+}
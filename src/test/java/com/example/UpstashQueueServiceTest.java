@@ -7,6 +7,7 @@ import static org.junit.Assert.assertEquals;
 
 public class UpstashQueueServiceTest {
 
+    private final String queueUrl = "https://sqs.ap-1.amazonaws.com/007/UpstashQueue";
     private UpstashQueueService queueService;
 
     @Before
@@ -16,6 +17,7 @@ public class UpstashQueueServiceTest {
         queueService = new UpstashQueueService("improved-elephant-28431.upstash.io",
                 "AW8PAAIjcDEzMzAzZDA2NzMwMzg0YzllYjk2ZTExNWE1NTAwNTBkZXAxMA",
                 6379);
+        queueService.purgeQueue(queueUrl);
     }
 
     @After
@@ -26,43 +28,47 @@ public class UpstashQueueServiceTest {
 
     @Test
     public void testPushPullWithPriority() {
-        queueService.push("High Priority", 1);
-        queueService.push("Medium Priority", 5);
-        queueService.push("Low Priority", 10);
+        queueService.push(queueUrl, "High Priority", 10);
+        queueService.push(queueUrl, "Medium Priority", 5);
+        queueService.push(queueUrl, "Low Priority", 1);
 
         // Test that messages are pulled in priority order
-        assertEquals("High Priority", queueService.pull()); // Should be dequeued first
-        assertEquals("Medium Priority", queueService.pull());
-        assertEquals("Low Priority", queueService.pull());
+        assertEquals("High Priority", body(queueService.pull(queueUrl))); // Should be dequeued first
+        assertEquals("Medium Priority", body(queueService.pull(queueUrl)));
+        assertEquals("Low Priority", body(queueService.pull(queueUrl)));
     }
 
     @Test
     public void testFCFSForSamePriority() {
         // Push two messages with the same priority
-        queueService.push("Message A", 1);
-        queueService.push("Message B", 1);
+        queueService.push(queueUrl, "Message A", 1);
+        queueService.push(queueUrl, "Message B", 1);
 
         // Test that the messages are pulled in the same order they were added (FCFS)
-        assertEquals("Message A", queueService.pull()); // First message with same priority
-        assertEquals("Message B", queueService.pull());
+        assertEquals("Message A", body(queueService.pull(queueUrl))); // First message with same priority
+        assertEquals("Message B", body(queueService.pull(queueUrl)));
     }
 
     @Test
     public void testEmptyQueue() {
         // Pull from an empty queue should return null
-        assertEquals(null, queueService.pull());
+        assertEquals(null, body(queueService.pull(queueUrl)));
     }
 
     @Test
     public void testOrderWithMultiplePriorities() {
         // Push multiple messages with varying priorities
-        queueService.push("Message 1", 3);
-        queueService.push("Message 2", 1);
-        queueService.push("Message 3", 2);
+        queueService.push(queueUrl, "Message 1", 1);
+        queueService.push(queueUrl, "Message 2", 3);
+        queueService.push(queueUrl, "Message 3", 2);
 
         // Pull messages in the correct order based on priority
-        assertEquals("Message 2", queueService.pull()); // Priority 1 (lowest)
-        assertEquals("Message 3", queueService.pull()); // Priority 2
-        assertEquals("Message 1", queueService.pull()); // Priority 3 (highest)
+        assertEquals("Message 2", body(queueService.pull(queueUrl))); // Priority 3 (highest)
+        assertEquals("Message 3", body(queueService.pull(queueUrl))); // Priority 2
+        assertEquals("Message 1", body(queueService.pull(queueUrl))); // Priority 1 (lowest)
     }
-}
\ No newline at end of file
+
+    private static String body(Message msg) {
+        return msg == null ? null : msg.getBody();
+    }
+}